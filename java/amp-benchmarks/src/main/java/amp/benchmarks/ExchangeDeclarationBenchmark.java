@@ -0,0 +1,139 @@
+package amp.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import amp.rabbit.IRabbitChannelFactory;
+import amp.rabbit.topology.Exchange;
+import amp.rabbit.topology.ITopologyService;
+import amp.rabbit.topology.RouteInfo;
+import amp.rabbit.topology.RoutingInfo;
+import amp.rabbit.transport.RabbitTransportProvider;
+import amp.rabbit.transport.SimpleRoutingInfoCache;
+import cmf.bus.Envelope;
+import cmf.bus.EnvelopeHeaderConstants;
+
+import com.rabbitmq.client.Channel;
+
+
+/**
+ * Messages per second through RabbitTransportProvider.send when every send
+ * declares its exchange (as it used to) and when declarations are cached per
+ * connection.  The broker is simulated: exchange.declare costs the given round
+ * trip, and publishes are free.  With a round trip of 0 this measures only
+ * the client's own overhead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ExchangeDeclarationBenchmark {
+
+    @Param({ "every-send", "cached" })
+    public String declare;
+
+    @Param({ "0", "200" })
+    public long roundTripMicros;
+
+    private RabbitTransportProvider provider;
+    private Envelope envelope;
+    private boolean declareEverySend;
+
+    @Setup
+    public void createProvider() {
+
+        final FakeChannels.PublishingChannel channel =
+                new FakeChannels.PublishingChannel(TimeUnit.MICROSECONDS.toNanos(roundTripMicros));
+
+        provider = new RabbitTransportProvider(
+                new SingleExchangeTopologyService(), new SingleChannelFactory(channel.channel),
+                new SimpleRoutingInfoCache(3600));
+
+        envelope = new Envelope();
+        envelope.setHeader(EnvelopeHeaderConstants.MESSAGE_TOPIC, "benchmark.topic");
+        envelope.setPayload(new byte[256]);
+
+        declareEverySend = "every-send".equals(declare);
+    }
+
+    @Benchmark
+    public void send() throws Exception {
+
+        if (declareEverySend) {
+            provider.getExchangeDeclarations().invalidateAll();
+        }
+
+        provider.send(envelope);
+    }
+
+    @TearDown
+    public void disposeProvider() {
+
+        System.out.println();
+        System.out.println(declare + " @ " + roundTripMicros + "us: "
+                + provider.getExchangeDeclarations().getDeclarationCount() + " declarations, "
+                + provider.getExchangeDeclarations().getSkippedCount() + " skipped");
+
+        provider.dispose();
+    }
+
+
+    static class SingleExchangeTopologyService implements ITopologyService {
+
+        @Override
+        public RoutingInfo getRoutingInfo(Map<String, String> routingHints) {
+
+            Exchange exchange = new Exchange(
+                    "amp.events", "localhost", "/", 5672, "benchmark.topic", null, "topic", false, false, null);
+
+            ArrayList<RouteInfo> routes = new ArrayList<RouteInfo>();
+            routes.add(new RouteInfo(exchange, exchange));
+
+            return new RoutingInfo(routes);
+        }
+
+        @Override
+        public void dispose() {}
+    }
+
+    static class SingleChannelFactory implements IRabbitChannelFactory {
+
+        private final Channel channel;
+
+        SingleChannelFactory(Channel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public Channel getChannelFor(Exchange exchange) {
+            return channel;
+        }
+
+        @Override
+        public Channel checkoutChannelFor(Exchange exchange) {
+            return channel;
+        }
+
+        @Override
+        public void returnChannel(Exchange exchange, Channel channel) {}
+
+        @Override
+        public void dispose() {}
+    }
+}
@@ -0,0 +1,148 @@
+package amp.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.util.concurrent.locks.LockSupport;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Consumer;
+
+
+/**
+ * In-process stand-ins for broker channels, so the benchmarks measure the
+ * client rather than the network.
+ */
+public class FakeChannels {
+
+    private static final AtomicInteger CONSUMER_TAGS = new AtomicInteger();
+
+    /**
+     * A channel whose calls do nothing, except that it accepts a consumer
+     * (like the broker does) and keeps it so deliveries can be pushed to it.
+     */
+    public static class ConsumingChannel implements InvocationHandler {
+
+        public final Channel channel = (Channel) Proxy.newProxyInstance(
+                Channel.class.getClassLoader(), new Class<?>[] { Channel.class }, this);
+
+        public volatile Consumer consumer;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+            String name = method.getName();
+
+            if ("basicConsume".equals(name)) {
+
+                String consumerTag = "consumer-" + CONSUMER_TAGS.incrementAndGet();
+
+                consumer = (Consumer) args[args.length - 1];
+                consumer.handleConsumeOk(consumerTag);
+
+                return consumerTag;
+            }
+
+            if ("isOpen".equals(name)) { return true; }
+            if ("hashCode".equals(name)) { return System.identityHashCode(proxy); }
+            if ("equals".equals(name)) { return proxy == args[0]; }
+            if ("toString".equals(name)) { return "ConsumingChannel@" + System.identityHashCode(proxy); }
+
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    /**
+     * A channel whose calls do nothing, except that the synchronous
+     * exchange.declare takes a (simulated) broker round trip.  Publishes are
+     * asynchronous, as they are with a real broker, so they're free.
+     */
+    public static class PublishingChannel implements InvocationHandler {
+
+        public final Channel channel = (Channel) Proxy.newProxyInstance(
+                Channel.class.getClassLoader(), new Class<?>[] { Channel.class }, this);
+
+        private final Connection connection = (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+
+                        if ("isOpen".equals(method.getName())) { return true; }
+                        if ("hashCode".equals(method.getName())) { return System.identityHashCode(proxy); }
+                        if ("equals".equals(method.getName())) { return proxy == args[0]; }
+
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+
+        private final long roundTripNanos;
+
+        public PublishingChannel(long roundTripNanos) {
+            this.roundTripNanos = roundTripNanos;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+            String name = method.getName();
+
+            if ("exchangeDeclare".equals(name)) {
+
+                roundTrip();
+
+                return null;
+            }
+
+            if ("getConnection".equals(name)) { return connection; }
+            if ("isOpen".equals(name)) { return true; }
+            if ("hashCode".equals(name)) { return System.identityHashCode(proxy); }
+            if ("equals".equals(name)) { return proxy == args[0]; }
+
+            return defaultValue(method.getReturnType());
+        }
+
+        private void roundTrip() {
+
+            long deadline = System.nanoTime() + roundTripNanos;
+
+            for (long remaining = roundTripNanos; remaining > 0; remaining = deadline - System.nanoTime()) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+    }
+
+    /**
+     * A channel whose calls do nothing.
+     */
+    public static Channel nullChannel() {
+
+        return (Channel) Proxy.newProxyInstance(
+                Channel.class.getClassLoader(), new Class<?>[] { Channel.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+
+                        if ("isOpen".equals(method.getName())) { return true; }
+                        if ("hashCode".equals(method.getName())) { return System.identityHashCode(proxy); }
+                        if ("equals".equals(method.getName())) { return proxy == args[0]; }
+
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    static Object defaultValue(Class<?> type) {
+
+        if (!type.isPrimitive() || void.class == type) { return null; }
+        if (boolean.class == type) { return false; }
+        if (long.class == type) { return 0L; }
+        if (int.class == type) { return 0; }
+        if (double.class == type) { return 0d; }
+        if (float.class == type) { return 0f; }
+        if (short.class == type) { return (short) 0; }
+        if (byte.class == type) { return (byte) 0; }
+        return (char) 0;
+    }
+}
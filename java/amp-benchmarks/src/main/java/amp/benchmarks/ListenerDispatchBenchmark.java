@@ -0,0 +1,154 @@
+package amp.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import amp.bus.IEnvelopeDispatcher;
+import amp.bus.IEnvelopeReceivedCallback;
+import amp.rabbit.ConsumerDispatchPool;
+import amp.rabbit.PushRabbitListener;
+import amp.rabbit.RabbitListener;
+import amp.rabbit.topology.Exchange;
+import cmf.bus.Envelope;
+import cmf.bus.IEnvelopeFilterPredicate;
+import cmf.bus.IRegistration;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+
+/**
+ * Time from a delivery reaching a listener's consumer to the listener handing
+ * it on, for the thread-per-listener (polling) listener and the push listener
+ * on a shared pool, with many listeners open.  SampleTime mode reports the
+ * percentiles (p99 is the one to compare); the number of threads each kind
+ * needs is printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ListenerDispatchBenchmark {
+
+    @Param({ "poll", "push" })
+    public String listenerType;
+
+    @Param({ "10", "200" })
+    public int listeners;
+
+    private final List<FakeChannels.ConsumingChannel> channels = new ArrayList<FakeChannels.ConsumingChannel>();
+    private final List<RabbitListener> started = new ArrayList<RabbitListener>();
+    private final BasicProperties properties =
+            new BasicProperties.Builder().headers(new HashMap<String, Object>()).build();
+    private final byte[] body = new byte[256];
+
+    private ConsumerDispatchPool pool;
+    private volatile CountDownLatch handed;
+    private long deliveryTag;
+    private int threadsBefore;
+
+    @Setup(Level.Trial)
+    public void startListeners() throws Exception {
+
+        threadsBefore = Thread.activeCount();
+        pool = new ConsumerDispatchPool();
+
+        IEnvelopeReceivedCallback received = new IEnvelopeReceivedCallback() {
+            @Override
+            public void handleReceive(IEnvelopeDispatcher dispatcher) {
+                handed.countDown();
+            }
+        };
+
+        for (int index = 0; index < listeners; index++) {
+
+            Exchange exchange = new Exchange(
+                    "amp.events", "localhost", "/", 5672, "topic", "queue-" + index, "topic", false, true, null);
+
+            RabbitListener listener = "push".equals(listenerType)
+                    ? new PushRabbitListener(new NullRegistration(), exchange, pool)
+                    : new RabbitListener(new NullRegistration(), exchange);
+
+            listener.onEnvelopeReceived(received);
+
+            FakeChannels.ConsumingChannel channel = new FakeChannels.ConsumingChannel();
+            listener.start(channel.channel);
+
+            channels.add(channel);
+            started.add(listener);
+        }
+    }
+
+    @Benchmark
+    public void deliverAndDispatch() throws Exception {
+
+        deliveryTag++;
+        handed = new CountDownLatch(1);
+
+        FakeChannels.ConsumingChannel channel = channels.get((int) (deliveryTag % channels.size()));
+
+        channel.consumer.handleDelivery(
+                "consumer", new com.rabbitmq.client.Envelope(deliveryTag, false, "amp.events", "topic"), properties, body);
+
+        handed.await();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopListeners() {
+
+        System.out.println();
+        System.out.println(listenerType + " x " + listeners + ": "
+                + (Thread.activeCount() - threadsBefore) + " threads added");
+
+        for (RabbitListener listener : started) {
+            listener.dispose();
+        }
+        started.clear();
+        channels.clear();
+
+        pool.dispose();
+    }
+
+
+    static class NullRegistration implements IRegistration {
+
+        @Override
+        public IEnvelopeFilterPredicate getFilterPredicate() {
+            return null;
+        }
+
+        @Override
+        public Map<String, String> getRegistrationInfo() {
+            return new HashMap<String, String>();
+        }
+
+        @Override
+        public Object handle(Envelope envelope) {
+            return null;
+        }
+
+        @Override
+        public Object handleFailed(Envelope envelope, Exception ex) {
+            return null;
+        }
+    }
+}
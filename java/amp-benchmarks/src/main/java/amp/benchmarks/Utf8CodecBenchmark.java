@@ -0,0 +1,144 @@
+package amp.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import amp.utility.serialization.Utf8ByteArrayReader;
+import amp.utility.serialization.Utf8ByteArrayWriter;
+
+
+/**
+ * Cost of turning a payload's bytes into the characters a JSON parser reads,
+ * and back, per message.  Compares the byte array reader and writer the
+ * serializers use with the JDK's stream reader and writer (which allocate an
+ * 8 KB buffer each) and with building a String.  Run with -prof gc to compare
+ * the bytes allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class Utf8CodecBenchmark {
+
+    @Param({ "ascii", "mixed" })
+    public String text;
+
+    @Param({ "256", "16384" })
+    public int chars;
+
+    private String payload;
+    private byte[] payloadBytes;
+
+    /**
+     * what the parser reads into; Gson's JsonReader keeps a buffer this size
+     */
+    private final char[] buffer = new char[1024];
+
+    @Setup
+    public void createPayload() throws Exception {
+
+        String sample = "ascii".equals(text)
+                ? "{\"name\":\"value\",\"count\":42},"
+                : "{\"name\":\"caf\u00e9 \u4e2d\u6587 \ud83d\ude00\",\"count\":42},";
+
+        StringBuilder builder = new StringBuilder(chars + sample.length());
+        while (builder.length() < chars) {
+            builder.append(sample);
+        }
+
+        payload = builder.toString();
+        payloadBytes = payload.getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public int readByteArrayReader() throws Exception {
+        return drain(new Utf8ByteArrayReader(payloadBytes));
+    }
+
+    @Benchmark
+    public int readInputStreamReader() throws Exception {
+        return drain(new InputStreamReader(new ByteArrayInputStream(payloadBytes), "UTF-8"));
+    }
+
+    @Benchmark
+    public int readString() throws Exception {
+        return drain(new StringReader(new String(payloadBytes, "UTF-8")));
+    }
+
+    @Benchmark
+    public byte[] writeByteArrayWriter() throws Exception {
+
+        Utf8ByteArrayWriter writer = new Utf8ByteArrayWriter();
+        fill(writer);
+
+        return writer.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] writeOutputStreamWriter() throws Exception {
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(stream, "UTF-8");
+        fill(writer);
+        writer.close();
+
+        return stream.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] writeString() throws Exception {
+
+        StringBuilder builder = new StringBuilder();
+        for (int offset = 0; offset < payload.length(); offset += buffer.length) {
+            builder.append(payload, offset, Math.min(payload.length(), offset + buffer.length));
+        }
+
+        return builder.toString().getBytes("UTF-8");
+    }
+
+
+    /**
+     * Read everything, as a parser would.
+     */
+    private int drain(Reader reader) throws Exception {
+
+        int total = 0;
+        int n;
+
+        while (-1 != (n = reader.read(buffer, 0, buffer.length))) {
+            total += n;
+        }
+
+        return total;
+    }
+
+    /**
+     * Write the payload in pieces, as a JSON writer would.
+     */
+    private void fill(Writer writer) throws Exception {
+
+        for (int offset = 0; offset < payload.length(); offset += buffer.length) {
+            writer.write(payload, offset, Math.min(buffer.length, payload.length() - offset));
+        }
+    }
+}
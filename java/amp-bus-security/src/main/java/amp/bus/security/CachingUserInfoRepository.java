@@ -0,0 +1,202 @@
+package amp.bus.security;
+
+
+import java.security.cert.X509Certificate;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Caches the answers of another user info repository, such as one backed by
+ * LDAP, so that a signed message doesn't cost a directory lookup.
+ * <p>
+ * Both caches are bounded in size and expire entries a while after they are
+ * loaded.  A lookup that finds nothing is cached too, for a (usually shorter)
+ * time of its own, so unknown senders don't reach the directory on every
+ * message either.  Lookups that fail are not cached.  Concurrent misses for
+ * the same key wait on a single load rather than each querying the directory.
+ * </p>
+ */
+public class CachingUserInfoRepository implements IUserInfoRepository {
+
+	private static final Logger LOG = LoggerFactory.getLogger(CachingUserInfoRepository.class);
+
+	public static long DEFAULT_MAXIMUM_SIZE = 10000;
+	public static long DEFAULT_TTL = 60 * 60 * 1000;
+	public static long DEFAULT_NEGATIVE_TTL = 5 * 60 * 1000;
+
+	protected final IUserInfoRepository repository;
+	protected final long ttl;
+	protected final long negativeTtl;
+
+	protected final Cache<String, Entry<String>> distinguishedNames;
+	protected final Cache<String, Entry<X509Certificate>> certificates;
+
+	protected final AtomicLong negativeResultCount = new AtomicLong();
+
+
+	public CachingUserInfoRepository(IUserInfoRepository repository) {
+		this(repository, DEFAULT_MAXIMUM_SIZE, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+	}
+
+	/**
+	 * @param repository the repository to cache
+	 * @param maximumSize most entries to keep in each cache
+	 * @param ttl how long, in ms, to keep an answer
+	 * @param negativeTtl how long, in ms, to remember that nothing was found
+	 */
+	public CachingUserInfoRepository(IUserInfoRepository repository, long maximumSize, long ttl, long negativeTtl) {
+
+		this.repository = repository;
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+
+		this.distinguishedNames = this.<String>buildCache(maximumSize);
+		this.certificates = this.<X509Certificate>buildCache(maximumSize);
+	}
+
+
+	@Override
+	public String getDistinguishedName(final String accountName) throws Exception {
+
+		return this.get(distinguishedNames, accountName, new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return repository.getDistinguishedName(accountName);
+			}
+		});
+	}
+
+	@Override
+	public X509Certificate getPublicCertificateFor(final String distinguishedName) throws Exception {
+
+		return this.get(certificates, distinguishedName, new Callable<X509Certificate>() {
+			@Override
+			public X509Certificate call() throws Exception {
+				return repository.getPublicCertificateFor(distinguishedName);
+			}
+		});
+	}
+
+	/**
+	 * Forget everything cached, e.g. after certificates have been reissued.
+	 */
+	public void invalidateAll() {
+		distinguishedNames.invalidateAll();
+		certificates.invalidateAll();
+	}
+
+	/**
+	 * @return hit, miss and load-time statistics of the distinguished name cache
+	 */
+	public CacheStats getDistinguishedNameStats() {
+		return distinguishedNames.stats();
+	}
+
+	/**
+	 * @return hit, miss and load-time statistics of the certificate cache
+	 */
+	public CacheStats getCertificateStats() {
+		return certificates.stats();
+	}
+
+	/**
+	 * @return number of lookups answered with "nothing found", from the cache or not
+	 */
+	public long getNegativeResultCount() {
+		return negativeResultCount.get();
+	}
+
+
+	protected <V> Cache<String, Entry<V>> buildCache(long maximumSize) {
+
+		return CacheBuilder.newBuilder()
+				.maximumSize(maximumSize)
+				.expireAfterWrite(Math.max(ttl, negativeTtl), TimeUnit.MILLISECONDS)
+				.recordStats()
+				.build();
+	}
+
+	protected <V> V get(Cache<String, Entry<V>> cache, String key, final Callable<V> lookup) throws Exception {
+
+		if (null == key) {
+			return lookup.call();
+		}
+
+		Callable<Entry<V>> loader = new Callable<Entry<V>>() {
+			@Override
+			public Entry<V> call() throws Exception {
+
+				V value = lookup.call();
+
+				return new Entry<V>(value, System.currentTimeMillis() + (null == value ? negativeTtl : ttl));
+			}
+		};
+
+		try {
+
+			Entry<V> entry = cache.get(key, loader);
+
+			// the cache keeps everything for the longer of the two times
+			if (entry.isExpired()) {
+
+				cache.asMap().remove(key, entry);
+				entry = cache.get(key, loader);
+			}
+
+			if (null == entry.value) {
+				negativeResultCount.incrementAndGet();
+			}
+
+			return entry.value;
+
+		} catch (ExecutionException ex) {
+
+			LOG.warn("Failed to look up {}", key);
+			throw unwrap(ex);
+
+		} catch (UncheckedExecutionException ex) {
+
+			LOG.warn("Failed to look up {}", key);
+			throw unwrap(ex);
+		}
+	}
+
+	private static Exception unwrap(Exception ex) {
+
+		Throwable cause = ex.getCause();
+
+		if (cause instanceof Exception) { return (Exception) cause; }
+		if (cause instanceof Error) { throw (Error) cause; }
+
+		return ex;
+	}
+
+
+	/**
+	 * A cached answer, which may be "nothing found".
+	 */
+	protected static final class Entry<V> {
+
+		final V value;
+		final long expiresAt;
+
+		Entry(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isExpired() {
+			return System.currentTimeMillis() >= expiresAt;
+		}
+	}
+}
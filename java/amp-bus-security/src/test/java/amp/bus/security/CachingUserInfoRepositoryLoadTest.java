@@ -0,0 +1,136 @@
+package amp.bus.security;
+
+import static org.junit.Assert.*;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.cache.CacheStats;
+
+public class CachingUserInfoRepositoryLoadTest {
+
+	static final int ACCOUNTS = 20;
+	static final int THREADS = 16;
+	static final int LOOKUPS_PER_THREAD = 500;
+	static final long LATENCY_MILLIS = 25;
+
+	/**
+	 * An in-memory repository that answers as slowly as a directory would.
+	 */
+	static class SlowUserInfoRepository extends InMemoryUserInfoRepository {
+
+		final AtomicInteger nameLookups = new AtomicInteger();
+		final AtomicInteger certificateLookups = new AtomicInteger();
+
+		SlowUserInfoRepository(Map<String, String> mapping) {
+			super(mapping);
+		}
+
+		@Override
+		public String getDistinguishedName(String accountName) throws Exception {
+			nameLookups.incrementAndGet();
+			Thread.sleep(LATENCY_MILLIS);
+			return super.getDistinguishedName(accountName);
+		}
+
+		@Override
+		public X509Certificate getPublicCertificateFor(String distinguishedName) throws Exception {
+			certificateLookups.incrementAndGet();
+			Thread.sleep(LATENCY_MILLIS);
+			return super.getPublicCertificateFor(distinguishedName);
+		}
+	}
+
+	static Map<String, String> accounts() {
+
+		Map<String, String> mapping = new HashMap<String, String>();
+
+		for (int i = 0; i < ACCOUNTS; i++) {
+			mapping.put("user" + i, "CN=user" + i + ",OU=people,DC=example,DC=com");
+		}
+
+		return mapping;
+	}
+
+	/**
+	 * Look up every account's name and certificate, over and over, from many threads.
+	 * @return elapsed time in ms
+	 */
+	static long hammer(final IUserInfoRepository repository) throws Exception {
+
+		ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+		List<Future<Void>> workers = new ArrayList<Future<Void>>();
+
+		long started = System.currentTimeMillis();
+
+		for (int t = 0; t < THREADS; t++) {
+
+			final int offset = t;
+
+			workers.add(threads.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+
+					for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+
+						String account = "user" + ((i + offset) % ACCOUNTS);
+						String dn = repository.getDistinguishedName(account);
+
+						assertEquals("CN=" + account + ",OU=people,DC=example,DC=com", dn);
+						assertNull(repository.getPublicCertificateFor(dn));
+					}
+
+					return null;
+				}
+			}));
+		}
+
+		for (Future<Void> worker : workers) {
+			worker.get(60, TimeUnit.SECONDS);
+		}
+
+		threads.shutdown();
+
+		return System.currentTimeMillis() - started;
+	}
+
+	@Test
+	public void concurrent_lookups_reach_the_slow_repository_once_per_key() throws Exception {
+
+		SlowUserInfoRepository slow = new SlowUserInfoRepository(accounts());
+		CachingUserInfoRepository cached = new CachingUserInfoRepository(slow);
+
+		long elapsed = hammer(cached);
+
+		// single-flight: each account (and each certificate, which is never found) loaded once
+		assertEquals(ACCOUNTS, slow.nameLookups.get());
+		assertEquals(ACCOUNTS, slow.certificateLookups.get());
+
+		CacheStats names = cached.getDistinguishedNameStats();
+		CacheStats certificates = cached.getCertificateStats();
+
+		assertEquals(THREADS * LOOKUPS_PER_THREAD, names.requestCount());
+		assertEquals(ACCOUNTS, names.loadCount());
+		assertEquals(ACCOUNTS, certificates.loadCount());
+		// a thread waiting on another's load counts as a miss, so at most one per thread per account
+		assertTrue(names.toString(), names.missCount() <= THREADS * ACCOUNTS);
+		assertTrue(names.toString(), names.totalLoadTime() >= TimeUnit.MILLISECONDS.toNanos(ACCOUNTS * LATENCY_MILLIS));
+
+		// missing certificates are negative results, answered from the cache after the first
+		assertEquals(THREADS * LOOKUPS_PER_THREAD, cached.getNegativeResultCount());
+
+		// uncached, each thread would spend LOOKUPS_PER_THREAD * 2 * LATENCY_MILLIS (25s) waiting
+		assertTrue("took " + elapsed + "ms", elapsed < LOOKUPS_PER_THREAD * 2 * LATENCY_MILLIS / 10);
+	}
+}
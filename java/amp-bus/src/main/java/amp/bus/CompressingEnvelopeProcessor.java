@@ -0,0 +1,64 @@
+package amp.bus;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Compresses outbound payloads above a size threshold and decompresses
+ * inbound ones, using a {@link PayloadCompressor}.  The same instance may be
+ * put in both the inbound and the outbound chain.
+ */
+public class CompressingEnvelopeProcessor implements IEnvelopeProcessor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompressingEnvelopeProcessor.class);
+
+    protected final PayloadCompressor compressor;
+
+
+    public CompressingEnvelopeProcessor() {
+        this(new PayloadCompressor());
+    }
+
+    public CompressingEnvelopeProcessor(PayloadCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+
+    public PayloadCompressor getCompressor() {
+        return compressor;
+    }
+
+    @Override
+    public void processEnvelope(EnvelopeContext context, IContinuationCallback continuation) {
+
+        if (EnvelopeContext.Directions.Out == context.getDirection()) {
+
+            compressor.compress(context.getEnvelope());
+
+        } else if (EnvelopeContext.Directions.In == context.getDirection()) {
+
+            try {
+                compressor.decompress(context.getEnvelope());
+            } catch (Exception ex) {
+                String message = "Failed to decompress an incoming envelope.";
+                LOG.error(message, ex);
+                throw new IllegalStateException(message, ex);
+            }
+        }
+
+        try {
+            continuation.continueProcessing();
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            // processEnvelope can't throw checked exceptions
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public void dispose() {
+    }
+}
@@ -1,6 +1,8 @@
 package amp.bus;
 
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -13,21 +15,33 @@ import org.slf4j.LoggerFactory;
 import amp.bus.EnvelopeContext.Directions;
 
 
-public class DefaultEnvelopeBus implements IEnvelopeBus, IEnvelopeReceivedCallback {
+public class DefaultEnvelopeBus implements IEnvelopeBus, IBatchEnvelopeSender, IEnvelopeReceivedCallback {
 
 	protected final Logger log = LoggerFactory.getLogger(this.getClass().getCanonicalName());
 	
     protected List<IEnvelopeProcessor> _inboundProcessors = new LinkedList<IEnvelopeProcessor>();
     protected List<IEnvelopeProcessor> _outboundProcessors = new LinkedList<IEnvelopeProcessor>();
     protected ITransportProvider _transportProvider;
+    protected EnvelopeProcessorChain _inboundChain = new EnvelopeProcessorChain(_inboundProcessors);
+    protected EnvelopeProcessorChain _outboundChain = new EnvelopeProcessorChain(_outboundProcessors);
 
     
+    /**
+     * Set the inbound processors.  The chain is compiled here, so changes
+     * made to the list afterwards are not seen.
+     */
     public void setInboundProcessors(List<IEnvelopeProcessor> inboundChain) {
     	_inboundProcessors = inboundChain;
+    	_inboundChain = new EnvelopeProcessorChain(inboundChain);
     }
     
+    /**
+     * Set the outbound processors.  The chain is compiled here, so changes
+     * made to the list afterwards are not seen.
+     */
     public void setOutboundProcessors(List<IEnvelopeProcessor> outboundChain) {
     	_outboundProcessors = outboundChain;
+    	_outboundChain = new EnvelopeProcessorChain(outboundChain);
     }
     
     
@@ -43,8 +57,9 @@ public class DefaultEnvelopeBus implements IEnvelopeBus, IEnvelopeReceivedCallba
         List<IEnvelopeProcessor> outboundChain)
     {
         this._transportProvider = transportProvider;
-        this._inboundProcessors = inboundChain;
-        this._outboundProcessors = outboundChain;
+
+        setInboundProcessors(inboundChain);
+        setOutboundProcessors(outboundChain);
 
         initialize();
     }
@@ -69,38 +84,16 @@ public class DefaultEnvelopeBus implements IEnvelopeBus, IEnvelopeReceivedCallba
         }
     }
 
+    /**
+     * Run an envelope through an arbitrary list of processors.  The bus's own
+     * chains are compiled ahead of time and don't go through this method.
+     */
     public void processEnvelope(
     		final EnvelopeContext context, 
     		final List<IEnvelopeProcessor> processingChain, 
     		final IContinuationCallback onComplete) throws Exception
     {
-    	log.debug("Enter processEnvelope");
-    	
-    	// if the chain is null or empty, complete processing
-    	if ( (null == processingChain) || (0 == processingChain.size()) ) {
-    		log.debug("envelope processing complete");
-    		onComplete.continueProcessing();
-    		return;
-    	}
-    	
-    	// get the first processor
-    	IEnvelopeProcessor processor = processingChain.get(0);
-    	
-    	// create a processing chain that no longer contains this processor
-    	final List<IEnvelopeProcessor> newChain = processingChain.subList(1, processingChain.size());
-    	
-    	// let it process the envelope and pass its "next" processor: a method that
-    	// recursively calls this function with the current processor removed
-    	processor.processEnvelope(context, new IContinuationCallback() {
-
-			@Override
-			public void continueProcessing() throws Exception {
-				processEnvelope(context, newChain, onComplete);
-			}
-    		
-    	});
-    	
-    	log.debug("Leave processEnvelope");
+    	new EnvelopeProcessorChain(processingChain).process(context, onComplete);
     }
     
     @Override
@@ -128,12 +121,15 @@ public class DefaultEnvelopeBus implements IEnvelopeBus, IEnvelopeReceivedCallba
         final EnvelopeContext context = new EnvelopeContext(Directions.Out, envelope);
         
         // send the envelope through the outbound processing chain
-        this.processEnvelope(context, _outboundProcessors, new IContinuationCallback() {
+        _outboundChain.process(context, new IContinuationCallback() {
 
 			@Override
 			public void continueProcessing() throws Exception {
 				_transportProvider.send(context.getEnvelope());
-				log.debug("Outgoing headers: {}", new EnvelopeHelper(context.getEnvelope()).flatten());
+
+				if (log.isDebugEnabled()) {
+					log.debug("Outgoing headers: {}", new EnvelopeHelper(context.getEnvelope()).flatten());
+				}
 			}
         	
         });
@@ -141,6 +137,48 @@ public class DefaultEnvelopeBus implements IEnvelopeBus, IEnvelopeReceivedCallba
         log.debug("Leave send");
     }
 
+    /**
+     * Send a batch of envelopes.  Each envelope goes through the outbound
+     * processing chain, then the envelopes that make it through are handed to
+     * the transport provider together.
+     * @param envelopes Envelopes to send
+     */
+    @Override
+    public void sendAll(final Collection<Envelope> envelopes) throws Exception {
+
+        log.debug("Enter sendAll");
+
+        if (envelopes == null) {
+            throw new IllegalArgumentException("Cannot send a null collection of envelopes");
+        }
+
+        final List<Envelope> processed = new ArrayList<Envelope>(envelopes.size());
+
+        for (Envelope envelope : envelopes) {
+
+            if (envelope == null) {
+                throw new IllegalArgumentException("Cannot send a null envelope");
+            }
+
+            final EnvelopeContext context = new EnvelopeContext(Directions.Out, envelope);
+
+            _outboundChain.process(context, new IContinuationCallback() {
+
+                @Override
+                public void continueProcessing() throws Exception {
+                    processed.add(context.getEnvelope());
+                }
+            });
+        }
+
+        if (!processed.isEmpty()) {
+            _transportProvider.sendAll(processed);
+        }
+
+        log.debug("Sent {} of {} envelopes", processed.size(), envelopes.size());
+        log.debug("Leave sendAll");
+    }
+
     @Override
     public void unregister(IRegistration registration) throws Exception {
         log.debug("Enter unregister");
@@ -161,7 +199,7 @@ public class DefaultEnvelopeBus implements IEnvelopeBus, IEnvelopeReceivedCallba
 
         try {
             // send the envelope through the inbound processing chain
-            this.processEnvelope(context, _inboundProcessors, new IContinuationCallback() {
+            _inboundChain.process(context, new IContinuationCallback() {
 
                 @Override
                 public void continueProcessing() throws Exception {
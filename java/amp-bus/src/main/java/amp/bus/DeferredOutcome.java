@@ -0,0 +1,189 @@
+package amp.bus;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The outcome of handling an envelope that will only be known later, because
+ * handling continues on another thread.
+ * <p>
+ * A registration returns one from {@code handle(envelope)} instead of an
+ * outcome; the transport settles the delivery (e.g. acknowledges it) only when
+ * it completes, and treats a failure as if {@code handle} had thrown.
+ * </p>
+ * <p>
+ * Processors learn whether they may defer through the processing context: the
+ * code driving the processors allows it with
+ * {@link #allowDeferral(Map, Object)}, a processor takes it with
+ * {@link #defer(Map)} (and from then on owns calling its continuation and
+ * completing the outcome), and the driver collects it with
+ * {@link #getDeferred(Map)}.
+ * </p>
+ */
+public class DeferredOutcome {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeferredOutcome.class);
+
+    public static final String CONTEXT_KEY = DeferredOutcome.class.getName();
+    public static final String ORDERING_KEY = DeferredOutcome.class.getName() + ".orderingKey";
+
+    private final List<IDeferredOutcomeCallback> callbacks = new ArrayList<IDeferredOutcomeCallback>();
+    private boolean done;
+    private Object outcome;
+    private Exception failure;
+    private Object result;
+
+
+    /**
+     * Handling finished.
+     * @param outcome what the registration's handle method would have returned
+     */
+    public void complete(Object outcome) {
+        settle(outcome, null);
+    }
+
+    /**
+     * Handling finished, with whatever outcome was recorded by
+     * {@link #setResult(Object)} (null if none was).  Lets the processor that
+     * deferred the outcome finish it without knowing what the handler returned.
+     */
+    public void completeWithResult() {
+
+        Object recorded;
+
+        synchronized (this) {
+            recorded = result;
+        }
+
+        complete(recorded);
+    }
+
+    /**
+     * Record what the handler returned, for {@link #completeWithResult()}.
+     * @param result the handler's outcome
+     */
+    public synchronized void setResult(Object result) {
+        this.result = result;
+    }
+
+    /**
+     * Handling failed.
+     * @param ex what the registration's handle method would have thrown
+     */
+    public void fail(Exception ex) {
+        settle(null, ex);
+    }
+
+    /**
+     * @return true once the outcome is known
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Be told the outcome when it is known, or now if it already is.  The
+     * callback runs on the thread that completes the outcome.
+     * @param callback told the outcome
+     */
+    public void onDone(IDeferredOutcomeCallback callback) {
+
+        synchronized (this) {
+            if (!done) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+
+        notify(callback);
+    }
+
+
+    /**
+     * Let processors defer the outcome of handling this context's envelope.
+     * @param context processing context
+     * @param orderingKey identifies the stream (e.g. the queue) whose order
+     *                    deferred handling must preserve
+     */
+    public static void allowDeferral(Map<String, Object> context, Object orderingKey) {
+        context.put(ORDERING_KEY, orderingKey);
+    }
+
+    /**
+     * Defer the outcome of handling this context's envelope, if allowed and
+     * not already deferred.
+     * @param context processing context
+     * @return the outcome, which the caller must complete; or null, in which
+     *         case the caller must finish processing synchronously
+     */
+    public static DeferredOutcome defer(Map<String, Object> context) {
+
+        if (!context.containsKey(ORDERING_KEY) || context.containsKey(CONTEXT_KEY)) {
+            return null;
+        }
+
+        DeferredOutcome outcome = new DeferredOutcome();
+        context.put(CONTEXT_KEY, outcome);
+
+        return outcome;
+    }
+
+    /**
+     * @param context processing context
+     * @return the stream whose order deferred handling must preserve
+     */
+    public static Object getOrderingKey(Map<String, Object> context) {
+        return context.get(ORDERING_KEY);
+    }
+
+    /**
+     * @param context processing context
+     * @return the outcome a processor deferred, or null if none did
+     */
+    public static DeferredOutcome getDeferred(Map<String, Object> context) {
+        return (DeferredOutcome) context.get(CONTEXT_KEY);
+    }
+
+
+    private void settle(Object outcome, Exception failure) {
+
+        List<IDeferredOutcomeCallback> toNotify;
+
+        synchronized (this) {
+
+            if (done) {
+                LOG.warn("Ignoring a second outcome for the same envelope");
+                return;
+            }
+
+            this.done = true;
+            this.outcome = outcome;
+            this.failure = failure;
+
+            toNotify = new ArrayList<IDeferredOutcomeCallback>(callbacks);
+            callbacks.clear();
+        }
+
+        for (IDeferredOutcomeCallback callback : toNotify) {
+            notify(callback);
+        }
+    }
+
+    private void notify(IDeferredOutcomeCallback callback) {
+        try {
+            if (null == failure) {
+                callback.onComplete(outcome);
+            } else {
+                callback.onFailure(failure);
+            }
+        } catch (Exception ex) {
+            LOG.error("Deferred outcome callback threw an exception", ex);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package amp.bus;
+
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * An ordered chain of envelope processors, compiled once into an array.
+ * <p>
+ * Each envelope is walked through the chain by a single cursor that serves as
+ * the continuation for every processor in turn, so running the chain costs one
+ * small object per envelope rather than a sub-list and a callback per
+ * processor.  A processor that does not call its continuation stops the
+ * envelope, just as before.  A processor must call its continuation at most once.
+ * </p>
+ */
+public class EnvelopeProcessorChain {
+
+    private static final IEnvelopeProcessor[] EMPTY = new IEnvelopeProcessor[0];
+
+    private final IEnvelopeProcessor[] processors;
+
+
+    /**
+     * Compile the chain.  Later changes to the list are not seen by the chain.
+     * @param processors Processors in the order they should run; may be null
+     */
+    public EnvelopeProcessorChain(List<IEnvelopeProcessor> processors) {
+
+        this.processors = (null == processors)
+                ? EMPTY
+                : processors.toArray(new IEnvelopeProcessor[processors.size()]);
+    }
+
+
+    /**
+     * Run the envelope through the chain.
+     * @param context Envelope and its processing state
+     * @param onComplete called if every processor continues
+     */
+    public void process(EnvelopeContext context, IContinuationCallback onComplete) throws Exception {
+
+        if (0 == processors.length) {
+
+            onComplete.continueProcessing();
+
+        } else {
+
+            new Cursor(context, onComplete).continueProcessing();
+        }
+    }
+
+    /**
+     * @return the processors in the chain, in order
+     */
+    public List<IEnvelopeProcessor> getProcessors() {
+        return Collections.unmodifiableList(Arrays.asList(processors));
+    }
+
+    /**
+     * @return number of processors in the chain
+     */
+    public int size() {
+        return processors.length;
+    }
+
+
+    /**
+     * Continuation handed to each processor; moves the envelope to the next one.
+     */
+    private final class Cursor implements IContinuationCallback {
+
+        private final EnvelopeContext context;
+        private final IContinuationCallback onComplete;
+        private int next;
+
+        Cursor(EnvelopeContext context, IContinuationCallback onComplete) {
+            this.context = context;
+            this.onComplete = onComplete;
+        }
+
+        @Override
+        public void continueProcessing() throws Exception {
+
+            if (next < processors.length) {
+
+                processors[next++].processEnvelope(context, this);
+
+            } else {
+
+                onComplete.continueProcessing();
+            }
+        }
+    }
+}
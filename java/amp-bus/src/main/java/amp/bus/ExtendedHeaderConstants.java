@@ -0,0 +1,40 @@
+package amp.bus;
+
+
+/**
+ * Envelope headers used by AMP in addition to those defined by
+ * {@link cmf.bus.EnvelopeHeaderConstants}.
+ */
+public class ExtendedHeaderConstants {
+
+    /**
+     * Topic a responder should publish its response to, instead of the
+     * per-request topic derived from the response type and correlation id.
+     */
+    public static final String MESSAGE_REPLY_TO = "amp.bus.message.reply_to";
+
+    /**
+     * Algorithm the sender's digital signature was made with.  Envelopes
+     * without it were signed with SHA1withRSA.
+     */
+    public static final String MESSAGE_SENDER_SIGNATURE_ALGORITHM = "amp.bus.message.sender.signature.algorithm";
+
+    /**
+     * Encoding of the payload, such as application/json.  Envelopes without
+     * it carry JSON.
+     */
+    public static final String MESSAGE_CONTENT_TYPE = "amp.bus.message.content_type";
+
+    /**
+     * Compression applied to the payload, such as deflate.  Envelopes
+     * without it are not compressed.
+     */
+    public static final String MESSAGE_CONTENT_ENCODING = "amp.bus.message.content_encoding";
+
+    /**
+     * Registration info (rather than an envelope header) giving the most
+     * unacknowledged deliveries the registration's consumer may hold at once.
+     * Registrations without it have no limit.
+     */
+    public static final String REGISTRATION_PREFETCH = "amp.bus.registration.prefetch";
+}
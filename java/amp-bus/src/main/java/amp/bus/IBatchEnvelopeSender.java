@@ -0,0 +1,21 @@
+package amp.bus;
+
+
+import java.util.Collection;
+
+import cmf.bus.Envelope;
+
+
+/**
+ * Implemented by envelope senders that can send many envelopes at once more
+ * cheaply than sending them one at a time.
+ */
+public interface IBatchEnvelopeSender {
+
+    /**
+     * Send all of the envelopes.
+     * @param envelopes Envelopes to send
+     * @throws Exception if any envelope could not be sent
+     */
+    void sendAll(Collection<Envelope> envelopes) throws Exception;
+}
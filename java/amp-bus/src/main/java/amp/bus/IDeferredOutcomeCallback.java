@@ -0,0 +1,18 @@
+package amp.bus;
+
+
+/**
+ * Told how the handling of an envelope ended, once it has.
+ */
+public interface IDeferredOutcomeCallback {
+
+    /**
+     * @param outcome what the registration's handle method would have returned
+     */
+    void onComplete(Object outcome);
+
+    /**
+     * @param ex what the registration's handle method would have thrown
+     */
+    void onFailure(Exception ex);
+}
@@ -1,6 +1,8 @@
 package amp.bus;
 
 
+import java.util.Collection;
+
 import cmf.bus.Envelope;
 import cmf.bus.IDisposable;
 import cmf.bus.IRegistration;
@@ -14,5 +16,7 @@ public interface ITransportProvider extends IDisposable {
 
     void send(Envelope envelope) throws Exception;
 
+    void sendAll(Collection<Envelope> envelopes) throws Exception;
+
     void unregister(IRegistration registration) throws Exception;
 }
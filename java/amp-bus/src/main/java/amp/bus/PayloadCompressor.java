@@ -0,0 +1,330 @@
+package amp.bus;
+
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import cmf.bus.Envelope;
+
+
+/**
+ * Deflates envelope payloads above a size threshold and inflates them again
+ * on the way in.  A compressed envelope carries a content encoding header;
+ * envelopes without one (or with an encoding other than deflate) are passed
+ * through, so compressing senders and receivers that don't compress can
+ * share a bus as long as the receivers understand the header.
+ * <p>
+ * A payload is only compressed if that makes it smaller.  Each thread reuses
+ * its own Deflater, Inflater and scratch buffer.  The time spent is the
+ * thread's CPU time where the JVM measures it, elapsed time otherwise.
+ * </p>
+ */
+public class PayloadCompressor {
+
+    public static final String DEFLATE = "deflate";
+
+    public static int DEFAULT_THRESHOLD = 4 * 1024;
+    public static int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+    public static int DEFAULT_MAX_INFLATED_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * scratch buffers larger than this are not kept for the next payload
+     */
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    protected int threshold = DEFAULT_THRESHOLD;
+    protected int level = DEFAULT_LEVEL;
+    protected int maxInflatedSize = DEFAULT_MAX_INFLATED_SIZE;
+
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>();
+    private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+    private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
+
+    private final AtomicLong compressedCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final AtomicLong bytesBeforeCompression = new AtomicLong();
+    private final AtomicLong bytesAfterCompression = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressedCount = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+
+    /**
+     * @param threshold payloads smaller than this many bytes are sent as they are
+     */
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param level Deflater compression level, from 1 (fastest) to 9 (smallest)
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * @param maxInflatedSize largest payload, in bytes, an inbound envelope may inflate to
+     */
+    public void setMaxInflatedSize(int maxInflatedSize) {
+        this.maxInflatedSize = maxInflatedSize;
+    }
+
+
+    /**
+     * Compress the envelope's payload, if it is large enough and compresses.
+     * @return true if the payload was compressed
+     */
+    public boolean compress(Envelope envelope) {
+
+        byte[] payload = envelope.getPayload();
+
+        if (null == payload || payload.length < threshold
+                || null != envelope.getHeader(ExtendedHeaderConstants.MESSAGE_CONTENT_ENCODING)) {
+            return false;
+        }
+
+        byte[] compressed = this.compress(payload);
+
+        if (null == compressed) {
+            return false;
+        }
+
+        envelope.setPayload(compressed);
+        envelope.setHeader(ExtendedHeaderConstants.MESSAGE_CONTENT_ENCODING, DEFLATE);
+
+        return true;
+    }
+
+    /**
+     * Restore the envelope's payload if it was deflated.  Envelopes with any
+     * other encoding are left as they are, header and all, for something
+     * further along to decode.
+     * @return true if the payload was decompressed
+     * @throws DataFormatException if the payload is corrupt or inflates too large
+     */
+    public boolean decompress(Envelope envelope) throws DataFormatException {
+
+        String encoding = envelope.getHeader(ExtendedHeaderConstants.MESSAGE_CONTENT_ENCODING);
+
+        if (!DEFLATE.equals(encoding)) {
+            return false;
+        }
+
+        envelope.setPayload(this.decompress(envelope.getPayload()));
+        envelope.getHeaders().remove(ExtendedHeaderConstants.MESSAGE_CONTENT_ENCODING);
+
+        return true;
+    }
+
+    /**
+     * @return the deflated payload, or null if deflating doesn't make it smaller
+     */
+    public byte[] compress(byte[] payload) {
+
+        long start = cpuTime();
+
+        Deflater deflater = deflaters.get();
+
+        if (null == deflater) {
+            deflater = new Deflater(level);
+            deflaters.set(deflater);
+        } else {
+            deflater.reset();
+            deflater.setLevel(level);
+        }
+
+        // anything that doesn't fit in fewer bytes than the payload isn't worth sending
+        int limit = payload.length - 1;
+        byte[] buffer = this.getBuffer(limit);
+
+        byte[] compressed;
+
+        try {
+            deflater.setInput(payload);
+            deflater.finish();
+
+            int length = 0;
+            while (!deflater.finished() && length < limit) {
+                length += deflater.deflate(buffer, length, limit - length);
+            }
+
+            compressed = deflater.finished() ? Arrays.copyOf(buffer, length) : null;
+
+        } finally {
+
+            this.releaseBuffer(buffer);
+
+            compressNanos.addAndGet(cpuTime() - start);
+        }
+
+        if (null == compressed) {
+            skippedCount.incrementAndGet();
+        } else {
+            compressedCount.incrementAndGet();
+            bytesBeforeCompression.addAndGet(payload.length);
+            bytesAfterCompression.addAndGet(compressed.length);
+        }
+
+        return compressed;
+    }
+
+    /**
+     * @return the inflated payload
+     * @throws DataFormatException if the payload is corrupt or inflates too large
+     */
+    public byte[] decompress(byte[] payload) throws DataFormatException {
+
+        long start = cpuTime();
+
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(payload);
+
+        byte[] buffer = this.getBuffer(Math.min(maxInflatedSize, Math.max(1024, payload.length * 4)));
+        int limit = Math.min(buffer.length, maxInflatedSize);
+        int length = 0;
+
+        try {
+            while (!inflater.finished()) {
+
+                if (length == limit) {
+
+                    if (limit >= maxInflatedSize) {
+                        throw new DataFormatException("Payload inflates to more than " + maxInflatedSize + " bytes");
+                    }
+
+                    limit = (int) Math.min(maxInflatedSize, 2L * limit);
+                    buffer = Arrays.copyOf(buffer, limit);
+                }
+
+                int inflated = inflater.inflate(buffer, length, limit - length);
+
+                if (0 == inflated && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Payload is truncated");
+                }
+
+                length += inflated;
+            }
+
+            return Arrays.copyOf(buffer, length);
+
+        } finally {
+
+            this.releaseBuffer(buffer);
+
+            decompressedCount.incrementAndGet();
+            decompressNanos.addAndGet(cpuTime() - start);
+        }
+    }
+
+
+    /**
+     * @return number of payloads compressed
+     */
+    public long getCompressedCount() {
+        return compressedCount.get();
+    }
+
+    /**
+     * @return number of payloads over the threshold that were sent as they were, because they didn't compress
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    /**
+     * @return total size of the payloads compressed, before compression
+     */
+    public long getBytesBeforeCompression() {
+        return bytesBeforeCompression.get();
+    }
+
+    /**
+     * @return total size of the payloads compressed, after compression
+     */
+    public long getBytesAfterCompression() {
+        return bytesAfterCompression.get();
+    }
+
+    /**
+     * @return bytes kept off the wire by compression
+     */
+    public long getBytesSaved() {
+        return bytesBeforeCompression.get() - bytesAfterCompression.get();
+    }
+
+    /**
+     * @return time spent compressing (including attempts that didn't pay off), in nanoseconds
+     */
+    public long getCompressNanos() {
+        return compressNanos.get();
+    }
+
+    /**
+     * @return number of payloads decompressed
+     */
+    public long getDecompressedCount() {
+        return decompressedCount.get();
+    }
+
+    /**
+     * @return time spent decompressing, in nanoseconds
+     */
+    public long getDecompressNanos() {
+        return decompressNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("compressed=%d skipped=%d saved=%d bytes (%d to %d) compressTime=%dus decompressed=%d decompressTime=%dus",
+                getCompressedCount(), getSkippedCount(), getBytesSaved(),
+                getBytesBeforeCompression(), getBytesAfterCompression(), getCompressNanos() / 1000,
+                getDecompressedCount(), getDecompressNanos() / 1000);
+    }
+
+
+    /**
+     * @return this thread's scratch buffer if it holds at least size bytes, otherwise a new one
+     */
+    private byte[] getBuffer(int size) {
+
+        byte[] buffer = buffers.get();
+
+        if (null == buffer || buffer.length < size) {
+            return new byte[Math.max(0, size)];
+        }
+
+        // handed out; put back by releaseBuffer
+        buffers.remove();
+
+        return buffer;
+    }
+
+    private void releaseBuffer(byte[] buffer) {
+
+        byte[] retained = buffers.get();
+
+        if (buffer.length <= MAX_RETAINED_BUFFER && (null == retained || retained.length < buffer.length)) {
+            buffers.set(buffer);
+        }
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled()
+                ? THREADS.getCurrentThreadCpuTime()
+                : System.nanoTime();
+    }
+}
@@ -0,0 +1,91 @@
+package amp.bus;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import cmf.bus.Envelope;
+
+public class CompressingEnvelopeProcessorTest {
+
+	static class Completion implements IContinuationCallback {
+
+		int calls;
+
+		@Override
+		public void continueProcessing() {
+			calls++;
+		}
+	}
+
+	static byte[] compressible(int size) {
+		byte[] payload = new byte[size];
+		Arrays.fill(payload, (byte) 'a');
+		return payload;
+	}
+
+	static Envelope process(CompressingEnvelopeProcessor processor, EnvelopeContext.Directions direction,
+			Envelope env, Completion completion) {
+
+		processor.processEnvelope(new EnvelopeContext(direction, env), completion);
+		return env;
+	}
+
+	@Test
+	public void envelopes_are_compressed_on_the_way_out_and_restored_on_the_way_in() {
+
+		CompressingEnvelopeProcessor processor = new CompressingEnvelopeProcessor();
+		byte[] payload = compressible(PayloadCompressor.DEFAULT_THRESHOLD * 2);
+		Envelope env = new Envelope();
+		env.setPayload(payload);
+		Completion completion = new Completion();
+
+		process(processor, EnvelopeContext.Directions.Out, env, completion);
+
+		assertEquals(PayloadCompressor.DEFLATE, env.getHeader(ExtendedHeaderConstants.MESSAGE_CONTENT_ENCODING));
+		assertTrue(env.getPayload().length < payload.length);
+
+		process(processor, EnvelopeContext.Directions.In, env, completion);
+
+		assertTrue(Arrays.equals(payload, env.getPayload()));
+		assertNull(env.getHeader(ExtendedHeaderConstants.MESSAGE_CONTENT_ENCODING));
+		assertEquals(2, completion.calls);
+	}
+
+	@Test
+	public void envelopes_with_another_encoding_continue_untouched() {
+
+		CompressingEnvelopeProcessor processor = new CompressingEnvelopeProcessor();
+		byte[] payload = compressible(100);
+		Envelope env = new Envelope();
+		env.setPayload(payload);
+		env.setHeader(ExtendedHeaderConstants.MESSAGE_CONTENT_ENCODING, "br");
+		Completion completion = new Completion();
+
+		process(processor, EnvelopeContext.Directions.In, env, completion);
+
+		assertSame(payload, env.getPayload());
+		assertEquals("br", env.getHeader(ExtendedHeaderConstants.MESSAGE_CONTENT_ENCODING));
+		assertEquals(1, completion.calls);
+	}
+
+	@Test
+	public void envelopes_that_fail_to_inflate_go_no_further() {
+
+		CompressingEnvelopeProcessor processor = new CompressingEnvelopeProcessor();
+		Envelope env = new Envelope();
+		env.setPayload(new byte[] { 1, 2, 3, 4, 5 });
+		env.setHeader(ExtendedHeaderConstants.MESSAGE_CONTENT_ENCODING, PayloadCompressor.DEFLATE);
+		Completion completion = new Completion();
+
+		try {
+			process(processor, EnvelopeContext.Directions.In, env, completion);
+			fail("a corrupt payload was passed on");
+		} catch (IllegalStateException expected) {
+		}
+
+		assertEquals(0, completion.calls);
+	}
+}
@@ -0,0 +1,125 @@
+package amp.bus;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class DeferredOutcomeTest {
+
+	/**
+	 * Notes each outcome it is told.
+	 */
+	static class Recorder implements IDeferredOutcomeCallback {
+
+		final List<Object> completed = new ArrayList<Object>();
+		final List<Exception> failed = new ArrayList<Exception>();
+
+		@Override
+		public void onComplete(Object outcome) {
+			completed.add(outcome);
+		}
+
+		@Override
+		public void onFailure(Exception ex) {
+			failed.add(ex);
+		}
+	}
+
+	@Test
+	public void callbacks_are_told_when_the_outcome_completes() {
+
+		DeferredOutcome outcome = new DeferredOutcome();
+		Recorder recorder = new Recorder();
+
+		outcome.onDone(recorder);
+		assertFalse(outcome.isDone());
+		assertTrue(recorder.completed.isEmpty());
+
+		outcome.complete("Reject");
+
+		assertTrue(outcome.isDone());
+		assertEquals(1, recorder.completed.size());
+		assertEquals("Reject", recorder.completed.get(0));
+	}
+
+	@Test
+	public void callbacks_added_after_completion_are_told_straight_away() {
+
+		DeferredOutcome outcome = new DeferredOutcome();
+		Exception error = new Exception("handler failed");
+		outcome.fail(error);
+
+		Recorder recorder = new Recorder();
+		outcome.onDone(recorder);
+
+		assertEquals(1, recorder.failed.size());
+		assertSame(error, recorder.failed.get(0));
+		assertTrue(recorder.completed.isEmpty());
+	}
+
+	@Test
+	public void completing_with_the_result_uses_what_was_recorded() {
+
+		DeferredOutcome outcome = new DeferredOutcome();
+		Recorder recorder = new Recorder();
+		outcome.onDone(recorder);
+
+		outcome.setResult("Reject");
+		outcome.completeWithResult();
+
+		assertEquals("Reject", recorder.completed.get(0));
+	}
+
+	@Test
+	public void completing_with_no_recorded_result_completes_with_null() {
+
+		DeferredOutcome outcome = new DeferredOutcome();
+		Recorder recorder = new Recorder();
+		outcome.onDone(recorder);
+
+		outcome.completeWithResult();
+
+		assertEquals(1, recorder.completed.size());
+		assertNull(recorder.completed.get(0));
+	}
+
+	@Test
+	public void only_the_first_outcome_counts() {
+
+		DeferredOutcome outcome = new DeferredOutcome();
+		Recorder recorder = new Recorder();
+		outcome.onDone(recorder);
+
+		outcome.complete(null);
+		outcome.fail(new Exception("too late"));
+		outcome.complete("too late");
+
+		assertEquals(1, recorder.completed.size());
+		assertTrue(recorder.failed.isEmpty());
+	}
+
+	@Test
+	public void outcomes_are_only_deferred_where_allowed_and_only_once() {
+
+		Map<String, Object> context = new HashMap<String, Object>();
+
+		assertNull(DeferredOutcome.defer(context));
+		assertNull(DeferredOutcome.getDeferred(context));
+
+		Object queue = new Object();
+		DeferredOutcome.allowDeferral(context, queue);
+		assertSame(queue, DeferredOutcome.getOrderingKey(context));
+
+		DeferredOutcome deferred = DeferredOutcome.defer(context);
+		assertNotNull(deferred);
+		assertSame(deferred, DeferredOutcome.getDeferred(context));
+
+		// a second processor has to finish synchronously
+		assertNull(DeferredOutcome.defer(context));
+	}
+}
@@ -0,0 +1,199 @@
+package amp.bus;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import amp.bus.EnvelopeContext.Directions;
+import cmf.bus.Envelope;
+
+public class EnvelopeProcessorChainTest {
+
+	/**
+	 * Notes that it ran, then (optionally) runs a step and continues.
+	 */
+	static class Recorder implements IEnvelopeProcessor {
+
+		final String name;
+		final List<String> ran;
+		final boolean continues;
+		Runnable before;
+
+		Recorder(String name, List<String> ran, boolean continues) {
+			this.name = name;
+			this.ran = ran;
+			this.continues = continues;
+		}
+
+		@Override
+		public void processEnvelope(EnvelopeContext context, IContinuationCallback continuation) {
+
+			ran.add(name);
+
+			if (null != before) { before.run(); }
+
+			if (continues) {
+				try {
+					continuation.continueProcessing();
+				} catch (Exception ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		}
+
+		@Override
+		public void dispose() {}
+	}
+
+	static class Completion implements IContinuationCallback {
+
+		int calls;
+
+		@Override
+		public void continueProcessing() {
+			calls++;
+		}
+	}
+
+	static EnvelopeContext context() {
+		return new EnvelopeContext(Directions.In, new Envelope());
+	}
+
+	@Test
+	public void processors_run_in_order_then_complete() throws Exception {
+
+		List<String> ran = new ArrayList<String>();
+		Completion completion = new Completion();
+
+		EnvelopeProcessorChain chain = new EnvelopeProcessorChain(Arrays.<IEnvelopeProcessor>asList(
+			new Recorder("a", ran, true), new Recorder("b", ran, true), new Recorder("c", ran, true)));
+
+		chain.process(context(), completion);
+
+		assertEquals(Arrays.asList("a", "b", "c"), ran);
+		assertEquals(1, completion.calls);
+	}
+
+	@Test
+	public void a_processor_that_does_not_continue_stops_the_chain() throws Exception {
+
+		List<String> ran = new ArrayList<String>();
+		Completion completion = new Completion();
+
+		EnvelopeProcessorChain chain = new EnvelopeProcessorChain(Arrays.<IEnvelopeProcessor>asList(
+			new Recorder("a", ran, true), new Recorder("b", ran, false), new Recorder("c", ran, true)));
+
+		chain.process(context(), completion);
+
+		assertEquals(Arrays.asList("a", "b"), ran);
+		assertEquals(0, completion.calls);
+	}
+
+	@Test
+	public void an_empty_chain_completes() throws Exception {
+
+		Completion completion = new Completion();
+
+		new EnvelopeProcessorChain(new ArrayList<IEnvelopeProcessor>()).process(context(), completion);
+		new EnvelopeProcessorChain(null).process(context(), completion);
+
+		assertEquals(2, completion.calls);
+	}
+
+	@Test
+	public void each_envelope_walks_the_whole_chain() throws Exception {
+
+		List<String> ran = new ArrayList<String>();
+		Completion completion = new Completion();
+
+		EnvelopeProcessorChain chain = new EnvelopeProcessorChain(Arrays.<IEnvelopeProcessor>asList(
+			new Recorder("a", ran, true), new Recorder("b", ran, true)));
+
+		chain.process(context(), completion);
+		chain.process(context(), completion);
+
+		assertEquals(Arrays.asList("a", "b", "a", "b"), ran);
+		assertEquals(2, completion.calls);
+	}
+
+	@Test
+	public void later_changes_to_the_list_are_not_seen() throws Exception {
+
+		List<String> ran = new ArrayList<String>();
+		List<IEnvelopeProcessor> processors = new ArrayList<IEnvelopeProcessor>();
+		processors.add(new Recorder("a", ran, true));
+
+		EnvelopeProcessorChain chain = new EnvelopeProcessorChain(processors);
+		processors.add(new Recorder("b", ran, true));
+
+		chain.process(context(), new Completion());
+
+		assertEquals(Arrays.asList("a"), ran);
+		assertEquals(1, chain.size());
+	}
+
+	@Test
+	public void replacing_the_bus_processors_does_not_affect_an_envelope_in_flight() throws Exception {
+
+		final List<String> ran = new ArrayList<String>();
+		ITransportProvider transport = mock(ITransportProvider.class);
+
+		final DefaultEnvelopeBus bus = new DefaultEnvelopeBus(
+			transport,
+			new ArrayList<IEnvelopeProcessor>(Arrays.<IEnvelopeProcessor>asList(
+				new Recorder("old-in", ran, true))),
+			new ArrayList<IEnvelopeProcessor>());
+
+		// the first processor replaces the chain while the envelope is in it
+		Recorder replacer = new Recorder("a", ran, true);
+		replacer.before = new Runnable() {
+			@Override
+			public void run() {
+				bus.setOutboundProcessors(Arrays.<IEnvelopeProcessor>asList(new Recorder("new", ran, true)));
+			}
+		};
+		bus.setOutboundProcessors(Arrays.<IEnvelopeProcessor>asList(replacer, new Recorder("b", ran, true)));
+
+		Envelope envelope = new Envelope();
+		bus.send(envelope);
+
+		assertEquals(Arrays.asList("a", "b"), ran);
+		verify(transport).send(envelope);
+
+		// the next envelope uses the new chain
+		ran.clear();
+		bus.send(envelope);
+
+		assertEquals(Arrays.asList("new"), ran);
+	}
+
+	@Test
+	public void received_envelopes_run_the_inbound_chain_before_dispatch() throws Exception {
+
+		List<String> ran = new ArrayList<String>();
+		ITransportProvider transport = mock(ITransportProvider.class);
+
+		DefaultEnvelopeBus bus = new DefaultEnvelopeBus(
+			transport,
+			Arrays.<IEnvelopeProcessor>asList(new Recorder("a", ran, true), new Recorder("b", ran, true)),
+			new ArrayList<IEnvelopeProcessor>());
+
+		ArgumentCaptor<IEnvelopeReceivedCallback> received = ArgumentCaptor.forClass(IEnvelopeReceivedCallback.class);
+		verify(transport).onEnvelopeReceived(received.capture());
+
+		Envelope envelope = new Envelope();
+		IEnvelopeDispatcher dispatcher = mock(IEnvelopeDispatcher.class);
+		when(dispatcher.getEnvelope()).thenReturn(envelope);
+
+		received.getValue().handleReceive(dispatcher);
+
+		assertEquals(Arrays.asList("a", "b"), ran);
+		verify(dispatcher).dispatch(envelope);
+	}
+}
@@ -0,0 +1,296 @@
+package amp.bus;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.Test;
+
+import cmf.bus.Envelope;
+
+public class PayloadCompressorTest {
+
+	static byte[] compressible(int size) {
+
+		byte[] payload = new byte[size];
+		byte[] text = "{\"sensor\":\"s1\",\"value\":42},".getBytes();
+
+		for (int i = 0; i < size; i++) {
+			payload[i] = text[i % text.length];
+		}
+
+		return payload;
+	}
+
+	static byte[] random(int size) {
+		byte[] payload = new byte[size];
+		new Random(20130501).nextBytes(payload);
+		return payload;
+	}
+
+	static Envelope envelope(byte[] payload) {
+		Envelope env = new Envelope();
+		env.setPayload(payload);
+		return env;
+	}
+
+	/**
+	 * Deflate size zeros without holding them all in memory.
+	 */
+	static byte[] bomb(long size) throws Exception {
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		DeflaterOutputStream stream = new DeflaterOutputStream(compressed);
+		byte[] zeros = new byte[64 * 1024];
+
+		for (long written = 0; written < size; written += zeros.length) {
+			stream.write(zeros, 0, (int) Math.min(zeros.length, size - written));
+		}
+
+		stream.close();
+		return compressed.toByteArray();
+	}
+
+	@Test
+	public void payloads_above_the_threshold_round_trip() throws Exception {
+
+		PayloadCompressor compressor = new PayloadCompressor();
+		byte[] payload = compressible(PayloadCompressor.DEFAULT_THRESHOLD * 4);
+		Envelope env = envelope(payload);
+
+		assertTrue(compressor.compress(env));
+		assertEquals(PayloadCompressor.DEFLATE, env.getHeader(ExtendedHeaderConstants.MESSAGE_CONTENT_ENCODING));
+		assertTrue(env.getPayload().length < payload.length);
+
+		assertTrue(compressor.decompress(env));
+		assertTrue(Arrays.equals(payload, env.getPayload()));
+		assertNull(env.getHeader(ExtendedHeaderConstants.MESSAGE_CONTENT_ENCODING));
+		assertFalse(env.getHeaders().containsKey(ExtendedHeaderConstants.MESSAGE_CONTENT_ENCODING));
+
+		assertEquals(1, compressor.getCompressedCount());
+		assertEquals(1, compressor.getDecompressedCount());
+		assertEquals(payload.length, compressor.getBytesBeforeCompression());
+		assertTrue(compressor.getBytesSaved() > 0);
+	}
+
+	@Test
+	public void payloads_below_the_threshold_are_sent_as_they_are() throws Exception {
+
+		PayloadCompressor compressor = new PayloadCompressor();
+		byte[] payload = compressible(PayloadCompressor.DEFAULT_THRESHOLD - 1);
+		Envelope env = envelope(payload);
+
+		assertFalse(compressor.compress(env));
+		assertSame(payload, env.getPayload());
+		assertNull(env.getHeader(ExtendedHeaderConstants.MESSAGE_CONTENT_ENCODING));
+
+		// and come through the other side untouched
+		assertFalse(compressor.decompress(env));
+		assertSame(payload, env.getPayload());
+		assertEquals(0, compressor.getCompressedCount());
+		assertEquals(0, compressor.getSkippedCount());
+	}
+
+	@Test
+	public void payloads_that_do_not_shrink_are_sent_as_they_are() throws Exception {
+
+		PayloadCompressor compressor = new PayloadCompressor();
+		byte[] payload = random(PayloadCompressor.DEFAULT_THRESHOLD * 2);
+		Envelope env = envelope(payload);
+
+		assertFalse(compressor.compress(env));
+		assertSame(payload, env.getPayload());
+		assertNull(env.getHeader(ExtendedHeaderConstants.MESSAGE_CONTENT_ENCODING));
+		assertEquals(1, compressor.getSkippedCount());
+	}
+
+	@Test
+	public void payloads_with_another_encoding_are_left_untouched() throws Exception {
+
+		PayloadCompressor compressor = new PayloadCompressor();
+		byte[] payload = compressible(PayloadCompressor.DEFAULT_THRESHOLD * 2);
+		Envelope env = envelope(payload);
+		env.setHeader(ExtendedHeaderConstants.MESSAGE_CONTENT_ENCODING, "gzip");
+
+		// neither compressed again on the way out...
+		assertFalse(compressor.compress(env));
+		assertSame(payload, env.getPayload());
+
+		// ...nor touched on the way in
+		assertFalse(compressor.decompress(env));
+		assertSame(payload, env.getPayload());
+		assertEquals("gzip", env.getHeader(ExtendedHeaderConstants.MESSAGE_CONTENT_ENCODING));
+		assertEquals(0, compressor.getDecompressedCount());
+	}
+
+	@Test
+	public void payloads_may_inflate_to_exactly_the_limit() throws Exception {
+
+		PayloadCompressor compressor = new PayloadCompressor();
+		compressor.setMaxInflatedSize(100 * 1024);
+
+		byte[] payload = compressible(100 * 1024);
+		byte[] inflated = compressor.decompress(compressor.compress(payload));
+
+		assertTrue(Arrays.equals(payload, inflated));
+	}
+
+	@Test
+	public void payloads_inflating_past_the_limit_are_rejected() throws Exception {
+
+		PayloadCompressor compressor = new PayloadCompressor();
+		compressor.setMaxInflatedSize(100 * 1024);
+
+		try {
+			compressor.decompress(bomb(100 * 1024 + 1));
+			fail("inflated past the limit");
+		} catch (DataFormatException expected) {
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void a_decompression_bomb_is_stopped_at_64_megabytes() throws Exception {
+
+		assertEquals(64 * 1024 * 1024, PayloadCompressor.DEFAULT_MAX_INFLATED_SIZE);
+
+		// about 65 KB on the wire
+		byte[] bomb = bomb(PayloadCompressor.DEFAULT_MAX_INFLATED_SIZE + 1L);
+		Envelope env = envelope(bomb);
+		env.setHeader(ExtendedHeaderConstants.MESSAGE_CONTENT_ENCODING, PayloadCompressor.DEFLATE);
+
+		try {
+			new PayloadCompressor().decompress(env);
+			fail("inflated past the limit");
+		} catch (DataFormatException expected) {
+		}
+
+		// the envelope is left as it arrived
+		assertSame(bomb, env.getPayload());
+		assertEquals(PayloadCompressor.DEFLATE, env.getHeader(ExtendedHeaderConstants.MESSAGE_CONTENT_ENCODING));
+	}
+
+	@Test
+	public void corrupt_and_truncated_payloads_are_rejected() throws Exception {
+
+		PayloadCompressor compressor = new PayloadCompressor();
+		byte[] compressed = compressor.compress(compressible(10000));
+
+		try {
+			compressor.decompress(Arrays.copyOf(compressed, compressed.length / 2));
+			fail("a truncated payload was inflated");
+		} catch (DataFormatException expected) {
+		}
+
+		try {
+			compressor.decompress(random(1000));
+			fail("a corrupt payload was inflated");
+		} catch (DataFormatException expected) {
+		}
+	}
+
+	@Test
+	public void a_thread_keeps_inflating_after_a_failure() throws Exception {
+
+		final PayloadCompressor compressor = new PayloadCompressor();
+		compressor.setMaxInflatedSize(100 * 1024);
+
+		final byte[] payload = compressible(50 * 1024);
+		final byte[] compressed = compressor.compress(payload);
+		final byte[] bomb = bomb(200 * 1024);
+
+		// run on one other thread, so every call shares that thread's Inflater
+		ExecutorService thread = Executors.newSingleThreadExecutor();
+
+		try {
+			assertTrue(thread.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+
+					for (byte[] bad : new byte[][] { random(1000), bomb, Arrays.copyOf(compressed, 10) }) {
+
+						try {
+							compressor.decompress(bad);
+							fail("a bad payload was inflated");
+						} catch (DataFormatException expected) {
+						}
+
+						if (!Arrays.equals(payload, compressor.decompress(compressed))) {
+							return false;
+						}
+					}
+
+					return true;
+				}
+			}).get());
+		} finally {
+			thread.shutdown();
+		}
+	}
+
+	@Test
+	public void a_thread_keeps_deflating_after_a_failure() throws Exception {
+
+		PayloadCompressor compressor = new PayloadCompressor();
+		byte[] payload = compressible(10000);
+
+		byte[] before = compressor.compress(payload);
+
+		compressor.setLevel(42);
+		try {
+			compressor.compress(payload);
+			fail("an invalid level was used");
+		} catch (IllegalArgumentException expected) {
+		}
+
+		compressor.setLevel(PayloadCompressor.DEFAULT_LEVEL);
+		byte[] after = compressor.compress(payload);
+
+		assertTrue(Arrays.equals(before, after));
+		assertTrue(Arrays.equals(payload, compressor.decompress(after)));
+	}
+
+	@Test
+	public void threads_compress_independently() throws Exception {
+
+		final PayloadCompressor compressor = new PayloadCompressor();
+		ExecutorService threads = Executors.newFixedThreadPool(4);
+
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+
+			for (int t = 0; t < 4; t++) {
+				final int size = 5000 + t * 3000;
+				results.add(threads.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						for (int i = 0; i < 200; i++) {
+							byte[] payload = compressible(size + i);
+							if (!Arrays.equals(payload, compressor.decompress(compressor.compress(payload)))) {
+								return false;
+							}
+						}
+						return true;
+					}
+				}));
+			}
+
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+		} finally {
+			threads.shutdown();
+		}
+
+		assertEquals(800, compressor.getCompressedCount());
+	}
+}
@@ -1,5 +1,6 @@
 package amp.eventing;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -46,6 +47,24 @@ public class DefaultEventBus implements IEventBus {
         _eventProducer.publish(event, headers);
     }
 
+    /**
+     * Publish a batch of events.  When the envelope bus supports it, the
+     * events are handed to the transport together rather than one at a time.
+     * @param events Events to publish
+     */
+    public void publishAll(Collection<?> events) throws MessageException {
+        _eventProducer.publishAll(events);
+    }
+
+    /**
+     * Publish a batch of events, starting each envelope with a copy of the headers.
+     * @param events Events to publish
+     * @param headers Headers to add to each event's envelope
+     */
+    public void publishAll(Collection<?> events, Map<String, String> headers) throws MessageException {
+        _eventProducer.publishAll(events, headers);
+    }
+
 
 	@Override
 	public <TEVENT> void subscribe(IEventHandler<TEVENT> handler) throws MessageException {
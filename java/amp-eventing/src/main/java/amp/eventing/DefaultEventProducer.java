@@ -1,6 +1,7 @@
 package amp.eventing;
 
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -36,4 +37,21 @@ public class DefaultEventProducer extends MessageSender implements IEventProduce
     public void publish(Object event, Map<String, String> headers) throws MessageException {
         super.send(event, headers);
     }
+
+    /**
+     * Publish a batch of events.
+     * @param events Events to publish
+     */
+    public void publishAll(Collection<?> events) throws MessageException {
+        super.sendAll(events);
+    }
+
+    /**
+     * Publish a batch of events, starting each envelope with a copy of the headers.
+     * @param events Events to publish
+     * @param headers Headers to add to each event's envelope
+     */
+    public void publishAll(Collection<?> events, Map<String, String> headers) throws MessageException {
+        super.sendAll(events, headers);
+    }
 }
@@ -1,16 +1,24 @@
 package amp.eventing;
 
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import cmf.bus.Envelope;
 import cmf.bus.EnvelopeHeaderConstants;
 import cmf.bus.IEnvelopeBus;
 import cmf.eventing.IEventHandler;
 import cmf.eventing.patterns.rpc.IRpcEventBus;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.joda.time.Duration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,6 +37,9 @@ public class DefaultRpcBus extends DefaultEventBus implements IRpcEventBus {
 	private static final Logger LOG = LoggerFactory.getLogger(DefaultRpcBus.class);
 
 	IEnvelopeBus envelopeBus;
+
+	protected boolean useReplyQueue = true;
+	private RpcReplyCorrelator replyCorrelator;
 	
     public DefaultRpcBus(IEnvelopeBus envelopeBus, List<IMessageProcessor> inboundProcessors,
                     List<IMessageProcessor> outboundProcessors) {
@@ -36,16 +47,144 @@ public class DefaultRpcBus extends DefaultEventBus implements IRpcEventBus {
         this.envelopeBus = envelopeBus;
     }
 
+
+    /**
+     * Choose how responses to getResponseTo are received.  By default requests
+     * name this bus' long-lived reply topic as their reply-to address, and
+     * every response arrives on its one queue.  Turn this off to register a
+     * queue for each request instead, for responders that don't honour the
+     * reply-to header (older Java responders and the .NET bus).
+     * @param useReplyQueue false to register a queue for each request (default true)
+     */
+    public void setUseReplyQueue(boolean useReplyQueue) {
+        this.useReplyQueue = useReplyQueue;
+    }
+
+    /**
+     * @return the correlator receiving this bus' responses, registering it on first use
+     */
+    protected synchronized RpcReplyCorrelator getReplyCorrelator() throws Exception {
+
+        if (null == replyCorrelator) {
+
+            RpcReplyCorrelator correlator = new RpcReplyCorrelator(this._eventConsumer);
+
+            envelopeBus.register(correlator);
+
+            replyCorrelator = correlator;
+        }
+
+        return replyCorrelator;
+    }
+
     
     @Override
     public <TResponse> Collection<TResponse> gatherResponsesTo(Object request, Duration timeout) {
-        throw new UnsupportedOperationException();
+        return this.gatherResponsesTo(request, timeout, 0);
     }
 
     @Override
     @SuppressWarnings("rawtypes")
     public Collection gatherResponsesTo(Object request, Duration timeout, String... expectedTopics) {
-        throw new UnsupportedOperationException();
+        RpcGather<Object> gather = this.beginGatheringResponsesTo(
+                request, timeout, 0, null, null, expectedTopics);
+
+        return this.awaitGather(gather);
+    }
+
+    /**
+     * Gather responses until the timeout elapses or the expected number arrive.
+     * @param expectedCount stop after this many responses; 0 or less for no limit
+     */
+    public <TResponse> Collection<TResponse> gatherResponsesTo(Object request, Duration timeout, int expectedCount) {
+        RpcGather<TResponse> gather = this.beginGatheringResponsesTo(
+                request, timeout, expectedCount, null, null);
+
+        return this.awaitGather(gather);
+    }
+
+    /**
+     * Send a request and start gathering its responses without waiting for
+     * them.  Gathering stops when the timeout elapses, the expected number of
+     * responses arrive, or the predicate is satisfied, whichever is first.
+     * Responses can be consumed as they arrive via the callback or by
+     * iterating the returned gather, or all at once via its {@code await()}.
+     * Responses are received on the bus' reply queue, so responders must
+     * honour the reply-to header.
+     * @param request the request
+     * @param timeout the longest to gather for
+     * @param expectedCount stop after this many responses; 0 or less for no limit
+     * @param until stop once this is satisfied; may be null
+     * @param onResponse called with each response as it arrives; may be null
+     * @param expectedTypes only gather responses of these message types; none for any
+     * @return the gather
+     */
+    public <TResponse> RpcGather<TResponse> beginGatheringResponsesTo(
+            Object request,
+            Duration timeout,
+            int expectedCount,
+            IRpcGatherPredicate<TResponse> until,
+            IRpcResponseCallback<TResponse> onResponse,
+            String... expectedTypes) {
+
+        // guard clause
+        if (null == request) {
+            throw new IllegalArgumentException("Cannot gather responses to a null request");
+        }
+
+        final RpcReplyCorrelator correlator;
+        final UUID requestId = UUID.randomUUID();
+
+        try {
+            correlator = this.getReplyCorrelator();
+        } catch (Exception ex) {
+        	LOG.error("Exception registering for RPC responses", ex);
+            throw new RuntimeException("Exception registering for RPC responses", ex);
+        }
+
+        final RpcGather<TResponse> gather = new RpcGather<TResponse>(
+                expectedCount,
+                new HashSet<String>(Arrays.asList(expectedTypes)),
+                until,
+                onResponse);
+
+        // stop gathering when the time is up, and forget the request once stopped
+        final ScheduledFuture<?> timer = RpcScheduler.getInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                gather.complete();
+            }
+        }, timeout.getMillis(), TimeUnit.MILLISECONDS);
+
+        gather.onComplete(new Runnable() {
+            @Override
+            public void run() {
+                timer.cancel(false);
+                correlator.forget(requestId);
+            }
+        });
+
+        correlator.expect(requestId, gather);
+
+        try {
+            this.sendRequest(requestId, request, timeout, correlator.getReplyTopic());
+        } catch (Exception ex) {
+            gather.complete();
+        	LOG.error("Exception publishing an event", ex);
+            throw new RuntimeException("Exception publishing an event", ex);
+        }
+
+        return gather;
+    }
+
+    protected <TResponse> Collection<TResponse> awaitGather(RpcGather<TResponse> gather) {
+        try {
+            return gather.await();
+        } catch (InterruptedException ex) {
+            gather.complete();
+        	Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted gathering responses", ex);
+        }
     }
 
     @Override
@@ -65,6 +204,165 @@ public class DefaultRpcBus extends DefaultEventBus implements IRpcEventBus {
             throw new IllegalArgumentException("Cannot get response to a null request");
         }
 
+        Object response = useReplyQueue
+                ? getResponseViaReplyQueue(request, timeout, expectedTopic)
+                : getResponseViaRequestQueue(request, timeout, expectedTopic);
+
+        LOG.debug("Leave GetResponseTo");
+        return response;
+    }
+
+    /**
+     * Send a request without waiting for the response.  No thread is held
+     * while the request is outstanding: the response is delivered by the
+     * thread that receives it, and the timeout by a shared scheduler.
+     * Responders must honour the reply-to header.
+     * @param request the request
+     * @param timeout how long to wait for the response
+     * @param expectedType type of the response; responses of other types are ignored
+     * @return a future yielding the response, or failing with a
+     * {@link TimeoutException} if none arrives in time or with the reason the
+     * request could not be sent.  Cancel it to stop waiting.
+     * @see RpcFutures
+     */
+    @SuppressWarnings("unchecked")
+    public <TResponse> ListenableFuture<TResponse> getResponseToAsync(
+            Object request, Duration timeout, Class<TResponse> expectedType) {
+
+        // only a response of the expected type completes the future, so the cast holds
+        return (ListenableFuture<TResponse>) getResponseToAsync(request, timeout, expectedType.getCanonicalName());
+    }
+
+    /**
+     * Send a request without waiting for the response.
+     * @see #getResponseToAsync(Object, Duration, Class)
+     */
+    public ListenableFuture<Object> getResponseToAsync(Object request, Duration timeout) {
+        return getResponseToAsync(request, timeout, (String) null);
+    }
+
+    /**
+     * Send a request without waiting for the response, accepting only a
+     * response of the given message type.
+     * @param expectedTopic message type of the response; null for any
+     * @see #getResponseToAsync(Object, Duration, Class)
+     */
+    public ListenableFuture<Object> getResponseToAsync(Object request, Duration timeout, String expectedTopic) {
+
+        // guard clause
+        if (null == request) {
+            throw new IllegalArgumentException("Cannot get response to a null request");
+        }
+
+        final UUID requestId = UUID.randomUUID();
+        final RpcReplyCorrelator correlator;
+
+        try {
+            correlator = this.getReplyCorrelator();
+        } catch (Exception ex) {
+        	LOG.error("Exception registering for RPC responses", ex);
+            return Futures.immediateFailedFuture(ex);
+        }
+
+        // start waiting before the request goes out so a fast response isn't missed
+        ListenableFuture<Object> response = correlator.expect(requestId, expectedTopic, timeout.getMillis());
+
+        try {
+            this.sendRequest(requestId, request, timeout, correlator.getReplyTopic());
+        } catch (Exception ex) {
+            response.cancel(false);
+        	LOG.error("Exception publishing an event", ex);
+            return Futures.immediateFailedFuture(ex);
+        }
+
+        return response;
+    }
+
+    /**
+     * Send a request naming this bus' reply topic as its reply-to address and
+     * wait for the correlator to hand us the response.  Like the per-request
+     * queue, only a response of the expected type is accepted.
+     */
+    protected Object getResponseViaReplyQueue(Object request, Duration timeout, String expectedTopic) {
+
+        final RpcReplyCorrelator correlator;
+        final UUID requestId = UUID.randomUUID();
+
+        try {
+            correlator = this.getReplyCorrelator();
+        } catch (Exception ex) {
+        	LOG.error("Exception registering for RPC responses", ex);
+            throw new RuntimeException("Exception registering for RPC responses", ex);
+        }
+
+        // start waiting before the request goes out so a fast response isn't missed
+        ListenableFuture<Object> response = correlator.expect(requestId, expectedTopic);
+
+        try {
+            this.sendRequest(requestId, request, timeout, correlator.getReplyTopic());
+
+            return response.get(timeout.getMillis(), TimeUnit.MILLISECONDS);
+
+        } catch (TimeoutException ex) {
+        	LOG.debug("Timed out waiting for a response to request {}", requestId);
+        	return null;
+        } catch (InterruptedException ex) {
+        	Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for a response", ex);
+        } catch (ExecutionException ex) {
+        	LOG.error("Exception receiving a response", ex.getCause());
+            throw new RuntimeException("Exception receiving a response", ex.getCause());
+        } catch (Exception ex) {
+        	LOG.error("Exception publishing an event", ex);
+            throw new RuntimeException("Exception publishing an event", ex);
+        } finally {
+        	correlator.forget(requestId);
+        }
+    }
+
+    /**
+     * Run a request through the outbound processors and send it.
+     * @param requestId the request's message id
+     * @param request the request
+     * @param timeout how long the requester will wait for responses
+     * @param replyTo topic responders should respond to
+     */
+    protected void sendRequest(UUID requestId, Object request, Duration timeout, String replyTo) throws Exception {
+
+    	// Get an appropriately setup envelope
+    	Envelope env = this.buildRequestEnvelope(requestId, timeout);
+    	new EnvelopeHelper(env).setReplyTo(replyTo);
+
+        // create an event context for processing
+        final MessageContext context = new MessageContext(Directions.Out, env, request);
+
+        // process the event
+        this._eventProducer.getMessageProcessor().processMessage(
+    		context,
+    		new IContinuationCallback() {
+
+				@Override
+				public void continueProcessing() throws MessageException {
+
+					try {
+						LOG.debug("successfully processed outgoing request");
+
+			            envelopeBus.send(context.getEnvelope());
+					} catch (Exception ex) {
+			        	LOG.error("Exception publishing an event", ex);
+			            throw new MessageException("Exception publishing an event", ex);
+					}
+				} // end of final continuation
+
+        }); // end of outbound processing
+    }
+
+    /**
+     * Register a queue for just this request's response, send the request and
+     * wait.  Used when responders predate the reply-to header.
+     */
+    protected Object getResponseViaRequestQueue(Object request, final Duration timeout, final String expectedTopic) {
+
         // the container for the response we're going to get since you
         // can't assign the value of this within the continuation callback
         final MessageContext responseContext = new MessageContext(Directions.In);
@@ -120,7 +418,6 @@ public class DefaultRpcBus extends DefaultEventBus implements IRpcEventBus {
             throw new RuntimeException("Exception publishing an event", ex);
         }
 
-        LOG.debug("Leave GetResponseTo");
         return responseContext.getMessage();
     }
 
@@ -147,6 +444,12 @@ public class DefaultRpcBus extends DefaultEventBus implements IRpcEventBus {
             Envelope env = new Envelope();
             new EnvelopeHelper(env).setCorrelationId(originalHeadersHelper.getMessageId());
 
+            // requesters with a reply queue tell us exactly where to respond
+            String replyTo = originalHeadersHelper.getReplyTo();
+            if (null != replyTo) {
+                new EnvelopeHelper(env).setReplyTo(replyTo).setMessageTopic(replyTo);
+            }
+
             final MessageContext context = new MessageContext(Directions.Out, env, response);
 
             this._eventProducer.getMessageProcessor().processMessage(context, new IContinuationCallback() {
@@ -172,6 +475,31 @@ public class DefaultRpcBus extends DefaultEventBus implements IRpcEventBus {
     }
 
 
+    /**
+     * Stop receiving responses and fail every request still waiting for one,
+     * then dispose the event bus.
+     */
+    @Override
+    public void dispose() {
+
+        synchronized (this) {
+            if (null != replyCorrelator) {
+
+                try {
+                    envelopeBus.unregister(replyCorrelator);
+                } catch (Exception ex) {
+                    LOG.warn("Failed to unregister the RPC reply queue", ex);
+                }
+
+                replyCorrelator.dispose();
+                replyCorrelator = null;
+            }
+        }
+
+        super.dispose();
+    }
+
+
     protected Envelope buildRequestEnvelope(UUID requestId, Duration timeout) {
     	
     	// create a new envelope
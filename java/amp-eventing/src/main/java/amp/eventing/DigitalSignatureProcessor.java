@@ -3,7 +3,15 @@ package amp.eventing;
 
 import java.security.Signature;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
+import amp.bus.DeferredOutcome;
 import amp.bus.security.CredentialHolder;
 import amp.bus.security.ICertificateProvider;
 import amp.bus.security.IUserInfoRepository;
@@ -18,12 +26,51 @@ import amp.messaging.MessageContext.Directions;
 import amp.messaging.MessageException;
 
 
+/**
+ * Signs outbound payloads with the client's private key and verifies inbound
+ * payloads against the sender's certificate.
+ * <p>
+ * Signatures are made with a configurable algorithm (SHA1withRSA by default),
+ * which is named in an envelope header; envelopes without the header are
+ * verified as SHA1withRSA, as before.  The algorithm must suit the keys in
+ * use, e.g. SHA256withECDSA needs EC credentials.  Only algorithms in the
+ * accepted set are verified, so a sender can't pick a weak one.
+ * </p>
+ * <p>
+ * Looking up and initialising a {@link Signature} is expensive, so each
+ * thread keeps a signer initialised with the client's key, and a small cache
+ * of verifiers initialised with recently seen certificates.  A Signature
+ * returns to its initialised state after signing or verifying, so it can be
+ * reused straight away.
+ * </p>
+ */
 public class DigitalSignatureProcessor implements IMessageProcessor {
 
+	public static final String DEFAULT_ALGORITHM = "SHA1withRSA";
+
+	public static final Set<String> DEFAULT_ACCEPTED_ALGORITHMS = new HashSet<String>(Arrays.asList(
+			"SHA1withRSA", "SHA256withRSA", "SHA384withRSA", "SHA512withRSA",
+			"SHA256withECDSA", "SHA384withECDSA", "SHA512withECDSA"));
+
+	public static int MAX_VERIFIERS_PER_THREAD = 64;
+
 	protected ICertificateProvider certProvider;
 	protected IUserInfoRepository userInfoRepo;
 	protected CredentialHolder credentials;
 	protected Logger log;
+
+	protected volatile String signatureAlgorithm = DEFAULT_ALGORITHM;
+	protected volatile Set<String> acceptedAlgorithms = DEFAULT_ACCEPTED_ALGORITHMS;
+	protected volatile ParallelVerifier parallelVerifier;
+
+	private final ThreadLocal<Signature> signer = new ThreadLocal<Signature>();
+
+	private final ThreadLocal<VerifierCache> verifiers = new ThreadLocal<VerifierCache>() {
+		@Override
+		protected VerifierCache initialValue() {
+			return new VerifierCache();
+		}
+	};
 	
 	
 	public DigitalSignatureProcessor(ICertificateProvider certProvider, IUserInfoRepository userInfoRepository) throws Exception {
@@ -41,6 +88,47 @@ public class DigitalSignatureProcessor implements IMessageProcessor {
 			throw ex;
 		}
 	}
+
+
+	/**
+	 * Set the algorithm outbound payloads are signed with.
+	 * @param signatureAlgorithm a JCA signature algorithm suiting the client's key
+	 */
+	public void setSignatureAlgorithm(String signatureAlgorithm) {
+		this.signatureAlgorithm = signatureAlgorithm;
+	}
+
+	/**
+	 * Verify inbound signatures on a pool of threads rather than on the
+	 * listener's thread, keeping each queue's envelopes in order.  Envelopes
+	 * are still only handled if verified, and not acknowledged until handled.
+	 * @param threads number of verifying threads; 0 to verify on the listener's thread
+	 */
+	public void setParallelVerification(int threads) {
+		this.setParallelVerifier((threads > 0) ? new ParallelVerifier(threads) : null);
+	}
+
+	/**
+	 * @param parallelVerifier verifies inbound signatures; null to verify on the listener's thread
+	 */
+	public void setParallelVerifier(ParallelVerifier parallelVerifier) {
+		this.parallelVerifier = parallelVerifier;
+	}
+
+	/**
+	 * @return the parallel verifier, with its queue depth and latency histograms; null if not in use
+	 */
+	public ParallelVerifier getParallelVerifier() {
+		return parallelVerifier;
+	}
+
+	/**
+	 * Set the algorithms inbound signatures may be made with.
+	 * @param acceptedAlgorithms JCA signature algorithm names
+	 */
+	public void setAcceptedAlgorithms(Collection<String> acceptedAlgorithms) {
+		this.acceptedAlgorithms = new HashSet<String>(acceptedAlgorithms);
+	}
 	
 	
 	@Override
@@ -59,11 +147,11 @@ public class DigitalSignatureProcessor implements IMessageProcessor {
 		try {
 			EnvelopeHelper env = new EnvelopeHelper(context.getEnvelope());
 			
-			Signature instance = Signature.getInstance("SHA1withRSA");
-			instance.initSign(this.credentials.getPrivateKey());
-			instance.update(env.getPayload());			
-			
+			Signature instance = this.getSigner();
+			instance.update(env.getPayload());
+
 			env.setDigitalSignature(instance.sign());
+			env.setSignatureAlgorithm(instance.getAlgorithm());
 			
 			// make sure that the sender identity has spaces between LDAP elements
 			String sender = this.credentials.getCertificate().getSubjectX500Principal().getName();
@@ -73,6 +161,8 @@ public class DigitalSignatureProcessor implements IMessageProcessor {
 			continuation.continueProcessing();
 		}
 		catch(Exception ex) {
+			// a signer that failed part way through can't be trusted to reset
+			signer.remove();
 			log.error("Exception while signing outbound event", ex);
 			throw new MessageException("Exception while signing outbound event", ex);
 		}
@@ -80,26 +170,39 @@ public class DigitalSignatureProcessor implements IMessageProcessor {
 
 	public void processInbound(MessageContext context, IContinuationCallback continuation) throws MessageException  {
 
+		final EnvelopeHelper env = new EnvelopeHelper(context.getEnvelope());
+
+		if (null != parallelVerifier) {
+
+			DeferredOutcome outcome = DeferredOutcome.defer(context.getContext());
+
+			if (null != outcome) {
+
+				try {
+					parallelVerifier.submit(
+							DeferredOutcome.getOrderingKey(context.getContext()),
+							new Callable<Boolean>() {
+								@Override
+								public Boolean call() throws Exception {
+									return verify(env);
+								}
+							},
+							continuation,
+							outcome);
+				}
+				catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					outcome.fail(new MessageException("Interrupted waiting to verify sender's digital signature", ex));
+				}
+
+				return;
+			}
+		}
+
 		boolean verified = false;
 		
 		try {
-			EnvelopeHelper env = new EnvelopeHelper(context.getEnvelope());
-			String senderIdentity = env.getSenderIdentity();
-			
-			// remove spaces from the sender identity
-			senderIdentity = senderIdentity.replace(", ", ",");
-			
-			X509Certificate senderCert = this.userInfoRepo.getPublicCertificateFor(senderIdentity);
-			
-			Signature instance = Signature.getInstance("SHA1withRSA");
-			instance.initVerify(senderCert);
-			instance.update(env.getPayload());
-			
-			verified = instance.verify(env.getDigitalSignature());
-			
-			if (false == verified) {
-				log.warn("Event may have been tampered with (id:{})", env.getMessageId().toString());
-			}
+			verified = this.verify(env);
 		}
 		catch(Exception ex) {
 			log.error("Failed to verify sender's digital signature", ex);
@@ -108,4 +211,135 @@ public class DigitalSignatureProcessor implements IMessageProcessor {
 		
 		if (verified) { continuation.continueProcessing(); }
 	}
+
+	/**
+	 * Verify the sender's digital signature of an envelope.
+	 * @return true if the envelope was signed by its sender and has not been altered
+	 */
+	protected boolean verify(EnvelopeHelper env) throws Exception {
+
+		String algorithm = env.getSignatureAlgorithm();
+		algorithm = (null == algorithm) ? DEFAULT_ALGORITHM : algorithm;
+
+		if (!acceptedAlgorithms.contains(algorithm)) {
+			throw new SecurityException("Signatures made with " + algorithm + " are not accepted");
+		}
+
+		String senderIdentity = env.getSenderIdentity();
+
+		// remove spaces from the sender identity
+		senderIdentity = senderIdentity.replace(", ", ",");
+
+		X509Certificate senderCert = this.userInfoRepo.getPublicCertificateFor(senderIdentity);
+
+		Signature instance = this.getVerifier(algorithm, senderCert);
+
+		try {
+			instance.update(env.getPayload());
+
+			boolean verified = instance.verify(env.getDigitalSignature());
+
+			if (false == verified) {
+				log.warn("Event may have been tampered with (id:{})", env.getMessageId());
+			}
+
+			return verified;
+		}
+		catch(Exception ex) {
+			// a verifier that failed part way through can't be trusted to reset
+			this.evictVerifier(algorithm, senderCert);
+			throw ex;
+		}
+	}
+
+
+	/**
+	 * @return this thread's signer, initialised with the client's private key
+	 */
+	protected Signature getSigner() throws Exception {
+
+		Signature instance = signer.get();
+
+		if (null == instance || !instance.getAlgorithm().equals(signatureAlgorithm)) {
+
+			instance = Signature.getInstance(signatureAlgorithm);
+			instance.initSign(this.credentials.getPrivateKey());
+
+			signer.set(instance);
+		}
+
+		return instance;
+	}
+
+	/**
+	 * @return a verifier of this thread, initialised with the certificate
+	 */
+	protected Signature getVerifier(String algorithm, X509Certificate certificate) throws Exception {
+
+		VerifierCache cache = verifiers.get();
+		VerifierKey key = new VerifierKey(algorithm, certificate);
+
+		Signature instance = cache.get(key);
+
+		if (null == instance) {
+
+			instance = Signature.getInstance(algorithm);
+			instance.initVerify(certificate);
+
+			cache.put(key, instance);
+		}
+
+		return instance;
+	}
+
+
+	/**
+	 * Forget this thread's verifier for the certificate, so the next envelope
+	 * it signed gets a fresh one.
+	 */
+	protected void evictVerifier(String algorithm, X509Certificate certificate) {
+		verifiers.get().remove(new VerifierKey(algorithm, certificate));
+	}
+
+
+	/**
+	 * A thread's verifiers, least recently used first.
+	 */
+	private static class VerifierCache extends LinkedHashMap<VerifierKey, Signature> {
+
+		private static final long serialVersionUID = -2367624163530421744L;
+
+		VerifierCache() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<VerifierKey, Signature> eldest) {
+			return size() > MAX_VERIFIERS_PER_THREAD;
+		}
+	}
+
+	private static final class VerifierKey {
+
+		private final String algorithm;
+		private final X509Certificate certificate;
+
+		VerifierKey(String algorithm, X509Certificate certificate) {
+			this.algorithm = algorithm;
+			this.certificate = certificate;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof VerifierKey)) { return false; }
+
+			VerifierKey other = (VerifierKey) obj;
+			return algorithm.equals(other.algorithm) && certificate.equals(other.certificate);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * algorithm.hashCode() + certificate.hashCode();
+		}
+	}
 }
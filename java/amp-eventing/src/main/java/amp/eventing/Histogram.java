@@ -0,0 +1,114 @@
+package amp.eventing;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A lock-free histogram of non-negative values, such as latencies or queue
+ * depths.  Values are counted in power-of-two buckets, so percentiles are
+ * approximate (within a factor of two) but recording is a couple of atomic
+ * increments.
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    /**
+     * bucket i counts values v with 2^(i-1) <= v < 2^i; bucket 0 counts zeros
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+
+    /**
+     * @param value value to record; negative values are recorded as 0
+     */
+    public void record(long value) {
+
+        value = Math.max(0, value);
+
+        counts.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * @return number of values recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return largest value recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return mean of the values recorded
+     */
+    public double getMean() {
+        long n = count.get();
+        return (0 == n) ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return a value at least as large as the given percentage of the values recorded
+     */
+    public long getPercentile(double percentile) {
+
+        long n = count.get();
+        if (0 == n) { return 0; }
+
+        long wanted = (long) Math.ceil(n * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+
+            seen += counts.get(i);
+
+            if (seen >= wanted && 0 < seen) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    /**
+     * @return the count in each bucket; bucket i holds values below 2^i
+     */
+    public long[] getBucketCounts() {
+
+        long[] snapshot = new long[BUCKETS];
+
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1f p50=%d p99=%d max=%d",
+                getCount(), getMean(), getPercentile(50), getPercentile(99), getMax());
+    }
+
+
+    private static long upperBound(int bucket) {
+        return (bucket >= 63) ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+}
@@ -0,0 +1,17 @@
+package amp.eventing;
+
+
+import java.util.List;
+
+
+/**
+ * Decides when enough responses have been gathered to stop waiting for more.
+ */
+public interface IRpcGatherPredicate<TResponse> {
+
+    /**
+     * @param responses every response gathered so far, in order of arrival
+     * @return true to stop gathering
+     */
+    boolean isSatisfied(List<TResponse> responses);
+}
@@ -0,0 +1,18 @@
+package amp.eventing;
+
+
+import java.util.Map;
+
+
+/**
+ * Called with each response as it arrives while responses to a request are
+ * being gathered.
+ */
+public interface IRpcResponseCallback<TResponse> {
+
+    /**
+     * @param response the response
+     * @param headers the headers of the envelope it arrived in
+     */
+    void onResponse(TResponse response, Map<String, String> headers);
+}
@@ -0,0 +1,32 @@
+package amp.eventing;
+
+
+import cmf.bus.Envelope;
+
+
+/**
+ * Receives the responses correlated to one request by an {@link RpcReplyCorrelator}.
+ */
+public interface IRpcResponseSink {
+
+    /**
+     * A response to the request arrived and was opened.
+     * @param response the opened response
+     * @param envelope the envelope it arrived in
+     * @return true if no more responses are wanted
+     */
+    boolean onResponse(Object response, Envelope envelope);
+
+    /**
+     * A response to the request arrived but could not be opened.
+     * @param ex what went wrong
+     * @return true if no more responses are wanted
+     */
+    boolean onFailure(Exception ex);
+
+    /**
+     * No more responses will be passed to the sink.
+     * @param cause why
+     */
+    void onClosed(Exception cause);
+}
@@ -0,0 +1,290 @@
+package amp.eventing;
+
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import amp.bus.DeferredOutcome;
+import amp.messaging.IContinuationCallback;
+
+
+/**
+ * Verifies inbound envelopes on a pool of worker threads while keeping each
+ * queue's envelopes in order.
+ * <p>
+ * The listener thread files each envelope in its queue's sequencer, hands the
+ * verification to the pool and moves on to the next delivery.  Verifications
+ * finish in any order, but an envelope only continues through the processors
+ * (and on to its handler) once every envelope before it in its queue has, and
+ * only if it verified.  Its deferred outcome is completed after that, so the
+ * delivery is not acknowledged before it has been dispatched.  Each queue may
+ * have a limited number of envelopes in flight; beyond that the listener
+ * waits, which pushes back on the broker.
+ * </p>
+ * <p>
+ * Envelopes are sequenced by the ordering key their processing context
+ * carries (see {@link DeferredOutcome#allowDeferral}), which for messaging is
+ * the registration rather than the queue.  The transport gives each of a
+ * registration's queues its own listener and delivers nothing else to it, so
+ * keeping the registration's envelopes in submission order keeps each queue's.
+ * A registration bound to several queues shares one sequence and window
+ * between them: stricter than needed, but never out of order.
+ * </p>
+ */
+public class ParallelVerifier {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelVerifier.class);
+
+    public static int DEFAULT_MAX_PENDING_PER_QUEUE = 256;
+
+    protected final ExecutorService pool;
+    protected final int maxPendingPerQueue;
+
+    /**
+     * sequencers by ordering key; weak so a queue that goes away takes its sequencer with it
+     */
+    protected final Map<Object, Sequencer> sequencers =
+            Collections.synchronizedMap(new WeakHashMap<Object, Sequencer>());
+
+    protected final AtomicInteger pendingCount = new AtomicInteger();
+    protected final Histogram queueDepth = new Histogram();
+    protected final Histogram verifyLatency = new Histogram();
+
+
+    public ParallelVerifier(int threads) {
+        this(threads, DEFAULT_MAX_PENDING_PER_QUEUE);
+    }
+
+    /**
+     * @param threads number of verifying threads
+     * @param maxPendingPerQueue most envelopes of one queue awaiting verification or their turn
+     */
+    public ParallelVerifier(int threads, int maxPendingPerQueue) {
+
+        this.maxPendingPerQueue = maxPendingPerQueue;
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable task) {
+                        Thread thread = new Thread(task, "amp-signature-verifier-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+
+    /**
+     * Verify an envelope on the pool.  Must be called in the queue's delivery
+     * order, from one thread at a time per queue; queues sharing an ordering
+     * key may submit concurrently.
+     * @param orderingKey identifies the envelope's queue, or a set of queues
+     *                    sequenced together
+     * @param verification returns true if the envelope may continue
+     * @param continuation the rest of the envelope's processing
+     * @param outcome completed once the envelope has been handled (or dropped),
+     *                with whatever the continuation recorded on it
+     * @throws InterruptedException if interrupted waiting for room in the queue's window
+     */
+    public void submit(
+            Object orderingKey,
+            final Callable<Boolean> verification,
+            IContinuationCallback continuation,
+            DeferredOutcome outcome) throws InterruptedException {
+
+        final Sequencer sequencer = this.getSequencer(orderingKey);
+        final Slot slot = sequencer.enqueue(continuation, outcome);
+
+        pendingCount.incrementAndGet();
+
+        try {
+
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+
+                    long start = System.nanoTime();
+
+                    try {
+                        slot.verified = verification.call();
+                    } catch (Exception ex) {
+                        slot.error = ex;
+                    }
+
+                    verifyLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+
+                    slot.ready = true;
+                    sequencer.drain();
+                }
+            });
+
+        } catch (RejectedExecutionException ex) {
+
+            // disposed: fail the envelope rather than block its queue
+            slot.error = ex;
+            slot.ready = true;
+            sequencer.drain();
+        }
+    }
+
+    /**
+     * @return number of envelopes awaiting verification or their turn, across all queues
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * @return depth of an envelope's queue (including itself) when it was submitted
+     */
+    public Histogram getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return time taken to verify each envelope, in microseconds
+     */
+    public Histogram getVerifyLatency() {
+        return verifyLatency;
+    }
+
+    /**
+     * Stop the verifying threads.  Envelopes already submitted are still
+     * verified; envelopes submitted afterwards fail.
+     */
+    public void dispose() {
+        pool.shutdown();
+    }
+
+
+    protected Sequencer getSequencer(Object orderingKey) {
+
+        synchronized (sequencers) {
+
+            Sequencer sequencer = sequencers.get(orderingKey);
+
+            if (null == sequencer) {
+                sequencer = new Sequencer();
+                sequencers.put(orderingKey, sequencer);
+            }
+
+            return sequencer;
+        }
+    }
+
+
+    /**
+     * An envelope awaiting verification or its turn.
+     */
+    private static final class Slot {
+
+        final IContinuationCallback continuation;
+        final DeferredOutcome outcome;
+
+        boolean verified;
+        Exception error;
+
+        /**
+         * written after verified and error, so reading it true makes them visible
+         */
+        volatile boolean ready;
+
+        Slot(IContinuationCallback continuation, DeferredOutcome outcome) {
+            this.continuation = continuation;
+            this.outcome = outcome;
+        }
+
+        void finish() {
+
+            if (null != error) {
+
+                LOG.error("Failed to verify sender's digital signature", error);
+                outcome.fail(error);
+
+            } else if (verified) {
+
+                try {
+                    // the continuation records the handler's outcome on ours
+                    continuation.continueProcessing();
+                    outcome.completeWithResult();
+                } catch (Exception ex) {
+                    outcome.fail(ex);
+                }
+
+            } else {
+
+                // unverified envelopes are dropped, as when verified synchronously
+                outcome.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Releases one queue's envelopes, in order, as they become ready.  Only
+     * one thread drains at a time.
+     */
+    protected final class Sequencer {
+
+        private final ConcurrentLinkedQueue<Slot> slots = new ConcurrentLinkedQueue<Slot>();
+        private final Semaphore window = new Semaphore(maxPendingPerQueue);
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        Slot enqueue(IContinuationCallback continuation, DeferredOutcome outcome) throws InterruptedException {
+
+            window.acquire();
+
+            Slot slot = new Slot(continuation, outcome);
+            slots.add(slot);
+
+            queueDepth.record(depth.incrementAndGet());
+
+            return slot;
+        }
+
+        void drain() {
+
+            // re-check after letting go, in case a slot became ready while we held on
+            while (isHeadReady() && draining.compareAndSet(false, true)) {
+                try {
+                    while (isHeadReady()) {
+
+                        Slot head = slots.poll();
+
+                        depth.decrementAndGet();
+                        pendingCount.decrementAndGet();
+                        window.release();
+
+                        head.finish();
+                    }
+                } finally {
+                    draining.set(false);
+                }
+            }
+        }
+
+        private boolean isHeadReady() {
+            Slot head = slots.peek();
+            return null != head && head.ready;
+        }
+    }
+}
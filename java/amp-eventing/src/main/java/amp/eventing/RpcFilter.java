@@ -1,11 +1,17 @@
 package amp.eventing;
 
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.joda.time.Duration;
 import org.slf4j.Logger;
@@ -19,20 +25,70 @@ import amp.messaging.MessageContext;
 import amp.messaging.MessageException;
 
 
+/**
+ * Stops a bus from receiving its own RPC requests.
+ * <p>
+ * The ids of sent requests are kept in a concurrent map, so checking an
+ * inbound message is a lock-free O(1) lookup.  Each id is also filed in a
+ * bucket by the time it expires (twice the request's timeout, or the default
+ * time-to-live for requests without one).  A sweeper on the shared
+ * {@link RpcScheduler} drops expired buckets, and if more than the maximum
+ * number of ids are held, the soonest-expiring buckets are dropped early, so
+ * memory stays bounded under any load.
+ * </p>
+ */
 public class RpcFilter implements IMessageProcessor {
 
     protected static final Logger log = LoggerFactory.getLogger(RpcFilter.class);
-    protected List<UUID> sentRequests;
 
-    
+    public static long DEFAULT_TTL = 5 * 60 * 1000;
+    public static int DEFAULT_MAX_ENTRIES = 100000;
+    public static long BUCKET_WIDTH = 1000;
+
+    /**
+     * each request id, mapped to the bucket it is filed in
+     */
+    protected final ConcurrentHashMap<UUID, Long> sentRequests = new ConcurrentHashMap<UUID, Long>();
+
+    /**
+     * each bucket (expiry time / bucket width), mapped to the ids expiring in it; guarded by itself
+     */
+    protected final TreeMap<Long, List<UUID>> buckets = new TreeMap<Long, List<UUID>>();
+
+    protected long defaultTtl = DEFAULT_TTL;
+    protected int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    protected final AtomicLong filteredCount = new AtomicLong();
+    protected final AtomicLong expiredCount = new AtomicLong();
+    protected final AtomicLong evictedCount = new AtomicLong();
+
+
     public RpcFilter() {
-        sentRequests = new ArrayList<UUID>();
+        scheduleSweeper(this);
+    }
+
+
+    /**
+     * Set how long to remember requests sent without a timeout.
+     * @param defaultTtl time in ms
+     */
+    public void setDefaultTtl(long defaultTtl) {
+        this.defaultTtl = defaultTtl;
+    }
+
+    /**
+     * Set the most request ids to remember.  Beyond this, the ids closest to
+     * expiring are forgotten early.
+     * @param maxEntries maximum number of ids
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
     }
 
-    
+
     @Override
     public void processMessage(MessageContext context, IContinuationCallback continuation) throws MessageException  {
-    	
+
     	if (Directions.In == context.getDirection()) {
     		this.processInbound(context, continuation);
     	}
@@ -40,8 +96,8 @@ public class RpcFilter implements IMessageProcessor {
     		this.processOutbound(context, continuation);
     	}
     }
-    
-    
+
+
     public void processInbound(MessageContext context, IContinuationCallback continuation) throws MessageException {
 
         boolean ourOwnRequest = false;
@@ -51,11 +107,10 @@ public class RpcFilter implements IMessageProcessor {
             if (env.IsRequest()) {
                 UUID requestId = env.getMessageId();
 
-                synchronized (this) {
-                    if (sentRequests.contains(requestId)) {
-                        log.info("Filtering out our own request: " + requestId.toString());
-                        ourOwnRequest = true;
-                    }
+                if (sentRequests.containsKey(requestId)) {
+                    log.info("Filtering out our own request: {}", requestId);
+                    filteredCount.incrementAndGet();
+                    ourOwnRequest = true;
                 }
             }
         } catch (Exception ex) {
@@ -70,38 +125,135 @@ public class RpcFilter implements IMessageProcessor {
         EnvelopeHelper env = new EnvelopeHelper(context.getEnvelope());
 
         if (env.IsRequest()) {
-            final UUID requestId = env.getMessageId();
+            UUID requestId = env.getMessageId();
             Duration timeout = env.getRpcTimeout();
 
-            synchronized (this) {
-                log.debug(String.format("Adding requestId %s to the RPC Filter list", requestId.toString()));
-                sentRequests.add(requestId);
+            long ttl = (0 < timeout.getMillis()) ? timeout.getMillis() * 2 : defaultTtl;
+
+            log.debug("Adding requestId {} to the RPC Filter list", requestId);
+            this.remember(requestId, System.currentTimeMillis() + ttl);
+        }
+
+        continuation.continueProcessing();
+    }
+
+    public void requestTimeout_GarbageCollect(UUID requestId) {
+        log.debug("Removing requestId {} from the RPC Filter list", requestId);
+        sentRequests.remove(requestId);
+    }
+
+    /**
+     * @return number of request ids remembered
+     */
+    public int getSize() {
+        return sentRequests.size();
+    }
+
+    /**
+     * @return number of inbound requests filtered out
+     */
+    public long getFilteredCount() {
+        return filteredCount.get();
+    }
+
+    /**
+     * @return number of request ids forgotten because they expired
+     */
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    /**
+     * @return number of request ids forgotten early to stay under the maximum
+     */
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+
+    protected void remember(UUID requestId, long expiresAt) {
+
+        Long bucket = expiresAt / BUCKET_WIDTH + 1;
+
+        synchronized (buckets) {
+
+            List<UUID> ids = buckets.get(bucket);
+            if (null == ids) {
+                ids = new ArrayList<UUID>();
+                buckets.put(bucket, ids);
             }
+            ids.add(requestId);
 
-            if (timeout == Duration.ZERO) {
-                Timer gc = new Timer(true);
-                gc.schedule(new TimerTask() {
+            sentRequests.put(requestId, bucket);
 
-                    @Override
-                    public void run() {
-                        requestTimeout_GarbageCollect(requestId);
-                    }
+            while (sentRequests.size() > maxEntries && !buckets.isEmpty()) {
+                evictedCount.addAndGet(this.drop(buckets.pollFirstEntry()));
+            }
+        }
+    }
+
+    /**
+     * Forget every request whose bucket has expired.
+     */
+    protected void sweep() {
+
+        long currentBucket = System.currentTimeMillis() / BUCKET_WIDTH;
+
+        synchronized (buckets) {
 
-                }, timeout.getMillis() * 2);
-            } else {
-                log.warn(String.format(
-                                "Request %s was sent without a timeout: it will never be removed from the RPC Filter list",
-                                requestId.toString()));
+            while (!buckets.isEmpty() && buckets.firstKey() <= currentBucket) {
+                expiredCount.addAndGet(this.drop(buckets.pollFirstEntry()));
             }
         }
-        
-        continuation.continueProcessing();
     }
 
-    public void requestTimeout_GarbageCollect(UUID requestId) {
-        synchronized (this) {
-            log.debug(String.format("Removing requestId %s from the RPC Filter list", requestId.toString()));
-            sentRequests.remove(requestId);
+    /**
+     * @return how many ids were forgotten
+     */
+    private int drop(Map.Entry<Long, List<UUID>> bucket) {
+
+        int dropped = 0;
+
+        for (UUID requestId : bucket.getValue()) {
+
+            // a re-sent request may have moved to a later bucket
+            if (sentRequests.remove(requestId, bucket.getKey())) {
+                dropped++;
+            }
         }
+
+        return dropped;
+    }
+
+    /**
+     * Sweep the filter once per bucket on the shared scheduler, until the
+     * filter is garbage collected.
+     */
+    private static void scheduleSweeper(RpcFilter filter) {
+
+        final WeakReference<RpcFilter> filterRef = new WeakReference<RpcFilter>(filter);
+        final AtomicReference<ScheduledFuture<?>> sweeper = new AtomicReference<ScheduledFuture<?>>();
+
+        sweeper.set(RpcScheduler.getInstance().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+
+                RpcFilter filter = filterRef.get();
+
+                if (null == filter) {
+
+                    ScheduledFuture<?> self = sweeper.get();
+                    if (null != self) { self.cancel(false); }
+
+                } else {
+
+                    try {
+                        filter.sweep();
+                    } catch (Exception ex) {
+                        log.error("Failed to sweep expired requests from the RPC Filter list", ex);
+                    }
+                }
+            }
+        }, BUCKET_WIDTH, BUCKET_WIDTH, TimeUnit.MILLISECONDS));
     }
 }
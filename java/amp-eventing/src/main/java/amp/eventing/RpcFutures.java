@@ -0,0 +1,95 @@
+package amp.eventing;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+
+/**
+ * Combines the futures returned by {@link DefaultRpcBus#getResponseToAsync}.
+ * Nothing here blocks: each combined future is completed by whichever
+ * thread completes the last future it depends on.
+ */
+public class RpcFutures {
+
+    private RpcFutures() {
+    }
+
+
+    /**
+     * @param responses futures to wait on
+     * @return a future yielding every response, in the order given, once all
+     * have arrived; it fails as soon as any of them fails
+     */
+    public static <TResponse> ListenableFuture<List<TResponse>> allOf(
+            Collection<? extends ListenableFuture<? extends TResponse>> responses) {
+
+        return Futures.allAsList(responses);
+    }
+
+    /**
+     * @param responses futures to wait on
+     * @return a future yielding the first response to arrive; it fails only
+     * if every one of them fails, with the last failure.  The others are
+     * cancelled once it completes.
+     */
+    public static <TResponse> ListenableFuture<TResponse> firstOf(
+            Collection<? extends ListenableFuture<? extends TResponse>> responses) {
+
+        final SettableFuture<TResponse> first = SettableFuture.create();
+
+        if (responses.isEmpty()) {
+            first.setException(new IllegalArgumentException("No responses to wait for"));
+            return first;
+        }
+
+        final List<ListenableFuture<? extends TResponse>> candidates =
+                new ArrayList<ListenableFuture<? extends TResponse>>(responses);
+        final AtomicInteger remaining = new AtomicInteger(candidates.size());
+
+        for (final ListenableFuture<? extends TResponse> candidate : candidates) {
+
+            candidate.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+
+                        first.set(candidate.get());
+
+                    } catch (ExecutionException ex) {
+
+                        if (remaining.decrementAndGet() == 0) {
+                            first.setException(ex.getCause());
+                        }
+
+                    } catch (Exception ex) {
+
+                        if (remaining.decrementAndGet() == 0) {
+                            first.setException(ex);
+                        }
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        // stop waiting on the losers
+        first.addListener(new Runnable() {
+            @Override
+            public void run() {
+                for (ListenableFuture<? extends TResponse> candidate : candidates) {
+                    candidate.cancel(false);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        return first;
+    }
+}
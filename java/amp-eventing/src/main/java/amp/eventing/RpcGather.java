@@ -0,0 +1,260 @@
+package amp.eventing;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import cmf.bus.Envelope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import amp.messaging.EnvelopeHelper;
+
+
+/**
+ * Collects the responses to one request as they arrive.
+ * <p>
+ * Gathering stops at the first of: the timeout elapsing, the expected number
+ * of responses arriving, or the caller's predicate being satisfied.  Results
+ * can be consumed three ways, which may be combined:
+ * <ul>
+ *     <li>{@link #await()} blocks until gathering stops and returns everything;</li>
+ *     <li>a callback given when gathering began is called with each response
+ *     on the thread that received it;</li>
+ *     <li>{@link #iterator()} yields responses as they arrive, blocking until
+ *     the next one does or gathering stops.</li>
+ * </ul>
+ * </p>
+ */
+public class RpcGather<TResponse> implements IRpcResponseSink, Iterable<TResponse> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RpcGather.class);
+
+    /**
+     * Marks the end of the arrivals queue.
+     */
+    private static final Object END = new Object();
+
+    protected final int expectedCount;
+    protected final Set<String> expectedTypes;
+    protected final IRpcGatherPredicate<TResponse> until;
+    protected final IRpcResponseCallback<TResponse> onResponse;
+
+    protected final List<TResponse> responses = new ArrayList<TResponse>();
+    protected final LinkedBlockingQueue<Object> arrivals = new LinkedBlockingQueue<Object>();
+    protected final CountDownLatch done = new CountDownLatch(1);
+    protected final List<Runnable> completionListeners = new CopyOnWriteArrayList<Runnable>();
+
+    private boolean complete;
+
+
+    /**
+     * @param expectedCount stop after this many responses; 0 or less for no limit
+     * @param expectedTypes only gather responses of these message types; empty for any
+     * @param until stop once this is satisfied; may be null
+     * @param onResponse called with each response; may be null
+     */
+    public RpcGather(
+            int expectedCount,
+            Set<String> expectedTypes,
+            IRpcGatherPredicate<TResponse> until,
+            IRpcResponseCallback<TResponse> onResponse) {
+
+        this.expectedCount = expectedCount;
+        this.expectedTypes = expectedTypes;
+        this.until = until;
+        this.onResponse = onResponse;
+    }
+
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean onResponse(Object response, Envelope envelope) {
+
+        // a response the inbound processors rejected has nothing to gather
+        if (null == response) { return isDone(); }
+
+        if (!expectedTypes.isEmpty() && !expectedTypes.contains(new EnvelopeHelper(envelope).getMessageType())) {
+            LOG.debug("Ignoring a response of unexpected type {}", new EnvelopeHelper(envelope).getMessageType());
+            return isDone();
+        }
+
+        TResponse typedResponse = (TResponse) response;
+        boolean satisfied;
+
+        synchronized (this) {
+
+            if (complete) { return true; }
+
+            responses.add(typedResponse);
+            arrivals.add(typedResponse);
+
+            satisfied = (expectedCount > 0 && responses.size() >= expectedCount)
+                    || (null != until && until.isSatisfied(Collections.unmodifiableList(responses)));
+        }
+
+        if (null != onResponse) {
+            try {
+                onResponse.onResponse(typedResponse, envelope.getHeaders());
+            } catch (Exception ex) {
+                LOG.error("Response callback failed", ex);
+            }
+        }
+
+        if (satisfied) { complete(); }
+
+        return satisfied;
+    }
+
+    /**
+     * A response that can't be opened is logged and skipped; the others may
+     * still arrive.
+     */
+    @Override
+    public boolean onFailure(Exception ex) {
+
+        LOG.error("Failed to open a gathered response", ex);
+
+        return isDone();
+    }
+
+    @Override
+    public void onClosed(Exception cause) {
+
+        LOG.warn("Stopped gathering responses: {}", cause.getMessage());
+
+        complete();
+    }
+
+    /**
+     * Stop gathering.  Called when the timeout elapses, and may be called by
+     * the caller to give up early.
+     */
+    public void complete() {
+
+        synchronized (this) {
+
+            if (complete) { return; }
+
+            complete = true;
+            arrivals.add(END);
+        }
+
+        done.countDown();
+
+        for (Runnable listener : completionListeners) {
+            try {
+                listener.run();
+            } catch (Exception ex) {
+                LOG.error("Gather completion listener failed", ex);
+            }
+        }
+    }
+
+    /**
+     * @return true once gathering has stopped
+     */
+    public synchronized boolean isDone() {
+        return complete;
+    }
+
+    /**
+     * @return the responses gathered so far
+     */
+    public synchronized List<TResponse> getResponses() {
+        return new ArrayList<TResponse>(responses);
+    }
+
+    /**
+     * Block until gathering stops.
+     * @return every response gathered
+     */
+    public Collection<TResponse> await() throws InterruptedException {
+
+        done.await();
+
+        return getResponses();
+    }
+
+    /**
+     * Block until gathering stops or the wait times out.
+     * @return every response gathered so far
+     */
+    public Collection<TResponse> await(long timeout, TimeUnit unit) throws InterruptedException {
+
+        done.await(timeout, unit);
+
+        return getResponses();
+    }
+
+    /**
+     * Run something when gathering stops, or now if it already has.
+     * @param listener what to run
+     */
+    public void onComplete(Runnable listener) {
+
+        completionListeners.add(listener);
+
+        if (isDone() && completionListeners.remove(listener)) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Yields each response as it arrives.  {@code hasNext()} blocks until a
+     * response arrives or gathering stops.  The responses are handed out
+     * once: only one thread should iterate.
+     */
+    @Override
+    public Iterator<TResponse> iterator() {
+
+        return new Iterator<TResponse>() {
+
+            private Object next;
+
+            @Override
+            public boolean hasNext() {
+
+                if (null == next) {
+                    try {
+                        next = arrivals.take();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted waiting for the next response", ex);
+                    }
+
+                    // leave the end marker for anyone asking again
+                    if (END == next) { arrivals.add(END); }
+                }
+
+                return END != next;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public TResponse next() {
+
+                if (!hasNext()) { throw new NoSuchElementException(); }
+
+                TResponse response = (TResponse) next;
+                next = null;
+
+                return response;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
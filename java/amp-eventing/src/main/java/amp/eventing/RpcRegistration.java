@@ -4,12 +4,13 @@ package amp.eventing;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import cmf.bus.Envelope;
 import cmf.bus.IEnvelopeFilterPredicate;
 import cmf.bus.IRegistration;
-import org.apache.commons.lang.time.StopWatch;
 import org.joda.time.Duration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,8 +26,9 @@ public class RpcRegistration implements IRegistration {
     
     protected IInboundProcessorCallback envelopeOpener;
     protected Map<String, String> registrationInfo;
-    protected Envelope responseEnvelope;
-    protected Object responseEvent;
+    protected volatile Envelope responseEnvelope;
+    protected volatile Object responseEvent;
+    protected final CountDownLatch responseReceived = new CountDownLatch(1);
     protected IEnvelopeFilterPredicate responseFilter;
 
     
@@ -60,16 +62,12 @@ public class RpcRegistration implements IRegistration {
     }
 
     public Object getResponse(Duration timeout) throws TimeoutException {
-        StopWatch watch = new StopWatch();
-        watch.start();
-        while (watch.getTime() < timeout.getMillis() && responseEvent == null) {
-            try {
-                Thread.sleep(Math.min(50, timeout.getMillis() / 10));
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
+        try {
+            responseReceived.await(timeout.getMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
         }
-        watch.stop();
 
         Object response = responseEvent;
         responseEvent = null;
@@ -84,6 +82,7 @@ public class RpcRegistration implements IRegistration {
     	
     	this.responseEnvelope = envelope;
     	this.responseEvent = this.envelopeOpener.ProcessInbound(envelope);
+    	this.responseReceived.countDown();
     	log.info("inbound envelope successfully opened");
     	
     	// we have no custom response to give
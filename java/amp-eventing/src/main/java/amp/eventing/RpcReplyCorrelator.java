@@ -0,0 +1,303 @@
+package amp.eventing;
+
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import cmf.bus.Envelope;
+import cmf.bus.IEnvelopeFilterPredicate;
+import cmf.bus.IRegistration;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import amp.messaging.EnvelopeHelper;
+import amp.messaging.IInboundProcessorCallback;
+
+
+/**
+ * A single, long-lived registration that receives the responses to every
+ * request sent by one RPC bus.
+ * <p>
+ * Requests name the correlator's reply topic in their reply-to header.  Each
+ * outstanding request has a sink in a concurrent map keyed by its message id;
+ * when a response arrives it is opened and handed to the sink matching its
+ * correlation id on the receiving thread, so a waiting caller wakes up as soon
+ * as the response is opened.  A sink expecting one response is removed by the
+ * first; a gathering sink stays until it has enough.  Responses nobody is
+ * waiting for (the caller timed out, or the responder answered twice) are
+ * dropped.
+ * </p>
+ */
+public class RpcReplyCorrelator implements IRegistration {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RpcReplyCorrelator.class);
+
+    public static final String REPLY_TOPIC_PREFIX = "amp.eventing.rpc.reply";
+
+    protected final ConcurrentHashMap<UUID, IRpcResponseSink> pending =
+            new ConcurrentHashMap<UUID, IRpcResponseSink>();
+
+    protected final IInboundProcessorCallback envelopeOpener;
+    protected final String replyTopic;
+    protected final Map<String, String> registrationInfo;
+    protected final IEnvelopeFilterPredicate responseFilter;
+
+
+    public RpcReplyCorrelator(IInboundProcessorCallback envelopeOpener) {
+        this(String.format("%s#%s", REPLY_TOPIC_PREFIX, UUID.randomUUID()), envelopeOpener);
+    }
+
+    /**
+     * @param replyTopic topic this correlator receives responses on; must be unique to it
+     * @param envelopeOpener runs received envelopes through the inbound processors
+     */
+    public RpcReplyCorrelator(String replyTopic, IInboundProcessorCallback envelopeOpener) {
+
+        this.replyTopic = replyTopic;
+        this.envelopeOpener = envelopeOpener;
+
+        responseFilter = new IEnvelopeFilterPredicate() {
+
+            @Override
+            public boolean filter(Envelope envelope) {
+                return null != new EnvelopeHelper(envelope).getCorrelationId();
+            }
+        };
+
+        registrationInfo = new HashMap<String, String>();
+        Envelope tmpInfoEnvelope = new Envelope();
+        tmpInfoEnvelope.setHeaders(registrationInfo);
+        new EnvelopeHelper(tmpInfoEnvelope).setMessageTopic(replyTopic);
+    }
+
+
+    /**
+     * @return the topic requests should name as their reply-to address
+     */
+    public String getReplyTopic() {
+        return replyTopic;
+    }
+
+    /**
+     * Start waiting for the response to a request.  Call this before the
+     * request is sent so that a fast response is not missed.
+     * @param requestId the request's message id
+     * @return a future completed with the opened response
+     */
+    public ListenableFuture<Object> expect(UUID requestId) {
+        return expect(requestId, (String) null);
+    }
+
+    /**
+     * Start waiting for the response of a given type to a request.  Responses
+     * of any other type are ignored.  Call this before the request is sent so
+     * that a fast response is not missed.
+     * @param requestId the request's message id
+     * @param expectedType message type of the response; null for any
+     * @return a future completed with the opened response
+     */
+    public ListenableFuture<Object> expect(UUID requestId, String expectedType) {
+
+        SettableFuture<Object> response = SettableFuture.create();
+
+        expect(requestId, new SingleResponse(response, expectedType));
+
+        return response;
+    }
+
+    /**
+     * Start waiting for the response to a request, giving up after a while.
+     * The wait is timed by the shared {@link RpcScheduler} rather than by a
+     * waiting thread.  Call this before the request is sent so that a fast
+     * response is not missed.
+     * @param requestId the request's message id
+     * @param timeoutMillis how long to wait for the response
+     * @return a future completed with the opened response, or failed with a
+     * {@link TimeoutException} if none arrives in time.  Cancelling it stops the wait.
+     */
+    public ListenableFuture<Object> expect(UUID requestId, long timeoutMillis) {
+        return expect(requestId, null, timeoutMillis);
+    }
+
+    /**
+     * Start waiting for the response of a given type to a request, giving up
+     * after a while.  Responses of any other type are ignored.
+     * @param requestId the request's message id
+     * @param expectedType message type of the response; null for any
+     * @param timeoutMillis how long to wait for the response
+     * @return a future completed with the opened response, or failed with a
+     * {@link TimeoutException} if none arrives in time.  Cancelling it stops the wait.
+     * @see #expect(UUID, long)
+     */
+    public ListenableFuture<Object> expect(final UUID requestId, String expectedType, long timeoutMillis) {
+
+        final SettableFuture<Object> response = SettableFuture.create();
+
+        expect(requestId, new SingleResponse(response, expectedType));
+
+        final ScheduledFuture<?> timer = RpcScheduler.getInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                response.setException(new TimeoutException("Timed out waiting for a response to request " + requestId));
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        // however the wait ends, stop the timer and stop waiting
+        response.addListener(new Runnable() {
+            @Override
+            public void run() {
+                timer.cancel(false);
+                forget(requestId);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        return response;
+    }
+
+    /**
+     * Start passing the responses to a request to a sink until it has enough.
+     * Call this before the request is sent so that a fast response is not missed.
+     * @param requestId the request's message id
+     * @param sink receives the opened responses
+     */
+    public void expect(UUID requestId, IRpcResponseSink sink) {
+
+        if (null != pending.putIfAbsent(requestId, sink)) {
+            throw new IllegalStateException("Already waiting for a response to request " + requestId);
+        }
+    }
+
+    /**
+     * Stop waiting for the response to a request, e.g. because the caller
+     * timed out.  A response arriving later will be dropped.
+     * @param requestId the request's message id
+     */
+    public void forget(UUID requestId) {
+        pending.remove(requestId);
+    }
+
+    /**
+     * @return number of requests still waiting for a response
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public IEnvelopeFilterPredicate getFilterPredicate() {
+        return responseFilter;
+    }
+
+    @Override
+    public Map<String, String> getRegistrationInfo() {
+        return registrationInfo;
+    }
+
+    @Override
+    public Object handle(Envelope envelope) throws Exception {
+
+        UUID correlationId = new EnvelopeHelper(envelope).getCorrelationId();
+
+        IRpcResponseSink sink = pending.get(correlationId);
+
+        if (null == sink) {
+
+            LOG.debug("Dropping response to request {}: nobody is waiting for it", correlationId);
+
+            return null;
+        }
+
+        Object response;
+
+        try {
+
+            response = envelopeOpener.ProcessInbound(envelope);
+
+        } catch (Exception ex) {
+
+            if (sink.onFailure(ex)) {
+                pending.remove(correlationId, sink);
+            }
+
+            throw ex;
+        }
+
+        if (sink.onResponse(response, envelope)) {
+            pending.remove(correlationId, sink);
+        }
+
+        // we have no custom response to give
+        return null;
+    }
+
+    @Override
+    public Object handleFailed(Envelope envelope, Exception ex) throws Exception {
+        LOG.error("Failed to handle an envelope: " + new EnvelopeHelper(envelope).flatten(), ex);
+
+        return null;
+    }
+
+    /**
+     * Fail every outstanding request; no more responses will be received.
+     */
+    public void dispose() {
+
+        for (UUID requestId : pending.keySet()) {
+
+            IRpcResponseSink sink = pending.remove(requestId);
+
+            if (null != sink) {
+                sink.onClosed(new IllegalStateException(
+                        "The RPC bus was disposed before a response to request " + requestId + " arrived"));
+            }
+        }
+    }
+
+
+    /**
+     * Completes a future with the first response (of the expected type, if given).
+     */
+    private static class SingleResponse implements IRpcResponseSink {
+
+        private final SettableFuture<Object> response;
+        private final String expectedType;
+
+        SingleResponse(SettableFuture<Object> response, String expectedType) {
+            this.response = response;
+            this.expectedType = expectedType;
+        }
+
+        @Override
+        public boolean onResponse(Object opened, Envelope envelope) {
+
+            String type = new EnvelopeHelper(envelope).getMessageType();
+
+            if (null != expectedType && !expectedType.equals(type)) {
+                LOG.debug("Ignoring a response of unexpected type {}", type);
+                return false;
+            }
+
+            response.set(opened);
+            return true;
+        }
+
+        @Override
+        public boolean onFailure(Exception ex) {
+            response.setException(ex);
+            return true;
+        }
+
+        @Override
+        public void onClosed(Exception cause) {
+            response.setException(cause);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package amp.eventing;
+
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * The single daemon thread that times out RPC requests for every bus in the
+ * process, so waiting for a response never costs a thread or timer per request.
+ * Tasks run on it must be short.
+ */
+public class RpcScheduler {
+
+    private static final ScheduledExecutorService SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "amp-rpc-scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+
+    private RpcScheduler() {
+    }
+
+    /**
+     * @return the shared scheduler
+     */
+    public static ScheduledExecutorService getInstance() {
+        return SCHEDULER;
+    }
+}
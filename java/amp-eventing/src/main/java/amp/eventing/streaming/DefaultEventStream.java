@@ -1,21 +1,92 @@
 package amp.eventing.streaming;
 
+import amp.bus.IBatchEnvelopeSender;
 import amp.messaging.EnvelopeHelper;
 import amp.messaging.MessageContext;
 import amp.messaging.IContinuationCallback;
 import amp.messaging.MessageException;
 import cmf.bus.Envelope;
+import cmf.bus.IEnvelopeBus;
 import cmf.eventing.patterns.streaming.IEventStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Publishes events to a stream in batches.
+ * <p>
+ * Each event goes through the outbound processor chain as it is published,
+ * and is buffered.  The buffer is flushed when it holds batchLimit events,
+ * when its payloads reach batchByteLimit bytes, or when its oldest event
+ * has waited lingerMillis (whichever comes first; the last two are off
+ * unless set).  A flush hands the whole batch to the envelope bus at once,
+ * so the transport can look up routing once, use one channel per exchange
+ * and pipeline the publishes (confirming them once, if it confirms).
+ * </p>
+ * <p>
+ * A batch that fails to send stays buffered and goes out with the next
+ * flush (a lingering batch is retried after another lingerMillis), so part
+ * of it may be sent twice; readers drop positions they have already seen.
+ * </p>
+ * <p>
+ * If given a credit window, the stream is flow-controlled: it publishes that
+ * many events, then waits for its readers to grant it {@link StreamCredit} for
+ * more, so a slow reader slows the publisher rather than filling the broker.
+ * </p>
+ */
 public class DefaultEventStream implements IEventStream {
     protected static final Logger log = LoggerFactory.getLogger(DefaultEventStream.class);
+
+    public static long DEFAULT_BATCH_BYTE_LIMIT = 0;
+    public static long DEFAULT_LINGER_MILLIS = 0;
+    public static int DEFAULT_CREDIT_WINDOW = 0;
+    public static long DEFAULT_CREDIT_TIMEOUT_MILLIS = 60 * 1000;
+
+    /**
+     * Times lingering events; shared by every stream in the process.  It only
+     * hands flushes to the LINGER_FLUSHER, so it is never held up by a stream.
+     */
+    private static final ScheduledExecutorService LINGER_SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "amp-event-stream-linger");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Flushes streams whose events have lingered.  A stream that is slow to
+     * send, or is waiting for credit, only holds up its own flush.
+     */
+    private static final ExecutorService LINGER_FLUSHER =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "amp-event-stream-flush");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     private final IStandardStreamingEventBus eventBus;
     private int batchLimit = 2;
+    private long batchByteLimit = DEFAULT_BATCH_BYTE_LIMIT;
+    private long lingerMillis = DEFAULT_LINGER_MILLIS;
+    private int creditWindow = DEFAULT_CREDIT_WINDOW;
+    private long creditTimeoutMillis = DEFAULT_CREDIT_TIMEOUT_MILLIS;
+    private volatile StreamCredits streamCredits;
     private Queue<EventStreamQueueItem> queuedEvents;
+    private long queuedBytes;
+    private ScheduledFuture<?> lingerFlush;
     private final UUID sequenceId;
     private int position;
     private String topic;
@@ -33,28 +104,105 @@ public class DefaultEventStream implements IEventStream {
         this.batchLimit = numberOfEvents;
     }
 
+    /**
+     * Flush once the buffered payloads add up to this many bytes.
+     * @param numberOfBytes payload bytes; 0 for no limit
+     */
+    public void setBatchByteLimit(long numberOfBytes) {
+        this.batchByteLimit = numberOfBytes;
+    }
+
+    /**
+     * Flush once the oldest buffered event has waited this long, even if
+     * the batch isn't full.
+     * @param lingerMillis time in ms; 0 to wait for a full batch (or dispose)
+     */
+    public void setLingerMillis(long lingerMillis) {
+        this.lingerMillis = lingerMillis;
+    }
+
+    /**
+     * Wait for readers to grant credit after this many unacknowledged events.
+     * @param numberOfEvents events; 0 to publish without flow control
+     */
+    public void setCreditWindow(int numberOfEvents) {
+        this.creditWindow = numberOfEvents;
+    }
+
+    /**
+     * Give up publishing if no reader grants credit for this long.
+     * @param creditTimeoutMillis time in ms
+     */
+    public void setCreditTimeoutMillis(long creditTimeoutMillis) {
+        this.creditTimeoutMillis = creditTimeoutMillis;
+    }
+
     @Override
-    public void publish(Object event) throws Exception {
+    public synchronized void publish(Object event) throws Exception {
         log.debug("enter publish to stream");
         String sequence = sequenceId.toString();
 
+        if (creditWindow > 0) {
+            awaitCredit(sequence);
+        }
 
         Envelope env = StreamingEnvelopeHelper.buildStreamingEnvelope(sequence, position);
         EnvelopeHelper envHelper = new EnvelopeHelper(env);
         envHelper.setMessageTopic(getTopic());
 
-        MessageContext context = new MessageContext(MessageContext.Directions.Out, env, event);
-        EventStreamQueueItem eventItem = new EventStreamQueueItem(context);
+        if (creditWindow > 0) {
+            env.setHeader(StreamingEnvelopeHelper.CREDIT_WINDOW, creditWindow + "");
+        }
+
+        final MessageContext context = new MessageContext(MessageContext.Directions.Out, env, event);
 
-        log.debug("buffering event with sequenceId: " + sequence + ", position: " + position);
-        this.queuedEvents.add(eventItem);
+        eventBus.processMessage(context, new IContinuationCallback() {
+            @Override
+            public void continueProcessing() throws MessageException {
+                log.debug("buffering event with sequenceId: " + sequenceId + ", position: " + position);
+                queuedEvents.add(new EventStreamQueueItem(context));
 
-        if (this.queuedEvents.size() == this.batchLimit) {
-            log.debug("flushing " + batchLimit + " event(s) to stream.");
+                byte[] payload = context.getEnvelope().getPayload();
+                queuedBytes += (null == payload) ? 0 : payload.length;
+            }
+        });
+
+        position++;
+
+        if (queuedEvents.size() >= this.batchLimit) {
+            log.debug("flushing " + queuedEvents.size() + " event(s) to stream.");
+            flushStreamBuffer();
+        }
+        else if (batchByteLimit > 0 && queuedBytes >= batchByteLimit) {
+            log.debug("flushing " + queuedBytes + " bytes of events to stream.");
             flushStreamBuffer();
         }
+        else if (lingerMillis > 0 && null == lingerFlush && !queuedEvents.isEmpty()) {
+            scheduleLingerFlush();
+        }
+    }
 
-        position++;
+    /**
+     * Wait until the readers have granted credit for the next position,
+     * first sending what's buffered so they can.
+     */
+    private void awaitCredit(String sequence) throws Exception {
+
+        if (null == streamCredits) {
+            streamCredits = eventBus.getStreamCredits();
+            streamCredits.open(sequence, creditWindow);
+        }
+
+        if (streamCredits.hasCredit(sequence, position)) { return; }
+
+        flushStreamBuffer();
+
+        log.debug("waiting for credit to publish position " + position + " of sequence " + sequence);
+
+        if (!streamCredits.awaitCredit(sequence, position, creditTimeoutMillis)) {
+            throw new MessageException("No reader granted credit to publish position " + position
+                    + " of sequence " + sequence + " within " + creditTimeoutMillis + "ms, or the stream was disposed.");
+        }
     }
 
     @Override
@@ -74,22 +222,72 @@ public class DefaultEventStream implements IEventStream {
      * set to true. The trick here is to ensure that the streamBuffer is not entirely empty when
      * dispose gets called.
      */
-    private void flushStreamBuffer() throws Exception {
-
-        while (queuedEvents.size() > 0) {
-            final EventStreamQueueItem eventItem = queuedEvents.remove();
-            eventBus.processMessage(eventItem.getMessageContext(),
-                    new IContinuationCallback() {
-                        @Override
-                        public void continueProcessing() throws MessageException {
-                            try {
-								eventBus.getEnvelopeBus().send(eventItem.getEnvelope());
-							} catch (Exception ex) {
-								log.error("Error sending streaming eventItem.", ex);
-								throw new MessageException("Error sending streaming eventItem.", ex);
-							}
-                        }
-                    });
+    private synchronized void flushStreamBuffer() throws Exception {
+
+        if (null != lingerFlush) {
+            lingerFlush.cancel(false);
+            lingerFlush = null;
+        }
+
+        if (queuedEvents.isEmpty()) { return; }
+
+        List<Envelope> envelopes = new ArrayList<Envelope>(queuedEvents.size());
+
+        for (EventStreamQueueItem item : queuedEvents) {
+            envelopes.add(item.getEnvelope());
+        }
+
+        IEnvelopeBus envelopeBus = eventBus.getEnvelopeBus();
+
+        try {
+            if (envelopeBus instanceof IBatchEnvelopeSender) {
+                ((IBatchEnvelopeSender) envelopeBus).sendAll(envelopes);
+            } else {
+                for (Envelope envelope : envelopes) {
+                    envelopeBus.send(envelope);
+                }
+            }
+        } catch (Exception ex) {
+            log.error("Error sending streaming eventItem.", ex);
+            throw new MessageException("Error sending streaming eventItem.", ex);
+        }
+
+        // only forget the batch once it's been sent
+        queuedEvents.clear();
+        queuedBytes = 0;
+    }
+
+    private void scheduleLingerFlush() {
+
+        lingerFlush = LINGER_SCHEDULER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                LINGER_FLUSHER.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushLingeringEvents();
+                    }
+                });
+            }
+        }, lingerMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Flush on the linger timer; if it fails, the batch is kept and tried again later.
+     */
+    private synchronized void flushLingeringEvents() {
+
+        lingerFlush = null;
+
+        if (queuedEvents.isEmpty()) { return; }
+
+        try {
+            log.debug("flushing " + queuedEvents.size() + " lingering event(s) to stream.");
+            flushStreamBuffer();
+        } catch (Exception ex) {
+            log.warn("Unable to send " + queuedEvents.size() + " lingering event(s); trying again in "
+                    + lingerMillis + "ms.");
+            scheduleLingerFlush();
         }
     }
 
@@ -99,12 +297,27 @@ public class DefaultEventStream implements IEventStream {
      */
     @Override
     public void dispose() {
-        try {
-            flushStreamBuffer();
-            eventBus.publish(new EndOfStream(this.getTopic(), sequenceId.toString()));
+        // before taking the stream, so a publish waiting on credit gives it up
+        StreamCredits credits = streamCredits;
+        if (null != credits) {
+            credits.close(sequenceId.toString());
+        }
+
+        synchronized (this) {
+            try {
+                flushStreamBuffer();
+                eventBus.publish(new EndOfStream(this.getTopic(), sequenceId.toString()));
+
+            } catch (Exception e) {
+                log.error("Unable to send last batch of messages in buffer to event stream.", e);
+            } finally {
+                queuedEvents.clear();
+                queuedBytes = 0;
 
-        } catch (Exception e) {
-            log.error("Unable to send last batch of messages in buffer to event stream.", e);
+                if (null != streamCredits) {
+                    streamCredits.close(sequenceId.toString());
+                }
+            }
         }
     }
 
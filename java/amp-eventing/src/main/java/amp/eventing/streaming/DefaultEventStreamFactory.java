@@ -6,6 +6,9 @@ public class DefaultEventStreamFactory implements IEventStreamFactory {
 
     private IStandardStreamingEventBus eventBus;
     private String topic;
+    private long batchByteLimit = DefaultEventStream.DEFAULT_BATCH_BYTE_LIMIT;
+    private long lingerMillis = DefaultEventStream.DEFAULT_LINGER_MILLIS;
+    private int creditWindow = DefaultEventStream.DEFAULT_CREDIT_WINDOW;
 
     @Override
     public void setEventBus(IStandardStreamingEventBus bus) {
@@ -17,8 +20,33 @@ public class DefaultEventStreamFactory implements IEventStreamFactory {
         this.topic = topic;
     }
 
+    /**
+     * @see DefaultEventStream#setBatchByteLimit(long)
+     */
+    public void setBatchByteLimit(long batchByteLimit) {
+        this.batchByteLimit = batchByteLimit;
+    }
+
+    /**
+     * @see DefaultEventStream#setLingerMillis(long)
+     */
+    public void setLingerMillis(long lingerMillis) {
+        this.lingerMillis = lingerMillis;
+    }
+
+    /**
+     * @see DefaultEventStream#setCreditWindow(int)
+     */
+    public void setCreditWindow(int creditWindow) {
+        this.creditWindow = creditWindow;
+    }
+
     @Override
     public IEventStream generateEventStream() {
-        return new DefaultEventStream(eventBus, topic);
+        DefaultEventStream eventStream = new DefaultEventStream(eventBus, topic);
+        eventStream.setBatchByteLimit(batchByteLimit);
+        eventStream.setLingerMillis(lingerMillis);
+        eventStream.setCreditWindow(creditWindow);
+        return eventStream;
     }
 }
@@ -1,6 +1,7 @@
 package amp.eventing.streaming;
 
 
+import amp.bus.ExtendedHeaderConstants;
 import amp.eventing.*;
 import amp.messaging.IContinuationCallback;
 import amp.messaging.IMessageProcessor;
@@ -25,6 +26,20 @@ public class DefaultStreamingBus extends DefaultEventBus implements IStandardStr
      * Allows for tuning by setting this to a different value based on size of events.
      */
     protected int batchLimit = 10;
+    /**
+     * Payload bytes at which a chunked sequence flushes a batch early; 0 for no limit.
+     */
+    protected long batchByteLimit = DefaultEventStream.DEFAULT_BATCH_BYTE_LIMIT;
+    /**
+     * Events a chunked sequence sends before waiting for its readers to grant credit; 0 for no flow control.
+     */
+    protected int creditWindow = DefaultEventStream.DEFAULT_CREDIT_WINDOW;
+    /**
+     * Unacknowledged deliveries each collection or reader subscription may hold, which is
+     * also the credit it grants flow-controlled streams; 0 for no limit.
+     */
+    protected int readerPrefetch = 0;
+    private StreamCredits streamCredits;
     
     private final IEnvelopeBus envelopeBus;
 
@@ -57,6 +72,31 @@ public class DefaultStreamingBus extends DefaultEventBus implements IStandardStr
 
     }
 
+    public void setBatchByteLimit(long batchByteLimit) {
+        this.batchByteLimit = batchByteLimit;
+    }
+
+    public void setCreditWindow(int creditWindow) {
+        this.creditWindow = creditWindow;
+    }
+
+    public void setReaderPrefetch(int readerPrefetch) {
+        this.readerPrefetch = readerPrefetch;
+    }
+
+    /**
+     * Starts listening for credit grants the first time a flow-controlled stream needs them.
+     */
+    @Override
+    public synchronized StreamCredits getStreamCredits() throws Exception {
+        if (null == streamCredits) {
+            StreamCredits credits = new StreamCredits();
+            envelopeBus.register(new StreamCreditRegistration(credits, this._eventConsumer));
+            streamCredits = credits;
+        }
+        return streamCredits;
+    }
+
     public void removeStream(String topic) {
         if (this.eventStreams.containsKey(topic)) {
             this.eventStreams.remove(topic);
@@ -76,8 +116,11 @@ public class DefaultStreamingBus extends DefaultEventBus implements IStandardStr
             for (TEVENT eventItem : dataSet) {
                 if (null == eventStream) {
                     topic = eventItem.getClass().getCanonicalName();
-                    eventStream = new DefaultEventStream(this, topic); //Skipping use of the factory so that we ensure sequencing based event stream is used
-                    eventStream.setBatchLimit(this.batchLimit);
+                    DefaultEventStream sequenceStream = new DefaultEventStream(this, topic); //Skipping use of the factory so that we ensure sequencing based event stream is used
+                    sequenceStream.setBatchLimit(this.batchLimit);
+                    sequenceStream.setBatchByteLimit(this.batchByteLimit);
+                    sequenceStream.setCreditWindow(this.creditWindow);
+                    eventStream = sequenceStream;
                     //Notify the receiver what the size of the collection will be
                     this.publish(new CollectionSizeNotifier(dataSet.size(), topic, eventStream.getSequenceId()));
                     eventStreams.put(topic, eventStream);
@@ -104,7 +147,13 @@ public class DefaultStreamingBus extends DefaultEventBus implements IStandardStr
     @Override
     public <TEVENT> void subscribeToCollection(IStreamingCollectionHandler<TEVENT> handler) throws Exception {
         log.debug("enter subscribeToCollection");
-        StreamingCollectionRegistration<TEVENT> registration = new StreamingCollectionRegistration<TEVENT>(handler, this._eventConsumer);
+        StreamingCollectionRegistration<TEVENT> registration;
+        if (handler instanceof IIncrementalCollectionHandler) {
+            registration = new IncrementalCollectionRegistration<TEVENT>((IIncrementalCollectionHandler<TEVENT>) handler, this._eventConsumer);
+        } else {
+            registration = new StreamingCollectionRegistration<TEVENT>(handler, this._eventConsumer);
+        }
+        registration.setCreditGranter(createCreditGranter(registration.getRegistrationInfo()));
         envelopeBus.register(registration);
         log.debug("leave subscribeToCollection");
     }
@@ -113,10 +162,21 @@ public class DefaultStreamingBus extends DefaultEventBus implements IStandardStr
     public <TEVENT> void subscribeToReader(IStreamingReaderHandler<TEVENT> handler) throws Exception {
         log.debug("enter subscribeToReader");
         StreamingReaderRegistration<TEVENT> registration = new StreamingReaderRegistration<TEVENT>(handler, this._eventConsumer);
+        registration.setCreditGranter(createCreditGranter(registration.getRegistrationInfo()));
         envelopeBus.register(registration);
         log.debug("leave subscribeToReader");
     }
 
+    /**
+     * Ask the transport to apply the reader prefetch to the registration, and grant credit in step with it.
+     */
+    private StreamCreditGranter createCreditGranter(Map<String, String> registrationInfo) {
+        if (readerPrefetch > 0) {
+            registrationInfo.put(ExtendedHeaderConstants.REGISTRATION_PREFETCH, readerPrefetch + "");
+        }
+        return new StreamCreditGranter(this, readerPrefetch);
+    }
+
     @Override
     public <TEVENT> void subscribe(final IEventHandler<TEVENT> eventHandler, final IEnvelopeFilterPredicate filterPredicate)
             throws MessageException {
@@ -0,0 +1,43 @@
+package amp.eventing.streaming;
+
+import cmf.eventing.patterns.streaming.IStreamingCollectionHandler;
+import cmf.eventing.patterns.streaming.StreamingEventItem;
+
+import java.util.Collection;
+
+/**
+ * A collection handler that is given the collection in order as it arrives,
+ * rather than all at once when it ends.
+ * <p>
+ * Subscribing one with {@link DefaultStreamingBus#subscribeToCollection} holds
+ * only the events that arrive ahead of a gap; each run of events that completes
+ * the collection so far is passed to {@link #handleCollectionPart}.  When the
+ * end of the stream arrives, whatever hasn't been passed on yet is passed as a
+ * last part and {@link #handleCollectionEnd} is called.  If the sequence is
+ * evicted first (it went idle, outgrew the reader's buffers, or one of its
+ * events couldn't be processed), {@link #handleCollectionAborted} is called
+ * instead and nothing more is passed on for it.  {@link #handleCollection} isn't
+ * called.
+ * </p>
+ */
+public interface IIncrementalCollectionHandler<TEVENT> extends IStreamingCollectionHandler<TEVENT> {
+
+    /**
+     * @param sequenceId the collection's sequence
+     * @param eventItems the events that follow the last part, in position order
+     */
+    void handleCollectionPart(String sequenceId, Collection<StreamingEventItem<TEVENT>> eventItems);
+
+    /**
+     * Every part of the collection has been passed on.
+     * @param sequenceId the collection's sequence
+     */
+    void handleCollectionEnd(String sequenceId);
+
+    /**
+     * The collection won't be completed; the parts already passed on are all there will be.
+     * @param sequenceId the collection's sequence
+     * @param reason why it was abandoned
+     */
+    void handleCollectionAborted(String sequenceId, Exception reason);
+}
@@ -7,4 +7,9 @@ import cmf.eventing.patterns.streaming.IStreamingEventBus;
 public interface IStandardStreamingEventBus extends IStreamingEventBus, IMessageProcessor {
    
 	IEnvelopeBus getEnvelopeBus();
+
+	/**
+	 * @return the credit readers have granted to the flow-controlled streams published through this bus
+	 */
+	StreamCredits getStreamCredits() throws Exception;
 }
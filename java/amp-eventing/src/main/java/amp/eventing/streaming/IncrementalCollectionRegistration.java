@@ -0,0 +1,70 @@
+package amp.eventing.streaming;
+
+import amp.messaging.IInboundProcessorCallback;
+import cmf.bus.Envelope;
+import cmf.eventing.patterns.streaming.StreamingEventItem;
+
+import java.util.Collection;
+import java.util.List;
+
+import static cmf.eventing.patterns.streaming.StreamingEnvelopeConstants.*;
+
+/**
+ * {@link StreamingCollectionRegistration} that passes each sequence to an
+ * {@link IIncrementalCollectionHandler} in order as it arrives, then tells it
+ * the sequence has ended or, if the sequence is evicted, been aborted.
+ */
+public class IncrementalCollectionRegistration<TEVENT> extends StreamingCollectionRegistration<TEVENT> {
+    protected IIncrementalCollectionHandler<TEVENT> incrementalHandler;
+
+    public IncrementalCollectionRegistration(IIncrementalCollectionHandler<TEVENT> handler, IInboundProcessorCallback processorCallback) {
+        super(handler, processorCallback);
+        this.incrementalHandler = handler;
+
+        this.reassemblyBuffer.setEvictionListener(new SequenceReassemblyBuffer.EvictionListener() {
+            @Override
+            public void sequenceEvicted(String sequenceId, Exception reason) {
+                abortCollection(sequenceId, reason);
+            }
+        });
+    }
+
+    /**
+     * Parts, the end and the abort of a sequence are handed on under the registration's lock,
+     * so the handler sees them in order even if envelopes are delivered concurrently.
+     */
+    @Override
+    protected void queueEvent(Envelope env) throws Exception {
+        super.queueEvent(env);
+
+        if (null != env) {
+            String sequenceId = env.getHeader(SEQUENCE_ID);
+
+            synchronized (this) {
+                List<StreamingEventItem<TEVENT>> eventItems = reassemblyBuffer.drainContiguous(sequenceId);
+                if (!eventItems.isEmpty()) {
+                    log.debug("releasing " + eventItems.size() + " event(s) of sequence " + sequenceId);
+                    incrementalHandler.handleCollectionPart(sequenceId, eventItems);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected synchronized void closeStream(Envelope env) throws Exception {
+        super.closeStream(env);
+    }
+
+    @Override
+    protected void completeCollection(String sequenceId, Collection<StreamingEventItem<TEVENT>> sortedEvents) {
+        if (!sortedEvents.isEmpty()) {
+            incrementalHandler.handleCollectionPart(sequenceId, sortedEvents);
+        }
+        incrementalHandler.handleCollectionEnd(sequenceId);
+    }
+
+    protected synchronized void abortCollection(String sequenceId, Exception reason) {
+        log.debug("aborting sequence " + sequenceId);
+        incrementalHandler.handleCollectionAborted(sequenceId, reason);
+    }
+}
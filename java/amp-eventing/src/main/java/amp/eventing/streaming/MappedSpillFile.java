@@ -0,0 +1,231 @@
+package amp.eventing.streaming;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Temporary file, mapped into memory a segment at a time, that holds records
+ * which didn't fit in memory.
+ * <p>
+ * Records are written and read back by offset and length.  Released records
+ * leave free extents, which are merged with their free neighbours and reused
+ * (first fit) by later writes; free space at the end of the file is given
+ * back, so once every record has been released writing starts again from the
+ * beginning.  The file never grows past maxBytes: a record that doesn't fit
+ * isn't written.
+ * </p>
+ */
+class MappedSpillFile {
+    protected static final Logger log = LoggerFactory.getLogger(MappedSpillFile.class);
+
+    public static int DEFAULT_SEGMENT_BYTES = 8 * 1024 * 1024;
+
+    private final int segmentBytes;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private final TreeMap<Long, Long> freeExtents = new TreeMap<Long, Long>();
+    private long maxBytes = Long.MAX_VALUE;
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private long writePosition;
+
+    public MappedSpillFile() {
+        this(DEFAULT_SEGMENT_BYTES);
+    }
+
+    public MappedSpillFile(int segmentBytes) {
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * @param maxBytes the most the file may grow to
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the offset to read the record back from, or -1 if there isn't room for it
+     */
+    public long write(byte[] record) throws IOException {
+        long offset = allocate(record.length);
+
+        if (offset >= 0) {
+            copy(offset, record, true);
+        }
+
+        return offset;
+    }
+
+    public byte[] read(long offset, int length) throws IOException {
+        byte[] record = new byte[length];
+
+        copy(offset, record, false);
+
+        return record;
+    }
+
+    /**
+     * The record at this offset is no longer needed; its space can be reused.
+     */
+    public void release(long offset, int length) {
+        long start = offset;
+        long end = offset + length;
+
+        Map.Entry<Long, Long> before = freeExtents.lowerEntry(start);
+        if (null != before && before.getKey() + before.getValue() == start) {
+            start = before.getKey();
+            freeExtents.remove(start);
+        }
+
+        Long after = freeExtents.remove(end);
+        if (null != after) {
+            end += after;
+        }
+
+        if (end == writePosition) {
+            writePosition = start;
+        } else {
+            freeExtents.put(start, end - start);
+        }
+    }
+
+    /**
+     * @return the length of the file in use, including free extents within it
+     */
+    public long getUsedBytes() {
+        return writePosition;
+    }
+
+    public void close() {
+        for (MappedByteBuffer segment : segments) {
+            unmap(segment);
+        }
+        segments.clear();
+        freeExtents.clear();
+        writePosition = 0;
+
+        if (null != channel) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException ex) {
+                log.warn("Unable to close spill file: " + file, ex);
+            }
+            channel = null;
+        }
+
+        if (null != file && !file.delete()) {
+            log.warn("Unable to delete spill file: " + file);
+        }
+        file = null;
+    }
+
+    private long allocate(int length) {
+        for (Map.Entry<Long, Long> extent : freeExtents.entrySet()) {
+            long offset = extent.getKey();
+            long free = extent.getValue();
+
+            if (free >= length) {
+                freeExtents.remove(offset);
+                if (free > length) {
+                    freeExtents.put(offset + length, free - length);
+                }
+                return offset;
+            }
+        }
+
+        if (writePosition + length > maxBytes) {
+            return -1;
+        }
+
+        long offset = writePosition;
+        writePosition += length;
+
+        return offset;
+    }
+
+    private void copy(long offset, byte[] record, boolean toFile) throws IOException {
+        int copied = 0;
+
+        while (copied < record.length) {
+            long position = offset + copied;
+            int segmentIndex = (int) (position / segmentBytes);
+            int segmentOffset = (int) (position % segmentBytes);
+            int length = Math.min(record.length - copied, segmentBytes - segmentOffset);
+
+            MappedByteBuffer segment = segment(segmentIndex);
+            segment.position(segmentOffset);
+
+            if (toFile) {
+                segment.put(record, copied, length);
+            } else {
+                segment.get(record, copied, length);
+            }
+
+            copied += length;
+        }
+    }
+
+    private MappedByteBuffer segment(int index) throws IOException {
+        if (null == channel) {
+            file = File.createTempFile("amp-stream-", ".spill");
+            file.deleteOnExit();
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            channel = randomAccessFile.getChannel();
+        }
+
+        while (segments.size() <= index) {
+            long start = (long) segments.size() * segmentBytes;
+            segments.add(channel.map(FileChannel.MapMode.READ_WRITE, start, segmentBytes));
+        }
+
+        return segments.get(index);
+    }
+
+    /**
+     * Unmap a segment now rather than when it's garbage collected, so the file
+     * can be deleted and its pages released.  There's no public API for this,
+     * so it's best effort: Unsafe.invokeCleaner on Java 9 and later, the
+     * buffer's cleaner before that.
+     */
+    private static void unmap(MappedByteBuffer segment) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException ex) {
+                invokeCleaner = null;
+            }
+
+            if (null != invokeCleaner) {
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), segment);
+            } else {
+                Method cleanerMethod = segment.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(segment);
+                if (null != cleaner) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Exception ex) {
+            log.debug("Unable to unmap a spill file segment; it will be unmapped when it's collected.", ex);
+        }
+    }
+}
@@ -0,0 +1,744 @@
+package amp.eventing.streaming;
+
+import amp.messaging.IInboundProcessorCallback;
+import amp.messaging.MessageException;
+import cmf.bus.Envelope;
+import cmf.eventing.patterns.streaming.StreamingEventItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static cmf.eventing.patterns.streaming.StreamingEnvelopeConstants.*;
+
+/**
+ * Holds the events of streamed collections until each collection is complete.
+ * <p>
+ * Events are slotted into an array by their position, so a finished collection
+ * is read out in order without sorting.  A sequence's array starts at the first
+ * position it hasn't released, so when contiguous events are released as they
+ * arrive it only spans the out-of-order window.  Memory is bounded: once a sequence holds
+ * maxSequenceBytes, or all sequences together hold maxBufferedBytes (measured by
+ * payload size, plus the slot arrays), further envelopes are spilled unprocessed
+ * to a memory-mapped file and processed when their collection is drained.  A
+ * sequence that receives nothing for idleTimeoutMillis (checked every second),
+ * that would push the spill file past maxSpilledBytes, one of whose events
+ * can't be processed, or that is sent a position maxWindow or more past the
+ * first it hasn't released (or past its expected size, once known), is
+ * evicted; anything arriving for it afterwards is dropped.  The
+ * {@link EvictionListener}, if there is one, is told of each eviction once the
+ * buffer's lock has been released.
+ * </p>
+ */
+public class SequenceReassemblyBuffer<TEVENT> {
+    protected static final Logger log = LoggerFactory.getLogger(SequenceReassemblyBuffer.class);
+
+    public static long DEFAULT_MAX_BUFFERED_BYTES = 64L * 1024 * 1024;
+    public static long DEFAULT_MAX_SEQUENCE_BYTES = 16L * 1024 * 1024;
+    public static long DEFAULT_MAX_SPILLED_BYTES = 1024L * 1024 * 1024;
+    public static long DEFAULT_IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+    public static int DEFAULT_MAX_WINDOW = 64 * 1024;
+
+    /**
+     * What each slot of a sequence's array is counted as: a reference, at most 8 bytes.
+     */
+    private static final int SLOT_BYTES = 8;
+
+    /**
+     * How many evicted sequence ids are remembered, so their stragglers can be dropped.
+     */
+    private static final int EVICTED_SEQUENCES_REMEMBERED = 1024;
+
+    private static final long IDLE_CHECK_MILLIS = 1000;
+
+    /**
+     * Evicts idle sequences, so they go even when nothing else arrives; shared by every buffer in the process.
+     */
+    private static final ScheduledExecutorService IDLE_SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "amp-stream-reassembly-eviction");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final IInboundProcessorCallback processorCallback;
+    private final Map<String, Sequence> sequences = new HashMap<String, Sequence>();
+    private final Map<String, Boolean> evictedSequences = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > EVICTED_SEQUENCES_REMEMBERED;
+        }
+    };
+    private final MappedSpillFile spillFile = new MappedSpillFile();
+
+    private long maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+    private long maxSequenceBytes = DEFAULT_MAX_SEQUENCE_BYTES;
+    private long maxSpilledBytes = DEFAULT_MAX_SPILLED_BYTES;
+    private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private int maxWindow = DEFAULT_MAX_WINDOW;
+
+    private long bufferedBytes;
+    private long spilledBytes;
+    private long evictedSequenceCount;
+    private final Map<String, Exception> pendingEvictions = new LinkedHashMap<String, Exception>();
+    private EvictionListener evictionListener;
+    private long lastIdleCheck = System.currentTimeMillis();
+    private final IdleCheck idleCheck;
+
+    public SequenceReassemblyBuffer(IInboundProcessorCallback processorCallback) {
+        this.processorCallback = processorCallback;
+        this.spillFile.setMaxBytes(maxSpilledBytes);
+        this.idleCheck = new IdleCheck(this);
+    }
+
+    public void setMaxBufferedBytes(long maxBufferedBytes) {
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    public void setMaxSequenceBytes(long maxSequenceBytes) {
+        this.maxSequenceBytes = maxSequenceBytes;
+    }
+
+    public void setMaxSpilledBytes(long maxSpilledBytes) {
+        this.maxSpilledBytes = maxSpilledBytes;
+        this.spillFile.setMaxBytes(maxSpilledBytes);
+    }
+
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * @param maxWindow how many positions past the first it hasn't released a sequence may be sent
+     */
+    public void setMaxWindow(int maxWindow) {
+        this.maxWindow = maxWindow;
+    }
+
+    /**
+     * @param evictionListener told of each sequence evicted; null for none
+     */
+    public void setEvictionListener(EvictionListener evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Record how many events the sequence is expected to have.
+     */
+    public synchronized void setExpectedSize(String sequenceId, int size) {
+        Sequence sequence = getOrOpen(sequenceId);
+
+        if (null != sequence) {
+            sequence.expectedSize = size;
+        }
+    }
+
+    /**
+     * Process and buffer an event, or spill its envelope if there isn't room in memory.
+     * @return the sequence's progress, or null if the event was dropped
+     */
+    public Progress add(Envelope env) throws Exception {
+        try {
+            return addEvent(env);
+        } finally {
+            notifyEvictions();
+        }
+    }
+
+    private Progress addEvent(Envelope env) throws Exception {
+        String sequenceId = env.getHeader(SEQUENCE_ID);
+        int position = Integer.parseInt(env.getHeader(POSITION));
+        long size = sizeOf(env);
+
+        synchronized (this) {
+            // between the scheduled checks, for idle timeouts shorter than their interval
+            if (System.currentTimeMillis() - lastIdleCheck >= Math.min(idleTimeoutMillis, IDLE_CHECK_MILLIS)) {
+                evictIdle();
+            }
+
+            Sequence sequence = getOrOpen(sequenceId);
+            if (null == sequence || !admits(sequenceId, sequence, position)) {
+                return null;
+            }
+
+            // the array is grown now, so the event is weighed against what holding it will really cost
+            long growth = sequence.grow(position);
+            bufferedBytes += growth;
+
+            if (bufferedBytes + size > maxBufferedBytes || sequence.memoryBytes() + size > maxSequenceBytes) {
+                return spill(sequenceId, sequence, position, env) ? sequence.progress() : null;
+            }
+        }
+
+        TEVENT event;
+        try {
+            @SuppressWarnings("unchecked")
+            TEVENT processed = (TEVENT) processorCallback.ProcessInbound(env);
+            event = processed;
+        } catch (Exception ex) {
+            log.error("Evicting sequence " + sequenceId + "; unable to process its event at position " + position, ex);
+            evictFailed(sequenceId, ex);
+            throw ex;
+        }
+
+        if (null == event) {
+            return null;
+        }
+
+        synchronized (this) {
+            // evicted while the event was being processed
+            Sequence sequence = sequences.get(sequenceId);
+            if (null == sequence) {
+                return null;
+            }
+
+            if (sequence.put(position, new BufferedEvent(new StreamingEventItem<TEVENT>(event, env.getHeaders()), size))) {
+                bufferedBytes += size;
+            }
+            return sequence.progress();
+        }
+    }
+
+    /**
+     * Remove a finished sequence.
+     * @return its events (those not already released) in position order, or null if nothing is held for it
+     */
+    public List<StreamingEventItem<TEVENT>> drain(String sequenceId) throws Exception {
+        List<Object> slots;
+
+        synchronized (this) {
+            Sequence sequence = sequences.remove(sequenceId);
+            if (null == sequence) {
+                return null;
+            }
+
+            slots = take(sequence, sequence.slots.length);
+            bufferedBytes -= sequence.slotBytes();
+        }
+
+        return toEvents(sequenceId, slots);
+    }
+
+    /**
+     * Release the events that follow, without a gap, the last ones released from the sequence.
+     * @return those events in position order; empty if the next one hasn't arrived
+     */
+    public List<StreamingEventItem<TEVENT>> drainContiguous(String sequenceId) throws Exception {
+        List<Object> slots;
+
+        synchronized (this) {
+            Sequence sequence = sequences.get(sequenceId);
+            if (null == sequence) {
+                return new ArrayList<StreamingEventItem<TEVENT>>(0);
+            }
+
+            int count = 0;
+            while (count < sequence.slots.length && null != sequence.slots[count]) {
+                count++;
+            }
+
+            slots = take(sequence, count);
+        }
+
+        return toEvents(sequenceId, slots);
+    }
+
+    /**
+     * Take the sequence's first count slots, reading back any that were spilled.
+     */
+    private List<Object> take(Sequence sequence, int count) throws IOException {
+        List<Object> slots = new ArrayList<Object>(count);
+
+        for (int index = 0; index < count; index++) {
+            Object slot = sequence.slots[index];
+
+            if (slot instanceof SpilledEnvelope) {
+                SpilledEnvelope spilled = (SpilledEnvelope) slot;
+                slots.add(spillFile.read(spilled.offset, spilled.length));
+                spilledBytes -= spilled.length;
+                spillFile.release(spilled.offset, spilled.length);
+            } else if (slot instanceof BufferedEvent) {
+                BufferedEvent buffered = (BufferedEvent) slot;
+                slots.add(buffered.eventItem);
+                bufferedBytes -= buffered.size;
+                sequence.bufferedBytes -= buffered.size;
+            }
+        }
+
+        sequence.shift(count);
+
+        return slots;
+    }
+
+    /**
+     * Process the spilled envelopes among the slots.  If one can't be processed the
+     * collection can't be delivered whole, so the sequence is evicted and this throws.
+     */
+    private List<StreamingEventItem<TEVENT>> toEvents(String sequenceId, List<Object> slots) throws Exception {
+        List<StreamingEventItem<TEVENT>> events = new ArrayList<StreamingEventItem<TEVENT>>(slots.size());
+
+        for (Object slot : slots) {
+            if (slot instanceof byte[]) {
+                Envelope env = decode((byte[]) slot);
+
+                try {
+                    @SuppressWarnings("unchecked")
+                    TEVENT event = (TEVENT) processorCallback.ProcessInbound(env);
+                    if (null != event) {
+                        events.add(new StreamingEventItem<TEVENT>(event, env.getHeaders()));
+                    }
+                } catch (Exception ex) {
+                    log.error("Evicting sequence " + sequenceId + "; unable to process its spilled event at position "
+                            + env.getHeader(POSITION), ex);
+                    evictFailed(sequenceId, ex);
+                    notifyEvictions();
+                    throw new MessageException("Unable to process spilled event at position "
+                            + env.getHeader(POSITION) + " of sequence " + sequenceId, ex);
+                }
+            } else {
+                @SuppressWarnings("unchecked")
+                StreamingEventItem<TEVENT> eventItem = (StreamingEventItem<TEVENT>) slot;
+                events.add(eventItem);
+            }
+        }
+
+        return events;
+    }
+
+    /**
+     * Evict sequences that have received nothing for the idle timeout.
+     */
+    public void evictIdleSequences() {
+        evictIdle();
+        notifyEvictions();
+    }
+
+    private synchronized void evictIdle() {
+        long now = System.currentTimeMillis();
+        lastIdleCheck = now;
+
+        Iterator<Map.Entry<String, Sequence>> entries = sequences.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Sequence> entry = entries.next();
+
+            if (now - entry.getValue().lastReceived >= idleTimeoutMillis) {
+                String reason = "Evicting sequence " + entry.getKey() + " after " + idleTimeoutMillis
+                        + "ms without receiving anything; it has " + entry.getValue().received + " event(s).";
+                log.warn(reason);
+                entries.remove();
+                evict(entry.getKey(), entry.getValue(), new MessageException(reason));
+            }
+        }
+    }
+
+    public synchronized int getOpenSequenceCount() {
+        return sequences.size();
+    }
+
+    /**
+     * @return payload bytes of the events held in memory, plus the arrays they're slotted into
+     */
+    public synchronized long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    /**
+     * @return bytes of envelopes spilled to disk
+     */
+    public synchronized long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    public synchronized long getEvictedSequenceCount() {
+        return evictedSequenceCount;
+    }
+
+    public synchronized void dispose() {
+        idleCheck.cancel();
+        sequences.clear();
+        bufferedBytes = 0;
+        spilledBytes = 0;
+        spillFile.close();
+    }
+
+    private Sequence getOrOpen(String sequenceId) {
+        if (evictedSequences.containsKey(sequenceId)) {
+            log.debug("Dropping event for evicted sequence " + sequenceId);
+            return null;
+        }
+
+        Sequence sequence = sequences.get(sequenceId);
+        if (null == sequence) {
+            sequence = new Sequence();
+            sequences.put(sequenceId, sequence);
+            bufferedBytes += sequence.slotBytes();
+        }
+        sequence.lastReceived = System.currentTimeMillis();
+
+        return sequence;
+    }
+
+    /**
+     * Evict the sequence if the position is further ahead than it could be.
+     * @return whether the sequence may hold the position
+     */
+    private boolean admits(String sequenceId, Sequence sequence, int position) {
+        String reason;
+
+        if (sequence.expectedSize > 0 && position >= sequence.expectedSize) {
+            reason = "Evicting sequence " + sequenceId + "; it was sent position " + position
+                    + " but is expected to have " + sequence.expectedSize + " event(s).";
+        } else if ((long) position - sequence.base >= maxWindow) {
+            reason = "Evicting sequence " + sequenceId + "; it was sent position " + position + ", "
+                    + maxWindow + " or more past the first it hasn't released (" + sequence.base + ").";
+        } else {
+            return true;
+        }
+
+        log.error(reason);
+        sequences.remove(sequenceId);
+        evict(sequenceId, sequence, new MessageException(reason));
+        return false;
+    }
+
+    private boolean spill(String sequenceId, Sequence sequence, int position, Envelope env) throws IOException {
+        byte[] record = encode(env);
+
+        long offset = (spilledBytes + record.length > maxSpilledBytes) ? -1 : spillFile.write(record);
+
+        if (offset < 0) {
+            String reason = "Evicting sequence " + sequenceId + " with " + sequence.received
+                    + " event(s); spilling it would exceed " + maxSpilledBytes + " bytes on disk.";
+            log.error(reason);
+            sequences.remove(sequenceId);
+            evict(sequenceId, sequence, new MessageException(reason));
+            return false;
+        }
+
+        if (sequence.put(position, new SpilledEnvelope(offset, record.length))) {
+            spilledBytes += record.length;
+        } else {
+            spillFile.release(offset, record.length);
+        }
+
+        return true;
+    }
+
+    private void evict(String sequenceId, Sequence sequence, Exception reason) {
+        evictedSequences.put(sequenceId, Boolean.TRUE);
+        evictedSequenceCount++;
+        pendingEvictions.put(sequenceId, reason);
+        release(sequence);
+    }
+
+    /**
+     * Evict a sequence whose events couldn't all be processed; it may already have been drained.
+     */
+    private synchronized void evictFailed(String sequenceId, Exception reason) {
+        Sequence sequence = sequences.remove(sequenceId);
+
+        if (null != sequence) {
+            evict(sequenceId, sequence, reason);
+        } else if (!evictedSequences.containsKey(sequenceId)) {
+            evictedSequences.put(sequenceId, Boolean.TRUE);
+            evictedSequenceCount++;
+            pendingEvictions.put(sequenceId, reason);
+        }
+    }
+
+    /**
+     * Tell the listener of the evictions since it was last told; called without the buffer's lock.
+     */
+    private void notifyEvictions() {
+        Map<String, Exception> evictions;
+
+        synchronized (this) {
+            if (pendingEvictions.isEmpty()) {
+                return;
+            }
+            evictions = new LinkedHashMap<String, Exception>(pendingEvictions);
+            pendingEvictions.clear();
+        }
+
+        if (null == evictionListener) {
+            return;
+        }
+
+        for (Map.Entry<String, Exception> eviction : evictions.entrySet()) {
+            try {
+                evictionListener.sequenceEvicted(eviction.getKey(), eviction.getValue());
+            } catch (Exception ex) {
+                log.error("Eviction listener failed for sequence " + eviction.getKey(), ex);
+            }
+        }
+    }
+
+    private void release(Sequence sequence) {
+        bufferedBytes -= sequence.memoryBytes();
+
+        for (Object slot : sequence.slots) {
+            if (slot instanceof SpilledEnvelope) {
+                SpilledEnvelope spilled = (SpilledEnvelope) slot;
+                spilledBytes -= spilled.length;
+                spillFile.release(spilled.offset, spilled.length);
+            }
+        }
+    }
+
+    private static long sizeOf(Envelope env) {
+        byte[] payload = env.getPayload();
+        return (null == payload) ? 0 : payload.length;
+    }
+
+    private static byte[] encode(Envelope env) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        Map<String, String> headers = env.getHeaders();
+        out.writeInt(headers.size());
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            writeString(out, header.getKey());
+            writeString(out, header.getValue());
+        }
+
+        byte[] payload = env.getPayload();
+        out.writeInt((null == payload) ? -1 : payload.length);
+        if (null != payload) {
+            out.write(payload);
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Envelope decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        Envelope env = new Envelope();
+
+        int headerCount = in.readInt();
+        Map<String, String> headers = new HashMap<String, String>(headerCount * 2);
+        for (int i = 0; i < headerCount; i++) {
+            headers.put(readString(in), readString(in));
+        }
+        env.setHeaders(headers);
+
+        int payloadLength = in.readInt();
+        if (payloadLength >= 0) {
+            byte[] payload = new byte[payloadLength];
+            in.readFully(payload);
+            env.setPayload(payload);
+        }
+
+        return env;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (null == value) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Told when a sequence is evicted, so whoever is waiting on it can give up.
+     */
+    public interface EvictionListener {
+
+        /**
+         * @param sequenceId the evicted sequence
+         * @param reason why it was evicted
+         */
+        void sequenceEvicted(String sequenceId, Exception reason);
+    }
+
+    /**
+     * How much of a sequence has been received.
+     */
+    public static class Progress {
+        private final int received;
+        private final int expectedSize;
+
+        public Progress(int received, int expectedSize) {
+            this.received = received;
+            this.expectedSize = expectedSize;
+        }
+
+        public int getReceived() {
+            return received;
+        }
+
+        /**
+         * @return the number of events expected, or 0 if not known
+         */
+        public int getExpectedSize() {
+            return expectedSize;
+        }
+    }
+
+    /**
+     * Evicts a buffer's idle sequences every second, until the buffer is
+     * disposed.  It only holds the buffer weakly, so a buffer that's dropped
+     * without being disposed can still be collected (its check then stops).
+     */
+    private static class IdleCheck implements Runnable {
+        private final WeakReference<SequenceReassemblyBuffer<?>> buffer;
+        private final ScheduledFuture<?> schedule;
+
+        IdleCheck(SequenceReassemblyBuffer<?> buffer) {
+            this.buffer = new WeakReference<SequenceReassemblyBuffer<?>>(buffer);
+            this.schedule = IDLE_SCHEDULER.scheduleWithFixedDelay(
+                    this, IDLE_CHECK_MILLIS, IDLE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            SequenceReassemblyBuffer<?> target = buffer.get();
+
+            if (null == target) {
+                cancel();
+                return;
+            }
+
+            try {
+                target.evictIdleSequences();
+            } catch (Exception ex) {
+                log.error("Unable to evict idle sequences.", ex);
+            }
+        }
+
+        void cancel() {
+            schedule.cancel(false);
+        }
+    }
+
+    /**
+     * A processed event held in memory, with the payload size it's counted as.
+     */
+    private static class BufferedEvent {
+        final Object eventItem;
+        final long size;
+
+        BufferedEvent(Object eventItem, long size) {
+            this.eventItem = eventItem;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Where a spilled envelope is in the spill file.
+     */
+    private static class SpilledEnvelope {
+        final long offset;
+        final int length;
+
+        SpilledEnvelope(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The events of one sequence, each either a BufferedEvent or a SpilledEnvelope,
+     * slotted by position relative to the first position not yet released.
+     */
+    private static class Sequence {
+        Object[] slots = new Object[16];
+        int base;
+        int received;
+        int expectedSize;
+        long bufferedBytes;
+        long lastReceived;
+
+        /**
+         * Make room for a position; the buffer has already checked it is within the window.
+         * @return how many bytes the array grew by
+         */
+        long grow(int position) {
+            int index = position - base;
+
+            if (index < slots.length) {
+                return 0;
+            }
+
+            long before = slotBytes();
+            slots = Arrays.copyOf(slots, Math.max(index + 1, slots.length * 2));
+            return slotBytes() - before;
+        }
+
+        /**
+         * @return false if the position was already filled or released (a redelivery), in which case nothing changes
+         */
+        boolean put(int position, Object slot) {
+            int index = position - base;
+
+            if (index < 0) {
+                return false;
+            }
+
+            grow(position);
+
+            if (null != slots[index]) {
+                return false;
+            }
+
+            slots[index] = slot;
+            received++;
+            if (slot instanceof BufferedEvent) {
+                bufferedBytes += ((BufferedEvent) slot).size;
+            }
+            return true;
+        }
+
+        /**
+         * Drop the first count slots, moving the rest down.
+         */
+        void shift(int count) {
+            if (count == 0) {
+                return;
+            }
+
+            System.arraycopy(slots, count, slots, 0, slots.length - count);
+            Arrays.fill(slots, slots.length - count, slots.length, null);
+            base += count;
+        }
+
+        long slotBytes() {
+            return (long) slots.length * SLOT_BYTES;
+        }
+
+        /**
+         * @return the bytes held in memory for the sequence: its events' payloads and its array
+         */
+        long memoryBytes() {
+            return bufferedBytes + slotBytes();
+        }
+
+        Progress progress() {
+            return new Progress(received, expectedSize);
+        }
+    }
+}
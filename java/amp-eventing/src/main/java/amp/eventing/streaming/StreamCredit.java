@@ -0,0 +1,47 @@
+package amp.eventing.streaming;
+
+/**
+ * Published by a stream's reader to let the publisher send more of the stream.
+ * <p>
+ * The limit is absolute: the publisher may send every position below it.  So a
+ * grant that is lost or repeated does no harm; the next one supersedes it.
+ * </p>
+ */
+public class StreamCredit {
+    private String sequenceId;
+    private String readerId;
+    private int limit;
+
+    public StreamCredit() {
+    }
+
+    public StreamCredit(String sequenceId, String readerId, int limit) {
+        setSequenceId(sequenceId);
+        setReaderId(readerId);
+        setLimit(limit);
+    }
+
+    public String getSequenceId() {
+        return sequenceId;
+    }
+
+    public void setSequenceId(String sequenceId) {
+        this.sequenceId = sequenceId;
+    }
+
+    public String getReaderId() {
+        return readerId;
+    }
+
+    public void setReaderId(String readerId) {
+        this.readerId = readerId;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+}
@@ -0,0 +1,120 @@
+package amp.eventing.streaming;
+
+import cmf.bus.Envelope;
+import cmf.eventing.IEventProducer;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static cmf.eventing.patterns.streaming.StreamingEnvelopeConstants.*;
+
+/**
+ * Grants credit back to the publishers of flow-controlled streams as a reader handles their events.
+ * <p>
+ * The reader's window is its prefetch, if it has one (and it's smaller than the
+ * publisher's), or else the publisher's window.  Each time the reader has handled
+ * half a window it grants credit for a window beyond what it has handled, so the
+ * publisher keeps about a window of events in flight.
+ * </p>
+ * <p>
+ * Progress is the highest position handled in each sequence, so a redelivered
+ * or duplicate event (at or below that position) earns no credit.
+ * </p>
+ */
+public class StreamCreditGranter {
+    protected static final Logger log = LoggerFactory.getLogger(StreamCreditGranter.class);
+
+    public static long DEFAULT_IDLE_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    private final IEventProducer producer;
+    private final int prefetch;
+    private final String readerId = UUID.randomUUID().toString();
+    private final Cache<String, GrantState> sequences = CacheBuilder.newBuilder()
+            .expireAfterAccess(DEFAULT_IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+            .build();
+
+    /**
+     * @param producer sends the grants
+     * @param prefetch the reader's prefetch; 0 to follow the publisher's window
+     */
+    public StreamCreditGranter(IEventProducer producer, int prefetch) {
+        this.producer = producer;
+        this.prefetch = prefetch;
+    }
+
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Note that the reader is done with an event, granting credit if it's due
+     * and the event's position hasn't been handled before.
+     */
+    public void onEventHandled(Envelope env) {
+        String publisherWindow = env.getHeader(StreamingEnvelopeHelper.CREDIT_WINDOW);
+        String positionHeader = env.getHeader(POSITION);
+        if (null == publisherWindow || null == positionHeader) {
+            return;
+        }
+
+        int position = Integer.parseInt(positionHeader);
+
+        final int window = (prefetch > 0)
+                ? Math.min(prefetch, Integer.parseInt(publisherWindow))
+                : Integer.parseInt(publisherWindow);
+        String sequenceId = env.getHeader(SEQUENCE_ID);
+
+        GrantState state;
+        try {
+            state = sequences.get(sequenceId, new Callable<GrantState>() {
+                @Override
+                public GrantState call() {
+                    return new GrantState();
+                }
+            });
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+
+        StreamCredit credit = null;
+        synchronized (state) {
+            if (position < state.handled) {
+                log.debug("Position " + position + " of sequence " + sequenceId + " was already handled; granting no credit for it.");
+                return;
+            }
+            state.handled = position + 1;
+
+            if (state.handled - state.grantedAt >= Math.max(1, window / 2)) {
+                state.grantedAt = state.handled;
+                credit = new StreamCredit(sequenceId, readerId, state.handled + window);
+            }
+        }
+
+        if (null != credit) {
+            try {
+                producer.publish(credit);
+            } catch (Exception ex) {
+                log.warn("Unable to grant credit to the publisher of sequence " + sequenceId
+                        + "; a later grant will cover it.", ex);
+            }
+        }
+    }
+
+    public void onEndOfStream(String sequenceId) {
+        sequences.invalidate(sequenceId);
+    }
+
+    private static class GrantState {
+        /**
+         * One past the highest position handled.
+         */
+        int handled;
+        int grantedAt;
+    }
+}
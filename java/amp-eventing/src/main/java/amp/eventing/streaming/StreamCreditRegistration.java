@@ -0,0 +1,62 @@
+package amp.eventing.streaming;
+
+import amp.messaging.EnvelopeHelper;
+import amp.messaging.IInboundProcessorCallback;
+import cmf.bus.Envelope;
+import cmf.bus.EnvelopeHeaderConstants;
+import cmf.bus.IEnvelopeFilterPredicate;
+import cmf.bus.IRegistration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Receives the {@link StreamCredit} grants readers send, on behalf of the streams this process publishes.
+ */
+public class StreamCreditRegistration implements IRegistration {
+    protected static final Logger log = LoggerFactory.getLogger(StreamCreditRegistration.class);
+
+    protected StreamCredits streamCredits;
+    protected IInboundProcessorCallback processorCallback;
+    protected Map<String, String> registrationInfo;
+
+    public StreamCreditRegistration(StreamCredits streamCredits, IInboundProcessorCallback processorCallback) {
+        this.streamCredits = streamCredits;
+        this.processorCallback = processorCallback;
+
+        registrationInfo = new HashMap<String, String>();
+        registrationInfo.put(EnvelopeHeaderConstants.MESSAGE_TOPIC, StreamCredit.class.getCanonicalName());
+    }
+
+    @Override
+    public IEnvelopeFilterPredicate getFilterPredicate() {
+        return null;
+    }
+
+    @Override
+    public Map<String, String> getRegistrationInfo() {
+        return registrationInfo;
+    }
+
+    @Override
+    public Object handle(Envelope env) throws Exception {
+        try {
+            StreamCredit credit = (StreamCredit) this.processorCallback.ProcessInbound(env);
+            if (null != credit) {
+                streamCredits.grant(credit);
+            }
+        } catch (Exception ex) {
+            return handleFailed(env, ex);
+        }
+        return null;
+    }
+
+    @Override
+    public Object handleFailed(Envelope env, Exception ex) throws Exception {
+        EnvelopeHelper envelope = new EnvelopeHelper(env);
+        log.error("Unable to process stream credit with message topic: " + envelope.getMessageTopic(), ex);
+        return null;
+    }
+}
@@ -0,0 +1,104 @@
+package amp.eventing.streaming;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Credit granted by readers to the flow-controlled streams a process publishes.
+ * <p>
+ * Each stream may publish its first window of events before hearing from any
+ * reader.  After that, it may publish up to the lowest limit granted by the
+ * readers it has heard from, so it goes no faster than the slowest of them.
+ * </p>
+ */
+public class StreamCredits {
+
+    private final Map<String, SequenceCredit> sequences = new HashMap<String, SequenceCredit>();
+
+    public synchronized void open(String sequenceId, int window) {
+        if (!sequences.containsKey(sequenceId)) {
+            sequences.put(sequenceId, new SequenceCredit(window));
+        }
+    }
+
+    /**
+     * Forget a stream, waking anything waiting for its credit.
+     */
+    public synchronized void close(String sequenceId) {
+        if (null != sequences.remove(sequenceId)) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Record a reader's grant; grants for streams not published here are ignored.
+     */
+    public synchronized void grant(StreamCredit credit) {
+        SequenceCredit sequence = sequences.get(credit.getSequenceId());
+
+        if (null != sequence) {
+            Integer granted = sequence.readerLimits.get(credit.getReaderId());
+
+            if (null == granted || credit.getLimit() > granted) {
+                sequence.readerLimits.put(credit.getReaderId(), credit.getLimit());
+                notifyAll();
+            }
+        }
+    }
+
+    public synchronized boolean hasCredit(String sequenceId, int position) {
+        SequenceCredit sequence = sequences.get(sequenceId);
+
+        return null == sequence || position < sequence.limit();
+    }
+
+    /**
+     * Wait until the stream may publish the position.
+     * @return false if no reader granted enough credit in time, or the stream was closed (before or while waiting)
+     */
+    public synchronized boolean awaitCredit(String sequenceId, int position, long timeoutMillis) throws InterruptedException {
+        SequenceCredit sequence = sequences.get(sequenceId);
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        if (null == sequence) {
+            return false;
+        }
+
+        while (position >= sequence.limit()) {
+            if (sequence != sequences.get(sequenceId)) {
+                return false;
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+
+            if (remaining <= 0) {
+                return false;
+            }
+
+            wait(remaining);
+        }
+
+        return true;
+    }
+
+    private static class SequenceCredit {
+        final int window;
+        final Map<String, Integer> readerLimits = new HashMap<String, Integer>();
+
+        SequenceCredit(int window) {
+            this.window = window;
+        }
+
+        int limit() {
+            if (readerLimits.isEmpty()) {
+                return window;
+            }
+
+            int limit = Integer.MAX_VALUE;
+            for (int readerLimit : readerLimits.values()) {
+                limit = Math.min(limit, readerLimit);
+            }
+            return limit;
+        }
+    }
+}
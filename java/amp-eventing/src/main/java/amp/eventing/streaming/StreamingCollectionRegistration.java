@@ -12,14 +12,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-
-import static cmf.eventing.patterns.streaming.StreamingEnvelopeConstants.*;
-import static java.util.Arrays.sort;
 
 /**
  * Specialized {@link cmf.bus.IRegistration} that handles the event by aggregating events from a common sequence
  * and publishing them to a {@link java.util.Collection}.
+ * Events are held in a {@link SequenceReassemblyBuffer} until their sequence ends.
  * User: jholmberg
  * Date: 6/5/13
  */
@@ -29,8 +26,8 @@ public class StreamingCollectionRegistration<TEVENT> implements IRegistration {
     protected IEnvelopeFilterPredicate filterPredicate;
     protected IInboundProcessorCallback processorCallback;
     protected Map<String, String> registrationInfo;
-    protected ConcurrentHashMap<String, Map<Integer,StreamingEventItem<TEVENT>>> collectedEvents;
-    protected ConcurrentHashMap<String, Integer> collectionSizes;
+    protected SequenceReassemblyBuffer<TEVENT> reassemblyBuffer;
+    protected StreamCreditGranter creditGranter;
 
     @Override
     public IEnvelopeFilterPredicate getFilterPredicate() {
@@ -42,14 +39,27 @@ public class StreamingCollectionRegistration<TEVENT> implements IRegistration {
         return registrationInfo;
     }
 
+    /**
+     * @return the buffer holding in-flight sequences, for tuning and its open sequence and byte counts
+     */
+    public SequenceReassemblyBuffer<TEVENT> getReassemblyBuffer() {
+        return reassemblyBuffer;
+    }
+
+    /**
+     * @param creditGranter grants credit to flow-controlled streams as events are collected; null to grant none
+     */
+    public void setCreditGranter(StreamCreditGranter creditGranter) {
+        this.creditGranter = creditGranter;
+    }
+
     public StreamingCollectionRegistration(IStreamingCollectionHandler<TEVENT> handler, IInboundProcessorCallback processorCallback) {
         this.eventHandler = handler;
         this.processorCallback = processorCallback;
 
         registrationInfo = new HashMap<String, String>();
         registrationInfo.put(EnvelopeHeaderConstants.MESSAGE_TOPIC, eventHandler.getEventType().getCanonicalName());
-        this.collectedEvents = new ConcurrentHashMap<String, Map<Integer, StreamingEventItem<TEVENT>>>();
-        this.collectionSizes = new ConcurrentHashMap<String, Integer>();
+        this.reassemblyBuffer = new SequenceReassemblyBuffer<TEVENT>(processorCallback);
     }
 
     @Override
@@ -70,24 +80,22 @@ public class StreamingCollectionRegistration<TEVENT> implements IRegistration {
         return result;
     }
 
-    private void queueEvent(Envelope env) throws Exception {
+    protected void queueEvent(Envelope env) throws Exception {
         if (null != env) {
-            String sequenceId = env.getHeader(SEQUENCE_ID);
-            TEVENT event = (TEVENT) this.processorCallback.ProcessInbound(env);
-            if (null != event) {
-                if (!collectedEvents.containsKey(sequenceId)) {
-                    collectedEvents.put(sequenceId, new HashMap<Integer,StreamingEventItem<TEVENT>>());
+            try {
+                SequenceReassemblyBuffer.Progress progress = reassemblyBuffer.add(env);
+                if (null != progress) {
+                    updatePercentProcessed(progress.getExpectedSize(), progress.getReceived());
+                }
+            } finally {
+                if (null != creditGranter) {
+                    creditGranter.onEventHandled(env);
                 }
-                StreamingEventItem<TEVENT> eventItem = new StreamingEventItem(event, env.getHeaders());
-                Map<Integer, StreamingEventItem<TEVENT>> eventMap = collectedEvents.get(sequenceId);
-                eventMap.put(eventItem.getPosition(), eventItem);
-                updatePercentProcessed(sequenceId, eventMap.size());
             }
         }
     }
 
-    private void updatePercentProcessed(String sequenceId, int numProcessed) {
-        int collectionSize = collectionSizes.get(sequenceId);
+    private void updatePercentProcessed(int collectionSize, int numProcessed) {
         double percentProcessed = 0.00;
 
         if (collectionSize > 0) {
@@ -97,20 +105,38 @@ public class StreamingCollectionRegistration<TEVENT> implements IRegistration {
         eventHandler.onPercentCollectionReceived(percentProcessed);
     }
 
-    private void closeStream(Envelope env) throws Exception {
+    protected void closeStream(Envelope env) throws Exception {
         EndOfStream eos = (EndOfStream) this.processorCallback.ProcessInbound(env);
         String sequenceId = eos.getSequenceId();
-        Map<Integer, StreamingEventItem<TEVENT>> events = collectedEvents.get(sequenceId);
-        Collection<StreamingEventItem<TEVENT>> sortedEvents = sortEventsByPosition(events);
+        Collection<StreamingEventItem<TEVENT>> sortedEvents;
+
+        try {
+            sortedEvents = reassemblyBuffer.drain(sequenceId);
+        } finally {
+            if (null != creditGranter) {
+                creditGranter.onEndOfStream(sequenceId);
+            }
+        }
 
+        if (null == sortedEvents) {
+            log.warn("Received end of stream for sequence " + sequenceId + " but no events are held for it; it may have been evicted.");
+            return;
+        }
+
+        completeCollection(sequenceId, sortedEvents);
+    }
+
+    /**
+     * Hand on the events of a sequence that has ended.
+     * @param sortedEvents its events (those not already handed on) in position order
+     */
+    protected void completeCollection(String sequenceId, Collection<StreamingEventItem<TEVENT>> sortedEvents) {
         this.eventHandler.handleCollection(sortedEvents);
-        collectedEvents.remove(sequenceId);
-        collectionSizes.remove(sequenceId);
     }
 
     private void storeExpectedCollectionSize(Envelope env) throws Exception {
         CollectionSizeNotifier collectionSizeNotifier = (CollectionSizeNotifier)this.processorCallback.ProcessInbound(env);
-        collectionSizes.put(collectionSizeNotifier.getSequenceId(), collectionSizeNotifier.getSize());
+        reassemblyBuffer.setExpectedSize(collectionSizeNotifier.getSequenceId(), collectionSizeNotifier.getSize());
     }
 
     private boolean isEndOfStream(Envelope env) {
@@ -131,21 +157,6 @@ public class StreamingCollectionRegistration<TEVENT> implements IRegistration {
         return false;
     }
 
-    private Collection<StreamingEventItem<TEVENT>> sortEventsByPosition(Map<Integer, StreamingEventItem<TEVENT>> events) {
-        Set<Integer> keys = events.keySet();
-        List<Integer> positions = new ArrayList<Integer>();
-        for (int key : keys) {
-            positions.add(key);
-        }
-        Collections.sort(positions);
-        Collection<StreamingEventItem<TEVENT>> sortedEvents = new ArrayList<StreamingEventItem<TEVENT>>();
-        for (int position : positions) {
-            sortedEvents.add(events.get(position));
-        }
-
-        return sortedEvents;
-    }
-
     @Override
     public Object handleFailed(Envelope env, Exception ex) throws Exception {
         try {
@@ -6,6 +6,12 @@ import static cmf.eventing.patterns.streaming.StreamingEnvelopeConstants.*;
 
 public class StreamingEnvelopeHelper {
 
+    /**
+     * Header on the events of a flow-controlled stream, giving how many events
+     * its publisher sends before waiting for a reader's {@link StreamCredit}.
+     */
+    public static final String CREDIT_WINDOW = "amp.eventing.streaming.credit_window";
+
     public static Envelope buildStreamingEnvelope(String sequenceId, int position) {
         Envelope envelope = new Envelope();
         envelope.setHeader(SEQUENCE_ID, sequenceId);
@@ -26,6 +26,7 @@ public class StreamingReaderRegistration<TEVENT> implements IRegistration {
     protected IEnvelopeFilterPredicate filterPredicate;
     protected IInboundProcessorCallback processorCallback;
     protected  Map<String, String> registrationInfo;
+    protected StreamCreditGranter creditGranter;
 
     @Override
     public IEnvelopeFilterPredicate getFilterPredicate() {
@@ -37,6 +38,13 @@ public class StreamingReaderRegistration<TEVENT> implements IRegistration {
         return registrationInfo;
     }
 
+    /**
+     * @param creditGranter grants credit to flow-controlled streams as events are read; null to grant none
+     */
+    public void setCreditGranter(StreamCreditGranter creditGranter) {
+        this.creditGranter = creditGranter;
+    }
+
     public StreamingReaderRegistration(IStreamingReaderHandler<TEVENT> handler, IInboundProcessorCallback processorCallback) {
         this.eventHandler = handler;
         this.processorCallback = processorCallback;
@@ -51,7 +59,11 @@ public class StreamingReaderRegistration<TEVENT> implements IRegistration {
 
         try {
             if (isEndOfStream(env)) {
-                this.eventHandler.dispose();
+                try {
+                    this.eventHandler.dispose();
+                } finally {
+                    endStream(env);
+                }
             } else {
                 TEVENT event = (TEVENT) this.processorCallback.ProcessInbound(env);
                 if (null != event) {
@@ -61,10 +73,28 @@ public class StreamingReaderRegistration<TEVENT> implements IRegistration {
             }
         } catch (Exception ex) {
           result = handleFailed(env, ex);
+        } finally {
+            if (null != creditGranter) {
+                creditGranter.onEventHandled(env);
+            }
         }
         return result;
     }
 
+    /**
+     * Let the credit granter forget the sequence, now that it has ended.
+     */
+    private void endStream(Envelope env) throws Exception {
+        if (null == creditGranter) {
+            return;
+        }
+
+        EndOfStream eos = (EndOfStream) this.processorCallback.ProcessInbound(env);
+        if (null != eos) {
+            creditGranter.onEndOfStream(eos.getSequenceId());
+        }
+    }
+
     private boolean isEndOfStream(Envelope env) {
         EnvelopeHelper envelope = new EnvelopeHelper(env);
         String messageType = envelope.getMessageType();
@@ -0,0 +1,275 @@
+package amp.eventing;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import amp.messaging.EnvelopeHelper;
+import amp.messaging.IContinuationCallback;
+import amp.messaging.IMessageProcessor;
+import amp.messaging.MessageContext;
+import amp.messaging.MessageException;
+import cmf.bus.Envelope;
+import cmf.bus.IEnvelopeBus;
+import cmf.bus.IRegistration;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class DefaultRpcBusTest {
+
+	/**
+	 * Messages are strings; the payload is the string's bytes.
+	 */
+	static class StringSerializer implements IMessageProcessor {
+
+		@Override
+		public void processMessage(MessageContext context, IContinuationCallback onComplete) throws MessageException {
+
+			if (MessageContext.Directions.Out == context.getDirection()) {
+				context.getEnvelope().setPayload(((String) context.getMessage()).getBytes());
+			} else {
+				context.setMessage(new String(context.getEnvelope().getPayload()));
+			}
+
+			onComplete.continueProcessing();
+		}
+	}
+
+	/**
+	 * An envelope bus that answers every request with "pong", to the
+	 * reply-to topic if the request names one, and otherwise to the
+	 * registration for the request's own queue.
+	 */
+	static class RespondingBus implements Answer<Object> {
+
+		final List<IRegistration> registrations = new ArrayList<IRegistration>();
+		final IEnvelopeBus bus = mock(IEnvelopeBus.class);
+		boolean respond = true;
+		String responseType;
+
+		RespondingBus() throws Exception {
+
+			doAnswer(new Answer<Object>() {
+				@Override
+				public Object answer(InvocationOnMock invocation) {
+					registrations.add((IRegistration) invocation.getArguments()[0]);
+					return null;
+				}
+			}).when(bus).register(any(IRegistration.class));
+
+			doAnswer(this).when(bus).send(any(Envelope.class));
+		}
+
+		@Override
+		public Object answer(InvocationOnMock invocation) throws Throwable {
+
+			if (!respond) { return null; }
+
+			EnvelopeHelper request = new EnvelopeHelper((Envelope) invocation.getArguments()[0]);
+
+			Envelope response = new Envelope();
+			response.setHeaders(new HashMap<String, String>());
+			new EnvelopeHelper(response).setCorrelationId(request.getMessageId()).setMessageType(responseType);
+			response.setPayload("pong".getBytes());
+
+			IRegistration registration = registrations.get(registrations.size() - 1);
+			if (null != request.getReplyTo()) {
+				assertTrue(registration instanceof RpcReplyCorrelator);
+				assertEquals(((RpcReplyCorrelator) registration).getReplyTopic(), request.getReplyTo());
+			}
+
+			registration.handle(response);
+
+			return null;
+		}
+	}
+
+	static DefaultRpcBus rpcBus(IEnvelopeBus envelopeBus) {
+
+		return new DefaultRpcBus(
+			envelopeBus,
+			Arrays.<IMessageProcessor>asList(new StringSerializer()),
+			Arrays.<IMessageProcessor>asList(new StringSerializer()));
+	}
+
+	@Test
+	public void requests_share_one_reply_queue_by_default() throws Exception {
+
+		RespondingBus envelopeBus = new RespondingBus();
+		DefaultRpcBus bus = rpcBus(envelopeBus.bus);
+
+		assertEquals("pong", bus.getResponseTo("ping", Duration.standardSeconds(5), (String) null));
+		assertEquals("pong", bus.getResponseTo("ping", Duration.standardSeconds(5), (String) null));
+
+		// one long-lived registration, never torn down between requests
+		assertEquals(1, envelopeBus.registrations.size());
+		assertTrue(envelopeBus.registrations.get(0) instanceof RpcReplyCorrelator);
+		verify(envelopeBus.bus, never()).unregister(any(IRegistration.class));
+	}
+
+	@Test
+	public void a_queue_per_request_can_be_turned_back_on() throws Exception {
+
+		RespondingBus envelopeBus = new RespondingBus();
+		DefaultRpcBus bus = rpcBus(envelopeBus.bus);
+		bus.setUseReplyQueue(false);
+
+		assertEquals("pong", bus.getResponseTo("ping", Duration.standardSeconds(5), (String) null));
+		assertEquals("pong", bus.getResponseTo("ping", Duration.standardSeconds(5), (String) null));
+
+		assertEquals(2, envelopeBus.registrations.size());
+		assertTrue(envelopeBus.registrations.get(0) instanceof RpcRegistration);
+		verify(envelopeBus.bus, times(2)).unregister(any(IRegistration.class));
+	}
+
+	@Test
+	public void a_request_with_no_response_returns_null_after_the_timeout() throws Exception {
+
+		RespondingBus envelopeBus = new RespondingBus();
+		envelopeBus.respond = false;
+		DefaultRpcBus bus = rpcBus(envelopeBus.bus);
+
+		assertNull(bus.getResponseTo("ping", Duration.millis(20), (String) null));
+
+		assertEquals(0, ((RpcReplyCorrelator) envelopeBus.registrations.get(0)).getPendingCount());
+	}
+
+	@Test
+	public void dispose_unregisters_the_reply_queue_and_fails_waiting_requests() throws Exception {
+
+		RespondingBus envelopeBus = new RespondingBus();
+		envelopeBus.respond = false;
+		DefaultRpcBus bus = rpcBus(envelopeBus.bus);
+
+		ListenableFuture<Object> response = bus.getResponseToAsync("ping", Duration.standardSeconds(30));
+		IRegistration correlator = envelopeBus.registrations.get(0);
+
+		bus.dispose();
+
+		verify(envelopeBus.bus).unregister(same(correlator));
+
+		try {
+			response.get(1, TimeUnit.SECONDS);
+			fail("expected the waiting request to fail");
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	@Test
+	public void an_async_response_completes_the_future_without_a_waiting_thread() throws Exception {
+
+		RespondingBus envelopeBus = new RespondingBus();
+		DefaultRpcBus bus = rpcBus(envelopeBus.bus);
+
+		// the responder answers while the request is sent
+		ListenableFuture<Object> response = bus.getResponseToAsync("ping", Duration.standardSeconds(30));
+
+		assertTrue(response.isDone());
+		assertEquals("pong", response.get());
+		assertEquals(0, ((RpcReplyCorrelator) envelopeBus.registrations.get(0)).getPendingCount());
+	}
+
+	@Test
+	public void an_async_request_waits_for_a_response_of_the_expected_type() throws Exception {
+
+		RespondingBus envelopeBus = new RespondingBus();
+		envelopeBus.responseType = Integer.class.getCanonicalName();
+		DefaultRpcBus bus = rpcBus(envelopeBus.bus);
+
+		ListenableFuture<String> response = bus.getResponseToAsync("ping", Duration.standardSeconds(30), String.class);
+		assertFalse(response.isDone());
+
+		envelopeBus.responseType = String.class.getCanonicalName();
+		ListenableFuture<String> typed = bus.getResponseToAsync("ping", Duration.standardSeconds(30), String.class);
+		assertEquals("pong", typed.get(1, TimeUnit.SECONDS));
+
+		response.cancel(false);
+	}
+
+	@Test
+	public void an_async_request_with_no_response_times_out() throws Exception {
+
+		RespondingBus envelopeBus = new RespondingBus();
+		envelopeBus.respond = false;
+		DefaultRpcBus bus = rpcBus(envelopeBus.bus);
+
+		ListenableFuture<Object> response = bus.getResponseToAsync("ping", Duration.millis(20));
+
+		try {
+			response.get(5, TimeUnit.SECONDS);
+			fail("expected the request to time out");
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof TimeoutException);
+		}
+	}
+
+	@Test
+	public void cancelling_an_async_request_stops_waiting_for_it() throws Exception {
+
+		RespondingBus envelopeBus = new RespondingBus();
+		envelopeBus.respond = false;
+		DefaultRpcBus bus = rpcBus(envelopeBus.bus);
+
+		ListenableFuture<Object> response = bus.getResponseToAsync("ping", Duration.standardSeconds(30));
+		RpcReplyCorrelator correlator = (RpcReplyCorrelator) envelopeBus.registrations.get(0);
+		assertEquals(1, correlator.getPendingCount());
+
+		response.cancel(false);
+
+		assertEquals(0, correlator.getPendingCount());
+	}
+
+	@Test
+	public void an_async_request_that_cannot_be_sent_fails_its_future() throws Exception {
+
+		RespondingBus envelopeBus = new RespondingBus();
+		RuntimeException failure = new RuntimeException("broker down");
+		doThrow(failure).when(envelopeBus.bus).send(any(Envelope.class));
+		DefaultRpcBus bus = rpcBus(envelopeBus.bus);
+
+		ListenableFuture<Object> response = bus.getResponseToAsync("ping", Duration.standardSeconds(30));
+
+		try {
+			response.get(1, TimeUnit.SECONDS);
+			fail("expected the send failure");
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof MessageException);
+			assertSame(failure, ex.getCause().getCause());
+		}
+
+		assertEquals(0, ((RpcReplyCorrelator) envelopeBus.registrations.get(0)).getPendingCount());
+	}
+
+	@Test
+	public void an_async_request_that_cannot_register_for_responses_fails_its_future() throws Exception {
+
+		IEnvelopeBus envelopeBus = mock(IEnvelopeBus.class);
+		Exception failure = new Exception("no queue for you");
+		doThrow(failure).when(envelopeBus).register(any(IRegistration.class));
+		DefaultRpcBus bus = rpcBus(envelopeBus);
+
+		ListenableFuture<Object> response = bus.getResponseToAsync("ping", Duration.standardSeconds(30));
+
+		try {
+			response.get(1, TimeUnit.SECONDS);
+			fail("expected the registration failure");
+		} catch (ExecutionException ex) {
+			assertSame(failure, ex.getCause());
+		}
+
+		verify(envelopeBus, never()).send(any(Envelope.class));
+	}
+}
@@ -0,0 +1,277 @@
+package amp.eventing;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Principal;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.junit.After;
+import org.junit.Test;
+
+import amp.bus.ExtendedHeaderConstants;
+import amp.bus.security.CredentialHolder;
+import amp.bus.security.ICertificateProvider;
+import amp.bus.security.IUserInfoRepository;
+import amp.messaging.EnvelopeHelper;
+import amp.messaging.IContinuationCallback;
+import amp.messaging.MessageContext;
+import amp.messaging.MessageContext.Directions;
+import amp.messaging.MessageException;
+import cmf.bus.Envelope;
+
+public class DigitalSignatureProcessorTest {
+
+	static final KeyPair SENDER = keyPair();
+	static final KeyPair OTHER = keyPair();
+
+	static KeyPair keyPair() {
+		try {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+			generator.initialize(1024);
+			return generator.generateKeyPair();
+		} catch (Exception ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Just enough of a certificate to sign and verify with: a subject and a
+	 * public key.
+	 */
+	static class TestCertificate extends X509Certificate {
+
+		private final X500Principal subject;
+		private final PublicKey key;
+
+		TestCertificate(String subject, PublicKey key) {
+			this.subject = new X500Principal(subject);
+			this.key = key;
+		}
+
+		@Override public X500Principal getSubjectX500Principal() { return subject; }
+		@Override public PublicKey getPublicKey() { return key; }
+		@Override public byte[] getEncoded() { return key.getEncoded(); }
+		@Override public String toString() { return subject.getName(); }
+
+		@Override public void checkValidity() {}
+		@Override public void checkValidity(Date date) {}
+		@Override public int getVersion() { return 3; }
+		@Override public BigInteger getSerialNumber() { return BigInteger.ONE; }
+		@Override public Principal getIssuerDN() { return subject; }
+		@Override public Principal getSubjectDN() { return subject; }
+		@Override public Date getNotBefore() { return new Date(0); }
+		@Override public Date getNotAfter() { return new Date(Long.MAX_VALUE); }
+		@Override public byte[] getTBSCertificate() { return new byte[0]; }
+		@Override public byte[] getSignature() { return new byte[0]; }
+		@Override public String getSigAlgName() { return "SHA1withRSA"; }
+		@Override public String getSigAlgOID() { return "1.2.840.113549.1.1.5"; }
+		@Override public byte[] getSigAlgParams() { return null; }
+		@Override public boolean[] getIssuerUniqueID() { return null; }
+		@Override public boolean[] getSubjectUniqueID() { return null; }
+		@Override public boolean[] getKeyUsage() { return null; }
+		@Override public int getBasicConstraints() { return -1; }
+		@Override public void verify(PublicKey key) {}
+		@Override public void verify(PublicKey key, String sigProvider) {}
+		@Override public boolean hasUnsupportedCriticalExtension() { return false; }
+		@Override public Set<String> getCriticalExtensionOIDs() { return null; }
+		@Override public Set<String> getNonCriticalExtensionOIDs() { return null; }
+		@Override public byte[] getExtensionValue(String oid) { return null; }
+	}
+
+	static final X509Certificate SENDER_CERT = new TestCertificate("CN=sender,O=amp", SENDER.getPublic());
+	static final X509Certificate OTHER_CERT = new TestCertificate("CN=other,O=amp", OTHER.getPublic());
+
+	static class Continuation implements IContinuationCallback {
+
+		int calls;
+
+		@Override
+		public void continueProcessing() {
+			calls++;
+		}
+	}
+
+	final int maxVerifiers = DigitalSignatureProcessor.MAX_VERIFIERS_PER_THREAD;
+
+	@After
+	public void restoreVerifierLimit() {
+		DigitalSignatureProcessor.MAX_VERIFIERS_PER_THREAD = maxVerifiers;
+	}
+
+	static DigitalSignatureProcessor processor(IUserInfoRepository repository) throws Exception {
+
+		ICertificateProvider certificates = mock(ICertificateProvider.class);
+		when(certificates.getCredentials()).thenReturn(new CredentialHolder(SENDER_CERT, SENDER.getPrivate()));
+
+		return new DigitalSignatureProcessor(certificates, repository);
+	}
+
+	static IUserInfoRepository repository() throws Exception {
+
+		IUserInfoRepository repository = mock(IUserInfoRepository.class);
+		when(repository.getPublicCertificateFor("CN=sender,O=amp")).thenReturn(SENDER_CERT);
+
+		return repository;
+	}
+
+	static Envelope signed(DigitalSignatureProcessor processor, String payload) throws Exception {
+
+		Envelope env = new Envelope();
+		env.setHeaders(new HashMap<String, String>());
+		new EnvelopeHelper(env).setMessageId(UUID.randomUUID());
+		env.setPayload(payload.getBytes());
+
+		Continuation continuation = new Continuation();
+		processor.processMessage(new MessageContext(Directions.Out, env, payload), continuation);
+		assertEquals(1, continuation.calls);
+
+		return env;
+	}
+
+	static boolean verifies(DigitalSignatureProcessor processor, Envelope env) throws Exception {
+
+		Continuation continuation = new Continuation();
+		processor.processMessage(new MessageContext(Directions.In, env), continuation);
+
+		return 1 == continuation.calls;
+	}
+
+	@Test
+	public void a_signed_envelope_verifies_and_a_tampered_one_does_not() throws Exception {
+
+		DigitalSignatureProcessor processor = processor(repository());
+
+		Envelope env = signed(processor, "hello");
+		assertEquals("SHA1withRSA", new EnvelopeHelper(env).getSignatureAlgorithm());
+		assertTrue(verifies(processor, env));
+
+		env.setPayload("goodbye".getBytes());
+		assertFalse(verifies(processor, env));
+
+		// the verifier is reset after a failed check, so the next envelope is fine
+		assertTrue(verifies(processor, signed(processor, "hello again")));
+	}
+
+	@Test
+	public void each_thread_reuses_its_signer() throws Exception {
+
+		DigitalSignatureProcessor processor = processor(repository());
+
+		Signature signer = processor.getSigner();
+		signed(processor, "one");
+		signed(processor, "two");
+
+		assertSame(signer, processor.getSigner());
+
+		processor.setSignatureAlgorithm("SHA256withRSA");
+		Signature sha256 = processor.getSigner();
+
+		assertNotSame(signer, sha256);
+		assertEquals("SHA256withRSA", sha256.getAlgorithm());
+		assertTrue(verifies(processor, signed(processor, "three")));
+	}
+
+	@Test
+	public void each_thread_reuses_its_verifiers() throws Exception {
+
+		DigitalSignatureProcessor processor = processor(repository());
+
+		Signature verifier = processor.getVerifier("SHA1withRSA", SENDER_CERT);
+		assertTrue(verifies(processor, signed(processor, "one")));
+		assertTrue(verifies(processor, signed(processor, "two")));
+
+		assertSame(verifier, processor.getVerifier("SHA1withRSA", SENDER_CERT));
+		assertNotSame(verifier, processor.getVerifier("SHA256withRSA", SENDER_CERT));
+		assertNotSame(verifier, processor.getVerifier("SHA1withRSA", OTHER_CERT));
+	}
+
+	@Test
+	public void the_verifier_cache_forgets_the_least_recently_used() throws Exception {
+
+		DigitalSignatureProcessor.MAX_VERIFIERS_PER_THREAD = 2;
+		DigitalSignatureProcessor processor = processor(repository());
+
+		Signature sha1 = processor.getVerifier("SHA1withRSA", SENDER_CERT);
+		Signature sha256 = processor.getVerifier("SHA256withRSA", SENDER_CERT);
+
+		// use the first again, so the second is the least recently used
+		assertSame(sha1, processor.getVerifier("SHA1withRSA", SENDER_CERT));
+		processor.getVerifier("SHA512withRSA", SENDER_CERT);
+
+		assertSame(sha1, processor.getVerifier("SHA1withRSA", SENDER_CERT));
+		assertNotSame(sha256, processor.getVerifier("SHA256withRSA", SENDER_CERT));
+	}
+
+	@Test
+	public void a_failed_verification_evicts_only_its_own_verifier() throws Exception {
+
+		DigitalSignatureProcessor processor = processor(repository());
+
+		Signature sender = processor.getVerifier("SHA1withRSA", SENDER_CERT);
+		Signature other = processor.getVerifier("SHA1withRSA", OTHER_CERT);
+
+		// a signature that isn't even the right length makes verify throw
+		Envelope env = signed(processor, "hello");
+		new EnvelopeHelper(env).setDigitalSignature(new byte[] { 1, 2, 3 });
+
+		try {
+			verifies(processor, env);
+			fail("expected the malformed signature to be rejected");
+		} catch (MessageException expected) {
+		}
+
+		assertNotSame(sender, processor.getVerifier("SHA1withRSA", SENDER_CERT));
+		assertSame(other, processor.getVerifier("SHA1withRSA", OTHER_CERT));
+		assertTrue(verifies(processor, signed(processor, "hello again")));
+	}
+
+	@Test
+	public void signatures_made_with_an_algorithm_not_accepted_are_rejected_unchecked() throws Exception {
+
+		IUserInfoRepository repository = repository();
+		DigitalSignatureProcessor processor = processor(repository);
+		processor.setAcceptedAlgorithms(Arrays.asList("SHA256withRSA"));
+
+		Signature verifier = processor.getVerifier("SHA256withRSA", SENDER_CERT);
+
+		Envelope env = signed(processor, "hello");
+
+		try {
+			verifies(processor, env);
+			fail("expected SHA1withRSA to be refused");
+		} catch (MessageException ex) {
+			assertTrue(ex.getCause() instanceof SecurityException);
+		}
+
+		// refused before the certificate was looked up, and without touching the cache
+		verify(repository, never()).getPublicCertificateFor(anyString());
+		assertSame(verifier, processor.getVerifier("SHA256withRSA", SENDER_CERT));
+
+		processor.setSignatureAlgorithm("SHA256withRSA");
+		assertTrue(verifies(processor, signed(processor, "hello")));
+	}
+
+	@Test
+	public void envelopes_without_an_algorithm_are_verified_as_sha1() throws Exception {
+
+		DigitalSignatureProcessor processor = processor(repository());
+
+		Envelope env = signed(processor, "hello");
+		env.getHeaders().remove(ExtendedHeaderConstants.MESSAGE_SENDER_SIGNATURE_ALGORITHM);
+
+		assertTrue(verifies(processor, env));
+	}
+}
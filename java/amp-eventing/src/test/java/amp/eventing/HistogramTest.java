@@ -0,0 +1,71 @@
+package amp.eventing;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void an_empty_histogram_reports_zeros() {
+
+		Histogram histogram = new Histogram();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0.0, histogram.getMean(), 0.0);
+		assertEquals(0, histogram.getPercentile(99));
+	}
+
+	@Test
+	public void values_are_counted_in_power_of_two_buckets() {
+
+		Histogram histogram = new Histogram();
+
+		histogram.record(0);
+		histogram.record(1);
+		histogram.record(2);
+		histogram.record(3);
+		histogram.record(4);
+		histogram.record(-5);
+
+		long[] buckets = histogram.getBucketCounts();
+
+		// negatives count as zero
+		assertEquals(2, buckets[0]);
+		assertEquals(1, buckets[1]);
+		assertEquals(2, buckets[2]);
+		assertEquals(1, buckets[3]);
+		assertEquals(6, histogram.getCount());
+		assertEquals(4, histogram.getMax());
+		assertEquals(10.0 / 6, histogram.getMean(), 1e-9);
+	}
+
+	@Test
+	public void percentiles_are_within_a_factor_of_two_and_never_above_the_max() {
+
+		Histogram histogram = new Histogram();
+
+		for (int value = 1; value <= 100; value++) {
+			histogram.record(value);
+		}
+
+		long median = histogram.getPercentile(50);
+		assertTrue(median >= 50 && median < 100);
+
+		assertEquals(100, histogram.getPercentile(100));
+		assertEquals(100, histogram.getPercentile(99.9));
+		assertTrue(histogram.getPercentile(1) >= 1);
+	}
+
+	@Test
+	public void the_largest_values_do_not_overflow_a_bucket() {
+
+		Histogram histogram = new Histogram();
+
+		histogram.record(Long.MAX_VALUE);
+
+		assertEquals(1, histogram.getBucketCounts()[63]);
+		assertEquals(Long.MAX_VALUE, histogram.getPercentile(50));
+	}
+}
@@ -0,0 +1,310 @@
+package amp.eventing;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import amp.bus.DeferredOutcome;
+import amp.bus.IDeferredOutcomeCallback;
+import amp.messaging.IContinuationCallback;
+import amp.messaging.MessageException;
+
+public class ParallelVerifierTest {
+
+	static final long WAIT_SECONDS = 5;
+
+	ParallelVerifier verifier;
+
+	@After
+	public void dispose() {
+		if (null != verifier) {
+			verifier.dispose();
+		}
+	}
+
+	/**
+	 * A verification that waits to be released, then returns its answer (or throws).
+	 */
+	static class GatedVerification implements Callable<Boolean> {
+
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch returned = new CountDownLatch(1);
+		final boolean verified;
+		final Exception error;
+
+		GatedVerification(boolean verified) {
+			this(verified, null);
+		}
+
+		GatedVerification(boolean verified, Exception error) {
+			this.verified = verified;
+			this.error = error;
+		}
+
+		@Override
+		public Boolean call() throws Exception {
+			try {
+				release.await();
+				if (null != error) {
+					throw error;
+				}
+				return verified;
+			} finally {
+				returned.countDown();
+			}
+		}
+	}
+
+	/**
+	 * Notes its name when continued, and optionally records a result or throws.
+	 */
+	static class RecordingContinuation implements IContinuationCallback {
+
+		final String name;
+		final List<String> continued;
+		DeferredOutcome outcome;
+		Object result;
+		MessageException error;
+
+		RecordingContinuation(String name, List<String> continued) {
+			this.name = name;
+			this.continued = continued;
+		}
+
+		@Override
+		public void continueProcessing() throws MessageException {
+
+			continued.add(name);
+
+			if (null != error) {
+				throw error;
+			}
+			if (null != outcome) {
+				outcome.setResult(result);
+			}
+		}
+	}
+
+	/**
+	 * Waits for a deferred outcome.
+	 */
+	static class Settled implements IDeferredOutcomeCallback {
+
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile Object outcome;
+		volatile Exception failure;
+
+		Settled(DeferredOutcome deferred) {
+			deferred.onDone(this);
+		}
+
+		@Override
+		public void onComplete(Object outcome) {
+			this.outcome = outcome;
+			done.countDown();
+		}
+
+		@Override
+		public void onFailure(Exception ex) {
+			this.failure = ex;
+			done.countDown();
+		}
+
+		void await() throws InterruptedException {
+			assertTrue("outcome never settled", done.await(WAIT_SECONDS, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	public void envelopes_verified_out_of_order_continue_in_queue_order() throws Exception {
+
+		verifier = new ParallelVerifier(3);
+
+		List<String> continued = Collections.synchronizedList(new ArrayList<String>());
+		Object queue = new Object();
+
+		GatedVerification[] verifications = new GatedVerification[3];
+		Settled[] settled = new Settled[3];
+
+		for (int i = 0; i < 3; i++) {
+			DeferredOutcome outcome = new DeferredOutcome();
+			verifications[i] = new GatedVerification(true);
+			settled[i] = new Settled(outcome);
+			verifier.submit(queue, verifications[i], new RecordingContinuation("e" + i, continued), outcome);
+		}
+
+		// the last two finish first, but must wait for the first
+		verifications[2].release.countDown();
+		verifications[1].release.countDown();
+		assertTrue(verifications[2].returned.await(WAIT_SECONDS, TimeUnit.SECONDS));
+		assertTrue(verifications[1].returned.await(WAIT_SECONDS, TimeUnit.SECONDS));
+
+		assertTrue(continued.isEmpty());
+		assertFalse(settled[1].done.getCount() == 0);
+		assertFalse(settled[2].done.getCount() == 0);
+
+		verifications[0].release.countDown();
+
+		for (Settled each : settled) {
+			each.await();
+		}
+
+		assertEquals(Arrays.asList("e0", "e1", "e2"), continued);
+		assertEquals(0, verifier.getPendingCount());
+		assertEquals(3, verifier.getVerifyLatency().getCount());
+	}
+
+	@Test
+	public void queues_do_not_wait_for_each_other() throws Exception {
+
+		verifier = new ParallelVerifier(2);
+
+		List<String> continued = Collections.synchronizedList(new ArrayList<String>());
+
+		GatedVerification stuck = new GatedVerification(true);
+		verifier.submit("queue-a", stuck, new RecordingContinuation("a", continued), new DeferredOutcome());
+
+		DeferredOutcome outcome = new DeferredOutcome();
+		Settled settled = new Settled(outcome);
+		GatedVerification free = new GatedVerification(true);
+		free.release.countDown();
+		verifier.submit("queue-b", free, new RecordingContinuation("b", continued), outcome);
+
+		settled.await();
+		assertEquals(Arrays.asList("b"), continued);
+
+		stuck.release.countDown();
+	}
+
+	@Test
+	public void unverified_envelopes_complete_without_continuing() throws Exception {
+
+		verifier = new ParallelVerifier(1);
+
+		List<String> continued = Collections.synchronizedList(new ArrayList<String>());
+		DeferredOutcome outcome = new DeferredOutcome();
+		Settled settled = new Settled(outcome);
+
+		GatedVerification verification = new GatedVerification(false);
+		verification.release.countDown();
+		verifier.submit("queue", verification, new RecordingContinuation("e", continued), outcome);
+
+		settled.await();
+		assertTrue(continued.isEmpty());
+		assertNull(settled.failure);
+		assertNull(settled.outcome);
+	}
+
+	@Test
+	public void a_verification_that_throws_fails_the_outcome_without_continuing() throws Exception {
+
+		verifier = new ParallelVerifier(1);
+
+		List<String> continued = Collections.synchronizedList(new ArrayList<String>());
+		DeferredOutcome outcome = new DeferredOutcome();
+		Settled settled = new Settled(outcome);
+		Exception error = new IllegalStateException("bad certificate store");
+
+		GatedVerification verification = new GatedVerification(true, error);
+		verification.release.countDown();
+		verifier.submit("queue", verification, new RecordingContinuation("e", continued), outcome);
+
+		settled.await();
+		assertTrue(continued.isEmpty());
+		assertSame(error, settled.failure);
+	}
+
+	@Test
+	public void a_continuation_that_throws_fails_the_outcome() throws Exception {
+
+		verifier = new ParallelVerifier(1);
+
+		List<String> continued = Collections.synchronizedList(new ArrayList<String>());
+		DeferredOutcome outcome = new DeferredOutcome();
+		Settled settled = new Settled(outcome);
+
+		RecordingContinuation continuation = new RecordingContinuation("e", continued);
+		continuation.error = new MessageException("handler blew up");
+
+		GatedVerification verification = new GatedVerification(true);
+		verification.release.countDown();
+		verifier.submit("queue", verification, continuation, outcome);
+
+		settled.await();
+		assertSame(continuation.error, settled.failure);
+	}
+
+	@Test
+	public void the_outcome_is_completed_with_the_handlers_result() throws Exception {
+
+		verifier = new ParallelVerifier(1);
+
+		List<String> continued = Collections.synchronizedList(new ArrayList<String>());
+		DeferredOutcome outcome = new DeferredOutcome();
+		Settled settled = new Settled(outcome);
+
+		RecordingContinuation continuation = new RecordingContinuation("e", continued);
+		continuation.outcome = outcome;
+		continuation.result = "Reject";
+
+		GatedVerification verification = new GatedVerification(true);
+		verification.release.countDown();
+		verifier.submit("queue", verification, continuation, outcome);
+
+		settled.await();
+		assertEquals("Reject", settled.outcome);
+	}
+
+	@Test
+	public void submitting_blocks_once_the_queues_window_is_full() throws Exception {
+
+		verifier = new ParallelVerifier(2, 2);
+
+		final List<String> continued = Collections.synchronizedList(new ArrayList<String>());
+
+		GatedVerification first = new GatedVerification(true);
+		GatedVerification second = new GatedVerification(true);
+		verifier.submit("queue", first, new RecordingContinuation("e0", continued), new DeferredOutcome());
+		verifier.submit("queue", second, new RecordingContinuation("e1", continued), new DeferredOutcome());
+
+		final CountDownLatch submitting = new CountDownLatch(1);
+		final CountDownLatch submitted = new CountDownLatch(1);
+		final GatedVerification third = new GatedVerification(true);
+		third.release.countDown();
+
+		Thread listener = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					submitting.countDown();
+					verifier.submit("queue", third, new RecordingContinuation("e2", continued), new DeferredOutcome());
+					submitted.countDown();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		listener.start();
+
+		assertTrue(submitting.await(WAIT_SECONDS, TimeUnit.SECONDS));
+
+		// both slots are taken until the head is released
+		assertFalse(submitted.await(100, TimeUnit.MILLISECONDS));
+		assertEquals(2, verifier.getPendingCount());
+
+		first.release.countDown();
+		assertTrue(submitted.await(WAIT_SECONDS, TimeUnit.SECONDS));
+
+		second.release.countDown();
+		listener.join(TimeUnit.SECONDS.toMillis(WAIT_SECONDS));
+	}
+}
@@ -0,0 +1,195 @@
+package amp.eventing;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+
+import amp.messaging.EnvelopeHelper;
+import amp.messaging.IContinuationCallback;
+import amp.messaging.MessageContext;
+import amp.messaging.MessageContext.Directions;
+import cmf.bus.Envelope;
+import cmf.bus.EnvelopeHeaderConstants;
+
+public class RpcFilterTest {
+
+	static class Continuation implements IContinuationCallback {
+
+		int calls;
+
+		@Override
+		public void continueProcessing() {
+			calls++;
+		}
+	}
+
+	static Envelope request(UUID requestId, Duration timeout) {
+
+		Envelope env = new Envelope();
+		env.setHeaders(new HashMap<String, String>());
+		EnvelopeHelper helper = new EnvelopeHelper(env);
+		helper.setMessageId(requestId);
+		helper.setMessagePattern(EnvelopeHeaderConstants.MESSAGE_PATTERN_RPC);
+		if (null != timeout) {
+			helper.setRpcTimeout(timeout);
+		}
+
+		return env;
+	}
+
+	static boolean passes(RpcFilter filter, Envelope envelope) throws Exception {
+
+		Continuation continuation = new Continuation();
+		filter.processMessage(new MessageContext(Directions.In, envelope), continuation);
+
+		return 1 == continuation.calls;
+	}
+
+	static void send(RpcFilter filter, Envelope envelope) throws Exception {
+
+		Continuation continuation = new Continuation();
+		filter.processMessage(new MessageContext(Directions.Out, envelope), continuation);
+
+		assertEquals(1, continuation.calls);
+	}
+
+	@Test
+	public void our_own_requests_are_filtered_out() throws Exception {
+
+		RpcFilter filter = new RpcFilter();
+		Envelope request = request(UUID.randomUUID(), Duration.standardSeconds(10));
+
+		send(filter, request);
+
+		assertFalse(passes(filter, request));
+		assertEquals(1, filter.getFilteredCount());
+		assertEquals(1, filter.getSize());
+	}
+
+	@Test
+	public void other_requests_and_responses_pass() throws Exception {
+
+		RpcFilter filter = new RpcFilter();
+		UUID ours = UUID.randomUUID();
+		send(filter, request(ours, Duration.standardSeconds(10)));
+
+		assertTrue(passes(filter, request(UUID.randomUUID(), Duration.standardSeconds(10))));
+
+		// a response correlated to our request is not a request
+		Envelope response = request(UUID.randomUUID(), null);
+		new EnvelopeHelper(response).setCorrelationId(ours);
+		assertTrue(passes(filter, response));
+
+		assertEquals(0, filter.getFilteredCount());
+	}
+
+	@Test
+	public void a_request_is_remembered_for_twice_its_timeout() throws Exception {
+
+		RpcFilter filter = new RpcFilter();
+		UUID requestId = UUID.randomUUID();
+
+		long before = System.currentTimeMillis();
+		send(filter, request(requestId, Duration.standardSeconds(30)));
+		long after = System.currentTimeMillis();
+
+		long bucket = filter.sentRequests.get(requestId);
+		assertTrue(bucket >= (before + 60000) / RpcFilter.BUCKET_WIDTH);
+		assertTrue(bucket <= (after + 60000) / RpcFilter.BUCKET_WIDTH + 1);
+	}
+
+	@Test
+	public void a_request_without_a_timeout_is_remembered_for_the_default_ttl() throws Exception {
+
+		RpcFilter filter = new RpcFilter();
+		filter.setDefaultTtl(90000);
+		UUID requestId = UUID.randomUUID();
+
+		long before = System.currentTimeMillis();
+		send(filter, request(requestId, null));
+		long after = System.currentTimeMillis();
+
+		long bucket = filter.sentRequests.get(requestId);
+		assertTrue(bucket >= (before + 90000) / RpcFilter.BUCKET_WIDTH);
+		assertTrue(bucket <= (after + 90000) / RpcFilter.BUCKET_WIDTH + 1);
+	}
+
+	@Test
+	public void expired_requests_are_forgotten() throws Exception {
+
+		RpcFilter filter = new RpcFilter();
+		UUID expired = UUID.randomUUID();
+		UUID current = UUID.randomUUID();
+
+		filter.remember(expired, System.currentTimeMillis() - 5000);
+		filter.remember(current, System.currentTimeMillis() + 60000);
+
+		filter.sweep();
+
+		assertEquals(1, filter.getSize());
+		assertEquals(1, filter.getExpiredCount());
+		assertTrue(passes(filter, request(expired, null)));
+		assertFalse(passes(filter, request(current, null)));
+	}
+
+	@Test
+	public void a_request_sent_again_outlives_its_first_expiry() throws Exception {
+
+		RpcFilter filter = new RpcFilter();
+		UUID requestId = UUID.randomUUID();
+
+		filter.remember(requestId, System.currentTimeMillis() - 5000);
+		filter.remember(requestId, System.currentTimeMillis() + 60000);
+
+		filter.sweep();
+
+		assertEquals(1, filter.getSize());
+		assertEquals(0, filter.getExpiredCount());
+	}
+
+	@Test
+	public void the_soonest_expiring_requests_are_dropped_beyond_the_maximum() throws Exception {
+
+		RpcFilter filter = new RpcFilter();
+		filter.setMaxEntries(2);
+		long now = System.currentTimeMillis();
+		UUID soonest = UUID.randomUUID();
+
+		filter.remember(UUID.randomUUID(), now + 20000);
+		filter.remember(soonest, now + 10000);
+		filter.remember(UUID.randomUUID(), now + 30000);
+
+		assertEquals(2, filter.getSize());
+		assertEquals(1, filter.getEvictedCount());
+		assertFalse(filter.sentRequests.containsKey(soonest));
+	}
+
+	@Test(timeout = 10000)
+	public void the_shared_sweeper_forgets_expired_requests() throws Exception {
+
+		RpcFilter filter = new RpcFilter();
+		filter.remember(UUID.randomUUID(), System.currentTimeMillis() - 5000);
+
+		// the sweeper runs once per bucket width
+		while (0 != filter.getSize()) {
+			Thread.sleep(50);
+		}
+
+		assertEquals(1, filter.getExpiredCount());
+	}
+
+	@Test
+	public void a_request_with_an_unreadable_id_is_let_through() throws Exception {
+
+		RpcFilter filter = new RpcFilter();
+		Envelope request = request(UUID.randomUUID(), null);
+		request.setHeader(EnvelopeHeaderConstants.MESSAGE_ID, "not-a-uuid");
+
+		assertTrue(passes(filter, request));
+		assertEquals(0, filter.getFilteredCount());
+	}
+}
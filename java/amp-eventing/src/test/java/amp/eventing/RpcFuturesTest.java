@@ -0,0 +1,113 @@
+package amp.eventing;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class RpcFuturesTest {
+
+	static List<SettableFuture<String>> futures(int count) {
+
+		List<SettableFuture<String>> futures = new ArrayList<SettableFuture<String>>();
+		for (int index = 0; index < count; index++) {
+			futures.add(SettableFuture.<String>create());
+		}
+
+		return futures;
+	}
+
+	static Throwable failureOf(ListenableFuture<?> future) throws InterruptedException {
+
+		try {
+			future.get();
+		} catch (ExecutionException ex) {
+			return ex.getCause();
+		}
+
+		fail("expected the future to fail");
+		return null;
+	}
+
+	@Test
+	public void allOf_yields_every_response_in_the_order_given() throws Exception {
+
+		List<SettableFuture<String>> responses = futures(3);
+		ListenableFuture<List<String>> all = RpcFutures.allOf(responses);
+
+		responses.get(2).set("c");
+		responses.get(0).set("a");
+		assertFalse(all.isDone());
+
+		responses.get(1).set("b");
+
+		assertEquals(Arrays.asList("a", "b", "c"), all.get());
+	}
+
+	@Test
+	public void allOf_fails_as_soon_as_one_response_fails() throws Exception {
+
+		List<SettableFuture<String>> responses = futures(3);
+		ListenableFuture<List<String>> all = RpcFutures.allOf(responses);
+
+		IllegalStateException failure = new IllegalStateException("no");
+		responses.get(1).setException(failure);
+
+		assertTrue(all.isDone());
+		assertSame(failure, failureOf(all));
+	}
+
+	@Test
+	public void firstOf_yields_the_first_response_and_cancels_the_rest() throws Exception {
+
+		List<SettableFuture<String>> responses = futures(3);
+		ListenableFuture<String> first = RpcFutures.firstOf(responses);
+
+		responses.get(1).set("b");
+
+		assertEquals("b", first.get());
+		assertTrue(responses.get(0).isCancelled());
+		assertTrue(responses.get(2).isCancelled());
+	}
+
+	@Test
+	public void firstOf_ignores_failures_while_a_response_may_still_arrive() throws Exception {
+
+		List<SettableFuture<String>> responses = futures(2);
+		ListenableFuture<String> first = RpcFutures.firstOf(responses);
+
+		responses.get(0).setException(new IllegalStateException("no"));
+		assertFalse(first.isDone());
+
+		responses.get(1).set("b");
+		assertEquals("b", first.get());
+	}
+
+	@Test
+	public void firstOf_fails_with_the_last_failure_when_every_response_fails() throws Exception {
+
+		List<SettableFuture<String>> responses = futures(2);
+		ListenableFuture<String> first = RpcFutures.firstOf(responses);
+
+		IllegalStateException last = new IllegalStateException("last");
+		responses.get(0).setException(new IllegalStateException("first"));
+		responses.get(1).setException(last);
+
+		assertSame(last, failureOf(first));
+	}
+
+	@Test
+	public void firstOf_nothing_fails() throws Exception {
+
+		ListenableFuture<String> first = RpcFutures.firstOf(new ArrayList<ListenableFuture<String>>());
+
+		assertTrue(failureOf(first) instanceof IllegalArgumentException);
+	}
+}
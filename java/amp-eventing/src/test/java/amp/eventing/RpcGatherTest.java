@@ -0,0 +1,223 @@
+package amp.eventing;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import amp.messaging.EnvelopeHelper;
+import cmf.bus.Envelope;
+import cmf.bus.IEnvelopeBus;
+import cmf.bus.IRegistration;
+
+public class RpcGatherTest {
+
+	/**
+	 * An envelope bus that answers each request with the given responses
+	 * (payload, type) through the bus' reply correlator.
+	 */
+	static class ScatterBus implements Answer<Object> {
+
+		final IEnvelopeBus bus = mock(IEnvelopeBus.class);
+		final List<String[]> responses = new ArrayList<String[]>();
+		RpcReplyCorrelator correlator;
+		Envelope request;
+
+		ScatterBus(String... payloadsAndTypes) throws Exception {
+
+			for (int index = 0; index < payloadsAndTypes.length; index += 2) {
+				responses.add(new String[] { payloadsAndTypes[index], payloadsAndTypes[index + 1] });
+			}
+
+			doAnswer(new Answer<Object>() {
+				@Override
+				public Object answer(InvocationOnMock invocation) {
+					correlator = (RpcReplyCorrelator) invocation.getArguments()[0];
+					return null;
+				}
+			}).when(bus).register(any(IRegistration.class));
+
+			doAnswer(this).when(bus).send(any(Envelope.class));
+		}
+
+		@Override
+		public Object answer(InvocationOnMock invocation) throws Throwable {
+
+			request = (Envelope) invocation.getArguments()[0];
+
+			for (String[] response : responses) {
+				respond(response[0], response[1]);
+			}
+
+			return null;
+		}
+
+		void respond(String payload, String type) throws Exception {
+
+			Envelope response = new Envelope();
+			response.setHeaders(new HashMap<String, String>());
+			new EnvelopeHelper(response)
+				.setCorrelationId(new EnvelopeHelper(request).getMessageId())
+				.setMessageType(type);
+			response.setPayload(payload.getBytes());
+
+			correlator.handle(response);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void gathering_stops_at_the_expected_count() throws Exception {
+
+		ScatterBus envelopeBus = new ScatterBus("a", "t", "b", "t", "c", "t", "d", "t");
+		DefaultRpcBus bus = DefaultRpcBusTest.rpcBus(envelopeBus.bus);
+
+		Collection<String> responses = bus.gatherResponsesTo("ping", Duration.standardSeconds(30), 3);
+
+		assertEquals(Arrays.asList("a", "b", "c"), new ArrayList<String>(responses));
+		assertEquals(0, envelopeBus.correlator.getPendingCount());
+	}
+
+	@Test(timeout = 10000)
+	public void gathering_stops_once_the_predicate_is_satisfied() throws Exception {
+
+		ScatterBus envelopeBus = new ScatterBus("a", "t", "enough", "t", "c", "t");
+		DefaultRpcBus bus = DefaultRpcBusTest.rpcBus(envelopeBus.bus);
+
+		RpcGather<String> gather = bus.beginGatheringResponsesTo(
+			"ping", Duration.standardSeconds(30), 0,
+			new IRpcGatherPredicate<String>() {
+				@Override
+				public boolean isSatisfied(List<String> responses) {
+					return responses.contains("enough");
+				}
+			},
+			null);
+
+		assertEquals(Arrays.asList("a", "enough"), new ArrayList<String>(gather.await()));
+	}
+
+	@Test
+	public void gathering_returns_what_arrived_when_the_timeout_elapses() throws Exception {
+
+		ScatterBus envelopeBus = new ScatterBus("a", "t", "b", "t");
+		DefaultRpcBus bus = DefaultRpcBusTest.rpcBus(envelopeBus.bus);
+
+		RpcGather<String> gather = bus.beginGatheringResponsesTo("ping", Duration.millis(50), 0, null, null);
+
+		// completion listeners run in order, so this one runs after the bus' own
+		final CountDownLatch forgotten = new CountDownLatch(1);
+		gather.onComplete(new Runnable() {
+			@Override
+			public void run() {
+				forgotten.countDown();
+			}
+		});
+
+		assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(gather.await()));
+		assertTrue(forgotten.await(5, TimeUnit.SECONDS));
+		assertEquals(0, envelopeBus.correlator.getPendingCount());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void only_responses_of_the_expected_types_are_gathered() throws Exception {
+
+		ScatterBus envelopeBus = new ScatterBus("a", "wanted", "b", "other", "c", "wanted");
+		DefaultRpcBus bus = DefaultRpcBusTest.rpcBus(envelopeBus.bus);
+
+		Collection<Object> responses = bus.gatherResponsesTo("ping", Duration.millis(50), "wanted");
+
+		assertEquals(Arrays.<Object>asList("a", "c"), new ArrayList<Object>(responses));
+	}
+
+	@Test(timeout = 10000)
+	public void responses_are_handed_out_as_they_arrive() throws Exception {
+
+		ScatterBus envelopeBus = new ScatterBus();
+		DefaultRpcBus bus = DefaultRpcBusTest.rpcBus(envelopeBus.bus);
+		final List<String> streamed = new ArrayList<String>();
+
+		RpcGather<String> gather = bus.beginGatheringResponsesTo(
+			"ping", Duration.standardSeconds(30), 0, null,
+			new IRpcResponseCallback<String>() {
+				@Override
+				public void onResponse(String response, Map<String, String> headers) {
+					streamed.add(response);
+				}
+			});
+
+		Iterator<String> arrivals = gather.iterator();
+
+		// each response can be used before the next one arrives
+		envelopeBus.respond("first", "t");
+		assertEquals("first", arrivals.next());
+		assertEquals(Arrays.asList("first"), streamed);
+		assertFalse(gather.isDone());
+
+		envelopeBus.respond("second", "t");
+		assertEquals("second", arrivals.next());
+
+		gather.complete();
+
+		assertFalse(arrivals.hasNext());
+		assertEquals(Arrays.asList("first", "second"), new ArrayList<String>(gather.await()));
+	}
+
+	@Test
+	public void responses_after_gathering_stops_are_dropped() throws Exception {
+
+		ScatterBus envelopeBus = new ScatterBus("a", "t");
+		DefaultRpcBus bus = DefaultRpcBusTest.rpcBus(envelopeBus.bus);
+
+		RpcGather<String> gather = bus.beginGatheringResponsesTo(
+			"ping", Duration.standardSeconds(30), 0, null, null);
+
+		gather.complete();
+		envelopeBus.respond("late", "t");
+
+		assertEquals(Arrays.asList("a"), gather.getResponses());
+		assertEquals(0, envelopeBus.correlator.getPendingCount());
+	}
+
+	@Test
+	public void a_request_that_cannot_be_sent_stops_the_gather() throws Exception {
+
+		ScatterBus envelopeBus = new ScatterBus();
+		doThrow(new RuntimeException("broker down")).when(envelopeBus.bus).send(any(Envelope.class));
+		DefaultRpcBus bus = DefaultRpcBusTest.rpcBus(envelopeBus.bus);
+
+		try {
+			bus.gatherResponsesTo("ping", Duration.standardSeconds(30));
+			fail("expected the send failure");
+		} catch (RuntimeException expected) {
+		}
+
+		assertEquals(0, envelopeBus.correlator.getPendingCount());
+	}
+
+	@Test
+	public void a_response_that_cannot_be_opened_is_skipped() throws Exception {
+
+		RpcGather<String> gather = new RpcGather<String>(2, Collections.<String>emptySet(), null, null);
+
+		assertFalse(gather.onFailure(new IllegalStateException("corrupt")));
+		assertFalse(gather.onResponse("a", new Envelope()));
+		assertTrue(gather.onResponse("b", new Envelope()));
+
+		assertEquals(Arrays.asList("a", "b"), gather.getResponses());
+	}
+}
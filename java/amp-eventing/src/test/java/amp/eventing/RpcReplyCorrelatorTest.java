@@ -0,0 +1,203 @@
+package amp.eventing;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import amp.messaging.EnvelopeHelper;
+import amp.messaging.IInboundProcessorCallback;
+import cmf.bus.Envelope;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class RpcReplyCorrelatorTest {
+
+	/**
+	 * Opens an envelope by reading its payload as a string.
+	 */
+	static IInboundProcessorCallback opener() throws Exception {
+
+		IInboundProcessorCallback opener = mock(IInboundProcessorCallback.class);
+		when(opener.ProcessInbound(any(Envelope.class))).thenAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) {
+				return new String(((Envelope) invocation.getArguments()[0]).getPayload());
+			}
+		});
+
+		return opener;
+	}
+
+	static Envelope response(UUID requestId, String payload, String type) {
+
+		Envelope env = new Envelope();
+		env.setHeaders(new HashMap<String, String>());
+		new EnvelopeHelper(env).setCorrelationId(requestId).setMessageType(type);
+		env.setPayload(payload.getBytes());
+
+		return env;
+	}
+
+	/**
+	 * Listeners run in order, so this one runs after the correlator's own
+	 * (which stops waiting for the request).
+	 */
+	static CountDownLatch settled(ListenableFuture<Object> response) {
+
+		final CountDownLatch settled = new CountDownLatch(1);
+		response.addListener(new Runnable() {
+			@Override
+			public void run() {
+				settled.countDown();
+			}
+		}, MoreExecutors.sameThreadExecutor());
+
+		return settled;
+	}
+
+	@Test
+	public void out_of_order_responses_reach_their_own_requests() throws Exception {
+
+		RpcReplyCorrelator correlator = new RpcReplyCorrelator(opener());
+		UUID first = UUID.randomUUID();
+		UUID second = UUID.randomUUID();
+
+		ListenableFuture<Object> firstResponse = correlator.expect(first, 5000);
+		ListenableFuture<Object> secondResponse = correlator.expect(second, 5000);
+
+		correlator.handle(response(second, "two", "pong"));
+		assertFalse(firstResponse.isDone());
+
+		correlator.handle(response(first, "one", "pong"));
+
+		assertEquals("one", firstResponse.get(1, TimeUnit.SECONDS));
+		assertEquals("two", secondResponse.get(1, TimeUnit.SECONDS));
+		assertEquals(0, correlator.getPendingCount());
+	}
+
+	@Test
+	public void a_request_with_no_response_times_out() throws Exception {
+
+		RpcReplyCorrelator correlator = new RpcReplyCorrelator(opener());
+
+		ListenableFuture<Object> response = correlator.expect(UUID.randomUUID(), 20);
+
+		CountDownLatch settled = settled(response);
+
+		try {
+			response.get(5, TimeUnit.SECONDS);
+			fail("expected the request to time out");
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof TimeoutException);
+		}
+
+		assertTrue(settled.await(5, TimeUnit.SECONDS));
+		assertEquals(0, correlator.getPendingCount());
+	}
+
+	@Test
+	public void a_response_after_the_timeout_is_dropped_unopened() throws Exception {
+
+		IInboundProcessorCallback opener = opener();
+		RpcReplyCorrelator correlator = new RpcReplyCorrelator(opener);
+		UUID requestId = UUID.randomUUID();
+
+		ListenableFuture<Object> response = correlator.expect(requestId, 20);
+
+		assertTrue(settled(response).await(5, TimeUnit.SECONDS));
+		assertTrue(response.isDone());
+
+		assertNull(correlator.handle(response(requestId, "late", "pong")));
+
+		verify(opener, never()).ProcessInbound(any(Envelope.class));
+		assertEquals(0, correlator.getPendingCount());
+	}
+
+	@Test
+	public void responses_of_another_type_are_ignored() throws Exception {
+
+		RpcReplyCorrelator correlator = new RpcReplyCorrelator(opener());
+		UUID requestId = UUID.randomUUID();
+
+		ListenableFuture<Object> response = correlator.expect(requestId, "pong");
+
+		correlator.handle(response(requestId, "wrong", "other"));
+		assertFalse(response.isDone());
+
+		correlator.handle(response(requestId, "right", "pong"));
+		assertEquals("right", response.get(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void a_gather_streams_responses_until_it_has_enough() throws Exception {
+
+		RpcReplyCorrelator correlator = new RpcReplyCorrelator(opener());
+		UUID requestId = UUID.randomUUID();
+		final List<String> streamed = Collections.synchronizedList(new ArrayList<String>());
+
+		RpcGather<String> gather = new RpcGather<String>(
+			3, Collections.<String>emptySet(), null,
+			new IRpcResponseCallback<String>() {
+				@Override
+				public void onResponse(String response, Map<String, String> headers) {
+					streamed.add(response);
+				}
+			});
+
+		correlator.expect(requestId, gather);
+
+		correlator.handle(response(requestId, "a", "pong"));
+		assertEquals(Arrays.asList("a"), streamed);
+		assertFalse(gather.isDone());
+
+		correlator.handle(response(requestId, "b", "pong"));
+		correlator.handle(response(requestId, "c", "pong"));
+
+		// enough: the gather is done and no longer waiting
+		assertTrue(gather.isDone());
+		assertEquals(Arrays.asList("a", "b", "c"), streamed);
+		assertEquals(Arrays.asList("a", "b", "c"), new ArrayList<String>(gather.await(1, TimeUnit.SECONDS)));
+		assertEquals(0, correlator.getPendingCount());
+
+		correlator.handle(response(requestId, "d", "pong"));
+		assertEquals(3, gather.getResponses().size());
+	}
+
+	@Test
+	public void dispose_fails_every_waiting_request() throws Exception {
+
+		RpcReplyCorrelator correlator = new RpcReplyCorrelator(opener());
+
+		ListenableFuture<Object> response = correlator.expect(UUID.randomUUID(), 5000);
+		RpcGather<String> gather = new RpcGather<String>(0, Collections.<String>emptySet(), null, null);
+		correlator.expect(UUID.randomUUID(), gather);
+
+		correlator.dispose();
+
+		try {
+			response.get(1, TimeUnit.SECONDS);
+			fail("expected the request to fail");
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof IllegalStateException);
+		}
+
+		assertTrue(gather.isDone());
+		assertEquals(0, correlator.getPendingCount());
+	}
+}
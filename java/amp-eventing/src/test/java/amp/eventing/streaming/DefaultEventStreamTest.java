@@ -0,0 +1,375 @@
+package amp.eventing.streaming;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import amp.bus.IBatchEnvelopeSender;
+import amp.messaging.IContinuationCallback;
+import amp.messaging.MessageContext;
+import amp.messaging.MessageException;
+import cmf.bus.Envelope;
+import cmf.bus.IEnvelopeBus;
+import cmf.eventing.patterns.streaming.StreamingEnvelopeConstants;
+
+public class DefaultEventStreamTest {
+
+	interface BatchingEnvelopeBus extends IEnvelopeBus, IBatchEnvelopeSender {}
+
+	/**
+	 * Records the positions of each batch sent.
+	 */
+	static class RecordingSender implements Answer<Object> {
+
+		final List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<List<Integer>>());
+
+		@Override
+		public Object answer(InvocationOnMock invocation) throws Throwable {
+
+			List<Integer> positions = new ArrayList<Integer>();
+
+			for (Object envelope : (Collection<?>) invocation.getArguments()[0]) {
+				positions.add(Integer.valueOf(
+					((Envelope) envelope).getHeader(StreamingEnvelopeConstants.POSITION)));
+			}
+
+			batches.add(positions);
+
+			return null;
+		}
+	}
+
+	/**
+	 * An event bus whose outbound processing makes each event's payload its toString.
+	 */
+	static IStandardStreamingEventBus eventBus(IEnvelopeBus envelopeBus) throws Exception {
+
+		IStandardStreamingEventBus eventBus = mock(IStandardStreamingEventBus.class);
+
+		when(eventBus.getEnvelopeBus()).thenReturn(envelopeBus);
+
+		doAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+
+				MessageContext context = (MessageContext) invocation.getArguments()[0];
+				context.getEnvelope().setPayload(context.getMessage().toString().getBytes("UTF-8"));
+
+				((IContinuationCallback) invocation.getArguments()[1]).continueProcessing();
+
+				return null;
+			}
+		}).when(eventBus).processMessage(any(MessageContext.class), any(IContinuationCallback.class));
+
+		return eventBus;
+	}
+
+	static BatchingEnvelopeBus envelopeBus(Answer<?> sendAll) throws Exception {
+
+		BatchingEnvelopeBus envelopeBus = mock(BatchingEnvelopeBus.class);
+
+		doAnswer(sendAll).when(envelopeBus).sendAll(anyCollection());
+
+		return envelopeBus;
+	}
+
+	@Test
+	public void a_full_batch_is_sent_at_once() throws Exception {
+
+		RecordingSender sender = new RecordingSender();
+		BatchingEnvelopeBus envelopeBus = envelopeBus(sender);
+
+		DefaultEventStream stream = new DefaultEventStream(eventBus(envelopeBus), "topic");
+		stream.setBatchLimit(3);
+
+		stream.publish("one");
+		stream.publish("two");
+
+		verify(envelopeBus, never()).sendAll(anyCollection());
+
+		stream.publish("three");
+
+		assertEquals(Arrays.asList(Arrays.asList(0, 1, 2)), sender.batches);
+	}
+
+	@Test
+	public void a_batch_is_sent_once_its_payloads_reach_the_byte_limit() throws Exception {
+
+		RecordingSender sender = new RecordingSender();
+		BatchingEnvelopeBus envelopeBus = envelopeBus(sender);
+
+		DefaultEventStream stream = new DefaultEventStream(eventBus(envelopeBus), "topic");
+		stream.setBatchLimit(100);
+		stream.setBatchByteLimit(10);
+
+		stream.publish("abcd");
+		stream.publish("efgh");
+
+		verify(envelopeBus, never()).sendAll(anyCollection());
+
+		stream.publish("ijkl");
+
+		assertEquals(Arrays.asList(Arrays.asList(0, 1, 2)), sender.batches);
+	}
+
+	@Test
+	public void lingering_events_are_sent_without_a_full_batch() throws Exception {
+
+		RecordingSender sender = new RecordingSender();
+		BatchingEnvelopeBus envelopeBus = envelopeBus(sender);
+
+		DefaultEventStream stream = new DefaultEventStream(eventBus(envelopeBus), "topic");
+		stream.setBatchLimit(100);
+		stream.setLingerMillis(50);
+
+		stream.publish("one");
+		stream.publish("two");
+
+		verify(envelopeBus, timeout(2000)).sendAll(anyCollection());
+
+		assertEquals(Arrays.asList(Arrays.asList(0, 1)), sender.batches);
+	}
+
+	@Test
+	public void a_stream_stuck_sending_does_not_hold_up_other_streams() throws Exception {
+
+		final CountDownLatch stuck = new CountDownLatch(1);
+
+		BatchingEnvelopeBus stuckBus = envelopeBus(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				stuck.await(10, TimeUnit.SECONDS);
+				return null;
+			}
+		});
+
+		RecordingSender sender = new RecordingSender();
+		BatchingEnvelopeBus envelopeBus = envelopeBus(sender);
+
+		DefaultEventStream stuckStream = new DefaultEventStream(eventBus(stuckBus), "stuck");
+		stuckStream.setBatchLimit(100);
+		stuckStream.setLingerMillis(10);
+		stuckStream.publish("one");
+
+		verify(stuckBus, timeout(2000)).sendAll(anyCollection());
+
+		DefaultEventStream stream = new DefaultEventStream(eventBus(envelopeBus), "topic");
+		stream.setBatchLimit(100);
+		stream.setLingerMillis(10);
+		stream.publish("one");
+
+		try {
+			verify(envelopeBus, timeout(2000)).sendAll(anyCollection());
+		} finally {
+			stuck.countDown();
+		}
+
+		assertEquals(Arrays.asList(Arrays.asList(0)), sender.batches);
+	}
+
+	@Test
+	public void a_lingering_batch_that_fails_is_sent_again() throws Exception {
+
+		final AtomicInteger attempts = new AtomicInteger();
+		final RecordingSender sender = new RecordingSender();
+
+		BatchingEnvelopeBus envelopeBus = envelopeBus(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+
+				if (attempts.incrementAndGet() == 1) {
+					throw new IllegalStateException("broker unavailable");
+				}
+
+				return sender.answer(invocation);
+			}
+		});
+
+		DefaultEventStream stream = new DefaultEventStream(eventBus(envelopeBus), "topic");
+		stream.setBatchLimit(100);
+		stream.setLingerMillis(20);
+
+		stream.publish("one");
+		stream.publish("two");
+
+		verify(envelopeBus, timeout(2000).times(2)).sendAll(anyCollection());
+
+		assertEquals(Arrays.asList(Arrays.asList(0, 1)), sender.batches);
+	}
+
+	@Test
+	public void a_batch_that_fails_is_sent_with_the_next_one() throws Exception {
+
+		final AtomicInteger attempts = new AtomicInteger();
+		final RecordingSender sender = new RecordingSender();
+
+		BatchingEnvelopeBus envelopeBus = envelopeBus(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+
+				if (attempts.incrementAndGet() == 1) {
+					throw new IllegalStateException("broker unavailable");
+				}
+
+				return sender.answer(invocation);
+			}
+		});
+
+		DefaultEventStream stream = new DefaultEventStream(eventBus(envelopeBus), "topic");
+		stream.setBatchLimit(2);
+
+		stream.publish("one");
+
+		try {
+			stream.publish("two");
+			fail("the failed send should be reported");
+		} catch (Exception expected) {
+		}
+
+		stream.publish("three");
+
+		assertEquals(Arrays.asList(Arrays.asList(0, 1, 2)), sender.batches);
+	}
+
+	/**
+	 * A flow-controlled stream of the given window, whose credit is kept in credits.
+	 */
+	static DefaultEventStream flowControlled(IEnvelopeBus envelopeBus, StreamCredits credits, int window, long timeoutMillis)
+			throws Exception {
+
+		IStandardStreamingEventBus eventBus = eventBus(envelopeBus);
+		when(eventBus.getStreamCredits()).thenReturn(credits);
+
+		DefaultEventStream stream = new DefaultEventStream(eventBus, "topic");
+		stream.setBatchLimit(100);
+		stream.setCreditWindow(window);
+		stream.setCreditTimeoutMillis(timeoutMillis);
+
+		return stream;
+	}
+
+	static Future<Object> publish(ExecutorService thread, final DefaultEventStream stream, final String... events) {
+
+		return thread.submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				for (String event : events) {
+					stream.publish(event);
+				}
+				return null;
+			}
+		});
+	}
+
+	@Test(timeout = 10000)
+	public void publishing_waits_at_the_window_until_a_reader_grants_credit() throws Exception {
+
+		RecordingSender sender = new RecordingSender();
+		BatchingEnvelopeBus envelopeBus = envelopeBus(sender);
+		StreamCredits credits = new StreamCredits();
+		DefaultEventStream stream = flowControlled(envelopeBus, credits, 2, 60000);
+		ExecutorService thread = Executors.newSingleThreadExecutor();
+
+		try {
+			Future<Object> published = publish(thread, stream, "one", "two", "three");
+
+			// the window is sent so the readers can grant more, and the third waits
+			verify(envelopeBus, timeout(2000)).sendAll(anyCollection());
+			assertEquals(Arrays.asList(Arrays.asList(0, 1)), sender.batches);
+			assertFalse(published.isDone());
+
+			credits.grant(new StreamCredit(stream.getSequenceId(), "reader", 3));
+			published.get(5, TimeUnit.SECONDS);
+
+			stream.dispose();
+			assertEquals(Arrays.asList(Arrays.asList(0, 1), Arrays.asList(2)), sender.batches);
+		} finally {
+			thread.shutdownNow();
+		}
+	}
+
+	@Test
+	public void publishing_goes_no_further_than_the_slowest_reader_allows() throws Exception {
+
+		RecordingSender sender = new RecordingSender();
+		StreamCredits credits = new StreamCredits();
+		DefaultEventStream stream = flowControlled(envelopeBus(sender), credits, 2, 50);
+
+		stream.publish("one");
+		credits.grant(new StreamCredit(stream.getSequenceId(), "fast", 10));
+		credits.grant(new StreamCredit(stream.getSequenceId(), "slow", 3));
+
+		stream.publish("two");
+		stream.publish("three");
+
+		try {
+			stream.publish("four");
+			fail("published past the slowest reader's limit");
+		} catch (MessageException expected) {
+		}
+
+		assertEquals(Arrays.asList(Arrays.asList(0, 1, 2)), sender.batches);
+	}
+
+	@Test
+	public void publishing_gives_up_if_no_reader_grants_credit_in_time() throws Exception {
+
+		RecordingSender sender = new RecordingSender();
+		DefaultEventStream stream = flowControlled(envelopeBus(sender), new StreamCredits(), 2, 50);
+
+		stream.publish("one");
+		stream.publish("two");
+
+		try {
+			stream.publish("three");
+			fail("published without credit");
+		} catch (MessageException expected) {
+		}
+
+		// what was within the window was still sent
+		assertEquals(Arrays.asList(Arrays.asList(0, 1)), sender.batches);
+	}
+
+	@Test(timeout = 10000)
+	public void disposing_a_stream_wakes_a_publish_waiting_for_credit() throws Exception {
+
+		RecordingSender sender = new RecordingSender();
+		BatchingEnvelopeBus envelopeBus = envelopeBus(sender);
+		DefaultEventStream stream = flowControlled(envelopeBus, new StreamCredits(), 2, 60000);
+		ExecutorService thread = Executors.newSingleThreadExecutor();
+
+		try {
+			Future<Object> published = publish(thread, stream, "one", "two", "three");
+
+			verify(envelopeBus, timeout(2000)).sendAll(anyCollection());
+
+			stream.dispose();
+
+			try {
+				published.get(5, TimeUnit.SECONDS);
+				fail("published after the stream was disposed");
+			} catch (ExecutionException expected) {
+				assertTrue(expected.getCause() instanceof MessageException);
+			}
+		} finally {
+			thread.shutdownNow();
+		}
+	}
+}
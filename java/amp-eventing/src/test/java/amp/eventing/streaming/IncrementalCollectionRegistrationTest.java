@@ -0,0 +1,183 @@
+package amp.eventing.streaming;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import amp.messaging.EnvelopeHelper;
+import amp.messaging.IInboundProcessorCallback;
+import cmf.bus.Envelope;
+import cmf.eventing.patterns.streaming.StreamingEnvelopeConstants;
+import cmf.eventing.patterns.streaming.StreamingEventItem;
+
+public class IncrementalCollectionRegistrationTest {
+
+	/**
+	 * Records what it's handed, one line per call.
+	 */
+	static class RecordingHandler implements IIncrementalCollectionHandler<String> {
+
+		final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public Class<String> getEventType() {
+			return String.class;
+		}
+
+		@Override
+		public void handleCollectionPart(String sequenceId, Collection<StreamingEventItem<String>> eventItems) {
+
+			List<String> events = new ArrayList<String>();
+			for (StreamingEventItem<String> eventItem : eventItems) {
+				events.add(eventItem.getEvent());
+			}
+
+			calls.add("part " + sequenceId + " " + events);
+		}
+
+		@Override
+		public void handleCollectionEnd(String sequenceId) {
+			calls.add("end " + sequenceId);
+		}
+
+		@Override
+		public void handleCollectionAborted(String sequenceId, Exception reason) {
+			calls.add("aborted " + sequenceId);
+		}
+
+		@Override
+		public void handleCollection(Collection<StreamingEventItem<String>> collection) {
+			calls.add("collection");
+		}
+
+		@Override
+		public void onPercentCollectionReceived(double percent) {
+		}
+	}
+
+	/**
+	 * Processes an end of stream into an EndOfStream and an event into its payload,
+	 * failing for the given position.
+	 */
+	static IInboundProcessorCallback processor(final int failingPosition) throws Exception {
+
+		IInboundProcessorCallback processor = mock(IInboundProcessorCallback.class);
+
+		when(processor.ProcessInbound(any(Envelope.class))).thenAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+
+				Envelope env = (Envelope) invocation.getArguments()[0];
+				String sequenceId = env.getHeader(StreamingEnvelopeConstants.SEQUENCE_ID);
+
+				if (EndOfStream.class.getCanonicalName().equals(new EnvelopeHelper(env).getMessageType())) {
+					return new EndOfStream("events", sequenceId);
+				}
+
+				if (Integer.parseInt(env.getHeader(StreamingEnvelopeConstants.POSITION)) == failingPosition) {
+					throw new IllegalStateException("unable to deserialize");
+				}
+
+				return new String(env.getPayload(), "UTF-8");
+			}
+		});
+
+		return processor;
+	}
+
+	static Envelope event(String sequenceId, int position) throws Exception {
+
+		Envelope env = new Envelope();
+		env.setHeaders(new HashMap<String, String>());
+		env.setHeader(StreamingEnvelopeConstants.SEQUENCE_ID, sequenceId);
+		env.setHeader(StreamingEnvelopeConstants.POSITION, position + "");
+		new EnvelopeHelper(env).setMessageType(String.class.getCanonicalName());
+		env.setPayload(("" + position).getBytes("UTF-8"));
+
+		return env;
+	}
+
+	static Envelope endOfStream(String sequenceId) {
+
+		Envelope env = new Envelope();
+		env.setHeaders(new HashMap<String, String>());
+		env.setHeader(StreamingEnvelopeConstants.SEQUENCE_ID, sequenceId);
+		new EnvelopeHelper(env).setMessageType(EndOfStream.class.getCanonicalName());
+
+		return env;
+	}
+
+	@Test
+	public void parts_are_handed_on_in_order_then_the_end() throws Exception {
+
+		RecordingHandler handler = new RecordingHandler();
+		IncrementalCollectionRegistration<String> registration =
+			new IncrementalCollectionRegistration<String>(handler, processor(-1));
+
+		registration.handle(event("s", 1));
+		registration.handle(event("s", 0));
+		registration.handle(event("s", 2));
+		registration.handle(endOfStream("s"));
+
+		assertEquals(Arrays.asList("part s [0, 1]", "part s [2]", "end s"), handler.calls);
+	}
+
+	@Test
+	public void a_sequence_with_an_event_that_fails_processing_is_aborted() throws Exception {
+
+		RecordingHandler handler = new RecordingHandler();
+		IncrementalCollectionRegistration<String> registration =
+			new IncrementalCollectionRegistration<String>(handler, processor(1));
+
+		registration.handle(event("s", 0));
+		registration.handle(event("s", 1));
+		registration.handle(event("s", 2));
+		registration.handle(endOfStream("s"));
+
+		assertEquals(Arrays.asList("part s [0]", "aborted s"), handler.calls);
+	}
+
+	@Test
+	public void a_sequence_with_a_spilled_event_that_fails_processing_is_aborted() throws Exception {
+
+		RecordingHandler handler = new RecordingHandler();
+		IncrementalCollectionRegistration<String> registration =
+			new IncrementalCollectionRegistration<String>(handler, processor(1));
+		registration.getReassemblyBuffer().setMaxBufferedBytes(0);
+
+		registration.handle(event("s", 1));
+		registration.handle(event("s", 0));
+		registration.handle(endOfStream("s"));
+
+		assertEquals(Arrays.asList("aborted s"), handler.calls);
+	}
+
+	@Test
+	public void an_idle_sequence_is_aborted() throws Exception {
+
+		RecordingHandler handler = new RecordingHandler();
+		IncrementalCollectionRegistration<String> registration =
+			new IncrementalCollectionRegistration<String>(handler, processor(-1));
+		registration.getReassemblyBuffer().setIdleTimeoutMillis(50);
+
+		// position 0 never arrives
+		registration.handle(event("s", 1));
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (handler.calls.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+
+		assertEquals(Arrays.asList("aborted s"), handler.calls);
+	}
+}
@@ -0,0 +1,248 @@
+package amp.eventing.streaming;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import amp.messaging.IInboundProcessorCallback;
+import cmf.bus.Envelope;
+import cmf.eventing.patterns.streaming.StreamingEnvelopeConstants;
+import cmf.eventing.patterns.streaming.StreamingEventItem;
+
+public class SequenceReassemblyBufferTest {
+
+	/**
+	 * Processes each envelope into its payload as a string, failing for the given position.
+	 */
+	static IInboundProcessorCallback processor(final int failingPosition) throws Exception {
+
+		IInboundProcessorCallback processor = mock(IInboundProcessorCallback.class);
+
+		when(processor.ProcessInbound(any(Envelope.class))).thenAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+
+				Envelope env = (Envelope) invocation.getArguments()[0];
+
+				if (Integer.parseInt(env.getHeader(StreamingEnvelopeConstants.POSITION)) == failingPosition) {
+					throw new IllegalStateException("unable to deserialize");
+				}
+
+				return new String(env.getPayload(), "UTF-8");
+			}
+		});
+
+		return processor;
+	}
+
+	static Envelope envelope(String sequenceId, int position) throws Exception {
+
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put(StreamingEnvelopeConstants.SEQUENCE_ID, sequenceId);
+		headers.put(StreamingEnvelopeConstants.POSITION, position + "");
+
+		Envelope env = new Envelope();
+		env.setHeaders(headers);
+		env.setPayload(("event " + position).getBytes("UTF-8"));
+
+		return env;
+	}
+
+	@Test
+	public void spilled_events_are_processed_in_order_when_drained() throws Exception {
+
+		SequenceReassemblyBuffer<String> buffer = new SequenceReassemblyBuffer<String>(processor(-1));
+		buffer.setMaxBufferedBytes(0);
+
+		buffer.add(envelope("s", 1));
+		buffer.add(envelope("s", 0));
+		buffer.add(envelope("s", 2));
+
+		assertTrue(buffer.getSpilledBytes() > 0);
+
+		List<StreamingEventItem<String>> events = buffer.drain("s");
+
+		assertEquals(3, events.size());
+		assertEquals("event 0", events.get(0).getEvent());
+		assertEquals("event 2", events.get(2).getEvent());
+		assertEquals(0, buffer.getSpilledBytes());
+
+		buffer.dispose();
+	}
+
+	@Test
+	public void spilled_event_that_fails_processing_evicts_the_sequence() throws Exception {
+
+		SequenceReassemblyBuffer<String> buffer = new SequenceReassemblyBuffer<String>(processor(1));
+		buffer.setMaxBufferedBytes(0);
+
+		for (int position = 0; position < 3; position++) {
+			buffer.add(envelope("s", position));
+		}
+
+		try {
+			buffer.drain("s");
+			fail("An incomplete collection was delivered.");
+		} catch (Exception expected) {
+		}
+
+		assertEquals(1, buffer.getEvictedSequenceCount());
+		assertEquals(0, buffer.getSpilledBytes());
+		assertNull("A straggler for the evicted sequence was kept.", buffer.add(envelope("s", 3)));
+
+		buffer.dispose();
+	}
+
+	@Test
+	public void idle_sequences_are_evicted_without_further_events() throws Exception {
+
+		SequenceReassemblyBuffer<String> buffer = new SequenceReassemblyBuffer<String>(processor(-1));
+		buffer.setIdleTimeoutMillis(50);
+
+		buffer.add(envelope("s", 0));
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (buffer.getOpenSequenceCount() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+
+		assertEquals(0, buffer.getOpenSequenceCount());
+		assertEquals(1, buffer.getEvictedSequenceCount());
+
+		buffer.dispose();
+	}
+
+	@Test
+	public void a_position_far_past_the_window_evicts_the_sequence() throws Exception {
+
+		SequenceReassemblyBuffer<String> buffer = new SequenceReassemblyBuffer<String>(processor(-1));
+		final List<String> evicted = new ArrayList<String>();
+		buffer.setEvictionListener(new SequenceReassemblyBuffer.EvictionListener() {
+			@Override
+			public void sequenceEvicted(String sequenceId, Exception reason) {
+				evicted.add(sequenceId);
+			}
+		});
+
+		buffer.add(envelope("s", 0));
+
+		// would have grown the slot array to 2^31 - 1 entries
+		assertNull(buffer.add(envelope("s", Integer.MAX_VALUE - 1)));
+
+		assertEquals(Arrays.asList("s"), evicted);
+		assertEquals(0, buffer.getOpenSequenceCount());
+		assertEquals(0, buffer.getBufferedBytes());
+		assertNull("A straggler for the evicted sequence was kept.", buffer.add(envelope("s", 1)));
+
+		buffer.dispose();
+	}
+
+	@Test
+	public void the_window_is_measured_from_the_first_position_not_released() throws Exception {
+
+		SequenceReassemblyBuffer<String> buffer = new SequenceReassemblyBuffer<String>(processor(-1));
+		buffer.setMaxWindow(100);
+
+		assertNotNull(buffer.add(envelope("s", 99)));
+
+		for (int position = 0; position < 50; position++) {
+			buffer.add(envelope("s", position));
+		}
+		assertEquals(50, buffer.drainContiguous("s").size());
+
+		assertNotNull(buffer.add(envelope("s", 149)));
+		assertNull(buffer.add(envelope("s", 150)));
+		assertEquals(1, buffer.getEvictedSequenceCount());
+
+		buffer.dispose();
+	}
+
+	@Test
+	public void a_position_past_the_expected_size_evicts_the_sequence() throws Exception {
+
+		SequenceReassemblyBuffer<String> buffer = new SequenceReassemblyBuffer<String>(processor(-1));
+		buffer.setExpectedSize("s", 3);
+
+		for (int position = 0; position < 3; position++) {
+			assertNotNull(buffer.add(envelope("s", position)));
+		}
+
+		assertNull(buffer.add(envelope("s", 3)));
+		assertEquals(1, buffer.getEvictedSequenceCount());
+		assertNull(buffer.drain("s"));
+
+		buffer.dispose();
+	}
+
+	@Test
+	public void slot_arrays_count_towards_the_memory_budget() throws Exception {
+
+		SequenceReassemblyBuffer<String> buffer = new SequenceReassemblyBuffer<String>(processor(-1));
+
+		buffer.add(envelope("s", 1000));
+
+		// the payload, and a reference for each of the slots up to its position
+		long held = buffer.getBufferedBytes();
+		assertTrue(held >= "event 1000".length() + 1001 * 4);
+
+		// a sequence whose array alone fills its share spills its events
+		buffer.setMaxSequenceBytes(held);
+		buffer.add(envelope("s", 2000));
+		assertTrue(buffer.getSpilledBytes() > 0);
+
+		assertEquals(2, buffer.drain("s").size());
+		assertEquals(0, buffer.getBufferedBytes());
+		assertEquals(0, buffer.getSpilledBytes());
+
+		buffer.dispose();
+	}
+
+	@Test
+	public void spill_file_reuses_released_space() throws Exception {
+
+		MappedSpillFile spillFile = new MappedSpillFile(64);
+
+		long first = spillFile.write(new byte[40]);
+		long second = spillFile.write(new byte[40]);
+		long third = spillFile.write(new byte[40]);
+
+		spillFile.release(first, 40);
+		spillFile.release(second, 40);
+
+		// the merged extent is reused before the file grows
+		assertEquals(first, spillFile.write(new byte[70]));
+		assertEquals(120, spillFile.getUsedBytes());
+
+		spillFile.release(third, 40);
+		assertEquals(70, spillFile.getUsedBytes());
+
+		spillFile.close();
+	}
+
+	@Test
+	public void spill_file_does_not_grow_past_its_limit() throws Exception {
+
+		MappedSpillFile spillFile = new MappedSpillFile(64);
+		spillFile.setMaxBytes(100);
+
+		long first = spillFile.write(new byte[60]);
+
+		assertEquals(-1, spillFile.write(new byte[60]));
+
+		spillFile.release(first, 60);
+
+		assertEquals(0, spillFile.getUsedBytes());
+		assertEquals(0, spillFile.write(new byte[60]));
+
+		spillFile.close();
+	}
+}
@@ -0,0 +1,66 @@
+package amp.eventing.streaming;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import cmf.bus.Envelope;
+import cmf.eventing.IEventProducer;
+import cmf.eventing.patterns.streaming.StreamingEnvelopeConstants;
+
+public class StreamCreditGranterTest {
+
+	static Envelope event(String sequenceId, int position, int window) {
+
+		Envelope env = new Envelope();
+		env.setHeaders(new HashMap<String, String>());
+		env.setHeader(StreamingEnvelopeConstants.SEQUENCE_ID, sequenceId);
+		env.setHeader(StreamingEnvelopeConstants.POSITION, position + "");
+		env.setHeader(StreamingEnvelopeHelper.CREDIT_WINDOW, window + "");
+
+		return env;
+	}
+
+	@Test
+	public void credit_is_granted_every_half_window() throws Exception {
+
+		IEventProducer producer = mock(IEventProducer.class);
+		StreamCreditGranter granter = new StreamCreditGranter(producer, 0);
+
+		for (int position = 0; position < 4; position++) {
+			granter.onEventHandled(event("s", position, 4));
+		}
+
+		ArgumentCaptor<Object> credits = ArgumentCaptor.forClass(Object.class);
+		verify(producer, times(2)).publish(credits.capture());
+
+		List<Object> granted = credits.getAllValues();
+		assertEquals(6, ((StreamCredit) granted.get(0)).getLimit());
+		assertEquals(8, ((StreamCredit) granted.get(1)).getLimit());
+	}
+
+	@Test
+	public void redelivered_events_earn_no_credit() throws Exception {
+
+		IEventProducer producer = mock(IEventProducer.class);
+		StreamCreditGranter granter = new StreamCreditGranter(producer, 0);
+
+		granter.onEventHandled(event("s", 0, 4));
+		granter.onEventHandled(event("s", 1, 4));
+
+		// the same two again, then a third
+		granter.onEventHandled(event("s", 0, 4));
+		granter.onEventHandled(event("s", 1, 4));
+		granter.onEventHandled(event("s", 2, 4));
+
+		ArgumentCaptor<Object> credits = ArgumentCaptor.forClass(Object.class);
+		verify(producer, times(1)).publish(credits.capture());
+
+		assertEquals(6, ((StreamCredit) credits.getValue()).getLimit());
+	}
+}
@@ -0,0 +1,135 @@
+package amp.eventing.streaming;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class StreamCreditsTest {
+
+	/**
+	 * Waits for credit on another thread, returning once that thread is waiting.
+	 */
+	static Future<Boolean> awaitCredit(ExecutorService thread, final StreamCredits credits,
+			final String sequenceId, final int position) throws InterruptedException {
+
+		final AtomicReference<Thread> waiter = new AtomicReference<Thread>();
+		final CountDownLatch started = new CountDownLatch(1);
+
+		Future<Boolean> credited = thread.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				waiter.set(Thread.currentThread());
+				started.countDown();
+				return credits.awaitCredit(sequenceId, position, 60000);
+			}
+		});
+
+		started.await();
+		while (Thread.State.TIMED_WAITING != waiter.get().getState()) {
+			Thread.yield();
+		}
+
+		return credited;
+	}
+
+	@Test
+	public void a_stream_may_publish_its_first_window_before_any_grant() {
+
+		StreamCredits credits = new StreamCredits();
+		credits.open("s", 4);
+
+		assertTrue(credits.hasCredit("s", 3));
+		assertFalse(credits.hasCredit("s", 4));
+
+		// streams that aren't flow-controlled are never held up
+		assertTrue(credits.hasCredit("other", 1000));
+	}
+
+	@Test
+	public void the_lowest_limit_across_readers_wins() {
+
+		StreamCredits credits = new StreamCredits();
+		credits.open("s", 4);
+
+		credits.grant(new StreamCredit("s", "fast", 10));
+		assertTrue(credits.hasCredit("s", 9));
+
+		credits.grant(new StreamCredit("s", "slow", 6));
+		assertTrue(credits.hasCredit("s", 5));
+		assertFalse(credits.hasCredit("s", 6));
+
+		// a late, lower grant doesn't take credit back
+		credits.grant(new StreamCredit("s", "slow", 5));
+		assertTrue(credits.hasCredit("s", 5));
+
+		credits.grant(new StreamCredit("s", "slow", 12));
+		assertTrue(credits.hasCredit("s", 9));
+		assertFalse(credits.hasCredit("s", 10));
+	}
+
+	@Test
+	public void grants_for_streams_not_published_here_are_ignored() {
+
+		StreamCredits credits = new StreamCredits();
+		credits.grant(new StreamCredit("s", "reader", 1));
+		credits.open("s", 4);
+
+		assertTrue(credits.hasCredit("s", 3));
+	}
+
+	@Test(timeout = 10000)
+	public void a_waiter_resumes_when_credit_is_granted() throws Exception {
+
+		StreamCredits credits = new StreamCredits();
+		credits.open("s", 2);
+		ExecutorService thread = Executors.newSingleThreadExecutor();
+
+		try {
+			Future<Boolean> credited = awaitCredit(thread, credits, "s", 2);
+
+			credits.grant(new StreamCredit("s", "reader", 3));
+
+			assertTrue(credited.get(5, TimeUnit.SECONDS));
+		} finally {
+			thread.shutdownNow();
+		}
+	}
+
+	@Test
+	public void a_waiter_gives_up_at_the_timeout() throws Exception {
+
+		StreamCredits credits = new StreamCredits();
+		credits.open("s", 2);
+		credits.grant(new StreamCredit("s", "reader", 3));
+
+		long start = System.nanoTime();
+		assertFalse(credits.awaitCredit("s", 3, 50));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+	}
+
+	@Test(timeout = 10000)
+	public void closing_a_stream_wakes_its_waiters() throws Exception {
+
+		StreamCredits credits = new StreamCredits();
+		credits.open("s", 2);
+		ExecutorService thread = Executors.newSingleThreadExecutor();
+
+		try {
+			Future<Boolean> credited = awaitCredit(thread, credits, "s", 2);
+
+			credits.close("s");
+
+			assertFalse(credited.get(5, TimeUnit.SECONDS));
+		} finally {
+			thread.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package amp.eventing.streaming;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import amp.messaging.EnvelopeHelper;
+import amp.messaging.IInboundProcessorCallback;
+import cmf.bus.Envelope;
+import cmf.eventing.IEventProducer;
+import cmf.eventing.patterns.streaming.IStreamingReaderHandler;
+
+public class StreamingReaderRegistrationTest {
+
+	static Envelope endOfStream() {
+
+		Envelope env = new Envelope();
+		env.setHeaders(new HashMap<String, String>());
+		new EnvelopeHelper(env).setMessageType(EndOfStream.class.getCanonicalName());
+
+		return env;
+	}
+
+	static Envelope event(String sequenceId, int position) {
+
+		Envelope env = StreamCreditGranterTest.event(sequenceId, position, 4);
+		new EnvelopeHelper(env).setMessageType(String.class.getCanonicalName());
+
+		return env;
+	}
+
+	/**
+	 * Processes the end of stream into an EndOfStream, and anything else into a string.
+	 */
+	static IInboundProcessorCallback processor(final String sequenceId) throws Exception {
+
+		IInboundProcessorCallback processor = mock(IInboundProcessorCallback.class);
+
+		when(processor.ProcessInbound(any(Envelope.class))).thenAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+
+				Envelope env = (Envelope) invocation.getArguments()[0];
+
+				return EndOfStream.class.getCanonicalName().equals(new EnvelopeHelper(env).getMessageType())
+					? new EndOfStream("topic", sequenceId)
+					: "event";
+			}
+		});
+
+		return processor;
+	}
+
+	@SuppressWarnings("unchecked")
+	static IStreamingReaderHandler<String> handler() {
+
+		IStreamingReaderHandler<String> handler = mock(IStreamingReaderHandler.class);
+		when(handler.getEventType()).thenReturn(String.class);
+
+		return handler;
+	}
+
+	@Test
+	public void the_end_of_a_stream_lets_the_granter_forget_it() throws Exception {
+
+		IEventProducer producer = mock(IEventProducer.class);
+		IStreamingReaderHandler<String> handler = handler();
+
+		StreamingReaderRegistration<String> registration =
+			new StreamingReaderRegistration<String>(handler, processor("s"));
+		registration.setCreditGranter(new StreamCreditGranter(producer, 0));
+
+		registration.handle(event("s", 0));
+		registration.handle(event("s", 1));
+		verify(producer, times(1)).publish(any());
+
+		registration.handle(endOfStream());
+		verify(handler).dispose();
+
+		// forgotten, so the same positions count afresh rather than as redeliveries
+		registration.handle(event("s", 0));
+		registration.handle(event("s", 1));
+		verify(producer, times(2)).publish(any());
+	}
+}
@@ -0,0 +1,102 @@
+package amp.messaging;
+
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Running totals of what one payload codec has encoded and decoded, for
+ * comparing the size and cost of codecs on real traffic.
+ */
+public class CodecStats {
+
+    private final String contentType;
+
+    private final AtomicLong encodeCount = new AtomicLong();
+    private final AtomicLong encodedBytes = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+
+    private final AtomicLong decodeCount = new AtomicLong();
+    private final AtomicLong decodedBytes = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+
+
+    public CodecStats(String contentType) {
+        this.contentType = contentType;
+    }
+
+
+    public void recordEncode(int bytes, long nanos) {
+        encodeCount.incrementAndGet();
+        encodedBytes.addAndGet(bytes);
+        encodeNanos.addAndGet(nanos);
+    }
+
+    public void recordDecode(int bytes, long nanos) {
+        decodeCount.incrementAndGet();
+        decodedBytes.addAndGet(bytes);
+        decodeNanos.addAndGet(nanos);
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public long getEncodeCount() {
+        return encodeCount.get();
+    }
+
+    public long getEncodedBytes() {
+        return encodedBytes.get();
+    }
+
+    public long getEncodeNanos() {
+        return encodeNanos.get();
+    }
+
+    public long getDecodeCount() {
+        return decodeCount.get();
+    }
+
+    public long getDecodedBytes() {
+        return decodedBytes.get();
+    }
+
+    public long getDecodeNanos() {
+        return decodeNanos.get();
+    }
+
+    /**
+     * @return mean size of an encoded payload, in bytes
+     */
+    public double getMeanEncodedSize() {
+        return mean(encodedBytes.get(), encodeCount.get());
+    }
+
+    /**
+     * @return mean time to encode a message, in microseconds
+     */
+    public double getMeanEncodeMicros() {
+        return mean(encodeNanos.get(), encodeCount.get()) / TimeUnit.MICROSECONDS.toNanos(1);
+    }
+
+    /**
+     * @return mean time to decode a message, in microseconds
+     */
+    public double getMeanDecodeMicros() {
+        return mean(decodeNanos.get(), decodeCount.get()) / TimeUnit.MICROSECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: encoded=%d (mean %.0f bytes, %.1f us) decoded=%d (mean %.1f us)",
+                contentType, getEncodeCount(), getMeanEncodedSize(), getMeanEncodeMicros(),
+                getDecodeCount(), getMeanDecodeMicros());
+    }
+
+
+    private static double mean(long total, long count) {
+        return (0 == count) ? 0 : (double) total / count;
+    }
+}
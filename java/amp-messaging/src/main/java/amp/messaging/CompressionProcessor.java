@@ -0,0 +1,56 @@
+package amp.messaging;
+
+
+import amp.bus.PayloadCompressor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Compresses outbound payloads above a size threshold and decompresses
+ * inbound ones, using a {@link PayloadCompressor}.  Being a message
+ * processor, it works on the serialized payload: put it after the
+ * serialization processor in the outbound chain and before it in the
+ * inbound chain.
+ */
+public class CompressionProcessor implements IMessageProcessor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompressionProcessor.class);
+
+    protected final PayloadCompressor compressor;
+
+
+    public CompressionProcessor() {
+        this(new PayloadCompressor());
+    }
+
+    public CompressionProcessor(PayloadCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+
+    public PayloadCompressor getCompressor() {
+        return compressor;
+    }
+
+    @Override
+    public void processMessage(MessageContext context, IContinuationCallback next) throws MessageException {
+
+        if (MessageContext.Directions.Out == context.getDirection()) {
+
+            compressor.compress(context.getEnvelope());
+
+        } else if (MessageContext.Directions.In == context.getDirection()) {
+
+            try {
+                compressor.decompress(context.getEnvelope());
+            } catch (Exception ex) {
+                String message = "Failed to decompress an incoming message.";
+                LOG.error(message, ex);
+                throw new MessageException(message, ex);
+            }
+        }
+
+        next.continueProcessing();
+    }
+}
@@ -1,6 +1,7 @@
 package amp.messaging;
 
 
+import amp.bus.ExtendedHeaderConstants;
 import cmf.bus.Envelope;
 import cmf.bus.EnvelopeHeaderConstants;
 import org.apache.commons.codec.binary.Base64;
@@ -45,6 +46,10 @@ public class EnvelopeHelper {
         return sb.toString();
     }
 
+    public String getContentType() {
+        return env.getHeader(ExtendedHeaderConstants.MESSAGE_CONTENT_TYPE);
+    }
+
     public UUID getCorrelationId() {
         UUID cid = null;
 
@@ -121,6 +126,10 @@ public class EnvelopeHelper {
         return new DateTime(Long.parseLong(receiptTicks));
     }
 
+    public String getReplyTo() {
+        return env.getHeader(ExtendedHeaderConstants.MESSAGE_REPLY_TO);
+    }
+
     public Duration getRpcTimeout() {
         String timeString = env.getHeader(EnvelopeHeaderConstants.MESSAGE_PATTERN_RPC_TIMEOUT);
         if (null == timeString) {
@@ -131,6 +140,10 @@ public class EnvelopeHelper {
         return new Duration(totalMilliseconds);
     }
 
+    public String getSignatureAlgorithm() {
+        return env.getHeader(ExtendedHeaderConstants.MESSAGE_SENDER_SIGNATURE_ALGORITHM);
+    }
+
     public String getSenderIdentity() {
         return env.getHeader(EnvelopeHeaderConstants.MESSAGE_SENDER_IDENTITY);
     }
@@ -153,6 +166,11 @@ public class EnvelopeHelper {
                         .getHeader(EnvelopeHeaderConstants.MESSAGE_PATTERN));
     }
 
+    public EnvelopeHelper setContentType(String contentType) {
+        env.setHeader(ExtendedHeaderConstants.MESSAGE_CONTENT_TYPE, contentType);
+        return this;
+    }
+
     public EnvelopeHelper setCorrelationId(UUID cid) {
         env.setHeader(EnvelopeHeaderConstants.MESSAGE_CORRELATION_ID, cid.toString());
         return this;
@@ -203,11 +221,21 @@ public class EnvelopeHelper {
         return this;
     }
 
+    public EnvelopeHelper setReplyTo(String topic) {
+        env.setHeader(ExtendedHeaderConstants.MESSAGE_REPLY_TO, topic);
+        return this;
+    }
+
     public EnvelopeHelper setRpcTimeout(Duration timeout) {
         env.setHeader(EnvelopeHeaderConstants.MESSAGE_PATTERN_RPC_TIMEOUT, Long.toString(timeout.getMillis()));
         return this;
     }
 
+    public EnvelopeHelper setSignatureAlgorithm(String algorithm) {
+        env.setHeader(ExtendedHeaderConstants.MESSAGE_SENDER_SIGNATURE_ALGORITHM, algorithm);
+        return this;
+    }
+
     public EnvelopeHelper setSenderIdentity(String distinguishedName) {
         env.setHeader(EnvelopeHeaderConstants.MESSAGE_SENDER_IDENTITY, distinguishedName);
         return this;
@@ -0,0 +1,19 @@
+package amp.messaging;
+
+
+/**
+ * Turns messages into envelope payloads and back.  The codec an envelope
+ * was encoded with is named by its content type header, so receivers can
+ * decode whatever their senders chose.  Implementations must be thread-safe.
+ */
+public interface IPayloadCodec {
+
+    /**
+     * @return the value of the content type header for payloads this codec encodes
+     */
+    String getContentType();
+
+    byte[] encode(Object message) throws Exception;
+
+    Object decode(byte[] payload, Class<?> type) throws Exception;
+}
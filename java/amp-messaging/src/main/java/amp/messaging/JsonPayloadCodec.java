@@ -0,0 +1,184 @@
+package amp.messaging;
+
+
+import java.io.EOFException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.gson.ExclusionStrategy;
+import com.google.gson.FieldAttributes;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import amp.utility.serialization.Utf8ByteArrayReader;
+import amp.utility.serialization.Utf8ByteArrayWriter;
+
+
+/**
+ * Encodes messages as UTF-8 JSON, the format every AMP client understands.
+ * Payloads are streamed between their bytes and Gson without an
+ * intermediate String.
+ */
+public class JsonPayloadCodec implements IPayloadCodec {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JsonPayloadCodec.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final String CONTENT_TYPE = "application/json";
+
+
+    private static class DotNetTypeExclusionStrategy implements ExclusionStrategy {
+
+        @Override
+        public boolean shouldSkipClass(Class<?> arg0) {
+            return false; // don't skip any classes
+        }
+
+        @Override
+        public boolean shouldSkipField(FieldAttributes arg0) {
+            return "$type".equals(arg0.getName()); // ignore fields named $type which may be added by the dotnet serializer
+        }
+
+    }
+
+
+    private static class GsonIgnoreExclusionStrategy implements ExclusionStrategy {
+        private final Class<?> typeToSkip;
+
+        private GsonIgnoreExclusionStrategy(Class<?> typeToSkip) {
+            this.typeToSkip = typeToSkip;
+        }
+
+        @Override
+        public boolean shouldSkipField(FieldAttributes f) {
+            return f.getAnnotation(GsonIgnore.class) != null;
+        }
+
+        @Override
+        public boolean shouldSkipClass(Class<?> clazz) {
+            return (clazz == typeToSkip);
+        }
+    }
+
+
+    private final Gson gson;
+
+    /**
+     * adapters by message class; Gson's own cache is a synchronized map
+     */
+    private final ConcurrentMap<Class<?>, TypeAdapter<?>> adapters =
+            new ConcurrentHashMap<Class<?>, TypeAdapter<?>>();
+
+
+    public JsonPayloadCodec() {
+        this(createGson());
+    }
+
+    public JsonPayloadCodec(Gson gson) {
+        this.gson = gson;
+    }
+
+
+    /**
+     * @return a Gson configured the way AMP messages are (de)serialized
+     */
+    public static Gson createGson() {
+
+        return new GsonBuilder()
+                .enableComplexMapKeySerialization()
+                .setExclusionStrategies(
+                        new DotNetTypeExclusionStrategy(),
+                        new GsonIgnoreExclusionStrategy(GsonIgnore.class)
+                ).create();
+    }
+
+    public Gson getGson() {
+        return gson;
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    /**
+     * Write the message straight to bytes, as Gson.toJson does to a String.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public byte[] encode(Object message) throws Exception {
+
+        Utf8ByteArrayWriter bytes = new Utf8ByteArrayWriter();
+
+        JsonWriter writer = new JsonWriter(bytes);
+        writer.setLenient(true);
+        writer.setHtmlSafe(true);
+        writer.setSerializeNulls(false);
+
+        if (null == message) {
+            writer.nullValue();
+        } else {
+            ((TypeAdapter<Object>) this.getAdapter(message.getClass())).write(writer, message);
+        }
+
+        writer.flush();
+
+        byte[] payload = bytes.toByteArray();
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Serialized message: " + new String(payload, UTF_8));
+        }
+
+        return payload;
+    }
+
+    /**
+     * Parse the payload straight from its bytes, as Gson.fromJson does from a String.
+     */
+    @Override
+    public Object decode(byte[] payload, Class<?> type) throws Exception {
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Will deserialize into a message: " + new String(payload, UTF_8));
+        }
+
+        JsonReader reader = new JsonReader(new Utf8ByteArrayReader(payload));
+        reader.setLenient(true);
+
+        try {
+            reader.peek();
+        } catch (EOFException ex) {
+            // an empty payload is a null message
+            return null;
+        }
+
+        Object message = this.getAdapter(type).read(reader);
+
+        if (JsonToken.END_DOCUMENT != reader.peek()) {
+            throw new JsonIOException("JSON document was not fully consumed.");
+        }
+
+        return message;
+    }
+
+
+    protected TypeAdapter<?> getAdapter(Class<?> type) {
+
+        TypeAdapter<?> adapter = adapters.get(type);
+
+        if (null == adapter) {
+            adapter = gson.getAdapter(type);
+            adapters.put(type, adapter);
+        }
+
+        return adapter;
+    }
+}
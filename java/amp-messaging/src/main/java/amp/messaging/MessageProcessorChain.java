@@ -17,46 +17,61 @@ public class MessageProcessorChain implements IMessageProcessor {
 
 	private static final Logger LOG = LoggerFactory.getLogger(MessageProcessorChain.class);
 
-    private List<IMessageProcessor> _processingChain;
+    private static final IMessageProcessor[] EMPTY = new IMessageProcessor[0];
+
+    private final IMessageProcessor[] _processingChain;
 	
+    /**
+     * Compile the chain into an array; later changes to the list are not seen.
+     * @param processorChain Processors in the order they should run; may be null
+     */
     public MessageProcessorChain(List<IMessageProcessor> processorChain) {
-        _processingChain = processorChain;
+        _processingChain = (null == processorChain)
+                ? EMPTY
+                : processorChain.toArray(new IMessageProcessor[processorChain.size()]);
     }
     
 	@Override
 	public void processMessage(MessageContext context, IContinuationCallback onComplete) throws MessageException {
-        LOG.debug("Enter processMessage - Direction: " + context.getDirection().toString());
-		processMessage(context,_processingChain, onComplete);
-        LOG.debug("Leave processMessage - Direction: " + context.getDirection().toString());
-	}
-	
-    private void processMessage(
-            final MessageContext context,
-            final List<IMessageProcessor> processingChain,
-            final IContinuationCallback onComplete) throws MessageException {
+        LOG.debug("Enter processMessage - Direction: {}", context.getDirection());
 
-
-        // if the chain is null or empty, complete processing
-        if ( (null == processingChain) || (0 == processingChain.size()) ) {
-            LOG.debug("Message processing complete. Direction: " + context.getDirection().toString());
+        // a single cursor walks the message through every processor, in order
+        if (0 == _processingChain.length) {
             onComplete.continueProcessing();
-            return;
+        }
+        else {
+            new Cursor(context, onComplete).continueProcessing();
         }
 
-        // get the first processor
-        IMessageProcessor processor = processingChain.get(0);
+        LOG.debug("Leave processMessage - Direction: {}", context.getDirection());
+	}
 
-        // create a processing chain that no longer contains this processor
-        final List<IMessageProcessor> newChain = processingChain.subList(1, processingChain.size());
+    /**
+     * Continuation handed to each processor in turn; moves the message to the
+     * next processor, or completes processing after the last one.  Processors
+     * that don't call it stop the message, and must call it at most once.
+     */
+    private final class Cursor implements IContinuationCallback {
 
-        // let it process the event and pass its "next" processor: a method that
-        // recursively calls this function with the current processor removed
-        processor.processMessage(context, new IContinuationCallback() {
+        private final MessageContext context;
+        private final IContinuationCallback onComplete;
+        private int next;
 
-            @Override
-            public void continueProcessing() throws MessageException {
-                processMessage(context, newChain, onComplete);
+        Cursor(MessageContext context, IContinuationCallback onComplete) {
+            this.context = context;
+            this.onComplete = onComplete;
+        }
+
+        @Override
+        public void continueProcessing() throws MessageException {
+
+            if (next < _processingChain.length) {
+                _processingChain[next++].processMessage(context, this);
             }
-        });
+            else {
+                LOG.debug("Message processing complete. Direction: {}", context.getDirection());
+                onComplete.continueProcessing();
+            }
+        }
     }
 }
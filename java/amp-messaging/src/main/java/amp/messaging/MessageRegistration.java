@@ -5,6 +5,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import amp.bus.DeferredOutcome;
 import cmf.bus.Envelope;
 import cmf.bus.EnvelopeHeaderConstants;
 import cmf.bus.IEnvelopeFilterPredicate;
@@ -55,18 +56,37 @@ public class MessageRegistration implements IRegistration {
 
         LOG.debug("Enter MessageRegistration # handle( Envelope env )");
 
+        // the handler's outcome, since it can't be assigned within the continuation
+        final Object[] outcome = new Object[1];
+
         try {
             // create a context to send through the processors
             final MessageContext ctx = new MessageContext(MessageContext.Directions.In, env);
 
+            // processors may finish on another thread, as long as they keep
+            // this registration's envelopes in order; the transport consumes
+            // each of its queues on its own listener, so that keeps each queue's
+            DeferredOutcome.allowDeferral(ctx.getContext(), this);
+
             _processor.processMessage(ctx, new IContinuationCallback() {
 
                 @Override
                 public void continueProcessing() throws MessageException {
-                    _handler.handle(ctx.getMessage(), env.getHeaders());
+
+                    outcome[0] = _handler.handle(ctx.getMessage(), env.getHeaders());
+
+                    // if a processor deferred, it completes the outcome with this
+                    DeferredOutcome deferred = DeferredOutcome.getDeferred(ctx.getContext());
+                    if (null != deferred) {
+                        deferred.setResult(outcome[0]);
+                    }
                 }
             });
 
+            DeferredOutcome deferred = DeferredOutcome.getDeferred(ctx.getContext());
+            if (null != deferred) {
+                return deferred;
+            }
         }
         catch (MessageException ex) {
             String message = "Failed to process an incoming envelope.";
@@ -74,7 +94,7 @@ public class MessageRegistration implements IRegistration {
             throw new Exception(message, ex);
         }
 
-        return null;
+        return outcome[0];
     }
 
     @Override
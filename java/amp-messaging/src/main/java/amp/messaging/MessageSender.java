@@ -1,9 +1,13 @@
 package amp.messaging;
 
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import amp.bus.IBatchEnvelopeSender;
 import cmf.bus.Envelope;
 import cmf.bus.IEnvelopeSender;
 import org.slf4j.Logger;
@@ -83,6 +87,75 @@ public class MessageSender {
         LOG.debug("Leave send");
     }
 
+    public void sendAll(Collection<?> messages) throws MessageException {
+
+        this.sendAll(messages, null);
+    }
+
+    /**
+     * Send a batch of messages.  Each message goes through the processor
+     * chain on its own; the resulting envelopes are then sent together if the
+     * envelope sender supports batches, or one at a time if it does not.
+     * @param messages Messages to send
+     * @param headers Headers to start each message's envelope with (copied per message); may be null
+     */
+    public void sendAll(Collection<?> messages, Map<String, String> headers) throws MessageException {
+
+        if (null == messages) { throw new IllegalArgumentException("Cannot send a null collection of messages."); }
+        for (Object message : messages) {
+            if (null == message) { throw new IllegalArgumentException("Cannot send a null message."); }
+        }
+        LOG.debug("Enter sendAll");
+
+        final List<Envelope> envelopes = new ArrayList<Envelope>(messages.size());
+
+        try {
+
+            for (Object message : messages) {
+
+                final Envelope envelope = new Envelope();
+                final MessageContext context = new MessageContext(MessageContext.Directions.Out, envelope, message);
+
+                // every envelope needs its own copy of the headers
+                if (null != headers) { envelope.setHeaders(new HashMap<String, String>(headers)); }
+
+                _messageProcessor.processMessage(context, new IContinuationCallback() {
+
+                    @Override
+                    public void continueProcessing() throws MessageException {
+                        envelopes.add(context.getEnvelope());
+                    }
+                });
+            }
+        }
+        catch(Exception ex) {
+            String warning = "Caught an exception while processing message.";
+            LOG.warn(warning, ex);
+            throw new MessageException(warning, ex);
+        }
+
+        try {
+
+            if (_envelopeSender instanceof IBatchEnvelopeSender) {
+
+                ((IBatchEnvelopeSender) _envelopeSender).sendAll(envelopes);
+
+            } else {
+
+                for (Envelope envelope : envelopes) {
+                    _envelopeSender.send(envelope);
+                }
+            }
+        }
+        catch (Exception ex) {
+            String error = "Failed to send envelopes containing messages.";
+            LOG.error(error, ex);
+            throw new MessageException(error, ex);
+        }
+
+        LOG.debug("Leave sendAll");
+    }
+
     public void dispose() {
     }
 }
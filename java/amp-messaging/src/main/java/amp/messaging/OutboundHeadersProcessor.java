@@ -40,7 +40,8 @@ public class OutboundHeadersProcessor implements IMessageProcessor {
 
             String messageTopic = env.getMessageTopic();
             messageTopic = StringUtils.isBlank(messageTopic) ? this.getMessageTopic(context.getMessage()) : messageTopic;
-            if (null != correlationId)
+            // responses addressed to a reply-to topic go to exactly that topic
+            if (null != correlationId && null == env.getReplyTo())
             {
                 messageTopic = messageTopic + "#" + correlationId.toString();
             }
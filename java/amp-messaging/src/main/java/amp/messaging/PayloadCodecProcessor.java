@@ -0,0 +1,230 @@
+package amp.messaging;
+
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import cmf.bus.Envelope;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Serializes messages with one of several payload codecs and records the
+ * codec's content type in the envelope.
+ * <p>
+ * Outbound, the codec is chosen by the message's type, then by its topic,
+ * falling back to the default codec.  Inbound, the codec is the one named
+ * by the envelope's content type, or JSON if there is none, so senders
+ * may switch codecs without their receivers being reconfigured as long as
+ * the receivers know the codec.
+ * </p>
+ */
+public class PayloadCodecProcessor implements IMessageProcessor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PayloadCodecProcessor.class);
+
+    protected final IPayloadCodec defaultCodec;
+    protected final Map<String, IPayloadCodec> codecs = new LinkedHashMap<String, IPayloadCodec>();
+    protected final Map<String, CodecStats> stats = new LinkedHashMap<String, CodecStats>();
+
+    protected Map<String, String> contentTypesByMessageType = Collections.emptyMap();
+    protected Map<String, String> contentTypesByTopic = Collections.emptyMap();
+
+    /**
+     * message classes by type name, so inbound messages skip Class.forName
+     */
+    private final ConcurrentMap<String, Class<?>> types = new ConcurrentHashMap<String, Class<?>>();
+
+
+    /**
+     * @param defaultCodec codec for outbound messages not otherwise configured
+     * @param otherCodecs further codecs that may be chosen, or used by senders
+     */
+    public PayloadCodecProcessor(IPayloadCodec defaultCodec, IPayloadCodec... otherCodecs) {
+
+        this.defaultCodec = defaultCodec;
+        this.addCodec(defaultCodec);
+
+        for (IPayloadCodec codec : otherCodecs) {
+            this.addCodec(codec);
+        }
+    }
+
+    public PayloadCodecProcessor(IPayloadCodec defaultCodec, List<IPayloadCodec> otherCodecs) {
+        this(defaultCodec, otherCodecs.toArray(new IPayloadCodec[otherCodecs.size()]));
+    }
+
+
+    /**
+     * @param contentTypesByMessageType content type to send each message type with
+     */
+    public void setContentTypesByMessageType(Map<String, String> contentTypesByMessageType) {
+        this.contentTypesByMessageType = this.validate(contentTypesByMessageType);
+    }
+
+    /**
+     * @param contentTypesByTopic content type to send messages on each topic with
+     */
+    public void setContentTypesByTopic(Map<String, String> contentTypesByTopic) {
+        this.contentTypesByTopic = this.validate(contentTypesByTopic);
+    }
+
+    /**
+     * @return statistics for the codec of the given content type, or null if there is no such codec
+     */
+    public CodecStats getStats(String contentType) {
+        return stats.get(contentType);
+    }
+
+    /**
+     * @return statistics for every codec
+     */
+    public Collection<CodecStats> getStats() {
+        return Collections.unmodifiableCollection(stats.values());
+    }
+
+
+    @Override
+    public void processMessage(MessageContext context, IContinuationCallback next) throws MessageException {
+
+        if (MessageContext.Directions.In == context.getDirection()) {
+            this.processInbound(context, next);
+        }
+        else if (MessageContext.Directions.Out == context.getDirection()) {
+            this.processOutbound(context, next);
+        }
+    }
+
+    public void processInbound(MessageContext context, IContinuationCallback next) throws MessageException {
+
+        EnvelopeHelper env = new EnvelopeHelper(context.getEnvelope());
+
+        try {
+            String contentType = env.getContentType();
+            IPayloadCodec codec = this.getCodec(StringUtils.isBlank(contentType) ? JsonPayloadCodec.CONTENT_TYPE : contentType);
+
+            Class<?> type = this.getType(env.getMessageType());
+            byte[] payload = env.getPayload();
+
+            long start = System.nanoTime();
+            Object message = codec.decode(payload, type);
+            stats.get(codec.getContentType()).recordDecode(payload.length, System.nanoTime() - start);
+
+            context.setMessage(message);
+
+            next.continueProcessing();
+        }
+        catch (Exception ex) {
+            String message = "Failed to deserialize an incoming message.";
+            LOG.error(message, ex);
+            throw new MessageException(message, ex);
+        }
+    }
+
+    public void processOutbound(MessageContext context, IContinuationCallback next) throws MessageException {
+
+        Envelope env = context.getEnvelope();
+
+        try {
+            IPayloadCodec codec = this.selectCodec(context);
+
+            long start = System.nanoTime();
+            byte[] payload = codec.encode(context.getMessage());
+            stats.get(codec.getContentType()).recordEncode(payload.length, System.nanoTime() - start);
+
+            env.setPayload(payload);
+            new EnvelopeHelper(env).setContentType(codec.getContentType());
+
+            next.continueProcessing();
+        }
+        catch (Exception ex) {
+            String message = "Failed to serialize an outgoing message.";
+            LOG.error(message, ex);
+            throw new MessageException(message, ex);
+        }
+    }
+
+
+    protected IPayloadCodec selectCodec(MessageContext context) {
+
+        Object message = context.getMessage();
+
+        if (null == message) {
+            return defaultCodec;
+        }
+
+        EnvelopeHelper env = new EnvelopeHelper(context.getEnvelope());
+        Message metadata = message.getClass().getAnnotation(Message.class);
+
+        String contentType = null;
+
+        if (!contentTypesByMessageType.isEmpty()) {
+
+            // the same type the outbound headers processor will give the envelope
+            String messageType = env.getMessageType();
+            if (StringUtils.isBlank(messageType)) {
+                messageType = (null == metadata) ? message.getClass().getCanonicalName() : metadata.type();
+            }
+
+            contentType = contentTypesByMessageType.get(messageType);
+        }
+
+        if (null == contentType && !contentTypesByTopic.isEmpty()) {
+
+            String topic = env.getMessageTopic();
+            if (StringUtils.isBlank(topic)) {
+                topic = (null == metadata) ? message.getClass().getCanonicalName() : metadata.topic();
+            }
+
+            contentType = contentTypesByTopic.get(topic);
+        }
+
+        return (null == contentType) ? defaultCodec : codecs.get(contentType);
+    }
+
+    protected IPayloadCodec getCodec(String contentType) {
+
+        IPayloadCodec codec = codecs.get(contentType);
+
+        if (null == codec) {
+            throw new IllegalArgumentException("No payload codec for content type " + contentType);
+        }
+
+        return codec;
+    }
+
+    protected Class<?> getType(String typeName) throws ClassNotFoundException {
+
+        Class<?> type = types.get(typeName);
+
+        if (null == type) {
+            type = Class.forName(typeName);
+            types.put(typeName, type);
+        }
+
+        return type;
+    }
+
+
+    private void addCodec(IPayloadCodec codec) {
+        codecs.put(codec.getContentType(), codec);
+        stats.put(codec.getContentType(), new CodecStats(codec.getContentType()));
+    }
+
+    private Map<String, String> validate(Map<String, String> contentTypes) {
+
+        for (String contentType : contentTypes.values()) {
+            this.getCodec(contentType);
+        }
+
+        return new HashMap<String, String>(contentTypes);
+    }
+}
@@ -0,0 +1,342 @@
+package amp.messaging;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class MessagePackPayloadCodecTest {
+
+	final MessagePackPayloadCodec codec = new MessagePackPayloadCodec();
+
+	static class Numbers {
+		int i;
+		long l;
+		double d;
+		float f;
+		BigDecimal decimal;
+		BigInteger big;
+	}
+
+	static class Nested {
+		String name;
+		List<Integer> values;
+		Map<String, List<String>> groups;
+		Nested child;
+		Object[] empty;
+	}
+
+	/**
+	 * What a sensor might report every second.
+	 */
+	static class Telemetry {
+		String sensorId = "sensor-0042";
+		long timestamp = 1381234567890L;
+		double latitude = 38.8977;
+		double longitude = -77.0365;
+		int altitude = 125;
+		double speed = 12.5;
+		int heading = 270;
+		int[] readings = { 3, 17, 250, 1024, 65000, -4, 0, 99 };
+		boolean healthy = true;
+		String status = "OK";
+	}
+
+	static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+
+	Object roundTrip(Object message) throws Exception {
+		return codec.decode(codec.encode(message), message.getClass());
+	}
+
+	void assertLongEncoding(long value, int firstByte, int length) throws Exception {
+
+		byte[] payload = codec.encode(Long.valueOf(value));
+
+		assertEquals("type of " + value, firstByte, payload[0] & 0xFF);
+		assertEquals("length of " + value, length, payload.length);
+		assertEquals(Long.valueOf(value), codec.decode(payload, Long.class));
+	}
+
+	@Test
+	public void integers_are_written_in_the_narrowest_type_that_holds_them() throws Exception {
+
+		// positive fixint, then uint 8/16/32/64
+		assertLongEncoding(0, 0x00, 1);
+		assertLongEncoding(127, 0x7F, 1);
+		assertLongEncoding(128, 0xCC, 2);
+		assertLongEncoding(255, 0xCC, 2);
+		assertLongEncoding(256, 0xCD, 3);
+		assertLongEncoding(65535, 0xCD, 3);
+		assertLongEncoding(65536, 0xCE, 5);
+		assertLongEncoding(0xFFFFFFFFL, 0xCE, 5);
+		assertLongEncoding(0x100000000L, 0xCF, 9);
+		assertLongEncoding(Long.MAX_VALUE, 0xCF, 9);
+
+		// negative fixint, then int 8/16/32/64
+		assertLongEncoding(-1, 0xFF, 1);
+		assertLongEncoding(-32, 0xE0, 1);
+		assertLongEncoding(-33, 0xD0, 2);
+		assertLongEncoding(Byte.MIN_VALUE, 0xD0, 2);
+		assertLongEncoding(Byte.MIN_VALUE - 1, 0xD1, 3);
+		assertLongEncoding(Short.MIN_VALUE, 0xD1, 3);
+		assertLongEncoding(Short.MIN_VALUE - 1, 0xD2, 5);
+		assertLongEncoding(Integer.MIN_VALUE, 0xD2, 5);
+		assertLongEncoding(Integer.MIN_VALUE - 1L, 0xD3, 9);
+		assertLongEncoding(Long.MIN_VALUE, 0xD3, 9);
+	}
+
+	@Test
+	public void uint64_values_past_the_range_of_a_long_read_as_big_integers() throws Exception {
+
+		byte[] max = bytes(0xCF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF);
+		assertEquals(BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE), codec.decode(max, BigInteger.class));
+
+		byte[] high = bytes(0xCF, 0x80, 0, 0, 0, 0, 0, 0, 0);
+		assertEquals(BigInteger.ONE.shiftLeft(63), codec.decode(high, BigInteger.class));
+	}
+
+	@Test
+	public void numbers_of_every_kind_round_trip() throws Exception {
+
+		Numbers numbers = new Numbers();
+		numbers.i = Integer.MIN_VALUE;
+		numbers.l = Long.MAX_VALUE;
+		numbers.d = 0.1;
+		numbers.f = 1.5f;
+		numbers.decimal = new BigDecimal("12345678901234567890.000000000000000001");
+		numbers.big = BigInteger.ONE.shiftLeft(100).negate();
+
+		Numbers read = (Numbers) roundTrip(numbers);
+
+		assertEquals(numbers.i, read.i);
+		assertEquals(numbers.l, read.l);
+		assertEquals(numbers.d, read.d, 0.0);
+		assertEquals(numbers.f, read.f, 0.0f);
+		assertEquals(numbers.decimal, read.decimal);
+		assertEquals(numbers.big, read.big);
+	}
+
+	@Test
+	public void doubles_keep_their_exact_value() throws Exception {
+
+		double[] values = {
+			3.0, -3.0, 1e300, -1e-300, 0.1, 1.5, Double.MAX_VALUE, Double.MIN_VALUE,
+			(double) (1L << 53), (double) (1L << 53) + 2, Double.POSITIVE_INFINITY };
+
+		for (double value : values) {
+			byte[] payload = bytes(0xCB, 0, 0, 0, 0, 0, 0, 0, 0);
+			long bits = Double.doubleToLongBits(value);
+			for (int i = 0; i < 8; i++) {
+				payload[1 + i] = (byte) (bits >>> (56 - 8 * i));
+			}
+
+			// read the wide form, then check the narrowest form reads back the same
+			Double read = (Double) codec.decode(payload, Double.class);
+			assertEquals(value, read, 0.0);
+
+			if (!Double.isInfinite(value)) {
+				assertEquals(value, (Double) roundTrip(Double.valueOf(value)), 0.0);
+			}
+		}
+
+		// whole doubles are written as integers
+		assertEquals(1, codec.encode(Double.valueOf(3.0)).length);
+	}
+
+	@Test
+	public void negative_zero_keeps_its_sign() throws Exception {
+
+		byte[] payload = codec.encode(Double.valueOf(-0.0));
+		Double read = (Double) codec.decode(payload, Double.class);
+
+		assertEquals(Double.doubleToLongBits(-0.0), Double.doubleToLongBits(read));
+	}
+
+	@Test
+	public void nan_is_read_but_not_written_as_with_json() throws Exception {
+
+		byte[] nan = bytes(0xCB, 0x7F, 0xF8, 0, 0, 0, 0, 0, 0);
+		assertTrue(Double.isNaN((Double) codec.decode(nan, Double.class)));
+
+		byte[] floatNan = bytes(0xCA, 0x7F, 0xC0, 0, 0);
+		assertTrue(Double.isNaN((Double) codec.decode(floatNan, Double.class)));
+
+		// Gson rejects NaN unless told otherwise, whichever codec writes it
+		try {
+			codec.encode(Double.valueOf(Double.NaN));
+			fail("NaN was encoded");
+		} catch (IllegalArgumentException expected) {
+		}
+		try {
+			new JsonPayloadCodec().encode(Double.valueOf(Double.NaN));
+			fail("NaN was encoded");
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	@Test
+	public void nested_maps_and_arrays_round_trip() throws Exception {
+
+		Nested nested = new Nested();
+		nested.name = "parent";
+		nested.values = new ArrayList<Integer>();
+		for (int i = 0; i < 20; i++) {
+			nested.values.add(i * 1000);
+		}
+		nested.groups = new LinkedHashMap<String, List<String>>();
+		for (int i = 0; i < 17; i++) {
+			nested.groups.put("group" + i, Arrays.asList("a" + i, "b" + i));
+		}
+		nested.child = new Nested();
+		nested.child.name = "child";
+		nested.child.values = new ArrayList<Integer>();
+		nested.child.groups = new LinkedHashMap<String, List<String>>();
+		nested.empty = new Object[0];
+
+		Nested read = (Nested) roundTrip(nested);
+
+		assertEquals("parent", read.name);
+		assertEquals(nested.values, read.values);
+		assertEquals(nested.groups, read.groups);
+		assertEquals("child", read.child.name);
+		assertTrue(read.child.values.isEmpty());
+		assertTrue(read.child.groups.isEmpty());
+		assertNull(read.child.child);
+		assertEquals(0, read.empty.length);
+	}
+
+	@Test
+	public void null_and_empty_values_round_trip() throws Exception {
+
+		// null fields are left out, as in JSON
+		Nested empty = (Nested) roundTrip(new Nested());
+		assertNull(empty.name);
+		assertNull(empty.values);
+		assertEquals(1, codec.encode(new Nested()).length);
+
+		assertEquals("", roundTrip(""));
+		assertNull(codec.decode(codec.encode(null), Nested.class));
+		assertNull(codec.decode(new byte[0], Nested.class));
+	}
+
+	@Test
+	public void strings_use_the_narrowest_length_prefix() throws Exception {
+
+		int[][] boundaries = {
+			{ 0, 0xA0, 1 }, { 31, 0xBF, 1 },
+			{ 32, 0xD9, 2 }, { 255, 0xD9, 2 },
+			{ 256, 0xDA, 3 }, { 65535, 0xDA, 3 },
+			{ 65536, 0xDB, 5 } };
+
+		for (int[] boundary : boundaries) {
+
+			char[] chars = new char[boundary[0]];
+			Arrays.fill(chars, 'x');
+			String value = new String(chars);
+
+			byte[] payload = codec.encode(value);
+
+			assertEquals("type of " + boundary[0], boundary[1], payload[0] & 0xFF);
+			assertEquals("length of " + boundary[0], boundary[2] + boundary[0], payload.length);
+			assertEquals(value, codec.decode(payload, String.class));
+		}
+
+		// the prefix counts bytes, not chars
+		String accented = "\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9";
+		byte[] payload = codec.encode(accented);
+		assertEquals(0xD9, payload[0] & 0xFF);
+		assertEquals(32, payload[1] & 0xFF);
+		assertEquals(accented, codec.decode(payload, String.class));
+	}
+
+	@Test
+	public void truncated_payloads_are_rejected() throws Exception {
+
+		Nested nested = new Nested();
+		nested.name = "a name long enough to need a str8 prefix";
+		nested.values = Arrays.asList(1, 300, 70000, -5000000);
+
+		byte[] payload = codec.encode(nested);
+
+		for (int length = 1; length < payload.length; length++) {
+			try {
+				codec.decode(Arrays.copyOf(payload, length), Nested.class);
+				fail("decoded " + length + " of " + payload.length + " bytes");
+			} catch (IOException expected) {
+			}
+		}
+	}
+
+	@Test
+	public void lengths_past_the_end_of_the_payload_are_rejected_before_reading() throws Exception {
+
+		byte[][] hostile = {
+			bytes(0xDB, 0x7F, 0xFF, 0xFF, 0xFF),
+			bytes(0xDB, 0xFF, 0xFF, 0xFF, 0xFF),
+			bytes(0xDD, 0x7F, 0xFF, 0xFF, 0xFF),
+			bytes(0xDF, 0x7F, 0xFF, 0xFF, 0xFF, 0xA1, 'k') };
+
+		for (byte[] payload : hostile) {
+			try {
+				codec.decode(payload, Object.class);
+				fail("decoded " + Arrays.toString(payload));
+			} catch (IOException expected) {
+			}
+		}
+	}
+
+	@Test
+	public void trailing_bytes_and_unsupported_types_are_rejected() throws Exception {
+
+		try {
+			codec.decode(bytes(0x01, 0x02), Long.class);
+			fail("trailing byte was ignored");
+		} catch (IOException expected) {
+		}
+
+		try {
+			// bin 8
+			codec.decode(bytes(0xC4, 0x01, 0x00), Object.class);
+			fail("bin 8 was decoded");
+		} catch (IOException expected) {
+		}
+
+		try {
+			codec.decode(bytes(0x81, 0x01, 0x02), Object.class);
+			fail("an integer map key was accepted");
+		} catch (IOException expected) {
+		}
+	}
+
+	@Test
+	public void numeric_messages_are_smaller_than_json() throws Exception {
+
+		Telemetry telemetry = new Telemetry();
+
+		int json = new JsonPayloadCodec().encode(telemetry).length;
+		int messagePack = codec.encode(telemetry).length;
+
+		// 204 bytes of JSON against 152 of MessagePack: about 25% smaller
+		assertEquals(204, json);
+		assertEquals(152, messagePack);
+
+		Telemetry read = (Telemetry) roundTrip(telemetry);
+		assertEquals(telemetry.timestamp, read.timestamp);
+		assertEquals(telemetry.latitude, read.latitude, 0.0);
+		assertTrue(Arrays.equals(telemetry.readings, read.readings));
+	}
+}
@@ -0,0 +1,166 @@
+package amp.messaging;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MessageProcessorChainTest {
+
+	/**
+	 * Notes that it ran, then (optionally) continues.
+	 */
+	static class Recorder implements IMessageProcessor {
+
+		final String name;
+		final List<String> ran;
+		final boolean continues;
+
+		Recorder(String name, List<String> ran, boolean continues) {
+			this.name = name;
+			this.ran = ran;
+			this.continues = continues;
+		}
+
+		@Override
+		public void processMessage(MessageContext context, IContinuationCallback onComplete) throws MessageException {
+
+			ran.add(name);
+
+			if (continues) {
+				onComplete.continueProcessing();
+			}
+		}
+	}
+
+	static class Completion implements IContinuationCallback {
+
+		int calls;
+
+		@Override
+		public void continueProcessing() {
+			calls++;
+		}
+	}
+
+	static MessageContext context() {
+		return new MessageContext(MessageContext.Directions.Out);
+	}
+
+	@Test
+	public void processors_run_in_order_then_complete() throws Exception {
+
+		List<String> ran = new ArrayList<String>();
+		Completion completion = new Completion();
+
+		MessageProcessorChain chain = new MessageProcessorChain(Arrays.<IMessageProcessor>asList(
+			new Recorder("a", ran, true), new Recorder("b", ran, true), new Recorder("c", ran, true)));
+
+		chain.processMessage(context(), completion);
+
+		assertEquals(Arrays.asList("a", "b", "c"), ran);
+		assertEquals(1, completion.calls);
+	}
+
+	@Test
+	public void a_processor_that_does_not_continue_stops_the_chain() throws Exception {
+
+		List<String> ran = new ArrayList<String>();
+		Completion completion = new Completion();
+
+		MessageProcessorChain chain = new MessageProcessorChain(Arrays.<IMessageProcessor>asList(
+			new Recorder("a", ran, true), new Recorder("b", ran, false), new Recorder("c", ran, true)));
+
+		chain.processMessage(context(), completion);
+
+		assertEquals(Arrays.asList("a", "b"), ran);
+		assertEquals(0, completion.calls);
+	}
+
+	@Test
+	public void an_empty_chain_completes() throws Exception {
+
+		Completion completion = new Completion();
+
+		new MessageProcessorChain(new ArrayList<IMessageProcessor>()).processMessage(context(), completion);
+		new MessageProcessorChain(null).processMessage(context(), completion);
+
+		assertEquals(2, completion.calls);
+	}
+
+	@Test
+	public void chains_nest() throws Exception {
+
+		List<String> ran = new ArrayList<String>();
+		Completion completion = new Completion();
+
+		MessageProcessorChain inner = new MessageProcessorChain(Arrays.<IMessageProcessor>asList(
+			new Recorder("b", ran, true), new Recorder("c", ran, true)));
+
+		MessageProcessorChain outer = new MessageProcessorChain(Arrays.<IMessageProcessor>asList(
+			new Recorder("a", ran, true), inner, new Recorder("d", ran, true)));
+
+		outer.processMessage(context(), completion);
+
+		assertEquals(Arrays.asList("a", "b", "c", "d"), ran);
+		assertEquals(1, completion.calls);
+	}
+
+	@Test
+	public void changing_the_list_does_not_affect_the_chain_or_a_message_in_flight() throws Exception {
+
+		final List<String> ran = new ArrayList<String>();
+		final List<IMessageProcessor> processors = new ArrayList<IMessageProcessor>();
+
+		// the first processor changes the list while the message is in the chain
+		processors.add(new IMessageProcessor() {
+			@Override
+			public void processMessage(MessageContext context, IContinuationCallback onComplete) throws MessageException {
+				ran.add("a");
+				processors.clear();
+				processors.add(new Recorder("new", ran, true));
+				onComplete.continueProcessing();
+			}
+		});
+		processors.add(new Recorder("b", ran, true));
+
+		MessageProcessorChain chain = new MessageProcessorChain(processors);
+		Completion completion = new Completion();
+
+		chain.processMessage(context(), completion);
+
+		assertEquals(Arrays.asList("a", "b"), ran);
+		assertEquals(1, completion.calls);
+	}
+
+	@Test
+	public void an_exception_stops_the_chain_and_reaches_the_caller() throws Exception {
+
+		List<String> ran = new ArrayList<String>();
+		Completion completion = new Completion();
+		final MessageException failure = new MessageException("boom");
+
+		MessageProcessorChain chain = new MessageProcessorChain(Arrays.<IMessageProcessor>asList(
+			new Recorder("a", ran, true),
+			new IMessageProcessor() {
+				@Override
+				public void processMessage(MessageContext context, IContinuationCallback onComplete) throws MessageException {
+					throw failure;
+				}
+			},
+			new Recorder("c", ran, true)));
+
+		try {
+			chain.processMessage(context(), completion);
+			fail("expected the processor's exception");
+		} catch (MessageException ex) {
+			assertSame(failure, ex);
+		}
+
+		assertEquals(Arrays.asList("a"), ran);
+		assertEquals(0, completion.calls);
+	}
+}
@@ -0,0 +1,105 @@
+package amp.messaging;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import amp.bus.DeferredOutcome;
+import amp.bus.IDeferredOutcomeCallback;
+
+import cmf.bus.Envelope;
+
+public class MessageRegistrationTest {
+
+	/**
+	 * Returns the given outcome from every message.
+	 */
+	static class Handler implements IMessageHandler<String> {
+
+		final Object outcome;
+
+		Handler(Object outcome) {
+			this.outcome = outcome;
+		}
+
+		@Override
+		public Class<String> getMessageType() {
+			return String.class;
+		}
+
+		@Override
+		public Object handle(String message, Map<String, String> headers) {
+			return outcome;
+		}
+
+		@Override
+		public Object handleFailed(Envelope envelope, Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Defers the outcome and keeps the continuation for the test to run.
+	 */
+	static class Deferring implements IMessageProcessor {
+
+		IContinuationCallback continuation;
+		DeferredOutcome outcome;
+
+		@Override
+		public void processMessage(MessageContext context, IContinuationCallback onComplete) throws MessageException {
+			outcome = DeferredOutcome.defer(context.getContext());
+			continuation = onComplete;
+		}
+	}
+
+	static final IMessageProcessor CONTINUE = new IMessageProcessor() {
+		@Override
+		public void processMessage(MessageContext context, IContinuationCallback onComplete) throws MessageException {
+			onComplete.continueProcessing();
+		}
+	};
+
+	@Test
+	public void the_handlers_outcome_is_returned() throws Exception {
+
+		Object reject = new Object();
+		MessageRegistration registration = new MessageRegistration(CONTINUE, new Handler(reject), null);
+
+		assertSame(reject, registration.handle(new Envelope()));
+	}
+
+	@Test
+	public void a_deferred_outcome_is_completed_with_the_handlers_outcome() throws Exception {
+
+		Object reject = new Object();
+		Deferring processor = new Deferring();
+		MessageRegistration registration = new MessageRegistration(processor, new Handler(reject), null);
+
+		Object returned = registration.handle(new Envelope());
+
+		assertNotNull(processor.outcome);
+		assertSame(processor.outcome, returned);
+
+		// later, on the processor's thread
+		processor.continuation.continueProcessing();
+		processor.outcome.completeWithResult();
+
+		final Object[] completed = new Object[1];
+		processor.outcome.onDone(new IDeferredOutcomeCallback() {
+			@Override
+			public void onComplete(Object outcome) {
+				completed[0] = outcome;
+			}
+
+			@Override
+			public void onFailure(Exception ex) {
+				fail("unexpected failure " + ex);
+			}
+		});
+
+		assertSame(reject, completed[0]);
+	}
+}
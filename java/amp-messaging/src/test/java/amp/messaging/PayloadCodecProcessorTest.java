@@ -0,0 +1,186 @@
+package amp.messaging;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import cmf.bus.Envelope;
+
+public class PayloadCodecProcessorTest {
+
+	@Message(topic = "telemetry", type = "telemetry.reading")
+	static class Reading {
+		String sensor;
+		int value;
+
+		Reading() {
+		}
+
+		Reading(String sensor, int value) {
+			this.sensor = sensor;
+			this.value = value;
+		}
+	}
+
+	static class Plain {
+		String text = "plain";
+	}
+
+	static class Completion implements IContinuationCallback {
+
+		int calls;
+
+		@Override
+		public void continueProcessing() {
+			calls++;
+		}
+	}
+
+	static PayloadCodecProcessor processor() {
+		return new PayloadCodecProcessor(new JsonPayloadCodec(), new MessagePackPayloadCodec());
+	}
+
+	static Envelope send(PayloadCodecProcessor processor, Object message) throws Exception {
+
+		MessageContext context = new MessageContext(MessageContext.Directions.Out, new Envelope(), message);
+		Completion completion = new Completion();
+
+		processor.processMessage(context, completion);
+
+		assertEquals(1, completion.calls);
+		return context.getEnvelope();
+	}
+
+	static Object receive(PayloadCodecProcessor processor, Envelope env, Class<?> type) throws Exception {
+
+		new EnvelopeHelper(env).setMessageType(type.getName());
+
+		MessageContext context = new MessageContext(MessageContext.Directions.In, env);
+		Completion completion = new Completion();
+
+		processor.processMessage(context, completion);
+
+		assertEquals(1, completion.calls);
+		return context.getMessage();
+	}
+
+	static String contentType(Envelope env) {
+		return new EnvelopeHelper(env).getContentType();
+	}
+
+	@Test
+	public void messages_are_sent_with_the_default_codec_unless_configured() throws Exception {
+
+		Envelope env = send(processor(), new Reading("s1", 5));
+
+		assertEquals(JsonPayloadCodec.CONTENT_TYPE, contentType(env));
+		assertEquals("{\"sensor\":\"s1\",\"value\":5}", new String(env.getPayload(), "UTF-8"));
+	}
+
+	@Test
+	public void the_codec_is_chosen_by_message_type() throws Exception {
+
+		PayloadCodecProcessor processor = processor();
+		processor.setContentTypesByMessageType(
+			Collections.singletonMap("telemetry.reading", MessagePackPayloadCodec.CONTENT_TYPE));
+
+		assertEquals(MessagePackPayloadCodec.CONTENT_TYPE, contentType(send(processor, new Reading("s1", 5))));
+		assertEquals(JsonPayloadCodec.CONTENT_TYPE, contentType(send(processor, new Plain())));
+	}
+
+	@Test
+	public void the_codec_is_chosen_by_topic() throws Exception {
+
+		PayloadCodecProcessor processor = processor();
+		processor.setContentTypesByTopic(
+			Collections.singletonMap(Plain.class.getCanonicalName(), MessagePackPayloadCodec.CONTENT_TYPE));
+
+		assertEquals(MessagePackPayloadCodec.CONTENT_TYPE, contentType(send(processor, new Plain())));
+		assertEquals(JsonPayloadCodec.CONTENT_TYPE, contentType(send(processor, new Reading("s1", 5))));
+	}
+
+	@Test
+	public void the_message_type_is_consulted_before_the_topic() throws Exception {
+
+		PayloadCodecProcessor processor = new PayloadCodecProcessor(new MessagePackPayloadCodec(), new JsonPayloadCodec());
+		processor.setContentTypesByTopic(
+			Collections.singletonMap("telemetry", MessagePackPayloadCodec.CONTENT_TYPE));
+		processor.setContentTypesByMessageType(
+			Collections.singletonMap("telemetry.reading", JsonPayloadCodec.CONTENT_TYPE));
+
+		assertEquals(JsonPayloadCodec.CONTENT_TYPE, contentType(send(processor, new Reading("s1", 5))));
+	}
+
+	@Test
+	public void headers_already_on_the_envelope_choose_the_codec() throws Exception {
+
+		PayloadCodecProcessor processor = processor();
+		processor.setContentTypesByTopic(
+			Collections.singletonMap("overridden", MessagePackPayloadCodec.CONTENT_TYPE));
+
+		Envelope env = new Envelope();
+		new EnvelopeHelper(env).setMessageTopic("overridden");
+
+		processor.processMessage(
+			new MessageContext(MessageContext.Directions.Out, env, new Plain()), new Completion());
+
+		assertEquals(MessagePackPayloadCodec.CONTENT_TYPE, contentType(env));
+	}
+
+	@Test
+	public void configuring_a_codec_that_does_not_exist_fails_straight_away() {
+
+		try {
+			processor().setContentTypesByTopic(Collections.singletonMap("telemetry", "application/x-protobuf"));
+			fail("an unknown codec was accepted");
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	@Test
+	public void received_messages_are_decoded_with_the_codec_they_name() throws Exception {
+
+		PayloadCodecProcessor processor = processor();
+		processor.setContentTypesByMessageType(
+			Collections.singletonMap("telemetry.reading", MessagePackPayloadCodec.CONTENT_TYPE));
+
+		Envelope env = send(processor, new Reading("s1", 5));
+
+		// a receiver configured to send JSON still reads MessagePack
+		Reading read = (Reading) receive(processor(), env, Reading.class);
+
+		assertEquals("s1", read.sensor);
+		assertEquals(5, read.value);
+		assertEquals(1, processor.getStats(MessagePackPayloadCodec.CONTENT_TYPE).getEncodeCount());
+	}
+
+	@Test
+	public void received_messages_without_a_content_type_are_read_as_json() throws Exception {
+
+		Envelope env = new Envelope();
+		env.setPayload("{\"sensor\":\"old sender\",\"value\":7}".getBytes("UTF-8"));
+
+		PayloadCodecProcessor processor = processor();
+		Reading read = (Reading) receive(processor, env, Reading.class);
+
+		assertEquals("old sender", read.sensor);
+		assertEquals(7, read.value);
+		assertEquals(1, processor.getStats(JsonPayloadCodec.CONTENT_TYPE).getDecodeCount());
+	}
+
+	@Test
+	public void received_messages_naming_an_unknown_codec_are_rejected() throws Exception {
+
+		Envelope env = new Envelope();
+		env.setPayload(new byte[] { 1, 2, 3 });
+		new EnvelopeHelper(env).setContentType("application/x-protobuf");
+
+		try {
+			receive(processor(), env, Reading.class);
+			fail("an unknown codec was used");
+		} catch (MessageException expected) {
+		}
+	}
+}
@@ -0,0 +1,311 @@
+package amp.rabbit;
+
+
+import java.io.IOException;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Acknowledges the deliveries on a channel in batches.
+ * <p>
+ * Deliveries are tracked from dispatch until they're settled.  Successful ones
+ * are held until maxPending have built up, then everything below the oldest
+ * delivery still being processed is acknowledged with a single
+ * basicAck(tag, multiple=true), so nothing still being processed is ever
+ * acknowledged.  Held acknowledgements are also sent once the oldest has waited
+ * maxDelayMillis (individually, for those above a delivery still being
+ * processed).  Rejections are sent straight away.
+ * </p>
+ * <p>
+ * The channel must be used by one consumer only, since a multiple
+ * acknowledgement covers every delivery on it.  For the same reason every
+ * delivery must be tracked, with {@link #delivered}, before anything that
+ * could fail is done with it.
+ * </p>
+ * <p>
+ * Deliveries still being processed when the aggregator is disposed are
+ * settled straight on the channel, one at a time, when they finish; if it's
+ * handed over to a new aggregator for the same channel, they're settled
+ * through that one instead.
+ * </p>
+ */
+public class AckAggregator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AckAggregator.class);
+
+    /**
+     * Default number of successful deliveries held before they're acknowledged.
+     */
+    public static int DEFAULT_MAX_PENDING = 50;
+
+    /**
+     * Default time in ms a successful delivery is held before it's acknowledged.
+     */
+    public static long DEFAULT_MAX_DELAY_MILLIS = 100;
+
+    /**
+     * Sends acknowledgements that have been held too long; shared by every aggregator in the process.
+     */
+    private static final ScheduledExecutorService FLUSH_SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "amp-ack-aggregator");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    protected final Channel channel;
+    protected final int maxPending;
+    protected final long maxDelayMillis;
+
+    private final TreeSet<Long> processing = new TreeSet<Long>();
+    private final TreeSet<Long> acknowledged = new TreeSet<Long>();
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean disposed;
+    private AckAggregator successor;
+    private long ackFrames;
+    private long ackedDeliveries;
+
+
+    public AckAggregator(Channel channel) {
+        this(channel, DEFAULT_MAX_PENDING, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    public AckAggregator(Channel channel, int maxPending, long maxDelayMillis) {
+
+        this.channel = channel;
+        this.maxPending = maxPending;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @return the channel whose deliveries are acknowledged
+     */
+    public Channel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Track a delivery that is about to be dispatched.
+     * @param deliveryTag the delivery's tag
+     */
+    public synchronized void delivered(long deliveryTag) {
+
+        if (null != successor) {
+            successor.delivered(deliveryTag);
+        } else if (!disposed) {
+            processing.add(deliveryTag);
+        }
+    }
+
+    /**
+     * Acknowledge a delivery, once enough have built up or it has waited long enough.
+     * @param deliveryTag the delivery's tag
+     * @throws IOException
+     */
+    public synchronized void ack(long deliveryTag) throws IOException {
+
+        if (null != successor) {
+            successor.ack(deliveryTag);
+            return;
+        }
+
+        if (disposed) {
+            channel.basicAck(deliveryTag, false);
+            ackFrames++;
+            ackedDeliveries++;
+            return;
+        }
+
+        processing.remove(deliveryTag);
+        acknowledged.add(deliveryTag);
+
+        if (acknowledged.size() >= maxPending) {
+
+            ackConsecutive();
+        }
+
+        if (acknowledged.isEmpty()) {
+
+            cancelScheduledFlush();
+
+        } else if (null == scheduledFlush) {
+
+            scheduledFlush = FLUSH_SCHEDULER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flushScheduled();
+                }
+            }, maxDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Reject a delivery now.
+     * @param deliveryTag the delivery's tag
+     * @throws IOException
+     */
+    public synchronized void reject(long deliveryTag) throws IOException {
+
+        if (null != successor) {
+            successor.reject(deliveryTag);
+            return;
+        }
+
+        processing.remove(deliveryTag);
+
+        channel.basicReject(deliveryTag, false);
+    }
+
+    /**
+     * Negatively acknowledge a delivery now.
+     * @param deliveryTag the delivery's tag
+     * @throws IOException
+     */
+    public synchronized void nack(long deliveryTag) throws IOException {
+
+        if (null != successor) {
+            successor.nack(deliveryTag);
+            return;
+        }
+
+        processing.remove(deliveryTag);
+
+        channel.basicNack(deliveryTag, false, false);
+    }
+
+    /**
+     * Send every held acknowledgement.
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+
+        cancelScheduledFlush();
+
+        ackConsecutive();
+
+        // these are above a delivery still being processed
+        while (!acknowledged.isEmpty()) {
+
+            long deliveryTag = acknowledged.pollFirst();
+
+            channel.basicAck(deliveryTag, false);
+
+            ackFrames++;
+            ackedDeliveries++;
+        }
+    }
+
+    /**
+     * Send any held acknowledgements, if the channel is still open, and stop
+     * batching: deliveries still being processed are settled straight on the
+     * channel.
+     */
+    public synchronized void dispose() {
+
+        disposed = true;
+
+        cancelScheduledFlush();
+
+        if (!acknowledged.isEmpty() && channel.isOpen()) {
+
+            try {
+                flush();
+            } catch (Exception ex) {
+                LOG.warn("Unable to send held acknowledgements; the deliveries will be redelivered.", ex);
+            }
+        }
+
+        acknowledged.clear();
+        processing.clear();
+    }
+
+    /**
+     * Send any held acknowledgements and stop, passing the deliveries still
+     * being processed to a new aggregator for the same channel, which settles
+     * them when they finish.
+     * @param successor Aggregator taking over the channel
+     */
+    public synchronized void handOver(AckAggregator successor) {
+
+        if (successor.getChannel() != channel) {
+            throw new IllegalArgumentException("Can only hand over to an aggregator for the same channel.");
+        }
+
+        for (Long deliveryTag : processing) {
+            successor.delivered(deliveryTag);
+        }
+
+        dispose();
+
+        this.successor = successor;
+    }
+
+    /**
+     * @return acknowledgement frames sent to the broker
+     */
+    public synchronized long getAckFrameCount() {
+        return ackFrames;
+    }
+
+    /**
+     * @return deliveries acknowledged by those frames
+     */
+    public synchronized long getAckedDeliveryCount() {
+        return ackedDeliveries;
+    }
+
+    /**
+     * Acknowledge, in one frame, the held deliveries below the oldest one still being processed.
+     */
+    protected void ackConsecutive() throws IOException {
+
+        Long upTo = processing.isEmpty() ? (acknowledged.isEmpty() ? null : acknowledged.last())
+                : acknowledged.lower(processing.first());
+
+        if (null == upTo) { return; }
+
+        NavigableSet<Long> covered = acknowledged.headSet(upTo, true);
+        int count = covered.size();
+
+        channel.basicAck(upTo, count > 1);
+
+        covered.clear();
+
+        ackFrames++;
+        ackedDeliveries += count;
+    }
+
+    protected synchronized void flushScheduled() {
+
+        scheduledFlush = null;
+
+        if (disposed) { return; }
+
+        try {
+            flush();
+        } catch (Exception ex) {
+            LOG.error("There was a problem sending delivery outcomes back to broker.", ex);
+        }
+    }
+
+    private void cancelScheduledFlush() {
+
+        if (null != scheduledFlush) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package amp.rabbit;
+
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import cmf.bus.EnvelopeHeaderConstants;
+import com.rabbitmq.client.LongString;
+
+import amp.bus.ExtendedHeaderConstants;
+
+
+/**
+ * An envelope's headers, read straight from the AMQP headers of a delivery.
+ * <p>
+ * Each header is decoded into a String the first time it is read, so a
+ * delivery whose envelope is only asked for its topic and type decodes two
+ * headers rather than all of them.  Writes and removals are kept on top of
+ * the AMQP headers, which are never modified.  Anything that needs every
+ * header at once (iteration, size, equality) decodes the rest and from then
+ * on the map is an ordinary HashMap.
+ * </p>
+ * <p>
+ * Besides the UTF-8 long strings AMP clients send, headers of other AMQP
+ * types (numbers, booleans, timestamps, byte arrays, arrays and tables) are
+ * converted to Strings rather than dropped.  Keys that are well-known header
+ * names share a single String instance.
+ * </p>
+ * <p>
+ * Since even reading a header may change the map, every method holds its
+ * lock, so an envelope's headers may be read and written from several
+ * threads at once (as they are when its signature is verified off the
+ * listener's thread).  As with {@link java.util.Collections#synchronizedMap},
+ * iterating the map while another thread writes to it is not safe.
+ * </p>
+ */
+public class AmqpHeaderMap extends AbstractMap<String, String> {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * marks a header removed from the AMQP headers
+     */
+    private static final Object REMOVED = new Object();
+
+    private static final Map<String, String> WELL_KNOWN_KEYS = new HashMap<String, String>();
+
+    static {
+        addWellKnownKeys(EnvelopeHeaderConstants.class);
+        addWellKnownKeys(ExtendedHeaderConstants.class);
+    }
+
+    /**
+     * the delivery's headers; null once every header has been decoded
+     */
+    private Map<String, Object> amqpHeaders;
+
+    /**
+     * headers decoded, written or removed since; null once every header has been decoded
+     */
+    private Map<String, Object> overlay;
+
+    /**
+     * every header, once needed
+     */
+    private HashMap<String, String> decoded;
+
+
+    public AmqpHeaderMap(Map<String, Object> amqpHeaders) {
+
+        if (null == amqpHeaders) {
+            this.decoded = new HashMap<String, String>();
+        } else {
+            this.amqpHeaders = amqpHeaders;
+            this.overlay = new HashMap<String, Object>();
+        }
+    }
+
+
+    @Override
+    public synchronized String get(Object key) {
+
+        if (null != decoded) { return decoded.get(key); }
+
+        Object value = overlay.get(key);
+
+        if (null != value || overlay.containsKey(key)) {
+            return (REMOVED == value) ? null : (String) value;
+        }
+
+        value = amqpHeaders.get(key);
+
+        if (null == value && !amqpHeaders.containsKey(key)) {
+            return null;
+        }
+
+        String header = decode(value);
+        overlay.put(wellKnown((String) key), header);
+
+        return header;
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key) {
+
+        if (null != decoded) { return decoded.containsKey(key); }
+
+        if (overlay.containsKey(key)) {
+            return REMOVED != overlay.get(key);
+        }
+
+        return amqpHeaders.containsKey(key);
+    }
+
+    @Override
+    public synchronized String put(String key, String value) {
+
+        if (null != decoded) { return decoded.put(key, value); }
+
+        String previous = this.get(key);
+        overlay.put(wellKnown(key), value);
+
+        return previous;
+    }
+
+    @Override
+    public synchronized String remove(Object key) {
+
+        if (null != decoded) { return decoded.remove(key); }
+
+        String previous = this.get(key);
+
+        if (amqpHeaders.containsKey(key)) {
+            overlay.put(wellKnown((String) key), REMOVED);
+        } else {
+            overlay.remove(key);
+        }
+
+        return previous;
+    }
+
+    @Override
+    public synchronized void clear() {
+        amqpHeaders = null;
+        overlay = null;
+        decoded = new HashMap<String, String>();
+    }
+
+    @Override
+    public synchronized int size() {
+        return this.decodeAll().size();
+    }
+
+    @Override
+    public synchronized Set<Entry<String, String>> entrySet() {
+        return this.decodeAll().entrySet();
+    }
+
+
+    /**
+     * @return whether each header has been decoded, i.e. the map is now a plain HashMap
+     */
+    public synchronized boolean isFullyDecoded() {
+        return null != decoded;
+    }
+
+
+    protected synchronized HashMap<String, String> decodeAll() {
+
+        if (null == decoded) {
+
+            HashMap<String, String> headers = new HashMap<String, String>((amqpHeaders.size() + overlay.size()) * 4 / 3 + 1);
+
+            for (Entry<String, Object> header : amqpHeaders.entrySet()) {
+                if (!overlay.containsKey(header.getKey())) {
+                    headers.put(wellKnown(header.getKey()), decode(header.getValue()));
+                }
+            }
+
+            for (Entry<String, Object> header : overlay.entrySet()) {
+                if (REMOVED != header.getValue()) {
+                    headers.put(header.getKey(), (String) header.getValue());
+                }
+            }
+
+            decoded = headers;
+            amqpHeaders = null;
+            overlay = null;
+        }
+
+        return decoded;
+    }
+
+    /**
+     * Convert an AMQP header value to the String an envelope header holds.
+     */
+    protected static String decode(Object value) {
+
+        if (null == value) { return null; }
+        if (value instanceof LongString) { return new String(((LongString) value).getBytes(), UTF_8); }
+        if (value instanceof String) { return (String) value; }
+        if (value instanceof byte[]) { return new String((byte[]) value, UTF_8); }
+
+        // timestamps as milliseconds, as AMP writes its own times
+        if (value instanceof Date) { return Long.toString(((Date) value).getTime()); }
+
+        if (value instanceof List) {
+
+            StringBuilder sb = new StringBuilder("[");
+
+            for (Iterator<?> items = ((List<?>) value).iterator(); items.hasNext(); ) {
+                sb.append(decode(items.next()));
+                if (items.hasNext()) { sb.append(", "); }
+            }
+
+            return sb.append("]").toString();
+        }
+
+        if (value instanceof Map) {
+
+            StringBuilder sb = new StringBuilder("{");
+
+            for (Iterator<? extends Entry<?, ?>> fields = ((Map<?, ?>) value).entrySet().iterator(); fields.hasNext(); ) {
+                Entry<?, ?> field = fields.next();
+                sb.append(field.getKey()).append('=').append(decode(field.getValue()));
+                if (fields.hasNext()) { sb.append(", "); }
+            }
+
+            return sb.append("}").toString();
+        }
+
+        // numbers, booleans and anything else
+        return value.toString();
+    }
+
+    private static String wellKnown(String key) {
+        String known = WELL_KNOWN_KEYS.get(key);
+        return (null == known) ? key : known;
+    }
+
+    private static void addWellKnownKeys(Class<?> constants) {
+
+        for (Field field : constants.getFields()) {
+
+            if (String.class == field.getType() && Modifier.isStatic(field.getModifiers())) {
+                try {
+                    String key = (String) field.get(null);
+                    WELL_KNOWN_KEYS.put(key, key.intern());
+                } catch (IllegalAccessException ex) {
+                    // public fields only
+                }
+            }
+        }
+    }
+}
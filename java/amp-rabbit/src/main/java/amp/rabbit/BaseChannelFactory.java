@@ -28,7 +28,21 @@ public abstract class BaseChannelFactory implements IRabbitChannelFactory, IDisp
 
 	public static int HEARTBEAT_INTERVAL = 2;
 
+	public static int DEFAULT_MAX_POOLED_CHANNELS = 32;
+
+	public static long DEFAULT_CHANNEL_CHECKOUT_TIMEOUT = 30 * 1000;
+
 	protected ConcurrentHashMap<Exchange, Connection> pooledConnections = new ConcurrentHashMap<Exchange, Connection>();
+
+	protected ConcurrentHashMap<Connection, ChannelPool> channelPools = new ConcurrentHashMap<Connection, ChannelPool>();
+
+	protected final ChannelPoolStats channelPoolStats = new ChannelPoolStats();
+
+	protected int maxPooledChannels = DEFAULT_MAX_POOLED_CHANNELS;
+
+	protected long channelCheckoutTimeout = DEFAULT_CHANNEL_CHECKOUT_TIMEOUT;
+
+	private final Object connectionLock = new Object();
 	
 	/**
 	 * Create a new instance of the ChannelFactory using the "SameBrokerStrategy"
@@ -44,6 +58,31 @@ public abstract class BaseChannelFactory implements IRabbitChannelFactory, IDisp
 	public void setHeartbeatInterval(int interval){
 		HEARTBEAT_INTERVAL = interval;
 	}
+
+	/**
+	 * Set the maximum number of pooled (publishing) channels open on each connection.
+	 * @param maxPooledChannels maximum number of channels
+	 */
+	public void setMaxPooledChannels(int maxPooledChannels){
+		this.maxPooledChannels = maxPooledChannels;
+	}
+
+	/**
+	 * Set how long to wait for a pooled channel to be returned when all of
+	 * them are checked out.
+	 * @param timeout time in ms
+	 */
+	public void setChannelCheckoutTimeout(long timeout){
+		this.channelCheckoutTimeout = timeout;
+	}
+
+	/**
+	 * Get the hit, miss, and wait counts of the pooled channels.
+	 * @return pooled channel statistics
+	 */
+	public ChannelPoolStats getChannelPoolStats(){
+		return this.channelPoolStats;
+	}
 	
 	private Connection getConnection(Exchange exchange) throws Exception {
 
@@ -68,35 +107,102 @@ public abstract class BaseChannelFactory implements IRabbitChannelFactory, IDisp
 	}
 	
 	/**
-	 * Get the corresponding channel for the supplied Exchange.
-	 * This overload specifically pools channels depending on the 
-	 * ChannelEqualityStrategy. 
+	 * Get the pooled connection for the supplied Exchange, connecting to the
+	 * broker if there isn't an open one.  Only the first caller for an
+	 * exchange pays for the lock; after that this is a map read.
+	 * @param exchange Exchange configuration for the Connection
+	 * @return an open AMQP Connection
+	 */
+	protected Connection getPooledConnection(Exchange exchange) throws Exception {
+
+		Connection connection = pooledConnections.get(exchange);
+
+		if (connection != null && connection.isOpen()) {
+			return connection;
+		}
+
+		synchronized (connectionLock) {
+
+			connection = pooledConnections.get(exchange);
+
+			if (connection == null || !connection.isOpen()) {
+
+				connection = this.getConnection(exchange);
+
+				connection.addShutdownListener(new RabbitConnectionShutdownListener(this, exchange, connection));
+
+				pooledConnections.put(exchange, connection);
+			}
+		}
+
+		return connection;
+	}
+
+	/**
+	 * Get a new channel for the supplied Exchange.  The channel belongs to
+	 * the caller (usually a listener) until the caller closes it.
 	 * @param exchange Exchange configuration for the Channel
 	 * @return an AMQP Channel
 	 */
 	@Override
-	public synchronized Channel getChannelFor(Exchange exchange) throws Exception {
+	public Channel getChannelFor(Exchange exchange) throws Exception {
 		
 		log.trace("Getting channel for exchange: {}", exchange);
 		
-		Connection connection = null;
-		
-		if (pooledConnections.containsKey(exchange)){
-			
-			connection = pooledConnections.get(exchange);
+		return getPooledConnection(exchange).createChannel();
+	}
+
+	/**
+	 * Check a channel for the supplied Exchange out of the pool.  The channel
+	 * must be given back with {@link #returnChannel(Exchange, Channel)} when
+	 * the caller is done with it, and must not be used by more than one
+	 * thread at a time.
+	 * @param exchange Exchange configuration for the Channel
+	 * @return an AMQP Channel
+	 */
+	@Override
+	public Channel checkoutChannelFor(Exchange exchange) throws Exception {
+
+		log.trace("Checking out channel for exchange: {}", exchange);
+
+		return getChannelPool(getPooledConnection(exchange)).checkout(channelCheckoutTimeout);
+	}
+
+	/**
+	 * Give a checked out channel back to the pool.
+	 * @param exchange Exchange the channel was checked out for
+	 * @param channel the checked out Channel
+	 */
+	@Override
+	public void returnChannel(Exchange exchange, Channel channel) {
+
+		ChannelPool pool = channelPools.get(channel.getConnection());
+
+		if (pool != null) {
+
+			pool.giveBack(channel);
+
+		} else {
+
+			// the connection has gone away since the channel was checked out
+			try { channel.close(); } catch (Exception ex) { }
 		}
-		else {
-			
-			connection = this.getConnection(exchange);
-			
-			pooledConnections.put(exchange, connection);
+	}
+
+	protected ChannelPool getChannelPool(Connection connection) {
+
+		ChannelPool pool = channelPools.get(connection);
+
+		if (pool == null) {
+
+			ChannelPool newPool = new ChannelPool(connection, maxPooledChannels, channelPoolStats);
+
+			pool = channelPools.putIfAbsent(connection, newPool);
+
+			if (pool == null) { pool = newPool; }
 		}
-			
-		connection.addShutdownListener(new RabbitConnectionShutdownListener(this, exchange));
-			
-		Channel channel = connection.createChannel();
-		
-		return channel;
+
+		return pool;
 	}
 	
 	/**
@@ -107,16 +213,44 @@ public abstract class BaseChannelFactory implements IRabbitChannelFactory, IDisp
 	public boolean removeConnection(Exchange exchange){
 		
 		Connection connection = pooledConnections.remove(exchange);
+
+		if (connection != null) { removeChannelPool(connection); }
 		
 		return connection != null;
 	}
+
+	/**
+	 * Remove the connection from the pool if it is still the pooled
+	 * connection for the exchange.
+	 * @param exchange Exchange of the connection.
+	 * @param connection Connection to remove.
+	 * @return True if it was successfully removed.
+	 */
+	public boolean removeConnection(Exchange exchange, Connection connection){
+
+		removeChannelPool(connection);
+
+		return pooledConnections.remove(exchange, connection);
+	}
+
+	private void removeChannelPool(Connection connection){
+
+		ChannelPool pool = channelPools.remove(connection);
+
+		if (pool != null) { pool.close(); }
+	}
 	
 	/**
 	 * Iterate over pooled connections, closing each connection.
 	 */
 	@Override
 	public void dispose() {
-		
+
+		for (ChannelPool pool : this.channelPools.values()){
+
+			pool.close();
+		}
+
 		for (Connection connection : this.pooledConnections.values()){
 			
 			try {
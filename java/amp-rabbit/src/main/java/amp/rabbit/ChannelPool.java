@@ -0,0 +1,172 @@
+package amp.rabbit;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A bounded set of reusable channels on a single connection.
+ * <p>
+ * Channels are checked out, used by one thread, and returned.  Idle channels
+ * are kept on a lock-free queue, and a semaphore caps how many channels the
+ * pool will have open at once; when the cap is reached a checkout waits for
+ * another thread to return one.
+ * </p>
+ */
+public class ChannelPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChannelPool.class);
+
+    protected final Connection connection;
+    protected final ChannelPoolStats stats;
+    protected final Semaphore permits;
+    protected final int maxChannels;
+    protected volatile boolean closed;
+    protected final ConcurrentLinkedQueue<Channel> idleChannels = new ConcurrentLinkedQueue<Channel>();
+
+
+    /**
+     * Initialize the pool.
+     * @param connection Connection the pool's channels are created on
+     * @param maxChannels Maximum number of channels the pool will have open at once
+     * @param stats Counters to record pool activity in
+     */
+    public ChannelPool(Connection connection, int maxChannels, ChannelPoolStats stats) {
+
+        this.connection = connection;
+        this.stats = stats;
+        this.maxChannels = maxChannels;
+        this.permits = new Semaphore(maxChannels);
+    }
+
+
+    /**
+     * Check a channel out of the pool, opening a new one if none are idle.
+     * @param timeoutMillis how long to wait if the pool is at its limit
+     * @return an open Channel that must be given back with {@link #giveBack(Channel)}
+     * @throws TimeoutException if no channel became available in time
+     */
+    public Channel checkout(long timeoutMillis) throws Exception {
+
+        if (!permits.tryAcquire()) {
+
+            long start = System.nanoTime();
+            boolean acquired = permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+
+            stats.recordWait(System.nanoTime() - start);
+
+            if (!acquired) {
+
+                stats.recordTimeout();
+
+                throw new TimeoutException(String.format(
+                        "Timed out after %d ms waiting for one of %d pooled channels to be returned.",
+                        timeoutMillis, maxChannels));
+            }
+        }
+
+        try {
+
+            Channel channel;
+
+            while ((channel = idleChannels.poll()) != null) {
+
+                if (channel.isOpen()) {
+
+                    stats.recordHit();
+
+                    return channel;
+                }
+
+                stats.recordDiscard();
+            }
+
+            stats.recordMiss();
+
+            return connection.createChannel();
+
+        } catch (Exception ex) {
+
+            permits.release();
+
+            throw ex;
+        }
+    }
+
+    /**
+     * Return a channel to the pool.  Channels that have been closed (for
+     * instance, by a channel-level error) are dropped.
+     * @param channel Channel previously checked out of this pool
+     */
+    public void giveBack(Channel channel) {
+
+        try {
+
+            if (!closed && channel.isOpen() && connection.isOpen()) {
+
+                idleChannels.add(channel);
+
+                // the pool may have been closed while we were adding
+                if (closed) { close(); }
+
+            } else {
+
+                stats.recordDiscard();
+
+                closeQuietly(channel);
+            }
+
+        } finally {
+
+            permits.release();
+        }
+    }
+
+    /**
+     * @return number of channels waiting in the pool to be checked out
+     */
+    public int getIdleCount() {
+        return idleChannels.size();
+    }
+
+    /**
+     * Close all of the idle channels.  Channels currently checked out are
+     * closed as they are returned.
+     */
+    public void close() {
+
+        closed = true;
+
+        Channel channel;
+
+        while ((channel = idleChannels.poll()) != null) {
+
+            closeQuietly(channel);
+        }
+    }
+
+    private void closeQuietly(Channel channel) {
+
+        try {
+
+            if (channel.isOpen()) { channel.close(); }
+
+        } catch (IOException ex) {
+
+            LOG.debug("Problem closing pooled channel.", ex);
+
+        } catch (AlreadyClosedException ex) {
+
+            LOG.debug("Pooled channel was already closed.");
+        }
+    }
+}
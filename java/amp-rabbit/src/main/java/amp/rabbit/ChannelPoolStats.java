@@ -0,0 +1,96 @@
+package amp.rabbit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Counters describing how well a channel factory's pooled channels are being
+ * reused.  One instance is shared by all of a factory's pools, so the numbers
+ * are totals across every connection.
+ */
+public class ChannelPoolStats {
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+
+    void recordHit() { hits.incrementAndGet(); }
+
+    void recordMiss() { misses.incrementAndGet(); }
+
+    void recordWait(long nanos) {
+        waits.incrementAndGet();
+        waitNanos.addAndGet(nanos);
+    }
+
+    void recordTimeout() { timeouts.incrementAndGet(); }
+
+    void recordDiscard() { discarded.incrementAndGet(); }
+
+
+    /**
+     * @return number of checkouts satisfied by an idle pooled channel
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of checkouts that had to open a new channel
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return fraction of checkouts satisfied by an idle pooled channel
+     */
+    public double getHitRate() {
+
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+
+        return (total == 0) ? 1.0 : (double) hitCount / total;
+    }
+
+    /**
+     * @return number of checkouts that had to wait for a channel to be returned
+     */
+    public long getBorrowWaitCount() {
+        return waits.get();
+    }
+
+    /**
+     * @return total time spent waiting for a channel to be returned, in milliseconds
+     */
+    public long getBorrowWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    /**
+     * @return number of checkouts that gave up waiting for a channel
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return number of channels thrown away because they were closed or the pool was full
+     */
+    public long getDiscardCount() {
+        return discarded.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "ChannelPoolStats { hits: %d, misses: %d, waits: %d, waitMillis: %d, timeouts: %d, discarded: %d }",
+                getHitCount(), getMissCount(), getBorrowWaitCount(),
+                getBorrowWaitMillis(), getTimeoutCount(), getDiscardCount());
+    }
+}
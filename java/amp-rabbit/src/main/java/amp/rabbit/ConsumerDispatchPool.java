@@ -0,0 +1,244 @@
+package amp.rabbit;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cmf.bus.IDisposable;
+
+
+/**
+ * A bounded set of threads shared by every push-style listener of a transport.
+ * <p>
+ * Each listener gets its own {@link DispatchQueue}.  Work submitted to a
+ * DispatchQueue is run in the order it was submitted and never concurrently
+ * with other work from the same DispatchQueue, so messages from one AMQP
+ * queue are still dispatched one at a time, in order.  Work from different
+ * DispatchQueues runs in parallel on the pool's threads, which means the
+ * number of threads no longer grows with the number of registrations.
+ * </p>
+ */
+public class ConsumerDispatchPool implements IDisposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConsumerDispatchPool.class);
+
+    /**
+     * Default number of dispatch threads.
+     */
+    public static int DEFAULT_POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+
+    /**
+     * Maximum number of items a DispatchQueue will run before giving its
+     * thread up to the other queues waiting on the pool.
+     */
+    public static int DEFAULT_MAX_BATCH = 64;
+
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+    protected final ThreadPoolExecutor executor;
+    protected int maxBatch = DEFAULT_MAX_BATCH;
+
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicInteger pending = new AtomicInteger();
+
+
+    /**
+     * Initialize the pool with the default number of threads.
+     */
+    public ConsumerDispatchPool() {
+        this(DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Initialize the pool with the supplied number of threads.
+     * @param poolSize maximum number of threads dispatching messages
+     */
+    public ConsumerDispatchPool(int poolSize) {
+
+        final String namePrefix = "amp-dispatch-" + POOL_NUMBER.incrementAndGet() + "-";
+
+        ThreadFactory threadFactory = new ThreadFactory() {
+
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, namePrefix + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        };
+
+        // There is never more than one task per DispatchQueue waiting on the
+        // executor, so the work queue is bounded by the number of listeners.
+        executor = new ThreadPoolExecutor(
+                poolSize, poolSize, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+
+    /**
+     * Create an ordered queue of work that runs on this pool.
+     * @return new DispatchQueue
+     */
+    public DispatchQueue createDispatchQueue() {
+        return new DispatchQueue();
+    }
+
+    /**
+     * Set the maximum number of items a single queue may run before letting
+     * another queue have the thread.
+     * @param maxBatch Maximum items per turn
+     */
+    public void setMaxBatch(int maxBatch) {
+        this.maxBatch = Math.max(1, maxBatch);
+    }
+
+    /**
+     * @return number of threads the pool may use
+     */
+    public int getPoolSize() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * @return number of threads currently dispatching messages
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return number of items submitted but not yet run, across all queues
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * @return number of items run since the pool was created
+     */
+    public long getDispatchedCount() {
+        return dispatched.get();
+    }
+
+    /**
+     * @return number of items that threw an exception when run
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    @Override
+    public void dispose() {
+
+        LOG.info("Shutting down the consumer dispatch pool.");
+
+        executor.shutdown();
+    }
+
+
+    /**
+     * An ordered queue of work that is run on the pool's threads, one item
+     * at a time.
+     */
+    public class DispatchQueue {
+
+        private final ConcurrentLinkedQueue<Runnable> items = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final AtomicInteger depth = new AtomicInteger();
+
+        private final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+
+        protected DispatchQueue() {}
+
+
+        /**
+         * Add work to the end of the queue.
+         * @param item work to run
+         */
+        public void submit(Runnable item) {
+
+            depth.incrementAndGet();
+            pending.incrementAndGet();
+
+            items.add(item);
+
+            schedule();
+        }
+
+        /**
+         * @return number of items waiting to be run on this queue
+         */
+        public int getDepth() {
+            return depth.get();
+        }
+
+        private void schedule() {
+
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+
+                    executor.execute(drain);
+
+                } catch (RejectedExecutionException ex) {
+
+                    scheduled.set(false);
+
+                    LOG.error("Dispatch pool has been shut down; work on this queue will not be run.", ex);
+                }
+            }
+        }
+
+        private void drain() {
+
+            int count = 0;
+            Runnable item;
+
+            while (count < maxBatch && (item = items.poll()) != null) {
+
+                depth.decrementAndGet();
+                pending.decrementAndGet();
+                count++;
+
+                try {
+
+                    item.run();
+                    dispatched.incrementAndGet();
+
+                } catch (Exception ex) {
+
+                    failed.incrementAndGet();
+                    LOG.error("Caught an unhandled exception dispatching a message.", ex);
+                }
+            }
+
+            scheduled.set(false);
+
+            // either we gave up our turn or something arrived after the last poll
+            if (!items.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
@@ -9,5 +9,19 @@ import amp.rabbit.topology.Exchange;
 
 public interface IRabbitChannelFactory extends IDisposable {
 
+	/**
+	 * Get a new channel for the exchange, owned by the caller.
+	 */
 	Channel getChannelFor(Exchange exchange) throws Exception;
+
+	/**
+	 * Check a reusable channel for the exchange out of a pool.  It must be
+	 * given back with returnChannel and used by one thread at a time.
+	 */
+	Channel checkoutChannelFor(Exchange exchange) throws Exception;
+
+	/**
+	 * Give a channel obtained from checkoutChannelFor back to the pool.
+	 */
+	void returnChannel(Exchange exchange, Channel channel);
 }
@@ -0,0 +1,346 @@
+package amp.rabbit;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import cmf.bus.IRegistration;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import amp.rabbit.topology.Exchange;
+
+
+/**
+ * A RabbitListener that has messages pushed to it by the AMQP client instead
+ * of polling for them on a thread of its own.
+ * <p>
+ * Deliveries are handed to a {@link ConsumerDispatchPool.DispatchQueue}, so
+ * messages from the listener's queue are still dispatched (and acknowledged)
+ * one at a time and in order, but the threads doing the work are shared by
+ * every listener using the same pool.  The close, connection error, and
+ * envelope received callbacks are raised exactly as they are by the polling
+ * listener, so the transport and connection remediation logic is unchanged.
+ * </p>
+ */
+public class PushRabbitListener extends RabbitListener implements IRabbitListener {
+
+    /**
+     * Listener Started Listeners
+     */
+    protected List<IListenerStartedCallback> startedCallbacks
+            = new ArrayList<IListenerStartedCallback>();
+
+    protected ConsumerDispatchPool.DispatchQueue dispatchQueue;
+    protected volatile DeliveryConsumer consumer;
+
+
+    /**
+     * Initialize the Listener with the Registration, Exchange, and the pool
+     * that will dispatch its messages.
+     * @param registration
+     * @param exchange
+     * @param dispatchPool
+     */
+    public PushRabbitListener(IRegistration registration, Exchange exchange, ConsumerDispatchPool dispatchPool) {
+
+        super(registration, exchange);
+
+        this.dispatchQueue = dispatchPool.createDispatchQueue();
+    }
+
+
+    /**
+     * Start listening on the supplied channel for messages.  If the listener
+     * was already consuming (on a channel that has since failed) that
+     * consumer is abandoned first.
+     * @param channel AMQP Channel
+     */
+    @Override
+    public void start(Channel channel) {
+
+        DeliveryConsumer previous = consumer;
+
+        if (previous != null && releaseConsumer(previous)) {
+
+            shouldContinue = false;
+
+            cancelConsumer(previous);
+        }
+
+        this.channel = channel;
+
+        this.start();
+    }
+
+    /**
+     * Start listening.  This won't work unless you have set the Channel on
+     * the listener.  No thread is created; the call returns as soon as the
+     * broker has accepted the consumer.
+     */
+    @Override
+    public void start() {
+
+        if (this.channel == null) {
+
+            log.error("Channel is null; cannot start.");
+
+            return;
+        }
+
+        startListening();
+    }
+
+    /**
+     * Stops listening for messages
+     */
+    @Override
+    public void stop() {
+        stopListening();
+    }
+
+    /**
+     * Add an onStarted listener
+     * @param callback listener
+     */
+    @Override
+    public void onStarted(IListenerStartedCallback callback) {
+        startedCallbacks.add(callback);
+    }
+
+    /**
+     * Notify the onStarted listeners that we are now consuming messages.
+     */
+    protected void raise_onStartedEvent() {
+
+        for (IListenerStartedCallback callback : startedCallbacks) {
+            try {
+
+                callback.onStart();
+
+            } catch (Exception ex) {
+
+                log.error("Caught an unhandled exception raising the listener started event", ex);
+            }
+        }
+    }
+
+    /**
+     * Declare the exchange and queue and register a consumer for the queue.
+     * Messages will arrive on the AMQP client's threads and be handed to the
+     * dispatch queue.
+     */
+    @Override
+    protected void startListening() {
+
+        log.debug("Enter startListening");
+
+        shouldContinue = true;
+
+        try {
+            // first, declare the exchange and queue
+            this.bind(this.registration, this.exchange);
+
+            DeliveryConsumer newConsumer = new DeliveryConsumer(channel);
+
+            consumer = newConsumer;
+
+            // limit how many deliveries the broker pushes ahead of our acks
+            this.applyPrefetch();
+
+            // and tell the broker to start pushing messages to the consumer
+            channel.basicConsume(exchange.getQueueName(), false, newConsumer);
+
+            threadStartSignal.countDown();
+
+            log.debug("Now consuming events using routing key: {}", exchange.getRoutingKey());
+
+            raise_onStartedEvent();
+        }
+        // This is intermittently thrown by the client if there is a TCP error.
+        // If we still mean to be listening, attempt to remedy the problem.
+        catch (AlreadyClosedException acex) {
+
+            consumer = null;
+
+            if (shouldContinue) {
+
+                log.error("Channel or Connection was closed before we could use it.", acex);
+
+                raise_onConnectionErrorEvent();
+            }
+        }
+        catch (Exception ex) {
+
+            consumer = null;
+
+            log.error("Caught an exception that will cause the listener to not listen for messages", ex);
+
+            raise_onCloseEvent(registration);
+        }
+
+        log.debug("Leave startListening");
+    }
+
+    /**
+     * Stop listening for Messages.  The close event is raised once the broker
+     * confirms the consumer has been cancelled.
+     */
+    @Override
+    public void stopListening() {
+
+        log.debug("Enter stopListening");
+
+        shouldContinue = false;
+
+        DeliveryConsumer current = consumer;
+
+        if (current != null && !cancelConsumer(current)) {
+
+            // the broker will never confirm the cancel, so we have to.
+            consumerStopped(current);
+        }
+
+        log.debug("Leave stopListening");
+    }
+
+    /**
+     * Ask the broker to stop delivering messages to the consumer.
+     * @param target consumer to cancel
+     * @return true if the broker accepted the request
+     */
+    protected boolean cancelConsumer(DeliveryConsumer target) {
+
+        String consumerTag = target.getConsumerTag();
+
+        if (consumerTag == null || !target.getChannel().isOpen()) {
+            return false;
+        }
+
+        try {
+
+            target.getChannel().basicCancel(consumerTag);
+
+            return true;
+
+        } catch (IOException ex) {
+
+            log.error("Exception occurred attempting to cancel consumption on Channel.", ex);
+
+        } catch (AlreadyClosedException ex) {
+
+            log.debug("Channel closed before consumption could be cancelled.");
+        }
+
+        return false;
+    }
+
+    /**
+     * Called once a consumer will receive no more messages.  If it is still
+     * the active consumer, the listener is closed.
+     * @param target consumer that stopped
+     */
+    protected void consumerStopped(DeliveryConsumer target) {
+
+        if (!releaseConsumer(target)) {
+            return;
+        }
+
+        log.debug("No longer listening for events");
+
+        raise_onCloseEvent(registration);
+    }
+
+    /**
+     * Forget the consumer if it is still the active one.
+     * @param target consumer to forget
+     * @return true if the consumer was the active one
+     */
+    protected synchronized boolean releaseConsumer(DeliveryConsumer target) {
+
+        if (consumer != target) {
+            return false;
+        }
+
+        consumer = null;
+
+        return true;
+    }
+
+    /**
+     * @return number of messages received but not yet dispatched
+     */
+    public int getPendingDeliveries() {
+        return dispatchQueue.getDepth();
+    }
+
+
+    /**
+     * Receives messages and consumer lifecycle notifications from the AMQP client.
+     */
+    protected class DeliveryConsumer extends DefaultConsumer {
+
+        public DeliveryConsumer(Channel channel) {
+            super(channel);
+        }
+
+        @Override
+        public void handleDelivery(
+                String consumerTag,
+                Envelope envelope,
+                final BasicProperties properties,
+                final byte[] body) throws IOException {
+
+            final Channel deliveryChannel = getChannel();
+            final long deliveryTag = envelope.getDeliveryTag();
+
+            dispatchQueue.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+
+                        handleNextDelivery(deliveryChannel, properties, body, deliveryTag);
+
+                    } catch (Exception ex) {
+
+                        log.warn("Caught an exception, but will not stop listening for messages", ex);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void handleCancelOk(String consumerTag) {
+            consumerStopped(this);
+        }
+
+        @Override
+        public void handleCancel(String consumerTag) throws IOException {
+
+            log.warn("Broker cancelled the consumer for queue {}", exchange.getQueueName());
+
+            consumerStopped(this);
+        }
+
+        @Override
+        public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+
+            if (!releaseConsumer(this)) {
+                return;
+            }
+
+            // Delegate the shutdown logic to handleShutdownSignalException method.
+            // If it wasn't intentional the connection error listeners will attempt
+            // to resolve this issue, so we don't fire the onClose handlers.
+            if (handleShutdownSignalException(sig)) {
+
+                raise_onCloseEvent(registration);
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package amp.rabbit;
 
 
+import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ShutdownListener;
 import com.rabbitmq.client.ShutdownSignalException;
 import org.slf4j.Logger;
@@ -16,6 +17,8 @@ public class RabbitConnectionShutdownListener implements ShutdownListener {
 	protected BaseChannelFactory channelFactory;
 	
 	protected Exchange exchange;
+
+	protected Connection connection;
 	
 	public RabbitConnectionShutdownListener(
 			BaseChannelFactory channelFactory,
@@ -25,10 +28,22 @@ public class RabbitConnectionShutdownListener implements ShutdownListener {
 		this.exchange = exchange;
 	}
 
+	public RabbitConnectionShutdownListener(
+			BaseChannelFactory channelFactory,
+			Exchange exchange,
+			Connection connection) {
+
+		this.channelFactory = channelFactory;
+		this.exchange = exchange;
+		this.connection = connection;
+	}
+
 	@Override
 	public void shutdownCompleted(ShutdownSignalException ex) {
 		
-		boolean removed = this.channelFactory.removeConnection(exchange);
+		boolean removed = (connection == null)
+				? this.channelFactory.removeConnection(exchange)
+				: this.channelFactory.removeConnection(exchange, connection);
 		
 		if (removed == false){
 			
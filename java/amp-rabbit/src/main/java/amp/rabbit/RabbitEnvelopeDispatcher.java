@@ -8,6 +8,8 @@ import com.rabbitmq.client.Channel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import amp.bus.DeferredOutcome;
+import amp.bus.IDeferredOutcomeCallback;
 import amp.bus.IEnvelopeDispatcher;
 
 
@@ -18,6 +20,7 @@ public class RabbitEnvelopeDispatcher implements IEnvelopeDispatcher {
     protected Envelope env;
     protected Logger log;
     protected IRegistration registration;
+    protected AckAggregator ackAggregator;
 
     public RabbitEnvelopeDispatcher(IRegistration registration, Envelope env, Channel channel, long deliveryTag) {
 
@@ -29,6 +32,19 @@ public class RabbitEnvelopeDispatcher implements IEnvelopeDispatcher {
         log = LoggerFactory.getLogger(this.getClass());
     }
 
+    /**
+     * Initialize the dispatcher to settle the delivery through an aggregator
+     * that batches acknowledgements.
+     * @param ackAggregator Aggregator tracking the channel's deliveries (may be null)
+     */
+    public RabbitEnvelopeDispatcher(
+            IRegistration registration, Envelope env, Channel channel, long deliveryTag, AckAggregator ackAggregator) {
+
+        this(registration, env, channel, deliveryTag);
+
+        this.ackAggregator = ackAggregator;
+    }
+
     @Override
     public void dispatch() {
         log.debug("Enter Dispatch()");
@@ -49,7 +65,15 @@ public class RabbitEnvelopeDispatcher implements IEnvelopeDispatcher {
             
             log.debug("Dispatched envelope to registration");
             
-        	respondToMessage(maybeNull);
+            if (maybeNull instanceof DeferredOutcome) {
+
+                // handling continues elsewhere: don't settle the delivery until it's done
+                respondWhenDone((DeferredOutcome) maybeNull);
+
+            } else {
+
+                respondToMessage(maybeNull);
+            }
             
         } catch (Exception ex) {
         		
@@ -86,6 +110,24 @@ public class RabbitEnvelopeDispatcher implements IEnvelopeDispatcher {
 		}	
     }
 
+    protected void respondWhenDone(DeferredOutcome outcome) {
+
+        outcome.onDone(new IDeferredOutcomeCallback() {
+
+            @Override
+            public void onComplete(Object maybeNull) {
+                respondToMessage(maybeNull);
+            }
+
+            @Override
+            public void onFailure(Exception ex) {
+                log.error("Caught an unhandled exception dispatching an envelope", ex);
+
+                dispatchFailed(env, ex);
+            }
+        });
+    }
+
     protected void respondToMessage(Object maybeNull) {
         log.debug("Enter RespondToMessage");
 
@@ -112,22 +154,29 @@ public class RabbitEnvelopeDispatcher implements IEnvelopeDispatcher {
         log.info("DeliveryOutcome of handled event is: {}", result);
         
         try {
-        
-	        switch (result) {
-	            case Acknowledge:
-	                channel.basicAck(deliveryTag, false);
-	                break;
-	            case Null:
-	                channel.basicAck(deliveryTag, false);
-	                break;
-	            case Reject:
-	                channel.basicReject(deliveryTag, false);
-	                break;
-	            case Exception:
-	                channel.basicNack(deliveryTag, false, false);
-	                break;
-	        }
-	        
+
+            if (null != ackAggregator) {
+
+                respondThroughAggregator(result);
+
+            } else {
+
+                switch (result) {
+                    case Acknowledge:
+                        channel.basicAck(deliveryTag, false);
+                        break;
+                    case Null:
+                        channel.basicAck(deliveryTag, false);
+                        break;
+                    case Reject:
+                        channel.basicReject(deliveryTag, false);
+                        break;
+                    case Exception:
+                        channel.basicNack(deliveryTag, false, false);
+                        break;
+                }
+            }
+
         } catch (IOException ioex) {
         	
     		log.error("There was a problem sending delivery outcome back to broker.", ioex);
@@ -136,6 +185,22 @@ public class RabbitEnvelopeDispatcher implements IEnvelopeDispatcher {
         log.debug("Leave RespondToMessage");
     }
 
+    protected void respondThroughAggregator(DeliveryOutcomes result) throws IOException {
+
+        switch (result) {
+            case Acknowledge:
+            case Null:
+                ackAggregator.ack(deliveryTag);
+                break;
+            case Reject:
+                ackAggregator.reject(deliveryTag);
+                break;
+            case Exception:
+                ackAggregator.nack(deliveryTag);
+                break;
+        }
+    }
+
     public void setChannel(Channel channel) {
         this.channel = channel;
     }
@@ -4,7 +4,6 @@ package amp.rabbit;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map.Entry;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -12,9 +11,9 @@ import cmf.bus.Envelope;
 import cmf.bus.IDisposable;
 import cmf.bus.IEnvelopeFilterPredicate;
 import cmf.bus.IRegistration;
+import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.AlreadyClosedException;
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.LongString;
 import com.rabbitmq.client.QueueingConsumer;
 import com.rabbitmq.client.QueueingConsumer.Delivery;
 import com.rabbitmq.client.ShutdownSignalException;
@@ -24,6 +23,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import amp.bus.EnvelopeHelper;
+import amp.bus.ExtendedHeaderConstants;
 import amp.bus.IEnvelopeReceivedCallback;
 import amp.rabbit.topology.Exchange;
 
@@ -32,6 +32,17 @@ public class RabbitListener implements IDisposable, Runnable {
     
 	public static int DELIVERY_INTERVAL = 100;
 
+    /**
+     * Default prefetch for registrations that don't ask for one; 0 for no limit.
+     */
+    public static int DEFAULT_PREFETCH = 0;
+
+    /**
+     * Default number of successful deliveries acknowledged together; 1 or less
+     * to acknowledge each one as it's handled.
+     */
+    public static int DEFAULT_ACK_BATCH_SIZE = 1;
+
 
     /**
      * (Intentional) Close Listeners
@@ -58,6 +69,10 @@ public class RabbitListener implements IDisposable, Runnable {
     protected boolean shouldContinue;
     protected Thread threadImRunningOn = null;
     protected CountDownLatch threadStartSignal = new CountDownLatch(1);
+    protected int prefetch = DEFAULT_PREFETCH;
+    protected int ackBatchSize = DEFAULT_ACK_BATCH_SIZE;
+    protected long ackBatchMillis = AckAggregator.DEFAULT_MAX_DELAY_MILLIS;
+    protected volatile AckAggregator ackAggregator;
 
 
     /**
@@ -198,6 +213,84 @@ public class RabbitListener implements IDisposable, Runnable {
         		this.exchange.getArguments());
 	}
     
+    /**
+     * Set the prefetch used when the registration doesn't ask for one.
+     * Must be set before the listener starts.
+     * @param prefetch Unacknowledged deliveries; 0 for no limit
+     */
+    public void setPrefetch(int prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Acknowledge successful deliveries together, in one frame, once this many
+     * have been handled or the oldest has waited this long.  Must be set before
+     * the listener starts.
+     * @param ackBatchSize Deliveries; 1 or less to acknowledge each as it's handled
+     * @param ackBatchMillis Time in ms
+     */
+    public void setAckBatching(int ackBatchSize, long ackBatchMillis) {
+        this.ackBatchSize = ackBatchSize;
+        this.ackBatchMillis = ackBatchMillis;
+    }
+
+    /**
+     * Limit the unacknowledged deliveries the channel's consumer may hold to
+     * the registration's prefetch, or the listener's if it has none, and
+     * start batching acknowledgements for the channel if asked to.
+     * @throws IOException
+     */
+    protected void applyPrefetch() throws IOException {
+
+        AckAggregator previous = ackAggregator;
+        AckAggregator next = (ackBatchSize > 1) ? new AckAggregator(channel, ackBatchSize, ackBatchMillis) : null;
+
+        // deliveries the previous aggregator is still tracking are settled on
+        // their own channel: through the new aggregator if it's the same one
+        if (null != previous) {
+            if (null != next && previous.getChannel() == channel) {
+                previous.handOver(next);
+            } else {
+                previous.dispose();
+            }
+        }
+
+        ackAggregator = next;
+
+        int prefetch = getPrefetch(this.registration);
+
+        if (prefetch == 0) {
+            prefetch = this.prefetch;
+        }
+
+        if (prefetch > 0) {
+
+            log.debug("Limiting consumer of {} to {} unacknowledged deliveries", exchange.getQueueName(), prefetch);
+
+            channel.basicQos(prefetch);
+        }
+    }
+
+    /**
+     * Get the prefetch a registration asks for.
+     * @param registration Registration to check.
+     * @return The prefetch, or 0 if it doesn't ask for one.
+     */
+    public static int getPrefetch(IRegistration registration) {
+
+        String prefetch = (null == registration.getRegistrationInfo()) ? null
+                : registration.getRegistrationInfo().get(ExtendedHeaderConstants.REGISTRATION_PREFETCH);
+
+        if (null == prefetch) { return 0; }
+
+        try {
+            return Math.max(0, Integer.parseInt(prefetch.trim()));
+        } catch (NumberFormatException ex) {
+            LoggerFactory.getLogger(RabbitListener.class).warn("Ignoring invalid registration prefetch: {}", prefetch);
+            return 0;
+        }
+    }
+
     /**
      * Add an onClose listener
      * @param callback listener
@@ -305,6 +398,9 @@ public class RabbitListener implements IDisposable, Runnable {
             // next(), create a basic consumer
             QueueingConsumer consumer = new QueueingConsumer(channel);
 
+            // limit how many deliveries the broker sends ahead of our acks
+            this.applyPrefetch();
+
             // and tell it to start consuming messages, storing the consumer tag
             String consumerTag = channel.basicConsume(exchange.getQueueName(), false, consumer);
 
@@ -408,16 +504,84 @@ public class RabbitListener implements IDisposable, Runnable {
      */
     protected void handleNextDelivery(Delivery result) throws Exception {
     		
+        handleNextDelivery(
+                channel, result.getProperties(), result.getBody(), result.getEnvelope().getDeliveryTag());
+    }
+
+    /**
+     * Handle an incoming message from the AMQP Broker.  Listeners that are
+     * handed messages by the client library (rather than polling for them)
+     * enter here.
+     *
+     * @param channel Channel the message was delivered on (and must be acknowledged on)
+     * @param properties AMQP Message Properties
+     * @param body AMQP Message Body
+     * @param deliveryTag AMQP Delivery Tag
+     * @throws Exception Connection Error, etc.
+     */
+    protected void handleNextDelivery(
+            Channel channel, BasicProperties properties, byte[] body, long deliveryTag) throws Exception {
+
         log.debug("Got something.");
 
-        EnvelopeHelper env = createEnvelopeFromDeliveryResult(result);
-        
-        log.debug("Incoming event headers: " + env.flatten());
+        AckAggregator aggregator = getAckAggregator(channel);
 
-        if (shouldRaiseEvent(registration.getFilterPredicate(), env.getEnvelope())) {
-        	
-            dispatchEnvelope(env.getEnvelope(), result.getEnvelope().getDeliveryTag());
+        // track the delivery before anything can fail, so a multiple
+        // acknowledgement of later deliveries can't cover it
+        if (null != aggregator) {
+            aggregator.delivered(deliveryTag);
+        }
+
+        EnvelopeHelper env;
+        boolean wanted;
+
+        try {
+            env = createEnvelope(properties, body);
+
+            if (log.isDebugEnabled()) {
+                log.debug("Incoming event headers: " + env.flatten());
+            }
+
+            wanted = shouldRaiseEvent(registration.getFilterPredicate(), env.getEnvelope());
+
+        } catch (Exception ex) {
+
+            log.error("Unable to read or filter delivery {}; rejecting it.", deliveryTag);
+
+            if (null != aggregator) {
+                aggregator.nack(deliveryTag);
+            } else {
+                channel.basicNack(deliveryTag, false, false);
+            }
+
+            throw ex;
         }
+
+        if (wanted) {
+
+            dispatchEnvelope(env.getEnvelope(), deliveryTag, channel, aggregator);
+
+        } else if (null != aggregator) {
+
+            // settle what we don't want, so it doesn't hold a prefetch slot
+            aggregator.ack(deliveryTag);
+
+        } else {
+
+            channel.basicAck(deliveryTag, false);
+        }
+    }
+
+    /**
+     * Get the aggregator batching acknowledgements for the channel.
+     * @param channel Channel a message was delivered on
+     * @return The aggregator, or null if acknowledgements on the channel aren't batched
+     */
+    protected AckAggregator getAckAggregator(Channel channel) {
+
+        AckAggregator aggregator = this.ackAggregator;
+
+        return (null != aggregator && aggregator.getChannel() == channel) ? aggregator : null;
     }
     
     /**
@@ -428,28 +592,29 @@ public class RabbitListener implements IDisposable, Runnable {
      */
     protected EnvelopeHelper createEnvelopeFromDeliveryResult(QueueingConsumer.Delivery result){
     		
-		EnvelopeHelper env = new EnvelopeHelper(new Envelope());
-    		
-        env.setReceiptTime(DateTime.now(DateTimeZone.UTC));
-        env.setPayload(result.getBody());
+        return createEnvelope(result.getProperties(), result.getBody());
+    }
 
-        // Iterate through the AMQP headers and convert them into CMF headers
-        for (Entry<String, Object> prop : result.getProperties().getHeaders().entrySet()) {
+    /**
+     * Transform the properties and body of an AMQP message into a Envelope
+     * (well, really an EnvelopeHelper).
+     *
+     * @param properties AMQP Message Properties
+     * @param body AMQP Message Body
+     * @return EnvelopeHelper with an initialized envelope
+     */
+    protected EnvelopeHelper createEnvelope(BasicProperties properties, byte[] body){
 
-            try {
-            
-        		String key = prop.getKey();
-        		byte[] valueBytes = ((LongString) prop.getValue()).getBytes();
-        		String value = new String(valueBytes, "UTF-8");
+		Envelope envelope = new Envelope();
+
+        // the AMQP headers are decoded into CMF headers as they are read
+        envelope.setHeaders(new AmqpHeaderMap(properties.getHeaders()));
+
+		EnvelopeHelper env = new EnvelopeHelper(envelope);
+
+        env.setReceiptTime(DateTime.now(DateTimeZone.UTC));
+        env.setPayload(body);
 
-        		env.setHeader(key, value);
-            
-            } catch (Exception ex) {
-            	
-                log.debug("couldn't get property", ex);
-            }
-        }
-    		
         return env;
     }
     
@@ -461,8 +626,39 @@ public class RabbitListener implements IDisposable, Runnable {
      */
     protected void dispatchEnvelope(Envelope envelope, long deliveryTag){
     		
+        dispatchEnvelope(envelope, deliveryTag, channel);
+    }
+
+    /**
+     * Dispatch the Envelope to all concerned listeners.
+     *
+     * @param envelope Incoming Envelope
+     * @param deliveryTag AMQP Delivery Tag
+     * @param channel Channel the Envelope was delivered on
+     */
+    protected void dispatchEnvelope(Envelope envelope, long deliveryTag, Channel channel){
+
+        AckAggregator aggregator = getAckAggregator(channel);
+
+        if (null != aggregator) {
+            aggregator.delivered(deliveryTag);
+        }
+
+        dispatchEnvelope(envelope, deliveryTag, channel, aggregator);
+    }
+
+    /**
+     * Dispatch the Envelope to all concerned listeners.
+     *
+     * @param envelope Incoming Envelope
+     * @param deliveryTag AMQP Delivery Tag
+     * @param channel Channel the Envelope was delivered on
+     * @param aggregator Aggregator already tracking the delivery (may be null)
+     */
+    protected void dispatchEnvelope(Envelope envelope, long deliveryTag, Channel channel, AckAggregator aggregator){
+
 		RabbitEnvelopeDispatcher dispatcher =
-    		new RabbitEnvelopeDispatcher(registration, envelope, channel, deliveryTag);
+    		new RabbitEnvelopeDispatcher(registration, envelope, channel, deliveryTag, aggregator);
         
         raise_onEnvelopeReceivedEvent(dispatcher);
     }
@@ -527,6 +723,12 @@ public class RabbitListener implements IDisposable, Runnable {
 		log.info("Dispose called.");
     		
         stopListening();
+
+        AckAggregator aggregator = ackAggregator;
+
+        if (null != aggregator) {
+            aggregator.dispose();
+        }
     }
     
     @Override
@@ -1,23 +1,34 @@
 package amp.rabbit.commands;
 
 
+import java.util.Collection;
 import java.util.Map;
 
 import amp.rabbit.topology.RoutingInfo;
 
 
 /**
- * Hello world!
- *
+ * Tells clients to invalidate cached routing, optionally replacing it.
+ * <p>
+ * If the command names topics, only those topics' routing is invalidated;
+ * otherwise the whole cache is.
+ * </p>
  */
 public class BurstRoutingCacheCommand
 {
     private Map<String, RoutingInfo> _routingInfo;
+    private Collection<String> _topics;
 
 
     public Map<String, RoutingInfo> getNewRoutingInfo() { return _routingInfo; }
     public void setNewRoutingInfo(Map<String, RoutingInfo> value) { _routingInfo = value; }
 
+    /**
+     * @return the topics whose routing changed, or null if all routing should be invalidated
+     */
+    public Collection<String> getTopics() { return _topics; }
+    public void setTopics(Collection<String> value) { _topics = value; }
+
 
     public BurstRoutingCacheCommand() {
 
@@ -26,4 +37,8 @@ public class BurstRoutingCacheCommand
     public BurstRoutingCacheCommand(Map<String, RoutingInfo> routingInfo) {
         _routingInfo = routingInfo;
     }
+
+    public BurstRoutingCacheCommand(Collection<String> topics) {
+        _topics = topics;
+    }
 }
@@ -0,0 +1,113 @@
+package amp.rabbit.transport;
+
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+
+/**
+ * Tracks the messages published on a channel in confirm mode that the broker
+ * has not yet acknowledged.  Outstanding publishes are kept in a lock-free
+ * map sorted by publish sequence number, so an acknowledgement of "everything
+ * up to N" completes a contiguous head of the map.
+ */
+public class ChannelConfirmTracker implements ConfirmListener, ShutdownListener {
+
+    protected final ConcurrentSkipListMap<Long, SettableFuture<Void>> outstanding =
+            new ConcurrentSkipListMap<Long, SettableFuture<Void>>();
+
+
+    /**
+     * Track a message that is about to be published.
+     * @param sequenceNumber the channel's next publish sequence number
+     * @param confirmation completed when the broker confirms the message
+     */
+    public void track(long sequenceNumber, SettableFuture<Void> confirmation) {
+        outstanding.put(sequenceNumber, confirmation);
+    }
+
+    /**
+     * Stop tracking a message that could not be published.
+     * @param sequenceNumber the message's publish sequence number
+     * @param cause why the publish failed
+     */
+    public void fail(long sequenceNumber, Throwable cause) {
+
+        SettableFuture<Void> confirmation = outstanding.remove(sequenceNumber);
+
+        if (null != confirmation) {
+            confirmation.setException(cause);
+        }
+    }
+
+    /**
+     * @return number of messages awaiting confirmation
+     */
+    public int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    @Override
+    public void handleAck(long deliveryTag, boolean multiple) {
+
+        if (multiple) {
+
+            ConcurrentNavigableMap<Long, SettableFuture<Void>> confirmed = outstanding.headMap(deliveryTag, true);
+
+            for (Map.Entry<Long, SettableFuture<Void>> entry : confirmed.entrySet()) {
+
+                if (outstanding.remove(entry.getKey(), entry.getValue())) {
+                    entry.getValue().set(null);
+                }
+            }
+
+        } else {
+
+            SettableFuture<Void> confirmation = outstanding.remove(deliveryTag);
+
+            if (null != confirmation) {
+                confirmation.set(null);
+            }
+        }
+    }
+
+    @Override
+    public void handleNack(long deliveryTag, boolean multiple) {
+
+        if (multiple) {
+
+            ConcurrentNavigableMap<Long, SettableFuture<Void>> refused = outstanding.headMap(deliveryTag, true);
+
+            for (Map.Entry<Long, SettableFuture<Void>> entry : refused.entrySet()) {
+
+                if (outstanding.remove(entry.getKey(), entry.getValue())) {
+                    entry.getValue().setException(
+                            new PublishNotConfirmedException("The broker refused message " + entry.getKey()));
+                }
+            }
+
+        } else {
+
+            fail(deliveryTag, new PublishNotConfirmedException("The broker refused message " + deliveryTag));
+        }
+    }
+
+    /**
+     * The channel closed: nothing outstanding will ever be confirmed.
+     */
+    @Override
+    public void shutdownCompleted(ShutdownSignalException cause) {
+
+        for (Long sequenceNumber : outstanding.keySet()) {
+
+            fail(sequenceNumber, new PublishNotConfirmedException(
+                    "The channel closed before message " + sequenceNumber + " was confirmed", cause));
+        }
+    }
+}
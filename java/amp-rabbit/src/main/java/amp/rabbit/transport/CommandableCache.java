@@ -1,6 +1,7 @@
 package amp.rabbit.transport;
 
 
+import java.util.Collection;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -24,13 +25,35 @@ public class CommandableCache extends SimpleRoutingInfoCache {
     private ICommandReceiver commandReceiver;
 
     public CommandableCache(ICommandReceiver commandReceiver, long cacheExpiryInSeconds) {
-		super(cacheExpiryInSeconds);
+        this(commandReceiver, cacheExpiryInSeconds, 0, 0);
+    }
+
+    /**
+     * @see SimpleRoutingInfoCache#SimpleRoutingInfoCache(long, long, long)
+     */
+    public CommandableCache(
+            ICommandReceiver commandReceiver,
+            long cacheExpiryInSeconds,
+            long refreshAheadInSeconds,
+            long maxStaleInSeconds) {
+		super(cacheExpiryInSeconds, refreshAheadInSeconds, maxStaleInSeconds);
         this.commandReceiver = commandReceiver;
 
         try {
             // subscribe for the command to burst the routing cache.  Pass a cache
             // reference into the cache buster that handles incoming BurstRoutingCache commands
-            this.commandReceiver.onCommandReceived(new RoutingCacheBuster(this.routingInfoCache, cacheLock));
+            this.commandReceiver.onCommandReceived(
+                    new RoutingCacheBuster(this.routingInfoCache, cacheLock, new IRoutingCacheBurstCallback() {
+                        @Override
+                        public void onBurst() {
+                            raise_onBurstEvent();
+                        }
+
+                        @Override
+                        public void onBurst(Collection<String> topics) {
+                            raise_onBurstEvent(topics);
+                        }
+                    }));
         }
         catch (MessageException cex) {
             LOG.warn("Failed to subscribe for Routing Cache Bust commands - the cache cannot be remotely commanded.", cex);
@@ -39,6 +62,7 @@ public class CommandableCache extends SimpleRoutingInfoCache {
     
 	@Override
 	public void dispose() {
+	    super.dispose();
 	    this.commandReceiver.dispose();
 	}
 }
@@ -0,0 +1,223 @@
+package amp.rabbit.transport;
+
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cmf.bus.Envelope;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Publishes messages with broker confirmations without waiting for them.
+ * <p>
+ * The first time a channel is used it is put into confirm mode and given a
+ * {@link ChannelConfirmTracker}.  Each publish returns a future that completes
+ * when the broker acknowledges the message (or fails if the broker refuses it
+ * or the channel closes first), so many messages can be in flight at once.
+ * A window caps how many publishes may be unconfirmed at one time; once it is
+ * full, publishing blocks until confirmations arrive.
+ * </p>
+ */
+public class ConfirmedPublisher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConfirmedPublisher.class);
+
+    public static int DEFAULT_MAX_UNCONFIRMED = 1000;
+
+    public static long DEFAULT_WINDOW_TIMEOUT = 30 * 1000;
+
+    protected final ConcurrentHashMap<Channel, ChannelConfirmTracker> trackers =
+            new ConcurrentHashMap<Channel, ChannelConfirmTracker>();
+
+    protected final Semaphore window;
+    protected final int maxUnconfirmed;
+    protected long windowTimeout = DEFAULT_WINDOW_TIMEOUT;
+
+    private final Runnable releaseWindow = new Runnable() {
+        @Override
+        public void run() {
+            window.release();
+        }
+    };
+
+
+    public ConfirmedPublisher() {
+        this(DEFAULT_MAX_UNCONFIRMED);
+    }
+
+    /**
+     * @param maxUnconfirmed maximum number of publishes awaiting confirmation at once
+     */
+    public ConfirmedPublisher(int maxUnconfirmed) {
+
+        this.maxUnconfirmed = maxUnconfirmed;
+        this.window = new Semaphore(maxUnconfirmed);
+    }
+
+
+    /**
+     * Set how long a publish waits for room in a full window before failing.
+     * @param windowTimeout time in ms
+     */
+    public void setWindowTimeout(long windowTimeout) {
+        this.windowTimeout = windowTimeout;
+    }
+
+    /**
+     * Publish a message.  The caller must have exclusive use of the channel
+     * for the duration of the call.
+     * @return a future completed when the broker confirms the message
+     * @throws TimeoutException if the window stayed full for too long
+     */
+    public ListenableFuture<Void> publish(
+            Channel channel,
+            String exchange,
+            String routingKey,
+            BasicProperties properties,
+            byte[] body) throws Exception {
+
+        ChannelConfirmTracker tracker = getTracker(channel);
+
+        if (!window.tryAcquire(windowTimeout, TimeUnit.MILLISECONDS)) {
+
+            throw new TimeoutException(String.format(
+                    "Timed out after %d ms waiting for one of %d unconfirmed publishes to be confirmed.",
+                    windowTimeout, maxUnconfirmed));
+        }
+
+        SettableFuture<Void> confirmation = SettableFuture.create();
+        confirmation.addListener(releaseWindow, MoreExecutors.sameThreadExecutor());
+
+        long sequenceNumber = channel.getNextPublishSeqNo();
+
+        tracker.track(sequenceNumber, confirmation);
+
+        try {
+
+            channel.basicPublish(exchange, routingKey, properties, body);
+
+        } catch (Exception ex) {
+
+            tracker.fail(sequenceNumber, ex);
+
+            throw ex;
+        }
+
+        return confirmation;
+    }
+
+    /**
+     * Combine the confirmations of an envelope's publishes (one per exchange)
+     * into a single handle.
+     * @param envelope the published envelope
+     * @param confirmations the confirmations of each publish
+     * @return a future that yields the envelope once every publish is confirmed
+     */
+    public ListenableFuture<Envelope> whenAllConfirmed(
+            final Envelope envelope, List<ListenableFuture<Void>> confirmations) {
+
+        final SettableFuture<Envelope> result = SettableFuture.create();
+
+        if (confirmations.isEmpty()) {
+
+            result.set(envelope);
+
+            return result;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(confirmations.size());
+
+        for (final ListenableFuture<Void> confirmation : confirmations) {
+
+            confirmation.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+
+                        confirmation.get();
+
+                        if (remaining.decrementAndGet() == 0) {
+                            result.set(envelope);
+                        }
+
+                    } catch (Exception ex) {
+
+                        result.setException(ex.getCause() == null ? ex : ex.getCause());
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        return result;
+    }
+
+    /**
+     * Log the failure of a confirmation no caller is waiting on.
+     * @param confirmation confirmation of an envelope's publishes
+     */
+    public void logFailures(final ListenableFuture<Envelope> confirmation) {
+
+        confirmation.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+
+                    confirmation.get();
+
+                } catch (Exception ex) {
+
+                    LOG.error("An envelope was not confirmed by the broker", ex);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * @return number of publishes awaiting confirmation
+     */
+    public int getUnconfirmedCount() {
+        return maxUnconfirmed - window.availablePermits();
+    }
+
+    protected ChannelConfirmTracker getTracker(final Channel channel) throws Exception {
+
+        ChannelConfirmTracker tracker = trackers.get(channel);
+
+        if (null == tracker) {
+
+            LOG.debug("Putting channel {} into confirm mode.", channel.getChannelNumber());
+
+            channel.confirmSelect();
+
+            tracker = new ChannelConfirmTracker();
+
+            channel.addConfirmListener(tracker);
+            channel.addShutdownListener(tracker);
+
+            // forget the channel when it closes
+            channel.addShutdownListener(new ShutdownListener() {
+                @Override
+                public void shutdownCompleted(ShutdownSignalException cause) {
+                    trackers.remove(channel);
+                }
+            });
+
+            trackers.put(channel, tracker);
+        }
+
+        return tracker;
+    }
+}
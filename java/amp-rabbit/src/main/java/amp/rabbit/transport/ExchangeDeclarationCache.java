@@ -0,0 +1,160 @@
+package amp.rabbit.transport;
+
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import amp.rabbit.topology.Exchange;
+
+
+/**
+ * Remembers which exchanges have already been declared on which connections,
+ * so publishers only pay for the exchange.declare round trip the first time
+ * they send to an exchange.
+ * <p>
+ * Exchanges are keyed on {@link Exchange#equals(Object)} (name, host, port,
+ * and virtual host).  Everything declared on a connection is forgotten when
+ * that connection shuts down, and the whole cache can be invalidated (for
+ * instance, when the routing cache is burst because the topology changed).
+ * </p>
+ * <p>
+ * Auto-delete exchanges are never cached: the broker deletes them once their
+ * last binding goes, and a publish to an exchange that no longer exists is
+ * lost, so they're declared every time.
+ * </p>
+ */
+public class ExchangeDeclarationCache implements IRoutingCacheBurstCallback {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExchangeDeclarationCache.class);
+
+    protected final ConcurrentHashMap<Connection, ConcurrentMap<Exchange, Boolean>> declaredExchanges =
+            new ConcurrentHashMap<Connection, ConcurrentMap<Exchange, Boolean>>();
+
+    private final AtomicLong declarations = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+
+    /**
+     * Declare the exchange using the supplied channel, unless it has already
+     * been declared on the channel's connection.
+     * @param channel Channel to declare the exchange with
+     * @param exchange Exchange to declare
+     * @throws IOException if the broker refuses the declaration
+     */
+    @SuppressWarnings("unchecked")
+    public void declare(Channel channel, Exchange exchange) throws IOException {
+
+        ConcurrentMap<Exchange, Boolean> declared = getDeclaredExchanges(channel.getConnection());
+
+        if (declared.containsKey(exchange)) {
+
+            skipped.incrementAndGet();
+
+            return;
+        }
+
+        LOG.debug("Declaring exchange {}", exchange.getName());
+
+        channel.exchangeDeclare(
+                exchange.getName(), exchange.getExchangeType(), exchange.getIsDurable(),
+                exchange.getIsAutoDelete(), exchange.getArguments());
+
+        declarations.incrementAndGet();
+
+        if (!exchange.getIsAutoDelete()) {
+            declared.put(exchange, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Forget every declaration, so each exchange is declared again the next
+     * time it is used.
+     */
+    public void invalidateAll() {
+
+        LOG.debug("Forgetting all exchange declarations.");
+
+        declaredExchanges.clear();
+    }
+
+    /**
+     * Forget any declarations of the exchange.
+     * @param exchange Exchange to declare again next time it is used
+     */
+    public void invalidate(Exchange exchange) {
+
+        for (ConcurrentMap<Exchange, Boolean> declared : declaredExchanges.values()) {
+
+            declared.remove(exchange);
+        }
+    }
+
+    /**
+     * The routing cache was burst; the topology may have changed, so forget
+     * everything we've declared.
+     */
+    @Override
+    public void onBurst() {
+        invalidateAll();
+    }
+
+    /**
+     * Some topics' routing changed.  We don't know which of our exchanges
+     * they used, and declaring again is cheap, so forget everything.
+     */
+    @Override
+    public void onBurst(Collection<String> topics) {
+        invalidateAll();
+    }
+
+    /**
+     * @return number of exchange.declare calls made
+     */
+    public long getDeclarationCount() {
+        return declarations.get();
+    }
+
+    /**
+     * @return number of exchange.declare calls avoided
+     */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    protected ConcurrentMap<Exchange, Boolean> getDeclaredExchanges(final Connection connection) {
+
+        ConcurrentMap<Exchange, Boolean> declared = declaredExchanges.get(connection);
+
+        if (declared == null) {
+
+            ConcurrentMap<Exchange, Boolean> newDeclared = new ConcurrentHashMap<Exchange, Boolean>();
+
+            declared = declaredExchanges.putIfAbsent(connection, newDeclared);
+
+            if (declared == null) {
+
+                declared = newDeclared;
+
+                // (if the connection is already closed, this is called immediately)
+                connection.addShutdownListener(new ShutdownListener() {
+                    @Override
+                    public void shutdownCompleted(ShutdownSignalException cause) {
+                        declaredExchanges.remove(connection);
+                    }
+                });
+            }
+        }
+
+        return declared;
+    }
+}
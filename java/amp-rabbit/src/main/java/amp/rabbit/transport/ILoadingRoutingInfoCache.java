@@ -0,0 +1,23 @@
+package amp.rabbit.transport;
+
+import java.util.Map;
+
+import amp.rabbit.topology.ITopologyService;
+import amp.rabbit.topology.RoutingInfo;
+
+/**
+ * A routing cache that loads missing routing itself, so that concurrent
+ * senders of a topic can share a single call to the topology service.
+ */
+public interface ILoadingRoutingInfoCache extends IRoutingInfoCache {
+
+	/**
+	 * Get the routing for a topic, loading it from the topology service if
+	 * it isn't cached.
+	 * @param topic topic to route
+	 * @param hints routing hints (the envelope headers) passed to the service
+	 * @param service topology service to load from
+	 * @return the routing, or null if the service has none
+	 */
+	RoutingInfo get(String topic, Map<String, String> hints, ITopologyService service);
+}
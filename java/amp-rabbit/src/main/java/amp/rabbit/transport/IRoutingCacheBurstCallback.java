@@ -0,0 +1,20 @@
+package amp.rabbit.transport;
+
+import java.util.Collection;
+
+/**
+ * Defines a callback method raised after a routing cache has been burst.
+ */
+public interface IRoutingCacheBurstCallback {
+
+    /**
+     * Raised after the routing cache has been invalidated.
+     */
+    public void onBurst();
+
+    /**
+     * Raised after only the routing of some topics has been invalidated.
+     * @param topics topics whose routing was invalidated
+     */
+    public void onBurst(Collection<String> topics);
+}
@@ -13,4 +13,10 @@ public interface IRoutingInfoCache extends IDisposable {
     RoutingInfo getIfPresent(String topic);
 
     void put(String topic, RoutingInfo routingInfo);
+
+    /**
+     * Register a callback raised after the cache is burst (invalidated).
+     * @param callback listener
+     */
+    void onBurst(IRoutingCacheBurstCallback callback);
 }
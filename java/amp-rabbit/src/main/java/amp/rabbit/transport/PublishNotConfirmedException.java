@@ -0,0 +1,20 @@
+package amp.rabbit.transport;
+
+
+/**
+ * Thrown (through a publish's completion handle) when the broker refuses to
+ * take responsibility for a message, or the channel closes before it does.
+ */
+public class PublishNotConfirmedException extends Exception {
+
+    private static final long serialVersionUID = 2924108611353436018L;
+
+
+    public PublishNotConfirmedException(String message) {
+        super(message);
+    }
+
+    public PublishNotConfirmedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -7,7 +7,9 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import amp.bus.IEnvelopeDispatcher;
 import amp.bus.IEnvelopeReceivedCallback;
+import amp.rabbit.ConsumerDispatchPool;
 import amp.rabbit.IListenerCloseCallback;
+import amp.rabbit.PushRabbitListener;
 import amp.rabbit.IRabbitChannelFactory;
 import amp.rabbit.ReconnectOnConnectionErrorCallback;
 import cmf.bus.IEnvelopeReceiver;
@@ -35,6 +37,8 @@ public class RabbitEnvelopeReceiver implements IEnvelopeReceiver {
     private ITopologyService _topologyService;
     private IRabbitChannelFactory _channelFactory;
     private ConcurrentHashMap<IRegistration, RabbitListener> _listeners;
+    private ConsumerDispatchPool _dispatchPool;
+    private boolean _ownsDispatchPool;
 
 
 
@@ -47,6 +51,34 @@ public class RabbitEnvelopeReceiver implements IEnvelopeReceiver {
     }
 
 
+    /**
+     * Set the pool of threads that dispatches received messages for all of
+     * this receiver's listeners.  A pool that is supplied here is not
+     * disposed with the receiver, so it can be shared.
+     * @param dispatchPool Pool that dispatches received messages
+     */
+    public void setDispatchPool(ConsumerDispatchPool dispatchPool) {
+
+        _dispatchPool = dispatchPool;
+        _ownsDispatchPool = false;
+    }
+
+    /**
+     * Get the pool of threads that dispatches received messages, creating it if necessary.
+     * @return Pool that dispatches received messages
+     */
+    public synchronized ConsumerDispatchPool getDispatchPool() {
+
+        if (null == _dispatchPool) {
+
+            _dispatchPool = new ConsumerDispatchPool();
+            _ownsDispatchPool = true;
+        }
+
+        return _dispatchPool;
+    }
+
+
 
     @Override
     public void register(IRegistration registration) throws Exception {
@@ -96,6 +128,11 @@ public class RabbitEnvelopeReceiver implements IEnvelopeReceiver {
 
             try { l.dispose(); } catch (Exception ex) { }
         }
+
+        if (_ownsDispatchPool) {
+
+            try { _dispatchPool.dispose(); } catch (Exception ex) { }
+        }
     }
 
 
@@ -139,7 +176,9 @@ public class RabbitEnvelopeReceiver implements IEnvelopeReceiver {
     /**
      * Get a new Rabbit Listener for the provided registration and exchange.
      * This was pulled out as an extension point for deriving classes, as well as,
-     * to make testing a little easier.
+     * to make testing a little easier.  Listeners have messages pushed to them
+     * and share the receiver's dispatch pool; override this to return a
+     * (thread per listener) RabbitListener instead.
      *
      * @param registration Handlers and hints
      * @param exchange Routing Information
@@ -148,7 +187,7 @@ public class RabbitEnvelopeReceiver implements IEnvelopeReceiver {
      */
     protected RabbitListener getListener(IRegistration registration, Exchange exchange) {
 
-        return new RabbitListener(registration, exchange);
+        return new PushRabbitListener(registration, exchange, getDispatchPool());
     }
 
     /**
@@ -7,6 +7,7 @@ import amp.rabbit.topology.RouteInfo;
 import amp.rabbit.topology.RoutingInfo;
 import cmf.bus.Envelope;
 import cmf.bus.IEnvelopeSender;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import org.slf4j.Logger;
@@ -28,6 +29,10 @@ public class RabbitEnvelopeSender implements IEnvelopeSender {
 
     private ITopologyService _topologyService;
     private IRabbitChannelFactory _channelFactory;
+    private ExchangeDeclarationCache _exchangeDeclarations = new ExchangeDeclarationCache();
+    private volatile boolean _confirmPublishes;
+    private int _maxUnconfirmedPublishes = ConfirmedPublisher.DEFAULT_MAX_UNCONFIRMED;
+    private ConfirmedPublisher _confirmedPublisher;
 
 
     public RabbitEnvelopeSender(ITopologyService topologyService, IRabbitChannelFactory channelFactory) {
@@ -38,11 +43,75 @@ public class RabbitEnvelopeSender implements IEnvelopeSender {
 
 
 
+    /**
+     * Turn confirmed publishing on or off for plain sends.  When it is on,
+     * every send is confirmed by the broker; failures are logged, and the
+     * number of unconfirmed sends is capped by the in-flight window.  Use
+     * {@link #sendConfirmed(Envelope)} to get a completion handle.
+     * @param confirmPublishes true to confirm every send
+     */
+    public void setConfirmPublishes(boolean confirmPublishes) {
+        _confirmPublishes = confirmPublishes;
+    }
+
+    /**
+     * Set the maximum number of publishes that may be awaiting confirmation
+     * at once.  Must be set before confirmed publishing is used.
+     * @param maxUnconfirmedPublishes size of the in-flight window
+     */
+    public void setMaxUnconfirmedPublishes(int maxUnconfirmedPublishes) {
+        _maxUnconfirmedPublishes = maxUnconfirmedPublishes;
+    }
+
+    /**
+     * Get the publisher used for confirmed sends, creating it if necessary.
+     * @return Confirmed Publisher
+     */
+    public synchronized ConfirmedPublisher getConfirmedPublisher() {
+
+        if (null == _confirmedPublisher) {
+            _confirmedPublisher = new ConfirmedPublisher(_maxUnconfirmedPublishes);
+        }
+
+        return _confirmedPublisher;
+    }
+
+
+
     @Override
     public void send(Envelope envelope) throws Exception {
 
         LOG.debug("Enter Send");
 
+        if (_confirmPublishes) {
+
+            getConfirmedPublisher().logFailures(sendConfirmed(envelope));
+
+        } else {
+
+            publish(envelope, null);
+        }
+
+        LOG.debug("Leave Send");
+    }
+
+    /**
+     * Send an envelope with broker confirmations, without waiting for them.
+     * @param envelope Envelope to send
+     * @return a future that yields the envelope once the broker has confirmed
+     * it on every exchange it was routed to, or fails if the broker refused it.
+     */
+    public ListenableFuture<Envelope> sendConfirmed(Envelope envelope) throws Exception {
+
+        ConfirmedPublisher publisher = getConfirmedPublisher();
+
+        return publisher.whenAllConfirmed(envelope, publish(envelope, publisher));
+    }
+
+    protected List<ListenableFuture<Void>> publish(Envelope envelope, ConfirmedPublisher publisher) throws Exception {
+
+        List<ListenableFuture<Void>> confirmations = new ArrayList<ListenableFuture<Void>>();
+
         // first, get the topology based on the headers
         RoutingInfo routing = _topologyService.getRoutingInfo(envelope.getHeaders());
 
@@ -61,7 +130,7 @@ public class RabbitEnvelopeSender implements IEnvelopeSender {
             Channel channel = null;
 
             try {
-                channel = _channelFactory.getChannelFor(ex);
+                channel = _channelFactory.checkoutChannelFor(ex);
 
                 AMQP.BasicProperties props = new AMQP.BasicProperties.Builder().build();
 
@@ -74,18 +143,28 @@ public class RabbitEnvelopeSender implements IEnvelopeSender {
 
                 props.setHeaders(headers);
 
-                channel.exchangeDeclare(
-                        ex.getName(), ex.getExchangeType(), ex.getIsDurable(),
-                        ex.getIsAutoDelete(), ex.getArguments());
+                _exchangeDeclarations.declare(channel, ex);
+
+                if (null == publisher) {
 
-                channel.basicPublish(ex.getName(), ex.getRoutingKey(), props, envelope.getPayload());
+                    channel.basicPublish(ex.getName(), ex.getRoutingKey(), props, envelope.getPayload());
+
+                } else {
+
+                    confirmations.add(
+                            publisher.publish(channel, ex.getName(), ex.getRoutingKey(), props, envelope.getPayload()));
+                }
 
             } catch (Exception e) {
                 LOG.error("Failed to send an envelope", e);
                 throw e;
+            } finally {
+                if (null != channel) {
+                    _channelFactory.returnChannel(ex, channel);
+                }
             }
         }
 
-        LOG.debug("Leave Send");
+        return confirmations;
     }
 }
@@ -2,18 +2,28 @@ package amp.rabbit.transport;
 
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import amp.rabbit.AckAggregator;
+import amp.rabbit.ConsumerDispatchPool;
 import amp.rabbit.IListenerCloseCallback;
+import amp.rabbit.PushRabbitListener;
 import amp.rabbit.RabbitListener;
 import amp.rabbit.ReconnectOnConnectionErrorCallback;
 import cmf.bus.Envelope;
 import cmf.bus.EnvelopeHeaderConstants;
 import cmf.bus.IRegistration;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Channel;
 import org.slf4j.Logger;
@@ -38,11 +48,23 @@ public class RabbitTransportProvider implements ITransportProvider {
 
     private static final Logger LOG = LoggerFactory.getLogger(RabbitTransportProvider.class);
 
+    public static long DEFAULT_BATCH_CONFIRM_TIMEOUT = 60 * 1000;
+
     protected IRabbitChannelFactory channelFactory;
     protected List<IEnvelopeReceivedCallback> envCallbacks = new ArrayList<IEnvelopeReceivedCallback>();
     protected ConcurrentHashMap<IRegistration, RabbitListener> listeners = new ConcurrentHashMap<IRegistration, RabbitListener>();
     protected ITopologyService topologyService;
     protected IRoutingInfoCache routingInfoCache;
+    protected ConsumerDispatchPool dispatchPool;
+    protected boolean ownsDispatchPool;
+    protected ExchangeDeclarationCache exchangeDeclarations = new ExchangeDeclarationCache();
+    protected volatile boolean confirmPublishes;
+    protected ConfirmedPublisher confirmedPublisher;
+    protected int maxUnconfirmedPublishes = ConfirmedPublisher.DEFAULT_MAX_UNCONFIRMED;
+    protected long batchConfirmTimeout = DEFAULT_BATCH_CONFIRM_TIMEOUT;
+    protected int prefetch = RabbitListener.DEFAULT_PREFETCH;
+    protected int ackBatchSize = RabbitListener.DEFAULT_ACK_BATCH_SIZE;
+    protected long ackBatchMillis = AckAggregator.DEFAULT_MAX_DELAY_MILLIS;
 
 
 
@@ -59,8 +81,112 @@ public class RabbitTransportProvider implements ITransportProvider {
 		this.topologyService = topologyService;
 		this.channelFactory = channelFactory;
         this.routingInfoCache = routingInfoCache;
+
+        // if the routing is burst, the exchanges may have changed too
+        this.routingInfoCache.onBurst(exchangeDeclarations);
+    }
+
+
+    /**
+     * Set the pool of threads that dispatches received messages for all of
+     * this provider's listeners.  If one is not set, a pool with the default
+     * number of threads is created when the first listener is.  A pool that
+     * is supplied here is not disposed with the provider, so it can be shared.
+     * @param dispatchPool Pool that dispatches received messages
+     */
+    public void setDispatchPool(ConsumerDispatchPool dispatchPool) {
+
+        this.dispatchPool = dispatchPool;
+        this.ownsDispatchPool = false;
+    }
+
+    /**
+     * Turn confirmed publishing on or off for plain sends.  When it is on,
+     * every send is confirmed by the broker; failures are logged, and the
+     * number of unconfirmed sends is capped by the in-flight window.  Use
+     * {@link #sendConfirmed(Envelope)} to get a completion handle.
+     * @param confirmPublishes true to confirm every send
+     */
+    public void setConfirmPublishes(boolean confirmPublishes) {
+
+        this.confirmPublishes = confirmPublishes;
+    }
+
+    /**
+     * Set the maximum number of publishes that may be awaiting confirmation
+     * at once.  Must be set before confirmed publishing is used.
+     * @param maxUnconfirmedPublishes size of the in-flight window
+     */
+    public void setMaxUnconfirmedPublishes(int maxUnconfirmedPublishes) {
+        this.maxUnconfirmedPublishes = maxUnconfirmedPublishes;
     }
 
+    /**
+     * Set how long sendAll waits for a batch to be confirmed when confirmed
+     * publishing is on.
+     * @param batchConfirmTimeout time in ms
+     */
+    public void setBatchConfirmTimeout(long batchConfirmTimeout) {
+        this.batchConfirmTimeout = batchConfirmTimeout;
+    }
+
+    /**
+     * Set the prefetch of listeners whose registrations don't ask for one
+     * (with the REGISTRATION_PREFETCH registration info).  Applies to
+     * listeners created afterwards.
+     * @param prefetch Unacknowledged deliveries; 0 for no limit
+     */
+    public void setPrefetch(int prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Have listeners acknowledge successful deliveries together, in one
+     * frame, once this many have been handled or the oldest has waited this
+     * long.  Applies to listeners created afterwards.
+     * @param ackBatchSize Deliveries; 1 or less to acknowledge each as it's handled
+     * @param ackBatchMillis Time in ms
+     */
+    public void setAckBatching(int ackBatchSize, long ackBatchMillis) {
+        this.ackBatchSize = ackBatchSize;
+        this.ackBatchMillis = ackBatchMillis;
+    }
+
+    /**
+     * Get the publisher used for confirmed sends, creating it if necessary.
+     * @return Confirmed Publisher
+     */
+    public synchronized ConfirmedPublisher getConfirmedPublisher() {
+
+        if (null == confirmedPublisher) {
+            confirmedPublisher = new ConfirmedPublisher(maxUnconfirmedPublishes);
+        }
+
+        return confirmedPublisher;
+    }
+
+    /**
+     * Get the record of which exchanges have already been declared.
+     * @return Exchange declaration cache
+     */
+    public ExchangeDeclarationCache getExchangeDeclarations() {
+        return exchangeDeclarations;
+    }
+
+    /**
+     * Get the pool of threads that dispatches received messages, creating it if necessary.
+     * @return Pool that dispatches received messages
+     */
+    public synchronized ConsumerDispatchPool getDispatchPool() {
+
+        if (null == dispatchPool) {
+
+            dispatchPool = new ConsumerDispatchPool();
+            ownsDispatchPool = true;
+        }
+
+        return dispatchPool;
+    }
 
 
     /**
@@ -98,11 +224,47 @@ public class RabbitTransportProvider implements ITransportProvider {
     }
 
     @Override
-    @SuppressWarnings({ "deprecation", "unchecked" })
     public void send(Envelope env) throws Exception {
 
         LOG.debug("Enter Send");
 
+        if (confirmPublishes) {
+
+            getConfirmedPublisher().logFailures(sendConfirmed(env));
+
+        } else {
+
+            publish(env, null);
+        }
+
+        LOG.debug("Leave Send");
+    }
+
+    /**
+     * Send an envelope with broker confirmations, without waiting for them.
+     * This works whether or not confirmed publishing has been turned on for
+     * plain sends.
+     * @param env Envelope to send
+     * @return a future that yields the envelope once the broker has confirmed
+     * it on every exchange it was routed to, or fails if the broker refused it.
+     */
+    public ListenableFuture<Envelope> sendConfirmed(Envelope env) throws Exception {
+
+        ConfirmedPublisher publisher = getConfirmedPublisher();
+
+        return publisher.whenAllConfirmed(env, publish(env, publisher));
+    }
+
+    /**
+     * Publish the envelope to each of its producer exchanges.
+     * @param env Envelope to send
+     * @param publisher used to publish with confirmations; null for fire-and-forget
+     * @return the confirmation of each publish (empty if publisher is null)
+     */
+    protected List<ListenableFuture<Void>> publish(Envelope env, ConfirmedPublisher publisher) throws Exception {
+
+        List<ListenableFuture<Void>> confirmations = new ArrayList<ListenableFuture<Void>>();
+
         // first, get the topology based on the headers
         RoutingInfo routing = this.getRoutingFromCacheOrService(routingInfoCache, topologyService, env.getHeaders());
 
@@ -121,32 +283,221 @@ public class RabbitTransportProvider implements ITransportProvider {
             Channel channel = null;
 
             try {
-                channel = channelFactory.getChannelFor(ex);
+                channel = channelFactory.checkoutChannelFor(ex);
 
-                BasicProperties props = new BasicProperties.Builder().build();
+                BasicProperties props = createProperties(env);
 
-                Map<String, Object> headers = new HashMap<String, Object>();
+                exchangeDeclarations.declare(channel, ex);
 
-                for (Entry<String, String> entry : env.getHeaders().entrySet()) {
+                if (null == publisher) {
 
-                    headers.put(entry.getKey(), entry.getValue());
+                    channel.basicPublish(ex.getName(), ex.getRoutingKey(), props, env.getPayload());
+
+                } else {
+
+                    confirmations.add(
+                            publisher.publish(channel, ex.getName(), ex.getRoutingKey(), props, env.getPayload()));
                 }
 
-                props.setHeaders(headers);
+            } catch (Exception e) {
+                LOG.error("Failed to send an envelope", e);
+                throw e;
+            } finally {
+                if (null != channel) {
+                    channelFactory.returnChannel(ex, channel);
+                }
+            }
+        }
 
-                channel.exchangeDeclare(
-                        ex.getName(), ex.getExchangeType(), ex.getIsDurable(),
-                        ex.getIsAutoDelete(), ex.getArguments());
+        return confirmations;
+    }
 
-                channel.basicPublish(ex.getName(), ex.getRoutingKey(), props, env.getPayload());
+    /**
+     * Send a batch of envelopes.  Routing is looked up once per topic, and
+     * each exchange gets a single channel for all of the envelopes routed to
+     * it.  Envelopes sent to the same exchange are published in the order
+     * they appear in the batch.  If confirmed publishing is on, this waits
+     * (once, for the whole batch) until the broker has confirmed every
+     * envelope.
+     * @param envelopes Envelopes to send
+     */
+    @Override
+    public void sendAll(Collection<Envelope> envelopes) throws Exception {
+
+        LOG.debug("Enter SendAll");
+
+        if (confirmPublishes) {
+
+            ListenableFuture<List<Envelope>> confirmation = sendAllConfirmed(envelopes);
+
+            try {
+
+                confirmation.get(batchConfirmTimeout, TimeUnit.MILLISECONDS);
+
+            } catch (ExecutionException ex) {
+
+                LOG.error("Failed to confirm a batch of envelopes", ex.getCause());
+                throw ex;
+            }
+
+        } else {
+
+            publishAll(envelopes, null);
+        }
+
+        LOG.debug("Leave SendAll");
+    }
+
+    /**
+     * Send a batch of envelopes with broker confirmations, without waiting for them.
+     * @param envelopes Envelopes to send
+     * @return a future that yields the envelopes once the broker has confirmed
+     * all of them, or fails if the broker refused any of them.
+     */
+    public ListenableFuture<List<Envelope>> sendAllConfirmed(Collection<Envelope> envelopes) throws Exception {
+
+        ConfirmedPublisher publisher = getConfirmedPublisher();
+
+        Map<Envelope, List<ListenableFuture<Void>>> confirmations = publishAll(envelopes, publisher);
+
+        List<ListenableFuture<Envelope>> envelopeConfirmations =
+                new ArrayList<ListenableFuture<Envelope>>(envelopes.size());
+
+        for (Envelope env : envelopes) {
+
+            envelopeConfirmations.add(publisher.whenAllConfirmed(env, confirmations.get(env)));
+        }
+
+        return Futures.allAsList(envelopeConfirmations);
+    }
+
+    /**
+     * Publish a batch of envelopes to their producer exchanges.
+     * @param envelopes Envelopes to send
+     * @param publisher used to publish with confirmations; null for fire-and-forget
+     * @return the confirmations of each envelope's publishes (empty lists if publisher is null)
+     */
+    protected Map<Envelope, List<ListenableFuture<Void>>> publishAll(
+            Collection<Envelope> envelopes, ConfirmedPublisher publisher) throws Exception {
+
+        Map<Envelope, List<ListenableFuture<Void>>> confirmations =
+                new IdentityHashMap<Envelope, List<ListenableFuture<Void>>>();
+
+        // first, group the envelopes by topic so routing is looked up once per topic
+        Map<String, List<Envelope>> byTopic = new LinkedHashMap<String, List<Envelope>>();
+
+        for (Envelope env : envelopes) {
+
+            String topic = env.getHeaders().get(EnvelopeHeaderConstants.MESSAGE_TOPIC);
+
+            List<Envelope> group = byTopic.get(topic);
+
+            if (null == group) {
+                group = new ArrayList<Envelope>();
+                byTopic.put(topic, group);
+            }
+
+            group.add(env);
+            confirmations.put(env, new ArrayList<ListenableFuture<Void>>());
+        }
+
+        // next, work out which envelopes go to each producer exchange.  Topics
+        // can share an exchange but not a routing key, so each envelope keeps
+        // the exchange (and so the routing key) of the route it came from.
+        Map<Exchange, List<RoutedEnvelope>> byExchange = new LinkedHashMap<Exchange, List<RoutedEnvelope>>();
+
+        for (List<Envelope> group : byTopic.values()) {
+
+            RoutingInfo routing = this.getRoutingFromCacheOrService(
+                    routingInfoCache, topologyService, group.get(0).getHeaders());
+
+            if (null == routing) {
+                throw new IllegalArgumentException(
+                        "No routing information could be found for one or more envelopes in the batch.");
+            }
+
+            for (RouteInfo route : routing.getRoutes()) {
+
+                Exchange ex = route.getProducerExchange();
+
+                List<RoutedEnvelope> routed = byExchange.get(ex);
+
+                if (null == routed) {
+                    routed = new ArrayList<RoutedEnvelope>();
+                    byExchange.put(ex, routed);
+                }
+
+                for (Envelope env : group) {
+                    routed.add(new RoutedEnvelope(ex, env));
+                }
+            }
+        }
+
+        // finally, publish each exchange's envelopes on a single channel
+        for (Entry<Exchange, List<RoutedEnvelope>> entry : byExchange.entrySet()) {
+
+            Exchange ex = entry.getKey();
+
+            LOG.info("Sending {} envelopes to exchange: {}", entry.getValue().size(), ex);
+
+            Channel channel = null;
+
+            try {
+                channel = channelFactory.checkoutChannelFor(ex);
+
+                exchangeDeclarations.declare(channel, ex);
+
+                for (RoutedEnvelope routed : entry.getValue()) {
+
+                    Envelope env = routed.envelope;
+                    String routingKey = routed.exchange.getRoutingKey();
+
+                    BasicProperties props = createProperties(env);
+
+                    if (null == publisher) {
+
+                        channel.basicPublish(ex.getName(), routingKey, props, env.getPayload());
+
+                    } else {
+
+                        confirmations.get(env).add(
+                                publisher.publish(channel, ex.getName(), routingKey, props, env.getPayload()));
+                    }
+                }
 
             } catch (Exception e) {
-                LOG.error("Failed to send an envelope", e);
+                LOG.error("Failed to send a batch of envelopes", e);
                 throw e;
+            } finally {
+                if (null != channel) {
+                    channelFactory.returnChannel(ex, channel);
+                }
             }
         }
 
-        LOG.debug("Leave Send");
+        return confirmations;
+    }
+
+    /**
+     * Create the AMQP properties (carrying the envelope's headers) for an envelope.
+     * @param env Envelope being sent
+     * @return AMQP Message Properties
+     */
+    @SuppressWarnings("deprecation")
+    protected BasicProperties createProperties(Envelope env) {
+
+        BasicProperties props = new BasicProperties.Builder().build();
+
+        Map<String, Object> headers = new HashMap<String, Object>();
+
+        for (Entry<String, String> entry : env.getHeaders().entrySet()) {
+
+            headers.put(entry.getKey(), entry.getValue());
+        }
+
+        props.setHeaders(headers);
+
+        return props;
     }
 
     /**
@@ -190,7 +541,12 @@ public class RabbitTransportProvider implements ITransportProvider {
         // pull the topic from the hints
         String topic = hints.get(EnvelopeHeaderConstants.MESSAGE_TOPIC);
 
-        // first, check the cache
+        // a loading cache makes concurrent senders of a topic share one call to the service
+        if (cache instanceof ILoadingRoutingInfoCache) {
+            return ((ILoadingRoutingInfoCache) cache).get(topic, hints, service);
+        }
+
+        // otherwise, check the cache
         RoutingInfo routing = cache.getIfPresent(topic);
 
         // if nothing, use the service
@@ -225,6 +581,11 @@ public class RabbitTransportProvider implements ITransportProvider {
 
             try { l.dispose(); } catch (Exception ex) { }
         }
+
+        if (ownsDispatchPool) {
+
+            try { dispatchPool.dispose(); } catch (Exception ex) { }
+        }
     }
 
 
@@ -238,6 +599,9 @@ public class RabbitTransportProvider implements ITransportProvider {
         // create a listener
         RabbitListener listener = this.getListener(registration, exchange);
 
+        listener.setPrefetch(prefetch);
+        listener.setAckBatching(ackBatchSize, ackBatchMillis);
+
         // hook into the listener's events
         listener.onEnvelopeReceived(new IEnvelopeReceivedCallback() {
 
@@ -267,7 +631,9 @@ public class RabbitTransportProvider implements ITransportProvider {
     /**
      * Get a new Rabbit Listener for the provided registration and exchange.
      * This was pulled out as an extension point for deriving classes, as well as,
-     * to make testing a little easier.
+     * to make testing a little easier.  Listeners have messages pushed to them
+     * and share the provider's dispatch pool; override this to return a
+     * (thread per listener) RabbitListener instead.
      * 
      * @param registration Handlers and hints
      * @param exchange Routing Information
@@ -276,7 +642,7 @@ public class RabbitTransportProvider implements ITransportProvider {
      */
     protected RabbitListener getListener(IRegistration registration, Exchange exchange) {
     		
-        return new RabbitListener(registration, exchange);
+        return new PushRabbitListener(registration, exchange, getDispatchPool());
     }
 
     /**
@@ -302,4 +668,19 @@ public class RabbitTransportProvider implements ITransportProvider {
     protected void finalize() {
         dispose();
     }
-}
\ No newline at end of file
+
+    /**
+     * An envelope in a batch, with the exchange of the route it's being sent
+     * along (which carries that route's routing key).
+     */
+    protected static class RoutedEnvelope {
+
+        protected final Exchange exchange;
+        protected final Envelope envelope;
+
+        public RoutedEnvelope(Exchange exchange, Envelope envelope) {
+            this.exchange = exchange;
+            this.envelope = envelope;
+        }
+    }
+}
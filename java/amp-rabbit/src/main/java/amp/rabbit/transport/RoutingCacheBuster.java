@@ -1,6 +1,7 @@
 package amp.rabbit.transport;
 
 
+import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.locks.Lock;
 
@@ -17,6 +18,9 @@ import org.slf4j.LoggerFactory;
  * Created with IntelliJ IDEA.
  * User: John
  * Date: 5/8/13
+ *
+ * Handles commands to burst the routing cache.  A command that names
+ * topics only invalidates (and optionally replaces) those topics' routing.
  */
 public class RoutingCacheBuster implements ICommandHandler<BurstRoutingCacheCommand> {
 
@@ -24,11 +28,21 @@ public class RoutingCacheBuster implements ICommandHandler<BurstRoutingCacheComm
 
     private Cache<String, RoutingInfo> routingInfoCache;
     private Lock cacheLock;
+    private IRoutingCacheBurstCallback burstCallback;
 
 
     public RoutingCacheBuster(Cache<String, RoutingInfo> routingInfoCache, Lock cacheLock) {
+        this(routingInfoCache, cacheLock, null);
+    }
+
+    /**
+     * @param burstCallback raised (outside the cache lock) after each burst; may be null
+     */
+    public RoutingCacheBuster(
+            Cache<String, RoutingInfo> routingInfoCache, Lock cacheLock, IRoutingCacheBurstCallback burstCallback) {
         this.routingInfoCache = routingInfoCache;
         this.cacheLock = cacheLock;
+        this.burstCallback = burstCallback;
     }
 
 
@@ -40,6 +54,13 @@ public class RoutingCacheBuster implements ICommandHandler<BurstRoutingCacheComm
     @Override
     public void handle(BurstRoutingCacheCommand command, Map<String, String> headers) {
 
+        Collection<String> topics = command.getTopics();
+
+        if (null != topics) {
+            this.handleTopics(command, topics);
+            return;
+        }
+
         LOG.info("Received a command to burst the routing cache.");
 
         this.cacheLock.lock();
@@ -61,5 +82,39 @@ public class RoutingCacheBuster implements ICommandHandler<BurstRoutingCacheComm
         finally {
             this.cacheLock.unlock();
         }
+
+        if (null != this.burstCallback) {
+            this.burstCallback.onBurst();
+        }
+    }
+
+    protected void handleTopics(BurstRoutingCacheCommand command, Collection<String> topics) {
+
+        LOG.info("Received a command to burst the routing of {} topics.", topics.size());
+
+        this.cacheLock.lock();
+
+        try {
+            this.routingInfoCache.invalidateAll(topics);
+            LOG.debug("The routing of {} has been invalidated.", topics);
+
+            Map<String, RoutingInfo> newRouting = command.getNewRoutingInfo();
+
+            if (null != newRouting) {
+                for (String topic : topics) {
+                    RoutingInfo routing = newRouting.get(topic);
+                    if (null != routing) {
+                        this.routingInfoCache.put(topic, routing);
+                    }
+                }
+            }
+        }
+        finally {
+            this.cacheLock.unlock();
+        }
+
+        if (null != this.burstCallback) {
+            this.burstCallback.onBurst(topics);
+        }
     }
 }
@@ -0,0 +1,93 @@
+package amp.rabbit.transport;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals of how one topic's routing has been served by a routing
+ * cache.
+ */
+public class RoutingCacheStats {
+
+	private final String topic;
+
+	final AtomicLong hitCount = new AtomicLong();
+	final AtomicLong missCount = new AtomicLong();
+	final AtomicLong loadCount = new AtomicLong();
+	final AtomicLong loadFailureCount = new AtomicLong();
+	final AtomicLong loadNanos = new AtomicLong();
+	final AtomicLong refreshCount = new AtomicLong();
+	final AtomicLong staleCount = new AtomicLong();
+
+	public RoutingCacheStats(String topic) {
+		this.topic = topic;
+	}
+
+	public String getTopic() {
+		return topic;
+	}
+
+	/**
+	 * @return number of times routing was served from the cache without waiting on the topology service
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return number of times a sender had to wait for routing to be loaded
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return number of calls made to the topology service, including background refreshes
+	 */
+	public long getLoadCount() {
+		return loadCount.get();
+	}
+
+	/**
+	 * @return number of calls to the topology service that failed or found nothing
+	 */
+	public long getLoadFailureCount() {
+		return loadFailureCount.get();
+	}
+
+	/**
+	 * @return total time spent in the topology service, in nanoseconds
+	 */
+	public long getLoadNanos() {
+		return loadNanos.get();
+	}
+
+	/**
+	 * @return mean time of a call to the topology service, in milliseconds
+	 */
+	public double getMeanLoadMillis() {
+		long loads = loadCount.get();
+		return (0 == loads) ? 0 : (double) loadNanos.get() / loads / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/**
+	 * @return number of background refreshes started ahead of expiry
+	 */
+	public long getRefreshCount() {
+		return refreshCount.get();
+	}
+
+	/**
+	 * @return number of times expired routing was served because the topology service couldn't be reached
+	 */
+	public long getStaleCount() {
+		return staleCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: hits=%d misses=%d loads=%d (failed %d, mean %.1f ms) refreshes=%d stale=%d",
+				topic, getHitCount(), getMissCount(), getLoadCount(), getLoadFailureCount(),
+				getMeanLoadMillis(), getRefreshCount(), getStaleCount());
+	}
+}
@@ -1,24 +1,106 @@
 package amp.rabbit.transport;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import amp.rabbit.topology.ITopologyService;
 import amp.rabbit.topology.RoutingInfo;
 
+import com.google.common.base.Ticker;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Futures;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-public class SimpleRoutingInfoCache  implements IRoutingInfoCache {
+/**
+ * Caches routing by topic for a fixed time after it is loaded.
+ * <p>
+ * When routing is missing, only one caller per topic asks the topology
+ * service for it; any others asking for the same topic meanwhile wait for
+ * that answer.  Optionally, routing that is still in use is reloaded in the
+ * background shortly before it expires, so senders don't wait on the
+ * topology service at all, and expired routing is kept for a while longer
+ * to be served if the topology service can't be reached.
+ * </p>
+ */
+public class SimpleRoutingInfoCache  implements ILoadingRoutingInfoCache {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SimpleRoutingInfoCache.class);
+
+	public static int REFRESH_THREADS = 2;
 
 	protected volatile Cache<String, RoutingInfo> routingInfoCache;
 	protected Lock cacheLock;
+	protected List<IRoutingCacheBurstCallback> burstCallbacks = new CopyOnWriteArrayList<IRoutingCacheBurstCallback>();
+
+	protected final long expiryMillis;
+	protected final long refreshAheadMillis;
+
+	/**
+	 * what the cache tells the time by
+	 */
+	protected final Ticker ticker;
+
+	/**
+	 * when each topic was loaded, and its statistics
+	 */
+	protected final ConcurrentMap<String, TopicState> topics = new ConcurrentHashMap<String, TopicState>();
+
+	/**
+	 * loads in progress, by topic
+	 */
+	protected final ConcurrentMap<String, FutureTask<RoutingInfo>> loads = new ConcurrentHashMap<String, FutureTask<RoutingInfo>>();
+
+	private ExecutorService refreshExecutor;
 
 	public SimpleRoutingInfoCache(long cacheExpiryInSeconds) {
+		this(cacheExpiryInSeconds, 0, 0);
+	}
+
+	/**
+	 * @param cacheExpiryInSeconds how long routing is used for after it is loaded
+	 * @param refreshAheadInSeconds how long before it expires routing in use is reloaded in the background; 0 for never
+	 * @param maxStaleInSeconds how long past expiry routing may still be used if it can't be reloaded; 0 for not at all
+	 */
+	public SimpleRoutingInfoCache(long cacheExpiryInSeconds, long refreshAheadInSeconds, long maxStaleInSeconds) {
+		this(cacheExpiryInSeconds, refreshAheadInSeconds, maxStaleInSeconds, Ticker.systemTicker());
+	}
+
+	/**
+	 * @see #SimpleRoutingInfoCache(long, long, long)
+	 * @param ticker the clock routing ages by, e.g. a fake one in tests
+	 */
+	public SimpleRoutingInfoCache(long cacheExpiryInSeconds, long refreshAheadInSeconds, long maxStaleInSeconds, Ticker ticker) {
 		super();
+		this.ticker = ticker;
+		this.expiryMillis = TimeUnit.SECONDS.toMillis(cacheExpiryInSeconds);
+		this.refreshAheadMillis = TimeUnit.SECONDS.toMillis(Math.min(refreshAheadInSeconds, cacheExpiryInSeconds));
+
         this.routingInfoCache = CacheBuilder
                 .newBuilder()
-                .expireAfterWrite(cacheExpiryInSeconds, TimeUnit.SECONDS)
+                .expireAfterWrite(cacheExpiryInSeconds + maxStaleInSeconds, TimeUnit.SECONDS)
+                .ticker(ticker)
                 .build();
 
         this.cacheLock = new ReentrantLock();
@@ -26,27 +108,346 @@ public class SimpleRoutingInfoCache  implements IRoutingInfoCache {
 
 	@Override
 	public RoutingInfo getIfPresent(String topic) {
-	
+
 	    // I don't think we should lock this call, otherwise we'll lock everytime we try to read the cache, which
 	    // is going to kill performance.  Instead, I've made the cache volatile so that - at the very least -
 	    // this read will see the latest value.
-	    return routingInfoCache.getIfPresent(topic);
+	    RoutingInfo routing = routingInfoCache.getIfPresent(topic);
+
+	    // only kept to be served when the topology service is down
+	    if (null != routing && this.isExpired(topic)) {
+	        return null;
+	    }
+
+	    return routing;
 	}
 
 	@Override
 	public void put(String topic, RoutingInfo routingInfo) {
-	
+
 	    this.cacheLock.lock();
-	
+
 	    try {
 	        this.routingInfoCache.put(topic, routingInfo);
+	        this.getState(topic).loadedAt = this.now();
 	    }
 	    finally {
 	        this.cacheLock.unlock();
 	    }
 	}
 
+	@Override
+	public RoutingInfo get(String topic, Map<String, String> hints, ITopologyService service) {
+
+	    TopicState state = this.getState(topic);
+	    RoutingInfo routing = routingInfoCache.getIfPresent(topic);
+
+	    if (null != routing) {
+
+	        long now = this.now();
+	        long age = now - state.getLoadedAt(now);
+
+	        if (age < expiryMillis) {
+
+	            state.stats.hitCount.incrementAndGet();
+
+	            if (refreshAheadMillis > 0 && age >= expiryMillis - refreshAheadMillis) {
+	                this.refresh(topic, hints, service);
+	            }
+
+	            return routing;
+	        }
+
+	        // expired, but kept in case the topology service is down
+	        state.stats.missCount.incrementAndGet();
+
+	        try {
+	            RoutingInfo reloaded = this.load(topic, hints, service);
+
+	            if (null != reloaded) {
+	                return reloaded;
+	            }
+	        } catch (RuntimeException ex) {
+	            LOG.warn("Failed to reload routing for " + topic + "; using expired routing", ex);
+	        }
+
+	        state.stats.staleCount.incrementAndGet();
+	        return routing;
+	    }
+
+	    LOG.debug("No routing information cached for {}; using the topology service.", topic);
+	    state.stats.missCount.incrementAndGet();
+
+	    return this.load(topic, hints, service);
+	}
+
+	/**
+	 * @return statistics for a topic, or null if it has never been asked for
+	 */
+	public RoutingCacheStats getStats(String topic) {
+	    TopicState state = topics.get(topic);
+	    return (null == state) ? null : state.stats;
+	}
+
+	/**
+	 * @return statistics for every topic asked for
+	 */
+	public Collection<RoutingCacheStats> getStats() {
+
+	    List<RoutingCacheStats> stats = new ArrayList<RoutingCacheStats>();
+
+	    for (TopicState state : topics.values()) {
+	        stats.add(state.stats);
+	    }
+
+	    return Collections.unmodifiableList(stats);
+	}
+
+	@Override
+	public void onBurst(IRoutingCacheBurstCallback callback) {
+
+	    this.burstCallbacks.add(callback);
+	}
+
+	/**
+	 * Notify the onBurst listeners that the cache has been invalidated.
+	 */
+	protected void raise_onBurstEvent() {
+
+	    // routing pushed with the burst counts as freshly loaded
+	    for (TopicState state : topics.values()) {
+	        state.loadedAt = 0;
+	    }
+
+	    for (IRoutingCacheBurstCallback callback : burstCallbacks) {
+	        try {
+	            callback.onBurst();
+	        } catch (Exception ex) {
+	            LOG.error("Caught an unhandled exception raising the routing cache burst event", ex);
+	        }
+	    }
+	}
+
+	/**
+	 * Notify the onBurst listeners that some topics' routing has been invalidated.
+	 */
+	protected void raise_onBurstEvent(Collection<String> burstTopics) {
+
+	    // routing pushed with the burst counts as freshly loaded
+	    for (String topic : burstTopics) {
+	        TopicState state = topics.get(topic);
+	        if (null != state) {
+	            state.loadedAt = 0;
+	        }
+	    }
+
+	    for (IRoutingCacheBurstCallback callback : burstCallbacks) {
+	        try {
+	            callback.onBurst(burstTopics);
+	        } catch (Exception ex) {
+	            LOG.error("Caught an unhandled exception raising the routing cache burst event", ex);
+	        }
+	    }
+	}
+
+	/**
+	 * Load a topic's routing, or wait for the load already in progress.
+	 */
+	protected RoutingInfo load(String topic, Map<String, String> hints, ITopologyService service) {
+
+	    Future<RoutingInfo> load = this.startLoad(topic, hints, service);
+
+	    try {
+	        return load.get();
+	    } catch (InterruptedException ex) {
+	        Thread.currentThread().interrupt();
+	        throw new IllegalStateException("Interrupted waiting for routing of " + topic, ex);
+	    } catch (ExecutionException ex) {
+	        Throwable cause = ex.getCause();
+	        if (cause instanceof RuntimeException) { throw (RuntimeException) cause; }
+	        if (cause instanceof Error) { throw (Error) cause; }
+	        throw new IllegalStateException(cause);
+	    }
+	}
+
+	/**
+	 * Start reloading a topic's routing in the background, unless it is already loading.
+	 */
+	protected void refresh(final String topic, Map<String, String> hints, ITopologyService service) {
+
+	    if (loads.containsKey(topic)) { return; }
+
+	    final FutureTask<RoutingInfo> load = new FutureTask<RoutingInfo>(this.loader(topic, hints, service));
+
+	    if (null != loads.putIfAbsent(topic, load)) { return; }
+
+	    this.getState(topic).stats.refreshCount.incrementAndGet();
+
+	    try {
+	        this.getRefreshExecutor().execute(new Runnable() {
+	            @Override
+	            public void run() {
+	                try {
+	                    load.run();
+	                } finally {
+	                    loads.remove(topic, load);
+	                }
+	            }
+	        });
+	    } catch (RejectedExecutionException ex) {
+	        // disposed
+	        loads.remove(topic, load);
+	    }
+	}
+
+	/**
+	 * @return the time by the cache's ticker, in milliseconds
+	 */
+	protected long now() {
+	    return TimeUnit.NANOSECONDS.toMillis(ticker.read());
+	}
+
+	protected boolean isExpired(String topic) {
+	    TopicState state = topics.get(topic);
+	    long now = this.now();
+	    return null != state && now - state.getLoadedAt(now) >= expiryMillis;
+	}
+
+	protected TopicState getState(String topic) {
+
+	    TopicState state = topics.get(topic);
+
+	    if (null == state) {
+	        state = new TopicState(topic);
+	        TopicState existing = topics.putIfAbsent(topic, state);
+	        if (null != existing) { state = existing; }
+	    }
+
+	    return state;
+	}
+
+	protected synchronized ExecutorService getRefreshExecutor() {
+
+	    if (null == refreshExecutor) {
+
+	        final AtomicInteger threadNumber = new AtomicInteger();
+
+	        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+	                REFRESH_THREADS, REFRESH_THREADS, 60, TimeUnit.SECONDS,
+	                new LinkedBlockingQueue<Runnable>(),
+	                new ThreadFactory() {
+	                    @Override
+	                    public Thread newThread(Runnable task) {
+	                        Thread thread = new Thread(task, "amp-routing-refresh-" + threadNumber.incrementAndGet());
+	                        thread.setDaemon(true);
+	                        return thread;
+	                    }
+	                });
+	        executor.allowCoreThreadTimeOut(true);
+
+	        refreshExecutor = executor;
+	    }
+
+	    return refreshExecutor;
+	}
+
 	@Override
 	public void dispose() {
+
+	    synchronized (this) {
+	        if (null != refreshExecutor) {
+	            refreshExecutor.shutdownNow();
+	        }
+	    }
+	}
+
+
+	private Future<RoutingInfo> startLoad(String topic, Map<String, String> hints, ITopologyService service) {
+
+	    FutureTask<RoutingInfo> load = loads.get(topic);
+
+	    if (null != load) { return load; }
+
+	    load = new FutureTask<RoutingInfo>(this.loader(topic, hints, service));
+	    FutureTask<RoutingInfo> existing = loads.putIfAbsent(topic, load);
+
+	    if (null != existing) { return existing; }
+
+	    try {
+	        // a load may have finished since the caller found the routing missing
+	        // or expired; it cached its routing before it let go of the topic
+	        RoutingInfo loaded = this.getIfPresent(topic);
+
+	        if (null != loaded) {
+	            return Futures.immediateFuture(loaded);
+	        }
+
+	        load.run();
+	    } finally {
+	        loads.remove(topic, load);
+	    }
+
+	    return load;
+	}
+
+	private Callable<RoutingInfo> loader(final String topic, Map<String, String> hints, final ITopologyService service) {
+
+	    final Map<String, String> loadHints = new HashMap<String, String>(hints);
+
+	    return new Callable<RoutingInfo>() {
+	        @Override
+	        public RoutingInfo call() {
+
+	            RoutingCacheStats stats = getState(topic).stats;
+	            long start = System.nanoTime();
+	            RoutingInfo routing = null;
+
+	            try {
+	                routing = service.getRoutingInfo(loadHints);
+	            } finally {
+	                stats.loadCount.incrementAndGet();
+	                stats.loadNanos.addAndGet(System.nanoTime() - start);
+
+	                if (null == routing) {
+	                    stats.loadFailureCount.incrementAndGet();
+	                }
+	            }
+
+	            // if we got something from the service, cache it
+	            if (null != routing) {
+	                put(topic, routing);
+	            }
+
+	            return routing;
+	        }
+	    };
+	}
+
+
+	/**
+	 * What the cache knows about one topic besides its routing.
+	 */
+	protected static final class TopicState {
+
+	    final RoutingCacheStats stats;
+
+	    /**
+	     * when the routing was loaded; 0 if it was put in the cache some other way, e.g. by a burst
+	     */
+	    volatile long loadedAt;
+
+	    TopicState(String topic) {
+	        this.stats = new RoutingCacheStats(topic);
+	    }
+
+	    long getLoadedAt(long now) {
+
+	        // routing of unknown age counts as loaded when first seen
+	        if (0 == loadedAt) {
+	            loadedAt = now;
+	        }
+
+	        return loadedAt;
+	    }
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,119 @@
+package amp.rabbit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import com.rabbitmq.client.Channel;
+
+public class AckAggregatorTest {
+
+	static final long NEVER = 60 * 1000;
+
+	@Test
+	public void deliveries_finishing_out_of_order_are_acked_once_the_oldest_is_done() throws Exception {
+
+		Channel channel = mock(Channel.class);
+		AckAggregator aggregator = new AckAggregator(channel, 3, NEVER);
+
+		for (long deliveryTag = 1; deliveryTag <= 4; deliveryTag++) {
+			aggregator.delivered(deliveryTag);
+		}
+
+		aggregator.ack(2);
+		aggregator.ack(3);
+		aggregator.ack(4);
+
+		// 1 is still being processed, so nothing can be covered yet
+		verify(channel, never()).basicAck(anyLong(), anyBoolean());
+
+		aggregator.ack(1);
+
+		verify(channel, times(1)).basicAck(4L, true);
+		verifyNoMoreInteractions(channel);
+		assertEquals(1, aggregator.getAckFrameCount());
+		assertEquals(4, aggregator.getAckedDeliveryCount());
+	}
+
+	@Test
+	public void rejections_in_a_batch_are_sent_straight_away() throws Exception {
+
+		Channel channel = mock(Channel.class);
+		AckAggregator aggregator = new AckAggregator(channel, 2, NEVER);
+
+		for (long deliveryTag = 1; deliveryTag <= 4; deliveryTag++) {
+			aggregator.delivered(deliveryTag);
+		}
+
+		aggregator.ack(1);
+		aggregator.reject(2);
+		aggregator.nack(3);
+		aggregator.ack(4);
+
+		InOrder inOrder = inOrder(channel);
+		inOrder.verify(channel).basicReject(2L, false);
+		inOrder.verify(channel).basicNack(3L, false, false);
+		inOrder.verify(channel).basicAck(4L, true);
+		verifyNoMoreInteractions(channel);
+		assertEquals(2, aggregator.getAckedDeliveryCount());
+	}
+
+	@Test
+	public void held_acks_are_sent_once_they_have_waited() throws Exception {
+
+		Channel channel = mock(Channel.class);
+		AckAggregator aggregator = new AckAggregator(channel, 50, 20);
+
+		for (long deliveryTag = 1; deliveryTag <= 3; deliveryTag++) {
+			aggregator.delivered(deliveryTag);
+		}
+
+		aggregator.ack(1);
+		aggregator.ack(3);
+
+		// 3 is above 2, which is still being processed, so it goes on its own
+		verify(channel, timeout(1000)).basicAck(1L, false);
+		verify(channel, timeout(1000)).basicAck(3L, false);
+		verify(channel, never()).basicAck(eq(2L), anyBoolean());
+	}
+
+	@Test
+	public void deliveries_finishing_after_dispose_are_settled_on_the_channel() throws Exception {
+
+		Channel channel = mock(Channel.class);
+		AckAggregator aggregator = new AckAggregator(channel, 2, NEVER);
+
+		aggregator.delivered(1);
+		aggregator.delivered(2);
+		aggregator.dispose();
+
+		aggregator.ack(1);
+		aggregator.nack(2);
+
+		verify(channel).basicAck(1L, false);
+		verify(channel).basicNack(2L, false, false);
+	}
+
+	@Test
+	public void deliveries_handed_over_are_not_covered_until_they_finish() throws Exception {
+
+		Channel channel = mock(Channel.class);
+		AckAggregator previous = new AckAggregator(channel, 1, NEVER);
+		AckAggregator next = new AckAggregator(channel, 1, NEVER);
+
+		previous.delivered(1);
+		previous.handOver(next);
+
+		next.delivered(2);
+		next.ack(2);
+
+		verify(channel, never()).basicAck(anyLong(), anyBoolean());
+
+		previous.ack(1);
+
+		verify(channel).basicAck(2L, true);
+		verifyNoMoreInteractions(channel);
+	}
+}
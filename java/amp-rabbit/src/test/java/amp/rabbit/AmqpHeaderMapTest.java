@@ -0,0 +1,271 @@
+package amp.rabbit;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import cmf.bus.EnvelopeHeaderConstants;
+
+import com.rabbitmq.client.LongString;
+import com.rabbitmq.client.impl.LongStringHelper;
+
+public class AmqpHeaderMapTest {
+
+	/**
+	 * Headers as an AMP client sends them: every value a UTF-8 long string.
+	 */
+	static Map<String, Object> ampHeaders() {
+
+		Map<String, Object> headers = new HashMap<String, Object>();
+		headers.put(EnvelopeHeaderConstants.MESSAGE_TOPIC, LongStringHelper.asLongString("amp.telemetry"));
+		headers.put(EnvelopeHeaderConstants.MESSAGE_TYPE, LongStringHelper.asLongString("amp.telemetry.Reading"));
+		headers.put(EnvelopeHeaderConstants.MESSAGE_ID, LongStringHelper.asLongString("a3f0b1c2-0000-4000-8000-000000000001"));
+		headers.put("custom", LongStringHelper.asLongString("caf\u00e9 \u4e2d\u6587"));
+
+		return headers;
+	}
+
+	/**
+	 * How RabbitListener converted headers before they were decoded lazily.
+	 */
+	static Map<String, String> eagerlyDecoded(Map<String, Object> amqpHeaders) throws Exception {
+
+		Map<String, String> headers = new HashMap<String, String>();
+
+		for (Map.Entry<String, Object> header : amqpHeaders.entrySet()) {
+			try {
+				headers.put(header.getKey(), new String(((LongString) header.getValue()).getBytes(), "UTF-8"));
+			} catch (ClassCastException ex) {
+				// other types were dropped
+			}
+		}
+
+		return headers;
+	}
+
+	@Test
+	public void headers_from_amp_clients_equal_the_old_eager_decoding() throws Exception {
+
+		Map<String, Object> amqpHeaders = ampHeaders();
+		Map<String, String> eager = eagerlyDecoded(amqpHeaders);
+
+		AmqpHeaderMap lazy = new AmqpHeaderMap(amqpHeaders);
+
+		// read one at a time first, then as a whole
+		for (String key : eager.keySet()) {
+			assertEquals(eager.get(key), lazy.get(key));
+		}
+		assertFalse(lazy.isFullyDecoded());
+
+		assertEquals(eager, lazy);
+		assertEquals(lazy, eager);
+		assertEquals(eager.hashCode(), lazy.hashCode());
+		assertTrue(lazy.isFullyDecoded());
+
+		// and straight away as a whole
+		assertEquals(eager, new AmqpHeaderMap(ampHeaders()));
+	}
+
+	@Test
+	public void values_of_other_amqp_types_are_converted() throws Exception {
+
+		Map<String, Object> amqpHeaders = new HashMap<String, Object>();
+		amqpHeaders.put("bytes", "caf\u00e9".getBytes("UTF-8"));
+		amqpHeaders.put("date", new Date(1381234567890L));
+		amqpHeaders.put("list", Arrays.asList(LongStringHelper.asLongString("a"), 2, true));
+		Map<String, Object> table = new LinkedHashMap<String, Object>();
+		table.put("x", LongStringHelper.asLongString("1"));
+		table.put("y", Arrays.asList(3L, null));
+		amqpHeaders.put("table", table);
+		amqpHeaders.put("int", 42);
+		amqpHeaders.put("long", -7L);
+		amqpHeaders.put("bool", false);
+		amqpHeaders.put("string", "plain");
+
+		AmqpHeaderMap headers = new AmqpHeaderMap(amqpHeaders);
+
+		assertEquals("caf\u00e9", headers.get("bytes"));
+		assertEquals("1381234567890", headers.get("date"));
+		assertEquals("[a, 2, true]", headers.get("list"));
+		assertEquals("{x=1, y=[3, null]}", headers.get("table"));
+		assertEquals("42", headers.get("int"));
+		assertEquals("-7", headers.get("long"));
+		assertEquals("false", headers.get("bool"));
+		assertEquals("plain", headers.get("string"));
+		assertEquals(8, headers.size());
+	}
+
+	@Test
+	public void null_values_are_present_but_null() {
+
+		Map<String, Object> amqpHeaders = new HashMap<String, Object>();
+		amqpHeaders.put("empty", null);
+
+		AmqpHeaderMap headers = new AmqpHeaderMap(amqpHeaders);
+
+		assertTrue(headers.containsKey("empty"));
+		assertNull(headers.get("empty"));
+		assertFalse(headers.containsKey("missing"));
+		assertNull(headers.get("missing"));
+		assertEquals(1, headers.size());
+		assertTrue(headers.containsKey("empty"));
+	}
+
+	@Test
+	public void deliveries_without_headers_start_empty() {
+
+		AmqpHeaderMap headers = new AmqpHeaderMap(null);
+
+		assertTrue(headers.isEmpty());
+		assertNull(headers.put("k", "v"));
+		assertEquals("v", headers.get("k"));
+	}
+
+	@Test
+	public void writes_and_removals_hide_the_amqp_headers_without_changing_them() {
+
+		Map<String, Object> amqpHeaders = ampHeaders();
+		Map<String, Object> original = new HashMap<String, Object>(amqpHeaders);
+		AmqpHeaderMap headers = new AmqpHeaderMap(amqpHeaders);
+
+		assertEquals("amp.telemetry", headers.put(EnvelopeHeaderConstants.MESSAGE_TOPIC, "rerouted"));
+		assertEquals("rerouted", headers.get(EnvelopeHeaderConstants.MESSAGE_TOPIC));
+
+		assertEquals("amp.telemetry.Reading", headers.remove(EnvelopeHeaderConstants.MESSAGE_TYPE));
+		assertFalse(headers.containsKey(EnvelopeHeaderConstants.MESSAGE_TYPE));
+		assertNull(headers.get(EnvelopeHeaderConstants.MESSAGE_TYPE));
+		assertNull(headers.remove(EnvelopeHeaderConstants.MESSAGE_TYPE));
+
+		assertNull(headers.put("added", "new"));
+		assertEquals("new", headers.remove("added"));
+		assertFalse(headers.containsKey("added"));
+
+		// a removed header may come back
+		assertNull(headers.put(EnvelopeHeaderConstants.MESSAGE_TYPE, "again"));
+		assertEquals("again", headers.get(EnvelopeHeaderConstants.MESSAGE_TYPE));
+		assertTrue(headers.containsKey(EnvelopeHeaderConstants.MESSAGE_TYPE));
+
+		assertNull(headers.remove("missing"));
+
+		assertFalse(headers.isFullyDecoded());
+		assertEquals(original, amqpHeaders);
+	}
+
+	@Test
+	public void the_entry_set_agrees_with_reads_writes_and_removals() throws Exception {
+
+		AmqpHeaderMap headers = new AmqpHeaderMap(ampHeaders());
+
+		headers.put(EnvelopeHeaderConstants.MESSAGE_TOPIC, "rerouted");
+		headers.remove(EnvelopeHeaderConstants.MESSAGE_ID);
+		headers.put("added", "new");
+
+		Map<String, String> expected = eagerlyDecoded(ampHeaders());
+		expected.put(EnvelopeHeaderConstants.MESSAGE_TOPIC, "rerouted");
+		expected.remove(EnvelopeHeaderConstants.MESSAGE_ID);
+		expected.put("added", "new");
+
+		assertEquals(expected, new HashMap<String, String>(headers));
+		assertEquals(expected.size(), headers.size());
+		assertEquals(expected.keySet(), headers.keySet());
+
+		// once fully decoded, it carries on as a plain map
+		headers.remove("added");
+		headers.put("later", "value");
+		expected.remove("added");
+		expected.put("later", "value");
+
+		assertEquals(expected, headers);
+
+		// and changes made through the entry set are seen by reads
+		headers.entrySet().iterator().next().setValue("changed");
+		assertTrue(headers.containsValue("changed"));
+
+		headers.clear();
+		assertTrue(headers.isEmpty());
+		assertNull(headers.get(EnvelopeHeaderConstants.MESSAGE_TOPIC));
+	}
+
+	@Test
+	public void well_known_keys_share_one_instance() {
+
+		Map<String, Object> amqpHeaders = new HashMap<String, Object>();
+		String key = new String(EnvelopeHeaderConstants.MESSAGE_TOPIC);
+		amqpHeaders.put(key, LongStringHelper.asLongString("t"));
+
+		AmqpHeaderMap headers = new AmqpHeaderMap(amqpHeaders);
+
+		for (String decodedKey : headers.keySet()) {
+			assertSame(EnvelopeHeaderConstants.MESSAGE_TOPIC.intern(), decodedKey);
+		}
+	}
+
+	@Test
+	public void headers_may_be_read_from_several_threads_at_once() throws Exception {
+
+		final int threads = 8;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+		try {
+			for (int round = 0; round < 500; round++) {
+
+				// many headers, so the readers race to decode them
+				Map<String, Object> amqpHeaders = new HashMap<String, Object>();
+				final Map<String, String> expected = new HashMap<String, String>();
+				for (int i = 0; i < 64; i++) {
+					amqpHeaders.put("header" + i, LongStringHelper.asLongString("value" + i));
+					expected.put("header" + i, "value" + i);
+				}
+
+				final AmqpHeaderMap headers = new AmqpHeaderMap(amqpHeaders);
+				final CountDownLatch start = new CountDownLatch(1);
+				List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+
+				for (int t = 0; t < threads; t++) {
+					final int offset = t;
+					results.add(pool.submit(new Callable<Boolean>() {
+						@Override
+						public Boolean call() throws Exception {
+							start.await();
+							for (int i = 0; i < 256; i++) {
+
+								// one reader needs every header part way through
+								if (0 == offset && 16 == i && 64 != headers.size()) {
+									return false;
+								}
+
+								String key = "header" + ((i + offset * 8) % 64);
+								if (!expected.get(key).equals(headers.get(key))) {
+									return false;
+								}
+							}
+							return true;
+						}
+					}));
+				}
+
+				start.countDown();
+
+				for (Future<Boolean> result : results) {
+					assertTrue(result.get());
+				}
+				assertEquals(expected, headers);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package amp.rabbit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import amp.bus.IEnvelopeDispatcher;
+import amp.bus.IEnvelopeReceivedCallback;
+import amp.rabbit.topology.Exchange;
+import cmf.bus.IRegistration;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+public class PushRabbitListenerTest {
+
+	static final AtomicInteger CONSUMER_TAGS = new AtomicInteger();
+
+	/**
+	 * A channel that accepts a consumer, like the broker does, and hands it back.
+	 */
+	static class FakeBroker implements Answer<Object> {
+
+		volatile Consumer consumer;
+
+		@Override
+		public Object answer(InvocationOnMock invocation) throws Throwable {
+
+			String consumerTag = "consumer-" + CONSUMER_TAGS.incrementAndGet();
+
+			consumer = (Consumer) invocation.getArguments()[2];
+			consumer.handleConsumeOk(consumerTag);
+
+			return consumerTag;
+		}
+
+		void deliver(long deliveryTag) throws Exception {
+
+			consumer.handleDelivery(
+				"tag",
+				new Envelope(deliveryTag, false, "amp.events", "topic"),
+				new BasicProperties.Builder().headers(new HashMap<String, Object>()).build(),
+				("message " + deliveryTag).getBytes("UTF-8"));
+		}
+	}
+
+	static Channel channel(FakeBroker broker) throws Exception {
+
+		Channel channel = mock(Channel.class);
+
+		when(channel.isOpen()).thenReturn(true);
+		when(channel.basicConsume(anyString(), anyBoolean(), any(Consumer.class))).thenAnswer(broker);
+
+		return channel;
+	}
+
+	static PushRabbitListener listener(ConsumerDispatchPool pool, int queue) {
+
+		Exchange exchange = new Exchange(
+			"amp.events", "localhost", "/", 5672, "topic", "queue-" + queue, "topic", false, true, null);
+
+		return new PushRabbitListener(mock(IRegistration.class), exchange, pool);
+	}
+
+	@Test
+	public void listeners_share_the_pool_and_keep_each_queue_in_order() throws Exception {
+
+		final int listeners = 20;
+		final int messagesEach = 50;
+
+		ConsumerDispatchPool pool = new ConsumerDispatchPool(2);
+
+		final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+		final Map<Integer, List<Long>> received = new ConcurrentHashMap<Integer, List<Long>>();
+		final CountDownLatch allReceived = new CountDownLatch(listeners * messagesEach);
+
+		List<FakeBroker> brokers = new ArrayList<FakeBroker>();
+
+		int threadsBefore = Thread.activeCount();
+
+		for (int queue = 0; queue < listeners; queue++) {
+
+			final List<Long> tags = Collections.synchronizedList(new ArrayList<Long>());
+			received.put(queue, tags);
+
+			PushRabbitListener listener = listener(pool, queue);
+			listener.onEnvelopeReceived(new IEnvelopeReceivedCallback() {
+				@Override
+				public void handleReceive(IEnvelopeDispatcher dispatcher) {
+
+					threads.add(Thread.currentThread().getName());
+					tags.add(((RabbitEnvelopeDispatcher) dispatcher).deliveryTag);
+					allReceived.countDown();
+				}
+			});
+
+			FakeBroker broker = new FakeBroker();
+			brokers.add(broker);
+
+			listener.start(channel(broker));
+		}
+
+		for (long deliveryTag = 1; deliveryTag <= messagesEach; deliveryTag++) {
+			for (FakeBroker broker : brokers) {
+				broker.deliver(deliveryTag);
+			}
+		}
+
+		assertTrue("Not every message was dispatched.", allReceived.await(10, TimeUnit.SECONDS));
+
+		// no thread per listener: only the pool's
+		assertTrue("Dispatched on " + threads, threads.size() <= 2);
+		for (String thread : threads) {
+			assertTrue(thread, thread.startsWith("amp-dispatch-"));
+		}
+		assertTrue(Thread.activeCount() - threadsBefore <= 2);
+
+		for (List<Long> tags : received.values()) {
+			for (int index = 0; index < messagesEach; index++) {
+				assertEquals(index + 1, tags.get(index).longValue());
+			}
+		}
+
+		pool.dispose();
+	}
+
+	@Test
+	public void started_callback_fires_once_the_consumer_is_registered() throws Exception {
+
+		ConsumerDispatchPool pool = new ConsumerDispatchPool(1);
+		PushRabbitListener listener = listener(pool, 0);
+
+		IListenerStartedCallback started = mock(IListenerStartedCallback.class);
+		listener.onStarted(started);
+
+		FakeBroker broker = new FakeBroker();
+		listener.start(channel(broker));
+
+		verify(started).onStart();
+		assertNotNull(broker.consumer);
+
+		pool.dispose();
+	}
+
+	@Test
+	public void close_callback_fires_when_the_broker_cancels_the_consumer() throws Exception {
+
+		ConsumerDispatchPool pool = new ConsumerDispatchPool(1);
+		PushRabbitListener listener = listener(pool, 0);
+
+		IListenerCloseCallback closed = mock(IListenerCloseCallback.class);
+		IOnConnectionErrorCallback connectionError = mock(IOnConnectionErrorCallback.class);
+		listener.onClose(closed);
+		listener.onConnectionError(connectionError);
+
+		FakeBroker broker = new FakeBroker();
+		listener.start(channel(broker));
+
+		broker.consumer.handleCancel("tag");
+
+		verify(closed).onClose(listener.getRegistration());
+		verify(connectionError, never()).onConnectionError(any(RabbitListener.class));
+
+		pool.dispose();
+	}
+
+	@Test
+	public void close_callback_fires_once_a_stop_is_confirmed() throws Exception {
+
+		ConsumerDispatchPool pool = new ConsumerDispatchPool(1);
+		PushRabbitListener listener = listener(pool, 0);
+
+		IListenerCloseCallback closed = mock(IListenerCloseCallback.class);
+		listener.onClose(closed);
+
+		FakeBroker broker = new FakeBroker();
+		Channel channel = channel(broker);
+		listener.start(channel);
+
+		listener.stop();
+
+		verify(channel).basicCancel(anyString());
+		verify(closed, never()).onClose(any(IRegistration.class));
+
+		broker.consumer.handleCancelOk("tag");
+
+		verify(closed).onClose(listener.getRegistration());
+
+		pool.dispose();
+	}
+
+	@Test
+	public void connection_error_callback_fires_on_an_unexpected_shutdown() throws Exception {
+
+		ConsumerDispatchPool pool = new ConsumerDispatchPool(1);
+		PushRabbitListener listener = listener(pool, 0);
+
+		IListenerCloseCallback closed = mock(IListenerCloseCallback.class);
+		IOnConnectionErrorCallback connectionError = mock(IOnConnectionErrorCallback.class);
+		listener.onClose(closed);
+		listener.onConnectionError(connectionError);
+
+		FakeBroker broker = new FakeBroker();
+		listener.start(channel(broker));
+
+		broker.consumer.handleShutdownSignal("tag", new ShutdownSignalException(true, false, "connection reset", null));
+
+		verify(connectionError).onConnectionError(listener);
+		verify(closed, never()).onClose(any(IRegistration.class));
+
+		pool.dispose();
+	}
+
+	@Test
+	public void close_callback_fires_on_an_intentional_shutdown() throws Exception {
+
+		ConsumerDispatchPool pool = new ConsumerDispatchPool(1);
+		PushRabbitListener listener = listener(pool, 0);
+
+		IListenerCloseCallback closed = mock(IListenerCloseCallback.class);
+		IOnConnectionErrorCallback connectionError = mock(IOnConnectionErrorCallback.class);
+		listener.onClose(closed);
+		listener.onConnectionError(connectionError);
+
+		FakeBroker broker = new FakeBroker();
+		listener.start(channel(broker));
+
+		broker.consumer.handleShutdownSignal("tag", new ShutdownSignalException(true, true, "closed by application", null));
+
+		verify(closed).onClose(listener.getRegistration());
+		verify(connectionError, never()).onConnectionError(any(RabbitListener.class));
+
+		pool.dispose();
+	}
+}
@@ -0,0 +1,109 @@
+package amp.rabbit;
+
+import static org.mockito.Mockito.*;
+
+import org.junit.Test;
+
+import amp.bus.DeferredOutcome;
+
+import cmf.bus.Envelope;
+import cmf.bus.IRegistration;
+
+import com.rabbitmq.client.Channel;
+
+public class RabbitEnvelopeDispatcherTest {
+
+	static final long DELIVERY_TAG = 7;
+
+	@Test
+	public void a_deferred_delivery_is_not_acked_until_its_outcome_completes() throws Exception {
+
+		Channel channel = mock(Channel.class);
+		IRegistration registration = mock(IRegistration.class);
+		Envelope env = new Envelope();
+		DeferredOutcome outcome = new DeferredOutcome();
+		when(registration.handle(env)).thenReturn(outcome);
+
+		new RabbitEnvelopeDispatcher(registration, env, channel, DELIVERY_TAG).dispatch();
+
+		verifyZeroInteractions(channel);
+
+		outcome.complete(null);
+
+		verify(channel).basicAck(DELIVERY_TAG, false);
+		verifyNoMoreInteractions(channel);
+	}
+
+	@Test
+	public void a_deferred_outcome_settles_the_delivery_as_the_handler_said() throws Exception {
+
+		Channel channel = mock(Channel.class);
+		IRegistration registration = mock(IRegistration.class);
+		Envelope env = new Envelope();
+		DeferredOutcome outcome = new DeferredOutcome();
+		when(registration.handle(env)).thenReturn(outcome);
+
+		new RabbitEnvelopeDispatcher(registration, env, channel, DELIVERY_TAG).dispatch();
+
+		outcome.complete(DeliveryOutcomes.Reject);
+
+		verify(channel).basicReject(DELIVERY_TAG, false);
+		verifyNoMoreInteractions(channel);
+	}
+
+	@Test
+	public void a_failed_deferred_outcome_goes_to_the_fail_handler() throws Exception {
+
+		Channel channel = mock(Channel.class);
+		IRegistration registration = mock(IRegistration.class);
+		Envelope env = new Envelope();
+		DeferredOutcome outcome = new DeferredOutcome();
+		Exception error = new Exception("signature check failed");
+		when(registration.handle(env)).thenReturn(outcome);
+		when(registration.handleFailed(env, error)).thenReturn(DeliveryOutcomes.Exception);
+
+		new RabbitEnvelopeDispatcher(registration, env, channel, DELIVERY_TAG).dispatch();
+
+		verify(registration, never()).handleFailed(any(Envelope.class), any(Exception.class));
+
+		outcome.fail(error);
+
+		verify(registration).handleFailed(env, error);
+		verify(channel).basicNack(DELIVERY_TAG, false, false);
+		verifyNoMoreInteractions(channel);
+	}
+
+	@Test
+	public void a_deferred_outcome_settles_through_the_ack_aggregator() throws Exception {
+
+		Channel channel = mock(Channel.class);
+		IRegistration registration = mock(IRegistration.class);
+		Envelope env = new Envelope();
+		DeferredOutcome outcome = new DeferredOutcome();
+		when(registration.handle(env)).thenReturn(outcome);
+
+		AckAggregator aggregator = new AckAggregator(channel, 1, 60 * 1000);
+		aggregator.delivered(DELIVERY_TAG);
+
+		new RabbitEnvelopeDispatcher(registration, env, channel, DELIVERY_TAG, aggregator).dispatch();
+
+		verifyZeroInteractions(channel);
+
+		outcome.complete(null);
+
+		verify(channel).basicAck(DELIVERY_TAG, false);
+	}
+
+	@Test
+	public void a_synchronous_outcome_settles_the_delivery_straight_away() throws Exception {
+
+		Channel channel = mock(Channel.class);
+		IRegistration registration = mock(IRegistration.class);
+		Envelope env = new Envelope();
+		when(registration.handle(env)).thenReturn(null);
+
+		new RabbitEnvelopeDispatcher(registration, env, channel, DELIVERY_TAG).dispatch();
+
+		verify(channel).basicAck(DELIVERY_TAG, false);
+	}
+}
@@ -0,0 +1,154 @@
+package amp.rabbit.transport;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import amp.rabbit.commands.BurstRoutingCacheCommand;
+import amp.rabbit.topology.Exchange;
+import amp.rabbit.topology.RoutingInfo;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+public class ExchangeDeclarationCacheTest {
+
+	static Exchange exchange(String name, boolean autoDelete) {
+
+		return new Exchange(name, "localhost", "/", 5672, "topic", null, "topic", false, autoDelete, null);
+	}
+
+	static Channel channel(Connection connection) {
+
+		Channel channel = mock(Channel.class);
+		when(channel.getConnection()).thenReturn(connection);
+
+		return channel;
+	}
+
+	static int declarations(Channel channel, Exchange exchange) throws Exception {
+
+		ArgumentCaptor<String> names = ArgumentCaptor.forClass(String.class);
+		verify(channel, atLeast(0)).exchangeDeclare(
+			names.capture(), anyString(), anyBoolean(), anyBoolean(), anyMap());
+
+		int count = 0;
+		for (String name : names.getAllValues()) {
+			if (exchange.getName().equals(name)) { count++; }
+		}
+		return count;
+	}
+
+	@Test
+	public void declares_an_exchange_once_per_connection() throws Exception {
+
+		ExchangeDeclarationCache cache = new ExchangeDeclarationCache();
+		Connection connection = mock(Connection.class);
+		Channel first = channel(connection);
+		Channel second = channel(connection);
+		Exchange exchange = exchange("amp.events", false);
+
+		cache.declare(first, exchange);
+		cache.declare(first, exchange);
+		cache.declare(second, exchange);
+
+		assertEquals(1, declarations(first, exchange));
+		assertEquals(0, declarations(second, exchange));
+		assertEquals(1, cache.getDeclarationCount());
+		assertEquals(2, cache.getSkippedCount());
+
+		// a different connection needs its own declaration
+		Channel other = channel(mock(Connection.class));
+		cache.declare(other, exchange);
+
+		assertEquals(1, declarations(other, exchange));
+	}
+
+	@Test
+	public void declares_each_exchange_on_first_use() throws Exception {
+
+		ExchangeDeclarationCache cache = new ExchangeDeclarationCache();
+		Channel channel = channel(mock(Connection.class));
+
+		cache.declare(channel, exchange("amp.events", false));
+		cache.declare(channel, exchange("amp.commands", false));
+
+		assertEquals(2, cache.getDeclarationCount());
+	}
+
+	@Test
+	public void forgets_a_connections_declarations_when_it_shuts_down() throws Exception {
+
+		ExchangeDeclarationCache cache = new ExchangeDeclarationCache();
+		Connection connection = mock(Connection.class);
+		Channel channel = channel(connection);
+		Exchange exchange = exchange("amp.events", false);
+
+		cache.declare(channel, exchange);
+
+		ArgumentCaptor<ShutdownListener> listener = ArgumentCaptor.forClass(ShutdownListener.class);
+		verify(connection).addShutdownListener(listener.capture());
+
+		listener.getValue().shutdownCompleted(new ShutdownSignalException(true, false, null, connection));
+
+		cache.declare(channel, exchange);
+
+		assertEquals(2, declarations(channel, exchange));
+	}
+
+	@Test
+	public void never_caches_auto_delete_exchanges() throws Exception {
+
+		ExchangeDeclarationCache cache = new ExchangeDeclarationCache();
+		Channel channel = channel(mock(Connection.class));
+		Exchange exchange = exchange("amp.temporary", true);
+
+		cache.declare(channel, exchange);
+		cache.declare(channel, exchange);
+
+		assertEquals(2, declarations(channel, exchange));
+	}
+
+	@Test
+	public void a_routing_cache_burst_forgets_every_declaration() throws Exception {
+
+		ExchangeDeclarationCache cache = new ExchangeDeclarationCache();
+		Cache<String, RoutingInfo> routing = CacheBuilder.newBuilder().build();
+		RoutingCacheBuster buster = new RoutingCacheBuster(routing, new ReentrantLock(), cache);
+
+		Channel channel = channel(mock(Connection.class));
+		Exchange exchange = exchange("amp.events", false);
+
+		cache.declare(channel, exchange);
+		buster.handle(new BurstRoutingCacheCommand(), null);
+		cache.declare(channel, exchange);
+
+		assertEquals(2, declarations(channel, exchange));
+	}
+
+	@Test
+	public void a_topic_burst_forgets_every_declaration() throws Exception {
+
+		ExchangeDeclarationCache cache = new ExchangeDeclarationCache();
+		Cache<String, RoutingInfo> routing = CacheBuilder.newBuilder().build();
+		RoutingCacheBuster buster = new RoutingCacheBuster(routing, new ReentrantLock(), cache);
+
+		Channel channel = channel(mock(Connection.class));
+		Exchange exchange = exchange("amp.events", false);
+
+		cache.declare(channel, exchange);
+		buster.handle(new BurstRoutingCacheCommand(Arrays.asList("some.topic")), null);
+		cache.declare(channel, exchange);
+
+		assertEquals(2, declarations(channel, exchange));
+	}
+}
@@ -0,0 +1,89 @@
+package amp.rabbit.transport;
+
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import amp.rabbit.IRabbitChannelFactory;
+import amp.rabbit.topology.Exchange;
+import amp.rabbit.topology.ITopologyService;
+import amp.rabbit.topology.RouteInfo;
+import amp.rabbit.topology.RoutingInfo;
+import cmf.bus.Envelope;
+import cmf.bus.EnvelopeHeaderConstants;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+public class RabbitTransportProviderTest {
+
+	/**
+	 * Every topic goes to the same exchange, with the topic as its routing key
+	 * (like the default topology).
+	 */
+	static class SharedExchangeTopologyService implements ITopologyService {
+
+		@Override
+		public RoutingInfo getRoutingInfo(Map<String, String> routingHints) {
+
+			String topic = routingHints.get(EnvelopeHeaderConstants.MESSAGE_TOPIC);
+
+			Exchange exchange = new Exchange(
+				"amp.events", "localhost", "/", 5672, topic, null, "topic", false, false, null);
+
+			ArrayList<RouteInfo> routes = new ArrayList<RouteInfo>();
+			routes.add(new RouteInfo(exchange, exchange));
+
+			return new RoutingInfo(routes);
+		}
+
+		@Override
+		public void dispose() {}
+	}
+
+	static Envelope envelope(String topic, String payload) {
+
+		Envelope env = new Envelope();
+		env.setHeader(EnvelopeHeaderConstants.MESSAGE_TOPIC, topic);
+		env.setPayload(payload.getBytes());
+
+		return env;
+	}
+
+	@Test
+	public void sendAll_publishes_each_topic_with_its_own_routing_key() throws Exception {
+
+		Channel channel = mock(Channel.class);
+		when(channel.getConnection()).thenReturn(mock(Connection.class));
+
+		IRabbitChannelFactory channelFactory = mock(IRabbitChannelFactory.class);
+		when(channelFactory.checkoutChannelFor(any(Exchange.class))).thenReturn(channel);
+
+		RabbitTransportProvider provider = new RabbitTransportProvider(
+			new SharedExchangeTopologyService(), channelFactory, mock(IRoutingInfoCache.class));
+
+		Envelope first = envelope("topic.A", "first");
+		Envelope second = envelope("topic.B", "second");
+		Envelope third = envelope("topic.A", "third");
+
+		provider.sendAll(Arrays.asList(first, second, third));
+
+		// one channel for the shared exchange...
+		verify(channelFactory, times(1)).checkoutChannelFor(any(Exchange.class));
+
+		// ...but every envelope keeps its own topic's routing key
+		verify(channel).basicPublish(
+			eq("amp.events"), eq("topic.A"), any(BasicProperties.class), same(first.getPayload()));
+		verify(channel).basicPublish(
+			eq("amp.events"), eq("topic.B"), any(BasicProperties.class), same(second.getPayload()));
+		verify(channel).basicPublish(
+			eq("amp.events"), eq("topic.A"), any(BasicProperties.class), same(third.getPayload()));
+		verify(channel, times(3)).basicPublish(
+			anyString(), anyString(), any(BasicProperties.class), any(byte[].class));
+	}
+}
@@ -1,10 +1,20 @@
 package amp.utility.serialization;
 
 
+import java.io.EOFException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import com.google.gson.ExclusionStrategy;
 import com.google.gson.FieldAttributes;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -12,6 +22,7 @@ import org.slf4j.LoggerFactory;
 public class GsonSerializer implements ISerializer {
 
     private static final Logger log = LoggerFactory.getLogger(GsonSerializer.class);
+    private static final Charset UTF_8 = Charset.forName(ENCODING);
     
     private class DotNetTypeExclusionStrategy implements ExclusionStrategy {
 
@@ -52,13 +63,20 @@ public class GsonSerializer implements ISerializer {
                     new GsonIgnoreExclusionStrategy(GsonIgnore.class)
             ).create();
 
+    /**
+     * adapters by class, for the gson they came from; Gson's own cache is a synchronized map
+     */
+    private volatile Gson adaptersGson;
+    private final ConcurrentMap<Class<?>, TypeAdapter<?>> adapters = new ConcurrentHashMap<Class<?>, TypeAdapter<?>>();
+
     @Override
     public <TYPE> TYPE byteDeserialize(byte[] serialized, Class<TYPE> type) {
         try {
-            String json = new String(serialized, ENCODING);
-            log.debug("Will attempt to deserialize: " + json);
+            if (log.isDebugEnabled()) {
+                log.debug("Will attempt to deserialize: " + new String(serialized, UTF_8));
+            }
 
-            return stringDeserialize(json, type);
+            return read(serialized, type);
         } catch (RuntimeException e) {
             throw e;
         } catch (Exception e) {
@@ -69,10 +87,13 @@ public class GsonSerializer implements ISerializer {
     @Override
     public byte[] byteSerialize(Object deserialized) {
         try {
-            String json = stringSerialize(deserialized);
-            log.debug("Serialized event: " + json);
+            byte[] serialized = write(deserialized);
 
-            return json.getBytes(ENCODING);
+            if (log.isDebugEnabled()) {
+                log.debug("Serialized event: " + new String(serialized, UTF_8));
+            }
+
+            return serialized;
         } catch (RuntimeException e) {
             throw e;
         } catch (Exception e) {
@@ -103,4 +124,78 @@ public class GsonSerializer implements ISerializer {
 
         return json;
     }
+
+    @SuppressWarnings("unchecked")
+    protected <TYPE> TypeAdapter<TYPE> getAdapter(Class<TYPE> type) {
+
+        // the gson field may be replaced by a subclass
+        Gson current = gson;
+        if (current != adaptersGson) {
+            adapters.clear();
+            adaptersGson = current;
+        }
+
+        TypeAdapter<?> adapter = adapters.get(type);
+
+        if (null == adapter) {
+            adapter = current.getAdapter(type);
+            adapters.put(type, adapter);
+        }
+
+        return (TypeAdapter<TYPE>) adapter;
+    }
+
+    /**
+     * Parse straight from the bytes, as Gson.fromJson does from a String.
+     */
+    protected <TYPE> TYPE read(byte[] serialized, Class<TYPE> type) {
+        try {
+            JsonReader reader = new JsonReader(new Utf8ByteArrayReader(serialized));
+            reader.setLenient(true);
+
+            try {
+                reader.peek();
+            } catch (EOFException e) {
+                // nothing serialized: null
+                return null;
+            }
+
+            TYPE object = getAdapter(type).read(reader);
+
+            if (JsonToken.END_DOCUMENT != reader.peek()) {
+                throw new JsonIOException("JSON document was not fully consumed.");
+            }
+
+            return object;
+        } catch (Exception e) {
+            throw new RuntimeException("Error deserializing object.", e);
+        }
+    }
+
+    /**
+     * Write straight to bytes, as Gson.toJson does to a String.
+     */
+    @SuppressWarnings("unchecked")
+    protected byte[] write(Object deserialized) {
+        try {
+            Utf8ByteArrayWriter bytes = new Utf8ByteArrayWriter();
+
+            JsonWriter writer = new JsonWriter(bytes);
+            writer.setLenient(true);
+            writer.setHtmlSafe(true);
+            writer.setSerializeNulls(false);
+
+            if (null == deserialized) {
+                writer.nullValue();
+            } else {
+                ((TypeAdapter<Object>) getAdapter(deserialized.getClass())).write(writer, deserialized);
+            }
+
+            writer.flush();
+
+            return bytes.toByteArray();
+        } catch (Exception e) {
+            throw new RuntimeException("Error serializing object.", e);
+        }
+    }
 }
@@ -0,0 +1,165 @@
+package amp.utility.serialization;
+
+
+import java.io.Reader;
+
+
+/**
+ * A Reader that decodes UTF-8 straight out of a byte array, so a message
+ * payload can be streamed into a parser without building a String or
+ * allocating a decoder's buffers.  Malformed input, including overlong
+ * forms and encoded surrogates, is read as one U+FFFD per maximal ill-formed
+ * subsequence, as the Unicode standard recommends; well-formed input reads
+ * exactly as {@code new String(bytes, "UTF-8")} would.  Not thread-safe.
+ */
+public class Utf8ByteArrayReader extends Reader {
+
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private final byte[] bytes;
+    private final int end;
+    private int position;
+
+    /**
+     * second half of a surrogate pair that didn't fit in the caller's buffer
+     */
+    private char pendingLowSurrogate;
+
+
+    public Utf8ByteArrayReader(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    public Utf8ByteArrayReader(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+
+    @Override
+    public int read(char[] chars, int offset, int length) {
+
+        if (0 == length) { return 0; }
+        if (position >= end && 0 == pendingLowSurrogate) { return -1; }
+
+        int n = 0;
+
+        if (0 != pendingLowSurrogate) {
+            chars[offset + n++] = pendingLowSurrogate;
+            pendingLowSurrogate = 0;
+        }
+
+        while (n < length && position < end) {
+
+            // ASCII: the common case, in a tight loop over locals
+            int from = position;
+            int to = offset + n;
+            int asciiEnd = from + Math.min(length - n, end - from);
+
+            while (from < asciiEnd && bytes[from] >= 0) {
+                chars[to++] = (char) bytes[from++];
+            }
+
+            n += from - position;
+            position = from;
+
+            if (n == length || position == end) {
+                break;
+            }
+
+            int b = bytes[position];
+
+            b &= 0xFF;
+
+            // bytes after the first, and the narrower range the second must
+            // fall in so nothing overlong, surrogate or above U+10FFFF decodes
+            int needed;
+            int min = 0x80;
+            int max = 0xBF;
+
+            if (b >= 0xC2 && b <= 0xDF) {
+                needed = 1;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                needed = 2;
+                if (0xE0 == b) { min = 0xA0; }
+                if (0xED == b) { max = 0x9F; }
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                needed = 3;
+                if (0xF0 == b) { min = 0x90; }
+                if (0xF4 == b) { max = 0x8F; }
+            } else {
+                needed = 0;
+            }
+
+            int valid = this.countContinuationBytes(needed, min, max);
+
+            if (0 == needed || valid < needed) {
+
+                // one replacement for the lead byte and whatever continued it
+                chars[offset + n++] = REPLACEMENT;
+                position += 1 + valid;
+
+            } else if (1 == needed) {
+
+                chars[offset + n++] = (char) (((b & 0x1F) << 6) | (bytes[position + 1] & 0x3F));
+                position += 2;
+
+            } else if (2 == needed) {
+
+                chars[offset + n++] = (char) (((b & 0x0F) << 12)
+                        | ((bytes[position + 1] & 0x3F) << 6)
+                        | (bytes[position + 2] & 0x3F));
+                position += 3;
+
+            } else {
+
+                int codePoint = ((b & 0x07) << 18)
+                        | ((bytes[position + 1] & 0x3F) << 12)
+                        | ((bytes[position + 2] & 0x3F) << 6)
+                        | (bytes[position + 3] & 0x3F);
+                position += 4;
+
+                char low = (char) (0xDC00 + (codePoint & 0x3FF));
+
+                chars[offset + n++] = (char) (0xD800 + ((codePoint - Character.MIN_SUPPLEMENTARY_CODE_POINT) >>> 10));
+
+                if (n < length) {
+                    chars[offset + n++] = low;
+                } else {
+                    pendingLowSurrogate = low;
+                }
+            }
+        }
+
+        return n;
+    }
+
+    @Override
+    public void close() {
+    }
+
+
+    /**
+     * @return how many of the bytes after the lead continue a well-formed
+     *         sequence, up to the number needed; the first must lie in
+     *         [min, max], the rest in [0x80, 0xBF]
+     */
+    private int countContinuationBytes(int needed, int min, int max) {
+
+        int count = 0;
+
+        while (count < needed && position + count + 1 < end) {
+
+            int c = bytes[position + count + 1] & 0xFF;
+
+            if (c < ((0 == count) ? min : 0x80) || c > ((0 == count) ? max : 0xBF)) {
+                break;
+            }
+
+            count++;
+        }
+
+        return count;
+    }
+}
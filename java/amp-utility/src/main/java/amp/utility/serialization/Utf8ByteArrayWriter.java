@@ -0,0 +1,189 @@
+package amp.utility.serialization;
+
+
+import java.io.Writer;
+import java.util.Arrays;
+
+
+/**
+ * A Writer that encodes characters as UTF-8 straight into a growable byte
+ * array, so text can be streamed into a message payload without building a
+ * String or allocating an encoder's buffers.  Unpaired surrogates are written
+ * as '?', as {@link String#getBytes(String)} does.  Not thread-safe.
+ */
+public class Utf8ByteArrayWriter extends Writer {
+
+    private static final int SCRATCH_SIZE = 256;
+
+    private byte[] bytes;
+    private int count;
+    private char pendingHighSurrogate;
+
+    /**
+     * Strings are copied through this, a chunk at a time
+     */
+    private char[] scratch;
+
+
+    public Utf8ByteArrayWriter() {
+        this(256);
+    }
+
+    /**
+     * @param initialCapacity initial size of the byte array
+     */
+    public Utf8ByteArrayWriter(int initialCapacity) {
+        this.bytes = new byte[Math.max(16, initialCapacity)];
+    }
+
+
+    @Override
+    public void write(int c) {
+        this.encode((char) c);
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+
+        int i = offset;
+        int end = offset + length;
+
+        while (i < end) {
+
+            // ASCII: the common case, in a tight loop
+            if (0 == pendingHighSurrogate) {
+
+                this.ensureCapacity(end - i);
+
+                byte[] to = bytes;
+                int n = count;
+
+                while (i < end && chars[i] < 0x80) {
+                    to[n++] = (byte) chars[i++];
+                }
+
+                count = n;
+
+                if (i == end) {
+                    break;
+                }
+            }
+
+            this.encode(chars[i++]);
+        }
+    }
+
+    @Override
+    public void write(String str, int offset, int length) {
+
+        if (null == scratch) {
+            scratch = new char[SCRATCH_SIZE];
+        }
+
+        // copying out in chunks is cheaper than charAt per char
+        while (length > 0) {
+
+            int chunk = Math.min(length, scratch.length);
+
+            str.getChars(offset, offset + chunk, scratch, 0);
+            this.write(scratch, 0, chunk);
+
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+        this.flushPendingSurrogate();
+    }
+
+    /**
+     * @return the bytes written so far
+     */
+    public byte[] toByteArray() {
+        this.flushPendingSurrogate();
+        return Arrays.copyOf(bytes, count);
+    }
+
+    /**
+     * @return number of bytes written so far
+     */
+    public int size() {
+        return count;
+    }
+
+
+    private void encode(char c) {
+
+        if (0 != pendingHighSurrogate) {
+
+            char high = pendingHighSurrogate;
+            pendingHighSurrogate = 0;
+
+            if (Character.isLowSurrogate(c)) {
+                this.encodeCodePoint(Character.toCodePoint(high, c));
+                return;
+            }
+
+            this.put('?');
+        }
+
+        if (c < 0x80) {
+
+            this.put(c);
+
+        } else if (c < 0x800) {
+
+            this.ensureCapacity(2);
+            bytes[count++] = (byte) (0xC0 | (c >> 6));
+            bytes[count++] = (byte) (0x80 | (c & 0x3F));
+
+        } else if (Character.isHighSurrogate(c)) {
+
+            pendingHighSurrogate = c;
+
+        } else if (Character.isLowSurrogate(c)) {
+
+            this.put('?');
+
+        } else {
+
+            this.ensureCapacity(3);
+            bytes[count++] = (byte) (0xE0 | (c >> 12));
+            bytes[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            bytes[count++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    private void encodeCodePoint(int codePoint) {
+
+        this.ensureCapacity(4);
+        bytes[count++] = (byte) (0xF0 | (codePoint >> 18));
+        bytes[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+        bytes[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        bytes[count++] = (byte) (0x80 | (codePoint & 0x3F));
+    }
+
+    private void flushPendingSurrogate() {
+        if (0 != pendingHighSurrogate) {
+            pendingHighSurrogate = 0;
+            this.put('?');
+        }
+    }
+
+    private void put(int asciiChar) {
+        this.ensureCapacity(1);
+        bytes[count++] = (byte) asciiChar;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, count + extra));
+        }
+    }
+}
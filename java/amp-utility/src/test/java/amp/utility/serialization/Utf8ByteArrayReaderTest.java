@@ -0,0 +1,132 @@
+package amp.utility.serialization;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Utf8ByteArrayReaderTest {
+
+	static final String MIXED =
+		"plain ascii, caf\u00e9, \u00fcber, \u0416\u0438\u0432\u0435, \u4e2d\u6587, \u20ac100, "
+		+ "\ud83d\ude00 \ud800\udc00 \udbff\udfff, \uffff\ufeff end";
+
+	static String read(byte[] bytes, int bufferSize) {
+
+		Utf8ByteArrayReader reader = new Utf8ByteArrayReader(bytes);
+		StringBuilder text = new StringBuilder();
+		char[] buffer = new char[bufferSize];
+		int n;
+
+		while (-1 != (n = reader.read(buffer, 0, buffer.length))) {
+			text.append(buffer, 0, n);
+		}
+
+		return text.toString();
+	}
+
+	static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+
+	@Test
+	public void well_formed_text_reads_as_string_decodes_it() throws Exception {
+
+		byte[] utf8 = MIXED.getBytes("UTF-8");
+
+		assertEquals(MIXED, read(utf8, 4096));
+		assertEquals(new String(utf8, "UTF-8"), read(utf8, 4096));
+	}
+
+	@Test
+	public void surrogate_pairs_split_across_the_callers_buffer_are_kept_whole() throws Exception {
+
+		byte[] utf8 = MIXED.getBytes("UTF-8");
+
+		// every size puts the buffer's end in a different place in each pair
+		for (int size = 1; size <= 7; size++) {
+			assertEquals("buffer of " + size, MIXED, read(utf8, size));
+		}
+	}
+
+	@Test
+	public void four_byte_sequences_at_the_end_of_a_one_char_read_are_finished_by_the_next() throws Exception {
+
+		Utf8ByteArrayReader reader = new Utf8ByteArrayReader("\ud83d\ude00".getBytes("UTF-8"));
+		char[] one = new char[1];
+
+		assertEquals(1, reader.read(one, 0, 1));
+		assertEquals('\ud83d', one[0]);
+		assertEquals(1, reader.read(one, 0, 1));
+		assertEquals('\ude00', one[0]);
+		assertEquals(-1, reader.read(one, 0, 1));
+	}
+
+	@Test
+	public void a_slice_of_the_array_is_read_on_its_own() throws Exception {
+
+		byte[] utf8 = "xx\u00e9yy".getBytes("UTF-8");
+		Utf8ByteArrayReader reader = new Utf8ByteArrayReader(utf8, 2, 2);
+		char[] buffer = new char[8];
+
+		assertEquals(1, reader.read(buffer, 0, 8));
+		assertEquals('\u00e9', buffer[0]);
+		assertEquals(-1, reader.read(buffer, 0, 8));
+	}
+
+	@Test
+	public void overlong_forms_never_decode_to_the_character_they_encode() {
+
+		// '/' as two, three and four bytes, and '@' as two
+		assertEquals("\ufffd\ufffd", read(bytes(0xC0, 0xAF), 16));
+		assertEquals("\ufffd\ufffd\ufffd", read(bytes(0xE0, 0x80, 0xAF), 16));
+		assertEquals("\ufffd\ufffd\ufffd\ufffd", read(bytes(0xF0, 0x80, 0x80, 0xAF), 16));
+		assertEquals("\ufffd\ufffda", read(bytes(0xC1, 0x80, 'a'), 16));
+	}
+
+	@Test
+	public void encoded_surrogates_and_code_points_past_the_last_are_replaced() {
+
+		assertEquals("\ufffd\ufffd\ufffd", read(bytes(0xED, 0xA0, 0x80), 16));
+		assertEquals("\ufffd\ufffd\ufffd\ufffd", read(bytes(0xF4, 0x90, 0x80, 0x80), 16));
+		assertEquals("\ufffd\ufffd", read(bytes(0xF5, 0x80), 16));
+	}
+
+	@Test
+	public void truncated_and_stray_bytes_are_replaced_once_per_ill_formed_run() {
+
+		// a lead byte and its valid continuations make one replacement
+		assertEquals("\ufffd", read(bytes(0xE1, 0x80), 16));
+		assertEquals("\ufffda", read(bytes(0xE1, 0x80, 'a'), 16));
+		assertEquals("\ufffd", read(bytes(0xF1, 0x80, 0x80), 16));
+		assertEquals("\ufffda", read(bytes(0x80, 'a'), 16));
+		assertEquals("\ufffd\ufffd", read(bytes(0xFF, 0xFE), 16));
+		assertEquals("a\ufffd\u00e9", read(bytes('a', 0xC3, 0xC3, 0xA9), 16));
+	}
+
+	@Test
+	public void random_well_formed_text_reads_as_string_decodes_it() throws Exception {
+
+		Random random = new Random(20130501);
+
+		for (int round = 0; round < 200; round++) {
+
+			StringBuilder text = new StringBuilder();
+			for (int i = 0; i < 64; i++) {
+				int codePoint;
+				do {
+					codePoint = random.nextInt(Character.MAX_CODE_POINT + 1);
+				} while (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE);
+				text.appendCodePoint(codePoint);
+			}
+
+			byte[] utf8 = text.toString().getBytes("UTF-8");
+			assertEquals(text.toString(), read(utf8, 1 + random.nextInt(9)));
+		}
+	}
+}
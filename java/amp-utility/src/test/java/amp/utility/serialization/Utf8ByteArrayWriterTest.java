@@ -0,0 +1,112 @@
+package amp.utility.serialization;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Utf8ByteArrayWriterTest {
+
+	static final String MIXED =
+		"plain ascii, caf\u00e9, \u00fcber, \u0416\u0438\u0432\u0435, \u4e2d\u6587, \u20ac100, "
+		+ "\ud83d\ude00 \ud800\udc00 \udbff\udfff, \u07ff\u0800\uffff\ufeff end";
+
+	static byte[] write(String text) {
+		Utf8ByteArrayWriter writer = new Utf8ByteArrayWriter(16);
+		writer.write(text, 0, text.length());
+		return writer.toByteArray();
+	}
+
+	static void assertSameBytes(String text) throws Exception {
+		assertTrue(Arrays.toString(text.toCharArray()),
+			Arrays.equals(text.getBytes("UTF-8"), write(text)));
+	}
+
+	@Test
+	public void mixed_text_is_written_as_string_encodes_it() throws Exception {
+
+		assertSameBytes(MIXED);
+		assertSameBytes("");
+	}
+
+	@Test
+	public void chars_written_one_at_a_time_match_chars_written_at_once() throws Exception {
+
+		Utf8ByteArrayWriter writer = new Utf8ByteArrayWriter(16);
+
+		for (char c : MIXED.toCharArray()) {
+			writer.write(c);
+		}
+
+		assertTrue(Arrays.equals(MIXED.getBytes("UTF-8"), writer.toByteArray()));
+	}
+
+	@Test
+	public void a_surrogate_pair_split_across_writes_is_written_as_one_code_point() throws Exception {
+
+		char[] chars = "a\ud83d\ude00b".toCharArray();
+		Utf8ByteArrayWriter writer = new Utf8ByteArrayWriter(16);
+
+		writer.write(chars, 0, 2);
+		writer.write(chars, 2, 2);
+
+		assertTrue(Arrays.equals("a\ud83d\ude00b".getBytes("UTF-8"), writer.toByteArray()));
+		assertEquals(6, writer.size());
+	}
+
+	@Test
+	public void lone_surrogates_are_written_as_string_encodes_them() throws Exception {
+
+		assertSameBytes("\udc00");
+		assertSameBytes("a\udc00b");
+		assertSameBytes("a\ud800b");
+		assertSameBytes("a\ud800");
+		assertSameBytes("\ud800\ud800\udc00");
+		assertSameBytes("\udc00\ud800");
+		assertSameBytes("\ud800\u00e9");
+	}
+
+	@Test
+	public void a_trailing_high_surrogate_is_written_on_close() throws Exception {
+
+		Utf8ByteArrayWriter writer = new Utf8ByteArrayWriter(16);
+		writer.write("a\ud800");
+
+		// it may yet be paired
+		assertEquals(1, writer.size());
+
+		writer.close();
+		assertEquals(2, writer.size());
+		assertTrue(Arrays.equals(new byte[] { 'a', '?' }, writer.toByteArray()));
+	}
+
+	@Test
+	public void the_array_grows_past_its_initial_capacity() throws Exception {
+
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			text.append("\u20ac\ud83d\ude00x");
+		}
+
+		assertSameBytes(text.toString());
+	}
+
+	@Test
+	public void random_text_is_written_as_string_encodes_it() throws Exception {
+
+		Random random = new Random(20130501);
+
+		for (int round = 0; round < 200; round++) {
+
+			// any chars at all, so lone and misordered surrogates turn up too
+			char[] chars = new char[64];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = (char) ((0 == random.nextInt(4)) ? 0xD800 + random.nextInt(0x800) : random.nextInt(0x10000));
+			}
+
+			assertSameBytes(new String(chars));
+		}
+	}
+}
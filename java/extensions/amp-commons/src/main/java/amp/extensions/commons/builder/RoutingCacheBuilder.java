@@ -36,4 +36,20 @@ public class RoutingCacheBuilder extends FluentExtension {
 
         return transportBuilder;
     }
+
+    /**
+     * Use a commanded cache that reloads routing in use before it expires and
+     * keeps using expired routing while the topology service is unreachable.
+     *
+     * @param expiryTimeInSeconds how long routing is used for after it is loaded
+     * @param refreshAheadInSeconds how long before expiry routing is reloaded in the background
+     * @param maxStaleInSeconds how long past expiry routing may be used if it can't be reloaded
+     */
+    public TransportBuilder commandedCache(
+            long expiryTimeInSeconds, long refreshAheadInSeconds, long maxStaleInSeconds) throws BuilderException {
+
+        this.transportBuilder.createCommandedCache(expiryTimeInSeconds, refreshAheadInSeconds, maxStaleInSeconds);
+
+        return transportBuilder;
+    }
 }
@@ -3,7 +3,9 @@ package amp.extensions.commons.builder;
 import amp.bus.ITransportProvider;
 import amp.commanding.DefaultCommandReceiver;
 import amp.commanding.ICommandReceiver;
+import amp.rabbit.AckAggregator;
 import amp.rabbit.IRabbitChannelFactory;
+import amp.rabbit.RabbitListener;
 import amp.rabbit.topology.ITopologyService;
 import amp.rabbit.transport.CommandableCache;
 import amp.rabbit.transport.IRoutingInfoCache;
@@ -23,6 +25,9 @@ public class TransportBuilder extends FluentExtension {
 	IRabbitChannelFactory channelFactory = null;
 	ITransportProvider transportProvider = null;
     IRoutingInfoCache routingInfoCache = null;
+    int prefetch = RabbitListener.DEFAULT_PREFETCH;
+    int ackBatchSize = RabbitListener.DEFAULT_ACK_BATCH_SIZE;
+    long ackBatchMillis = AckAggregator.DEFAULT_MAX_DELAY_MILLIS;
 
 
 
@@ -63,6 +68,34 @@ public class TransportBuilder extends FluentExtension {
         this.routingInfoCache = routingInfoCache;
     }
 
+    /**
+     * Set the prefetch for registrations that don't ask for their own
+     * (with the REGISTRATION_PREFETCH registration info).
+     * @param prefetch Unacknowledged deliveries; 0 for no limit.
+     */
+    public void setPrefetch(int prefetch) {
+
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Set how many successful deliveries are acknowledged together.
+     * @param ackBatchSize Deliveries; 1 or less to acknowledge each as it's handled.
+     */
+    public void setAckBatchSize(int ackBatchSize) {
+
+        this.ackBatchSize = ackBatchSize;
+    }
+
+    /**
+     * Set how long a successful delivery may wait to be acknowledged with others.
+     * @param ackBatchMillis Time in ms.
+     */
+    public void setAckBatchMillis(long ackBatchMillis) {
+
+        this.ackBatchMillis = ackBatchMillis;
+    }
+
 
 
     //-- Constructors --//
@@ -78,6 +111,33 @@ public class TransportBuilder extends FluentExtension {
 
 
     //-- Public Methods --/
+    /**
+     * Limit the unacknowledged deliveries each registration may hold.
+     * @param prefetch Unacknowledged deliveries; 0 for no limit.
+     * @return This.
+     */
+    public TransportBuilder prefetch(int prefetch){
+
+        this.setPrefetch(prefetch);
+
+        return this;
+    }
+
+    /**
+     * Acknowledge successful deliveries together, in one frame, once this
+     * many have been handled or the oldest has waited this long.
+     * @param ackBatchSize Deliveries.
+     * @param ackBatchMillis Time in ms.
+     * @return This.
+     */
+    public TransportBuilder batchAcks(int ackBatchSize, long ackBatchMillis){
+
+        this.setAckBatchSize(ackBatchSize);
+        this.setAckBatchMillis(ackBatchMillis);
+
+        return this;
+    }
+
 	/**
 	 * Select and configure the topology to use.
 	 * @return Topology Builder interface.
@@ -107,6 +167,12 @@ public class TransportBuilder extends FluentExtension {
 
     public void createCommandedCache(long expiryTimeInSeconds) throws BuilderException {
 
+        this.createCommandedCache(expiryTimeInSeconds, 0, 0);
+    }
+
+    public void createCommandedCache(
+            long expiryTimeInSeconds, long refreshAheadInSeconds, long maxStaleInSeconds) throws BuilderException {
+
         if ( (null == this.channelFactory) || (null == this.topologyService) ) {
 
             throw new BuilderException("Cannot configure a commanded cache until a topology service and channel factory have been configured.");
@@ -118,7 +184,8 @@ public class TransportBuilder extends FluentExtension {
                         channelFactory),
                 null);
 
-        this.routingInfoCache = new CommandableCache(commandChannel, expiryTimeInSeconds);
+        this.routingInfoCache = new CommandableCache(
+                commandChannel, expiryTimeInSeconds, refreshAheadInSeconds, maxStaleInSeconds);
     }
 
 	public void buildTransportProvider(){
@@ -127,8 +194,13 @@ public class TransportBuilder extends FluentExtension {
         assert this.channelFactory != null;
         assert this.routingInfoCache != null;
 
-		this.setTransportProvider(
-			new RabbitTransportProvider(this.topologyService, this.channelFactory, this.routingInfoCache));
+		RabbitTransportProvider rabbitTransportProvider =
+			new RabbitTransportProvider(this.topologyService, this.channelFactory, this.routingInfoCache);
+
+		rabbitTransportProvider.setPrefetch(this.prefetch);
+		rabbitTransportProvider.setAckBatching(this.ackBatchSize, this.ackBatchMillis);
+
+		this.setTransportProvider(rabbitTransportProvider);
 	}
 
 	/**
@@ -1,6 +1,16 @@
 package amp.topology.client;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import cmf.bus.EnvelopeHeaderConstants;
 import org.slf4j.Logger;
@@ -8,6 +18,10 @@ import org.slf4j.LoggerFactory;
 
 import amp.rabbit.topology.ITopologyService;
 import amp.rabbit.topology.RoutingInfo;
+import amp.rabbit.transport.IRoutingInfoCache;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 
 /**
@@ -17,14 +31,24 @@ import amp.rabbit.topology.RoutingInfo;
  * an external source to provide routing info.  If the routing info
  * is not found, the Service will default to a "fallback" configuration.
  * 
+ * Routing for the topics a client knows it will use can be fetched up
+ * front with {@link #prefetch(Collection, IRoutingInfoCache)}, in batches
+ * retrieved in parallel, so the client doesn't make a call per topic
+ * before it is ready.
+ * 
  * @author Richard Clayton (Berico Technologies)
  */
 public class GlobalTopologyService implements ITopologyService {
 
 	private static final Logger LOG = LoggerFactory.getLogger(GlobalTopologyService.class);
 
+	public static int DEFAULT_PREFETCH_BATCH_SIZE = 100;
+	public static int DEFAULT_PREFETCH_THREADS = 4;
+
 	private IRoutingInfoRetriever routingInfoRetriever;
 	private FallbackRoutingInfoProvider fallbackProvider = null;
+	private int prefetchBatchSize = DEFAULT_PREFETCH_BATCH_SIZE;
+	private int prefetchThreads = DEFAULT_PREFETCH_THREADS;
 
 
 	public GlobalTopologyService(IRoutingInfoRetriever routingInfoRetriever) {
@@ -48,6 +72,24 @@ public class GlobalTopologyService implements ITopologyService {
         this.fallbackProvider = fallbackProvider;
     }
 
+    /**
+     * Set how many topics are asked for in each request when prefetching.
+     * @param prefetchBatchSize Topics per request.
+     */
+    public void setPrefetchBatchSize(int prefetchBatchSize) {
+
+        this.prefetchBatchSize = prefetchBatchSize;
+    }
+
+    /**
+     * Set how many prefetch requests may be made at once.
+     * @param prefetchThreads Concurrent requests.
+     */
+    public void setPrefetchThreads(int prefetchThreads) {
+
+        this.prefetchThreads = prefetchThreads;
+    }
+
 	@Override
 	public RoutingInfo getRoutingInfo(Map<String, String> routingHints) {
 		
@@ -74,6 +116,128 @@ public class GlobalTopologyService implements ITopologyService {
 		return routingInfo;
 	}
 
+	/**
+	 * Get routing info for many topics in one call to the retriever.
+	 * Topics without valid routing get the fallback route, if there is a
+	 * fallback provider; topics that still have none are left out.
+	 * @param topics Topics to get routing info for.
+	 * @return Routing info by topic.
+	 */
+	public Map<String, RoutingInfo> getRoutingInfo(Collection<String> topics) {
+
+		LOG.info("Getting routing info for {} topics", topics.size());
+
+		Map<String, RoutingInfo> retrieved = this.routingInfoRetriever.retrieveRoutingInfo(topics);
+		Map<String, RoutingInfo> routingByTopic = new LinkedHashMap<String, RoutingInfo>();
+
+		for (String topic : topics) {
+
+			RoutingInfo routingInfo = (retrieved == null) ? null : retrieved.get(topic);
+
+			if (routingInfoAbsentOrNotValid(routingInfo)
+					&& this.fallbackProvider != null) {
+
+				routingInfo = this.fallbackProvider.getFallbackRoute(topic);
+
+				LOG.info("Falling back to routing info for {}: {}", topic, routingInfo);
+			}
+
+			if (routingInfo != null) {
+
+				routingByTopic.put(topic, routingInfo);
+			}
+			else {
+
+				LOG.warn("No routing info found for topic: {}", topic);
+			}
+		}
+
+		return routingByTopic;
+	}
+
+	/**
+	 * Warm a routing cache with the routing of topics the client is about
+	 * to use.  Topics already cached are skipped; the rest are retrieved
+	 * in batches, several at once, and this returns when all of them have
+	 * been.  Failures are logged rather than thrown, since anything not
+	 * prefetched will still be fetched when it is first used.
+	 * @param topics Topics to prefetch.
+	 * @param cache Cache to put the routing in.
+	 * @return The number of topics whose routing was put in the cache.
+	 */
+	public int prefetch(Collection<String> topics, final IRoutingInfoCache cache) {
+
+		long start = System.currentTimeMillis();
+
+		List<String> missing = new ArrayList<String>();
+
+		for (String topic : new LinkedHashSet<String>(topics)) {
+
+			if (topic != null && cache.getIfPresent(topic) == null) {
+
+				missing.add(topic);
+			}
+		}
+
+		if (missing.isEmpty()) { return 0; }
+
+		List<Callable<Integer>> batches = new ArrayList<Callable<Integer>>();
+
+		for (final List<String> batch : Lists.partition(missing, Math.max(1, this.prefetchBatchSize))) {
+
+			batches.add(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+
+					Map<String, RoutingInfo> routingByTopic = getRoutingInfo(batch);
+
+					for (Map.Entry<String, RoutingInfo> routing : routingByTopic.entrySet()) {
+
+						cache.put(routing.getKey(), routing.getValue());
+					}
+
+					return routingByTopic.size();
+				}
+			});
+		}
+
+		int threads = Math.max(1, Math.min(this.prefetchThreads, batches.size()));
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads,
+				new ThreadFactoryBuilder()
+					.setNameFormat("amp-routing-prefetch-%d")
+					.setDaemon(true)
+					.build());
+
+		int prefetched = 0;
+
+		try {
+
+			for (Future<Integer> batch : executor.invokeAll(batches)) {
+
+				try {
+					prefetched += batch.get();
+				} catch (ExecutionException ex) {
+					LOG.warn("Failed to prefetch a batch of routing info", ex.getCause());
+				}
+			}
+
+		} catch (InterruptedException ex) {
+
+			LOG.warn("Interrupted prefetching routing info");
+			Thread.currentThread().interrupt();
+
+		} finally {
+
+			executor.shutdownNow();
+		}
+
+		LOG.info("Prefetched routing info for {} of {} topics in {} ms",
+				new Object[] { prefetched, missing.size(), System.currentTimeMillis() - start });
+
+		return prefetched;
+	}
+
 	@Override
 	public void dispose() {}
 
@@ -1,11 +1,23 @@
 package amp.topology.client;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.http.util.EntityUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,6 +28,19 @@ import amp.utility.http.HttpClientProvider;
 
 /**
  * Provides routing info from an HTTP-based endpoint.
+ * <p>
+ * Routing for many topics is fetched with a single POST of the topics to
+ * the bulk URL.  Unless one is set, the bulk URL is the URL expression
+ * without its topic (".../get-routing-info/%s" becomes
+ * ".../get-routing-info"), less any preferred queue name ("qn"), which
+ * the bulk endpoint refuses.  If the service doesn't have a bulk endpoint,
+ * each topic is fetched in turn.
+ * </p>
+ * <p>
+ * When the service tags routing with an ETag, the next request for the
+ * topic asks for it only if it has changed (If-None-Match), and a 304 Not
+ * Modified reuses the routing already retrieved.
+ * </p>
  * 
  * @author Richard Clayton (Berico Technologies)
  */
@@ -25,7 +50,15 @@ public class HttpRoutingInfoRetriever implements IRoutingInfoRetriever {
 
 	HttpClient httpClient;
 	String urlExpression;
+	String bulkUrl;
 	ISerializer serializer;
+	volatile boolean bulkSupported = true;
+	
+	/**
+	 * the last routing retrieved for each topic the service tagged, with its tag
+	 */
+	ConcurrentMap<String, TaggedRoutingInfo> taggedRouting = new ConcurrentHashMap<String, TaggedRoutingInfo>();
+	AtomicLong notModifiedCount = new AtomicLong();
 
 
 	public HttpRoutingInfoRetriever(HttpClientProvider httpClientProvider, String urlExpression, ISerializer serializer){
@@ -38,6 +71,24 @@ public class HttpRoutingInfoRetriever implements IRoutingInfoRetriever {
 		this.httpClient = httpClient;
 		this.urlExpression = urlExpression;
 		this.serializer = serializer;
+		
+		if (urlExpression != null && urlExpression.contains("/%s")){
+			
+			this.bulkUrl = urlExpression.replace("/%s", "")
+				.replaceAll("([?&])qn=[^&]*&?", "$1")
+				.replaceAll("[?&]$", "");
+		}
+	}
+	
+	/**
+	 * Set the URL that routing for many topics is posted to, or null to
+	 * fetch each topic in turn.
+	 * @param bulkUrl URL of the bulk endpoint.
+	 */
+	public void setBulkUrl(String bulkUrl) {
+		
+		this.bulkUrl = bulkUrl;
+		this.bulkSupported = true;
 	}
 
 
@@ -54,17 +105,46 @@ public class HttpRoutingInfoRetriever implements IRoutingInfoRetriever {
 		RoutingInfo routingInfo = null;
 		String url = String.format(this.urlExpression, topic);
         HttpGet httpGet = new HttpGet(url);
+		
+		TaggedRoutingInfo previous = this.taggedRouting.get(topic);
+		
+		if (previous != null){
+			
+			httpGet.setHeader(HttpHeaders.IF_NONE_MATCH, previous.etag);
+		}
 
 		try {
 
             LOG.debug("Calling GTS with url: {}", url);
 			HttpResponse response = httpClient.execute(httpGet);
 			HttpEntity entity = response.getEntity();
+			
+			if (previous != null && response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED){
+				
+				EntityUtils.consume(entity);
+				
+				LOG.debug("Routing info for topic {} has not changed.", topic);
+				this.notModifiedCount.incrementAndGet();
+				
+				return previous.routingInfo;
+			}
+			
 			String content = EntityUtils.toString(entity);
 			LOG.debug("Received the following content from GTS: {}", content);
 			
 			routingInfo = this.serializer.stringDeserialize(content, RoutingInfo.class);
 			
+			Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+			
+			if (etag != null && routingInfo != null){
+				
+				this.taggedRouting.put(topic, new TaggedRoutingInfo(etag.getValue(), routingInfo));
+			}
+			else {
+				
+				this.taggedRouting.remove(topic);
+			}
+			
 		} catch (Exception e) {
 			
 			LOG.error("Failed to retrieve routing info: {}", e);
@@ -72,4 +152,108 @@ public class HttpRoutingInfoRetriever implements IRoutingInfoRetriever {
 		
 		return routingInfo;
 	}
+	
+	/**
+	 * @return The number of requests answered 304 Not Modified.
+	 */
+	public long getNotModifiedCount() {
+		
+		return this.notModifiedCount.get();
+	}
+	
+	/**
+	 * Retrieve routing info for the supplied topics in one request.
+	 * @param topics Topics to find routing info for.
+	 * @return Routing info by topic; topics without any are left out.
+	 */
+	@Override
+	public Map<String, RoutingInfo> retrieveRoutingInfo(Collection<String> topics) {
+		
+		if (this.bulkUrl == null || !this.bulkSupported){
+			
+			return this.retrieveEachTopic(topics);
+		}
+		
+		LOG.debug("Getting routing info for {} topics", topics.size());
+		
+		Map<String, RoutingInfo> routingByTopic = new LinkedHashMap<String, RoutingInfo>();
+		HttpPost httpPost = new HttpPost(this.bulkUrl);
+		
+		try {
+			
+			httpPost.setEntity(new StringEntity(
+				this.serializer.stringSerialize(topics), ContentType.APPLICATION_JSON));
+			
+			LOG.debug("Calling GTS with url: {}", this.bulkUrl);
+			HttpResponse response = httpClient.execute(httpPost);
+			HttpEntity entity = response.getEntity();
+			int status = response.getStatusLine().getStatusCode();
+			
+			if (status == HttpStatus.SC_NOT_FOUND || status == HttpStatus.SC_METHOD_NOT_ALLOWED){
+				
+				EntityUtils.consume(entity);
+				
+				LOG.info("GTS has no bulk routing endpoint at {}; getting routing info a topic at a time.", this.bulkUrl);
+				this.bulkSupported = false;
+				
+				return this.retrieveEachTopic(topics);
+			}
+			
+			String content = EntityUtils.toString(entity, "UTF-8");
+			LOG.debug("Received the following content from GTS: {}", content);
+			
+			if (status != HttpStatus.SC_OK){
+				
+				LOG.error("GTS returned status {} for bulk routing info: {}", status, content);
+				return routingByTopic;
+			}
+			
+			RoutingInfoByTopic retrieved = this.serializer.stringDeserialize(content, RoutingInfoByTopic.class);
+			
+			for (Map.Entry<String, RoutingInfo> routing : retrieved.entrySet()){
+				
+				if (routing.getValue() != null){
+					
+					routingByTopic.put(routing.getKey(), routing.getValue());
+				}
+			}
+			
+		} catch (Exception e) {
+			
+			LOG.error("Failed to retrieve routing info: {}", e);
+		}
+		
+		return routingByTopic;
+	}
+	
+	
+	Map<String, RoutingInfo> retrieveEachTopic(Collection<String> topics) {
+		
+		Map<String, RoutingInfo> routingByTopic = new LinkedHashMap<String, RoutingInfo>();
+		
+		for (String topic : topics){
+			
+			RoutingInfo routingInfo = this.retrieveRoutingInfo(topic);
+			
+			if (routingInfo != null){
+				
+				routingByTopic.put(topic, routingInfo);
+			}
+		}
+		
+		return routingByTopic;
+	}
+	
+	
+	static class TaggedRoutingInfo {
+		
+		final String etag;
+		final RoutingInfo routingInfo;
+		
+		TaggedRoutingInfo(String etag, RoutingInfo routingInfo) {
+			
+			this.etag = etag;
+			this.routingInfo = routingInfo;
+		}
+	}
 }
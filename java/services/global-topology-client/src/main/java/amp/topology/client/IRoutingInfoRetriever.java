@@ -1,5 +1,8 @@
 package amp.topology.client;
 
+import java.util.Collection;
+import java.util.Map;
+
 import amp.rabbit.topology.RoutingInfo;
 
 /**
@@ -14,4 +17,12 @@ import amp.rabbit.topology.RoutingInfo;
 public interface IRoutingInfoRetriever {
 
 	RoutingInfo retrieveRoutingInfo(String topic);
-}
\ No newline at end of file
+
+	/**
+	 * Retrieve routing info for many topics at once, in as few round-trips
+	 * as the implementation can manage.
+	 * @param topics Topics to find routing info for.
+	 * @return Routing info by topic; topics that couldn't be found are left out.
+	 */
+	Map<String, RoutingInfo> retrieveRoutingInfo(Collection<String> topics);
+}
@@ -1,15 +1,17 @@
 package amp.topology.client;
 
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 import amp.rabbit.topology.RouteInfo;
 import amp.rabbit.topology.RoutingInfo;
@@ -17,6 +19,10 @@ import amp.utility.serialization.ISerializer;
 
 /**
  * This is a fix until the Iterable is removed from RoutingInfo.
+ * <p>
+ * Routing info, and routing info by topic from the bulk endpoint, are read
+ * straight off the JSON text rather than through a parsed tree.
+ * </p>
  * 
  * @author Richard Clayton (Berico Technologies)
  */
@@ -51,18 +57,37 @@ public class JsonRoutingInfoSerializer implements ISerializer {
 			
 			logger.debug("Is a routing info object.");
 			
-			ArrayList<RouteInfo> routeInfos = new ArrayList<RouteInfo>();
+			JsonReader reader = new JsonReader(new StringReader(payload));
 			
-			JsonParser parser = new JsonParser();
-			JsonObject o = (JsonObject)parser.parse(payload);
-			JsonArray routes = o.getAsJsonArray("routes");
+			try {
+				return (TYPE) readRoutingInfo(reader, gson.getAdapter(RouteInfo.class));
+			} catch (IOException e) {
+				throw new JsonParseException(e);
+			}
+		}
+		else if (clazz == RoutingInfoByTopic.class){
+			
+			logger.debug("Is routing info by topic.");
 			
-			for(JsonElement route : routes){
+			JsonReader reader = new JsonReader(new StringReader(payload));
+			TypeAdapter<RouteInfo> routeAdapter = gson.getAdapter(RouteInfo.class);
+			RoutingInfoByTopic routingByTopic = new RoutingInfoByTopic();
+			
+			try {
+				reader.beginObject();
+				
+				while (reader.hasNext()){
+					
+					String topic = reader.nextName();
+					routingByTopic.put(topic, readRoutingInfo(reader, routeAdapter));
+				}
 				
-				routeInfos.add(gson.fromJson(route, RouteInfo.class));
+				reader.endObject();
+			} catch (IOException e) {
+				throw new JsonParseException(e);
 			}
 			
-			return (TYPE) new RoutingInfo(routeInfos);
+			return (TYPE) routingByTopic;
 		}
 		else {
 			
@@ -74,5 +99,44 @@ public class JsonRoutingInfoSerializer implements ISerializer {
 	public String stringSerialize(Object objectToSerializer) {
 		
 		return gson.toJson(objectToSerializer);
-	}	
+	}
+	
+	/**
+	 * Read a routing info object, or null, keeping only its routes.
+	 */
+	RoutingInfo readRoutingInfo(JsonReader reader, TypeAdapter<RouteInfo> routeAdapter) throws IOException {
+		
+		if (reader.peek() == JsonToken.NULL){
+			
+			reader.nextNull();
+			return null;
+		}
+		
+		ArrayList<RouteInfo> routeInfos = new ArrayList<RouteInfo>();
+		
+		reader.beginObject();
+		
+		while (reader.hasNext()){
+			
+			if ("routes".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY){
+				
+				reader.beginArray();
+				
+				while (reader.hasNext()){
+					
+					routeInfos.add(routeAdapter.read(reader));
+				}
+				
+				reader.endArray();
+			}
+			else {
+				
+				reader.skipValue();
+			}
+		}
+		
+		reader.endObject();
+		
+		return new RoutingInfo(routeInfos);
+	}
 }
\ No newline at end of file
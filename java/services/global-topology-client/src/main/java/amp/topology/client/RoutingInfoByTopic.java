@@ -0,0 +1,17 @@
+package amp.topology.client;
+
+import java.util.LinkedHashMap;
+
+import amp.rabbit.topology.RoutingInfo;
+
+/**
+ * Routing info for many topics, as returned by the Global Topology
+ * Service's bulk endpoint.  A concrete type so serializers that are only
+ * given a class can deserialize it.
+ */
+public class RoutingInfoByTopic extends LinkedHashMap<String, RoutingInfo> {
+
+	private static final long serialVersionUID = -2317462873146259163L;
+
+	public RoutingInfoByTopic() {}
+}
@@ -0,0 +1,159 @@
+package amp.topology.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.client.HttpClient;
+import org.junit.Test;
+
+import amp.rabbit.topology.Exchange;
+import amp.rabbit.topology.RouteInfo;
+import amp.rabbit.topology.RoutingInfo;
+import amp.rabbit.transport.SimpleRoutingInfoCache;
+
+public class BulkRoutingInfoTest {
+
+	/**
+	 * Has routing for every topic but "unknown", and records the batches asked for.
+	 */
+	static class BatchRecordingRetriever implements IRoutingInfoRetriever {
+
+		final List<Collection<String>> batches = Collections.synchronizedList(new ArrayList<Collection<String>>());
+		final Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		@Override
+		public RoutingInfo retrieveRoutingInfo(String topic) {
+			fail("routing should be retrieved in bulk");
+			return null;
+		}
+
+		@Override
+		public Map<String, RoutingInfo> retrieveRoutingInfo(Collection<String> topics) {
+
+			batches.add(new ArrayList<String>(topics));
+			threads.add(Thread.currentThread().getName());
+
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+
+			Map<String, RoutingInfo> routingByTopic = new LinkedHashMap<String, RoutingInfo>();
+
+			for (String topic : topics) {
+				if (!"unknown".equals(topic)) {
+					routingByTopic.put(topic, routeTo(topic));
+				}
+			}
+
+			return routingByTopic;
+		}
+	}
+
+	static RoutingInfo routeTo(String topic) {
+
+		Exchange exchange = new Exchange();
+		exchange.setName(topic);
+
+		RoutingInfo routing = new RoutingInfo();
+		routing.getRoutes().add(new RouteInfo(exchange, exchange));
+
+		return routing;
+	}
+
+	@Test
+	public void routing_by_topic_deserializes_from_the_bulk_response() {
+
+		String exchange = "{\"exchangeType\":\"topic\",\"hostName\":\"devexample.com\",\"isAutoDelete\":false,\"isDurable\":false,\"name\":\"%s\",\"port\":5672,\"queueName\":\"\",\"routingKey\":\"%s\",\"virtualHost\":\"/\"}";
+		String route = "{\"consumerExchange\":" + exchange + ",\"producerExchange\":" + exchange + "}";
+
+		String payload = "{"
+			+ "\"topic.a\":{\"routes\":[" + String.format(route, "a", "a", "a", "a") + "]},"
+			+ "\"topic.b\":{\"routes\":[" + String.format(route, "b", "b", "b", "b") + "," + String.format(route, "c", "c", "c", "c") + "]},"
+			+ "\"topic.c\":{\"routes\":[]},"
+			+ "\"topic.d\":null}";
+
+		RoutingInfoByTopic routingByTopic = new JsonRoutingInfoSerializer().stringDeserialize(payload, RoutingInfoByTopic.class);
+
+		assertEquals(Arrays.asList("topic.a", "topic.b", "topic.c", "topic.d"), new ArrayList<String>(routingByTopic.keySet()));
+		assertEquals(1, routingByTopic.get("topic.a").getRoutes().size());
+		assertEquals("a", routingByTopic.get("topic.a").getRoutes().get(0).getProducerExchange().getName());
+		assertEquals(2, routingByTopic.get("topic.b").getRoutes().size());
+		assertEquals("c", routingByTopic.get("topic.b").getRoutes().get(1).getConsumerExchange().getRoutingKey());
+		assertEquals(5672, routingByTopic.get("topic.b").getRoutes().get(1).getConsumerExchange().getPort());
+		assertTrue(routingByTopic.get("topic.c").getRoutes().isEmpty());
+		assertNull(routingByTopic.get("topic.d"));
+	}
+
+	static String bulkUrlFor(String urlExpression) {
+		return new HttpRoutingInfoRetriever((HttpClient) null, urlExpression, null).bulkUrl;
+	}
+
+	@Test
+	public void the_bulk_url_leaves_out_the_preferred_queue_name() {
+
+		assertEquals("http://gts/routing", bulkUrlFor("http://gts/routing/%s"));
+		assertEquals("http://gts/routing?c=true&qp=app", bulkUrlFor("http://gts/routing/%s?c=true&qn=app.q&qp=app"));
+		assertEquals("http://gts/routing?c=true", bulkUrlFor("http://gts/routing/%s?qn=app.q&c=true"));
+		assertEquals("http://gts/routing", bulkUrlFor("http://gts/routing/%s?qn=app.q"));
+	}
+
+	@Test
+	public void prefetch_warms_the_cache_in_parallel_batches() {
+
+		BatchRecordingRetriever retriever = new BatchRecordingRetriever();
+		GlobalTopologyService gts = new GlobalTopologyService(retriever);
+		gts.setPrefetchBatchSize(100);
+		gts.setPrefetchThreads(3);
+
+		SimpleRoutingInfoCache cache = new SimpleRoutingInfoCache(60);
+
+		List<String> topics = new ArrayList<String>();
+		for (int i = 0; i < 300; i++) {
+			topics.add("topic." + i);
+		}
+
+		long start = System.currentTimeMillis();
+		int prefetched = gts.prefetch(topics, cache);
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertEquals(300, prefetched);
+		assertEquals(3, retriever.batches.size());
+		assertEquals(3, retriever.threads.size());
+		assertTrue("batches should be retrieved at once, took " + elapsed + " ms", elapsed < 250);
+
+		for (String topic : topics) {
+			assertEquals(topic, cache.getIfPresent(topic).getRoutes().get(0).getProducerExchange().getName());
+		}
+	}
+
+	@Test
+	public void prefetch_skips_cached_topics_and_leaves_out_unknown_ones() {
+
+		BatchRecordingRetriever retriever = new BatchRecordingRetriever();
+		GlobalTopologyService gts = new GlobalTopologyService(retriever);
+		SimpleRoutingInfoCache cache = new SimpleRoutingInfoCache(60);
+
+		RoutingInfo cached = routeTo("topic.a");
+		cache.put("topic.a", cached);
+
+		int prefetched = gts.prefetch(Arrays.asList("topic.a", "topic.b", "topic.b", "unknown"), cache);
+
+		assertEquals(1, prefetched);
+		assertEquals(1, retriever.batches.size());
+		assertEquals(Arrays.asList("topic.b", "unknown"), retriever.batches.get(0));
+		assertSame(cached, cache.getIfPresent("topic.a"));
+		assertNotNull(cache.getIfPresent("topic.b"));
+		assertNull(cache.getIfPresent("unknown"));
+	}
+}
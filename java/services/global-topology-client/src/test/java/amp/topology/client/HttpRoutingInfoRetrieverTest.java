@@ -0,0 +1,122 @@
+package amp.topology.client;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import amp.rabbit.topology.RoutingInfo;
+import amp.utility.serialization.GsonSerializer;
+
+public class HttpRoutingInfoRetrieverTest {
+
+	static final String ROUTING = "{\"routes\":[{\"consumerExchange\":{\"exchangeType\":\"topic\",\"hostName\":\"devexample.com\",\"name\":\"cmf.security\",\"port\":5672,\"routingKey\":\"%1$s\",\"virtualHost\":\"/\"},\"producerExchange\":{\"exchangeType\":\"topic\",\"hostName\":\"devexample.com\",\"name\":\"cmf.security\",\"port\":5672,\"routingKey\":\"%1$s\",\"virtualHost\":\"/\"}}]}";
+
+	static HttpResponse ok(String routingKey, String etag) throws Exception {
+
+		HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+		response.setEntity(new StringEntity(String.format(ROUTING, routingKey), ContentType.APPLICATION_JSON));
+
+		if (etag != null){
+			response.setHeader(HttpHeaders.ETAG, etag);
+		}
+
+		return response;
+	}
+
+	static HttpResponse notModified() {
+
+		return new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_NOT_MODIFIED, "Not Modified");
+	}
+
+	static String ifNoneMatch(HttpUriRequest request) {
+
+		return request.containsHeader(HttpHeaders.IF_NONE_MATCH)
+			? request.getFirstHeader(HttpHeaders.IF_NONE_MATCH).getValue() : null;
+	}
+
+	static List<HttpUriRequest> requests(HttpClient httpClient, int count) throws Exception {
+
+		ArgumentCaptor<HttpUriRequest> requests = ArgumentCaptor.forClass(HttpUriRequest.class);
+
+		verify(httpClient, times(count)).execute(requests.capture());
+
+		return requests.getAllValues();
+	}
+
+	@Test
+	public void not_modified_reuses_the_routing_already_retrieved() throws Exception {
+
+		HttpClient httpClient = mock(HttpClient.class);
+		when(httpClient.execute(any(HttpUriRequest.class))).thenReturn(ok("topic.a", "\"v1\""), notModified());
+
+		HttpRoutingInfoRetriever retriever =
+			new HttpRoutingInfoRetriever(httpClient, "http://gts/routing/%s", new GsonSerializer());
+
+		RoutingInfo first = retriever.retrieveRoutingInfo("topic.a");
+		RoutingInfo second = retriever.retrieveRoutingInfo("topic.a");
+
+		assertNotNull(first);
+		assertSame(first, second);
+		assertEquals(1, retriever.getNotModifiedCount());
+
+		List<HttpUriRequest> sent = requests(httpClient, 2);
+
+		assertNull(ifNoneMatch(sent.get(0)));
+		assertEquals("\"v1\"", ifNoneMatch(sent.get(1)));
+	}
+
+	@Test
+	public void changed_routing_replaces_the_routing_and_its_tag() throws Exception {
+
+		HttpClient httpClient = mock(HttpClient.class);
+		when(httpClient.execute(any(HttpUriRequest.class)))
+			.thenReturn(ok("topic.a", "\"v1\""), ok("topic.a.moved", "\"v2\""), notModified());
+
+		HttpRoutingInfoRetriever retriever =
+			new HttpRoutingInfoRetriever(httpClient, "http://gts/routing/%s", new GsonSerializer());
+
+		retriever.retrieveRoutingInfo("topic.a");
+		RoutingInfo changed = retriever.retrieveRoutingInfo("topic.a");
+		RoutingInfo unchanged = retriever.retrieveRoutingInfo("topic.a");
+
+		assertEquals("topic.a.moved", changed.getRoutes().get(0).getProducerExchange().getRoutingKey());
+		assertSame(changed, unchanged);
+		assertEquals(1, retriever.getNotModifiedCount());
+
+		List<HttpUriRequest> sent = requests(httpClient, 3);
+
+		assertEquals("\"v1\"", ifNoneMatch(sent.get(1)));
+		assertEquals("\"v2\"", ifNoneMatch(sent.get(2)));
+	}
+
+	@Test
+	public void untagged_routing_is_always_asked_for_in_full() throws Exception {
+
+		HttpClient httpClient = mock(HttpClient.class);
+		when(httpClient.execute(any(HttpUriRequest.class))).thenReturn(ok("topic.a", null), ok("topic.a", null));
+
+		HttpRoutingInfoRetriever retriever =
+			new HttpRoutingInfoRetriever(httpClient, "http://gts/routing/%s", new GsonSerializer());
+
+		assertNotNull(retriever.retrieveRoutingInfo("topic.a"));
+		assertNotNull(retriever.retrieveRoutingInfo("topic.a"));
+		assertEquals(0, retriever.getNotModifiedCount());
+
+		for (HttpUriRequest request : requests(httpClient, 2)){
+			assertNull(ifNoneMatch(request));
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package amp.topology.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import amp.commanding.ICommandHandler;
+import amp.commanding.ICommandReceiver;
+import amp.rabbit.commands.BurstRoutingCacheCommand;
+import amp.rabbit.topology.RoutingInfo;
+import amp.rabbit.transport.CommandableCache;
+import amp.rabbit.transport.IRoutingCacheBurstCallback;
+
+public class RoutingCacheBurstTest {
+
+	static class CapturingCommandReceiver implements ICommandReceiver {
+
+		ICommandHandler<BurstRoutingCacheCommand> handler;
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <TCOMMAND> void onCommandReceived(ICommandHandler<TCOMMAND> handler) {
+			this.handler = (ICommandHandler<BurstRoutingCacheCommand>) handler;
+		}
+
+		@Override
+		public void dispose() {}
+	}
+
+	static class RecordingBurstCallback implements IRoutingCacheBurstCallback {
+
+		int fullBursts;
+		List<Collection<String>> topicBursts = new ArrayList<Collection<String>>();
+
+		@Override
+		public void onBurst() {
+			fullBursts++;
+		}
+
+		@Override
+		public void onBurst(Collection<String> topics) {
+			topicBursts.add(topics);
+		}
+	}
+
+	@Test
+	public void a_burst_naming_topics_invalidates_only_those_topics() {
+
+		CapturingCommandReceiver receiver = new CapturingCommandReceiver();
+		CommandableCache cache = new CommandableCache(receiver, 60);
+		RecordingBurstCallback callback = new RecordingBurstCallback();
+		cache.onBurst(callback);
+
+		cache.put("topic.a", new RoutingInfo());
+		cache.put("topic.b", new RoutingInfo());
+		cache.put("topic.c", new RoutingInfo());
+
+		RoutingInfo pushed = new RoutingInfo();
+		Map<String, RoutingInfo> newRouting = new HashMap<String, RoutingInfo>();
+		newRouting.put("topic.b", pushed);
+
+		BurstRoutingCacheCommand command = new BurstRoutingCacheCommand(Arrays.asList("topic.a", "topic.b"));
+		command.setNewRoutingInfo(newRouting);
+
+		receiver.handler.handle(command, Collections.<String, String>emptyMap());
+
+		assertNull(cache.getIfPresent("topic.a"));
+		assertSame(pushed, cache.getIfPresent("topic.b"));
+		assertNotNull(cache.getIfPresent("topic.c"));
+
+		assertEquals(0, callback.fullBursts);
+		assertEquals(Arrays.asList(Arrays.asList("topic.a", "topic.b")), callback.topicBursts);
+	}
+
+	@Test
+	public void a_burst_without_topics_invalidates_everything() {
+
+		CapturingCommandReceiver receiver = new CapturingCommandReceiver();
+		CommandableCache cache = new CommandableCache(receiver, 60);
+		RecordingBurstCallback callback = new RecordingBurstCallback();
+		cache.onBurst(callback);
+
+		cache.put("topic.a", new RoutingInfo());
+		cache.put("topic.c", new RoutingInfo());
+
+		receiver.handler.handle(new BurstRoutingCacheCommand(), Collections.<String, String>emptyMap());
+
+		assertNull(cache.getIfPresent("topic.a"));
+		assertNull(cache.getIfPresent("topic.c"));
+		assertEquals(1, callback.fullBursts);
+		assertTrue(callback.topicBursts.isEmpty());
+	}
+}
@@ -0,0 +1,227 @@
+package amp.topology.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import amp.rabbit.topology.Exchange;
+import amp.rabbit.topology.ITopologyService;
+import amp.rabbit.topology.RouteInfo;
+import amp.rabbit.topology.RoutingInfo;
+import amp.rabbit.transport.SimpleRoutingInfoCache;
+
+import com.google.common.base.Ticker;
+
+public class RoutingCacheConcurrencyTest {
+
+	/**
+	 * A clock that only moves when told to.
+	 */
+	static class FakeTicker extends Ticker {
+
+		final AtomicLong nanos = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+
+		@Override
+		public long read() {
+			return nanos.get();
+		}
+
+		void advance(long millis) {
+			nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+		}
+	}
+
+	/**
+	 * Stands in for the HTTP call to the GTS: slow, countable, and breakable.
+	 */
+	static class SlowRetriever implements IRoutingInfoRetriever {
+
+		final ConcurrentHashMap<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+		volatile boolean down = false;
+
+		/**
+		 * if set, calls wait for it instead of sleeping
+		 */
+		volatile CountDownLatch gate;
+
+		@Override
+		public RoutingInfo retrieveRoutingInfo(String topic) {
+
+			calls.putIfAbsent(topic, new AtomicInteger());
+			calls.get(topic).incrementAndGet();
+
+			try {
+				if (null != gate) {
+					gate.await();
+				} else {
+					Thread.sleep(200);
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+
+			if (down) {
+				throw new IllegalStateException("GTS is down");
+			}
+
+			Exchange exchange = new Exchange();
+			exchange.setName(topic);
+
+			RoutingInfo routing = new RoutingInfo();
+			routing.getRoutes().add(new RouteInfo(exchange, exchange));
+
+			return routing;
+		}
+
+		@Override
+		public Map<String, RoutingInfo> retrieveRoutingInfo(Collection<String> topics) {
+
+			Map<String, RoutingInfo> routingByTopic = new HashMap<String, RoutingInfo>();
+
+			for (String topic : topics) {
+				routingByTopic.put(topic, retrieveRoutingInfo(topic));
+			}
+
+			return routingByTopic;
+		}
+
+		int callsFor(String topic) {
+			AtomicInteger count = calls.get(topic);
+			return (null == count) ? 0 : count.get();
+		}
+	}
+
+	@Test
+	public void concurrent_senders_of_a_topic_make_one_call_to_the_gts() throws Exception {
+
+		final SlowRetriever retriever = new SlowRetriever();
+		final GlobalTopologyService gts = new GlobalTopologyService(retriever);
+		final SimpleRoutingInfoCache cache = new SimpleRoutingInfoCache(60);
+
+		final String[] topics = { "topic.a", "topic.b", "topic.c", "topic.d" };
+		final int sendersPerTopic = 16;
+		final CountDownLatch start = new CountDownLatch(1);
+
+		ExecutorService senders = Executors.newFixedThreadPool(topics.length * sendersPerTopic);
+		List<Future<RoutingInfo>> results = new ArrayList<Future<RoutingInfo>>();
+
+		for (final String topic : topics) {
+			for (int i = 0; i < sendersPerTopic; i++) {
+				results.add(senders.submit(new Callable<RoutingInfo>() {
+					@Override
+					public RoutingInfo call() throws Exception {
+						start.await();
+						return cache.get(topic, TestUtils.buildRoutingHints(topic), gts);
+					}
+				}));
+			}
+		}
+
+		start.countDown();
+
+		for (Future<RoutingInfo> result : results) {
+			assertNotNull(result.get(5, TimeUnit.SECONDS));
+		}
+
+		senders.shutdown();
+
+		for (String topic : topics) {
+			assertEquals(1, retriever.callsFor(topic));
+			assertEquals(1, cache.getStats(topic).getLoadCount());
+			assertEquals(sendersPerTopic, cache.getStats(topic).getHitCount() + cache.getStats(topic).getMissCount());
+		}
+	}
+
+	@Test
+	public void a_load_that_finished_meanwhile_is_not_repeated() throws Exception {
+
+		SlowRetriever retriever = new SlowRetriever();
+		GlobalTopologyService gts = new GlobalTopologyService(retriever);
+		final RoutingInfo loadedMeanwhile = new RoutingInfo();
+
+		// another sender's load finishes between this one missing the cache and starting its own
+		SimpleRoutingInfoCache cache = new SimpleRoutingInfoCache(60) {
+			@Override
+			protected RoutingInfo load(String topic, Map<String, String> hints, ITopologyService service) {
+				put(topic, loadedMeanwhile);
+				return super.load(topic, hints, service);
+			}
+		};
+
+		assertSame(loadedMeanwhile, cache.get("topic.a", TestUtils.buildRoutingHints("topic.a"), gts));
+		assertEquals(0, retriever.callsFor("topic.a"));
+		assertEquals(0, cache.getStats("topic.a").getLoadCount());
+	}
+
+	@Test
+	public void expired_routing_is_served_while_the_gts_is_down() throws Exception {
+
+		SlowRetriever retriever = new SlowRetriever();
+		GlobalTopologyService gts = new GlobalTopologyService(retriever);
+		FakeTicker ticker = new FakeTicker();
+		SimpleRoutingInfoCache cache = new SimpleRoutingInfoCache(1, 0, 60, ticker);
+
+		RoutingInfo loaded = cache.get("topic.a", TestUtils.buildRoutingHints("topic.a"), gts);
+
+		retriever.down = true;
+		ticker.advance(1100);
+
+		assertNull(cache.getIfPresent("topic.a"));
+		assertSame(loaded, cache.get("topic.a", TestUtils.buildRoutingHints("topic.a"), gts));
+		assertEquals(2, retriever.callsFor("topic.a"));
+		assertEquals(1, cache.getStats("topic.a").getStaleCount());
+	}
+
+	@Test(timeout = 10000)
+	public void routing_in_use_is_refreshed_before_it_expires() throws Exception {
+
+		SlowRetriever retriever = new SlowRetriever();
+		GlobalTopologyService gts = new GlobalTopologyService(retriever);
+		FakeTicker ticker = new FakeTicker();
+		final CountDownLatch reloaded = new CountDownLatch(2);
+
+		SimpleRoutingInfoCache cache = new SimpleRoutingInfoCache(2, 1, 0, ticker) {
+			@Override
+			public void put(String topic, RoutingInfo routingInfo) {
+				super.put(topic, routingInfo);
+				reloaded.countDown();
+			}
+		};
+
+		RoutingInfo loaded = cache.get("topic.a", TestUtils.buildRoutingHints("topic.a"), gts);
+
+		// the reload can't finish until the sender has its routing
+		retriever.gate = new CountDownLatch(1);
+		ticker.advance(1100);
+
+		assertSame(loaded, cache.get("topic.a", TestUtils.buildRoutingHints("topic.a"), gts));
+		assertEquals(1, cache.getStats("topic.a").getRefreshCount());
+
+		// asking again while the reload is under way doesn't start another
+		assertSame(loaded, cache.get("topic.a", TestUtils.buildRoutingHints("topic.a"), gts));
+		assertEquals(1, cache.getStats("topic.a").getRefreshCount());
+
+		retriever.gate.countDown();
+		reloaded.await();
+
+		assertNotSame(loaded, cache.getIfPresent("topic.a"));
+		assertEquals(2, retriever.callsFor("topic.a"));
+
+		cache.dispose();
+	}
+}
@@ -1,6 +1,8 @@
 package amp.topology.core;
 
 import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 
@@ -11,6 +13,9 @@ import org.slf4j.LoggerFactory;
  * Provides essential functionality, particularly around handling the Event Listeners
  * implementing ITopologyRepositories would need if they had to implement from scratch.
  * 
+ * Every change to a route or exchange is followed by a topicsChanged event naming
+ * just the topics whose routing it could affect.
+ * 
  * @author Richard Clayton (Berico Technologies)
  */
 public abstract class BaseTopologyRepository implements ITopologyRepository {
@@ -60,6 +65,8 @@ public abstract class BaseTopologyRepository implements ITopologyRepository {
 			
 			listener.routeCreated(routeInfo);
 		}
+		
+		fireTopicsChanged(topicsOf(routeInfo));
 	}
 	
 	protected void fireRouteRemoved(ExtendedRouteInfo routeInfo){
@@ -70,6 +77,8 @@ public abstract class BaseTopologyRepository implements ITopologyRepository {
 			
 			listener.routeRemoved(routeInfo);
 		}
+		
+		fireTopicsChanged(topicsOf(routeInfo));
 	}
 	
 	protected void fireRouteUpdated(ExtendedRouteInfo oldRouteInfo, ExtendedRouteInfo newRouteInfo){
@@ -80,6 +89,11 @@ public abstract class BaseTopologyRepository implements ITopologyRepository {
 			
 			listener.routeUpdated(oldRouteInfo, newRouteInfo);
 		}
+		
+		Set<String> topics = topicsOf(oldRouteInfo);
+		topics.addAll(topicsOf(newRouteInfo));
+		
+		fireTopicsChanged(topics);
 	}
 	
 	protected void fireExchangeCreated(ExtendedExchange exchange){
@@ -100,6 +114,11 @@ public abstract class BaseTopologyRepository implements ITopologyRepository {
 			
 			listener.exchangeRemoved(exchange);
 		}
+		
+		if (exchange != null){
+			
+			fireTopicsChanged(topicsRoutedThrough(exchange.getId()));
+		}
 	}
 
 	protected void fireExchangeUpdated(ExtendedExchange oldExchange, ExtendedExchange newExchange){
@@ -110,6 +129,8 @@ public abstract class BaseTopologyRepository implements ITopologyRepository {
 			
 			listener.exchangeUpdated(oldExchange, newExchange);
 		}
+		
+		fireTopicsChanged(topicsRoutedThrough(newExchange.getId()));
 	}
 	
 	protected void fireRoutingInfoRetrieved(String topic, String client, Collection<ExtendedRouteInfo> routingInfo){
@@ -122,4 +143,59 @@ public abstract class BaseTopologyRepository implements ITopologyRepository {
 			listener.routingInfoRetrieved(topic, client, routingInfo);
 		}
 	}
+	
+	protected void fireTopicsChanged(Collection<String> topics){
+		
+		if (topics.isEmpty()){
+			
+			return;
+		}
+		
+		logger.debug("fireTopicsChanged({})", topics);
+		
+		for (ITopologyRepositoryEventListener listener : listeners){
+			
+			listener.topicsChanged(topics);
+		}
+	}
+	
+	/**
+	 * @return The topics of a route, or none if there is no route.
+	 */
+	protected Set<String> topicsOf(ExtendedRouteInfo routeInfo){
+		
+		Set<String> topics = new LinkedHashSet<String>();
+		
+		if (routeInfo != null && routeInfo.getTopics() != null){
+			
+			topics.addAll(routeInfo.getTopics());
+		}
+		
+		return topics;
+	}
+	
+	/**
+	 * @return The topics of every route that produces to or consumes from the exchange
+	 * (none if the exchange has no id).
+	 */
+	protected Set<String> topicsRoutedThrough(String exchangeId){
+		
+		Set<String> topics = new LinkedHashSet<String>();
+		
+		if (exchangeId == null){
+			
+			return topics;
+		}
+		
+		for (ExtendedRouteInfo route : getRoutes()){
+			
+			if (exchangeId.equals(route.getProducerExchangeId()) 
+					|| exchangeId.equals(route.getConsumerExchangeId())){
+				
+				topics.addAll(topicsOf(route));
+			}
+		}
+		
+		return topics;
+	}
 }
@@ -17,4 +17,10 @@ public interface ITopologyRepositoryEventListener {
 	void exchangeUpdated(ExtendedExchange oldExchange, ExtendedExchange newExchange);
 	
 	void routingInfoRetrieved(String topic, String client, Collection<ExtendedRouteInfo> routingInfo);
+	
+	/**
+	 * Raised after a route or exchange changes, with the topics whose
+	 * routing may have changed as a result.
+	 */
+	void topicsChanged(Collection<String> topics);
 }
@@ -82,4 +82,7 @@ public class NoRouteInfoForTopicListener implements ITopologyRepositoryEventList
 
 	@Override
 	public void exchangeUpdated(ExtendedExchange oldExchange, ExtendedExchange newExchange) {}
+
+	@Override
+	public void topicsChanged(Collection<String> topics) {}
 }
@@ -0,0 +1,150 @@
+package amp.topology.core.repo.listeners;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import amp.commanding.ICommandSender;
+import amp.messaging.MessageException;
+import amp.rabbit.commands.BurstRoutingCacheCommand;
+import amp.topology.core.ExtendedExchange;
+import amp.topology.core.ExtendedRouteInfo;
+import amp.topology.core.ITopologyRepositoryEventListener;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Tells clients to drop their cached routing for topics whose routes or
+ * exchanges have changed, rather than having them flush everything.
+ * <p>
+ * Changes are gathered for a short while before a command is sent, so a
+ * burst of edits (like importing a snapshot) sends one command naming all
+ * the topics instead of one per change.
+ * </p>
+ */
+public class RoutingCacheBurstListener implements ITopologyRepositoryEventListener {
+
+	private static final Logger logger = LoggerFactory.getLogger(RoutingCacheBurstListener.class);
+
+	public static long DEFAULT_COALESCE_MILLIS = 1000;
+
+	ICommandSender commandSender;
+
+	long coalesceMillis = DEFAULT_COALESCE_MILLIS;
+
+	Set<String> changedTopics = new LinkedHashSet<String>();
+
+	ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder()
+				.setNameFormat("gts-routing-cache-burst-%d")
+				.setDaemon(true)
+				.build());
+
+	public RoutingCacheBurstListener(ICommandSender commandSender){
+
+		this.commandSender = commandSender;
+	}
+
+	public RoutingCacheBurstListener(ICommandSender commandSender, long coalesceMillis){
+
+		this.commandSender = commandSender;
+		this.coalesceMillis = coalesceMillis;
+	}
+
+	@Override
+	public void topicsChanged(Collection<String> topics) {
+
+		boolean schedule;
+
+		synchronized (changedTopics){
+
+			schedule = changedTopics.isEmpty();
+
+			changedTopics.addAll(topics);
+		}
+
+		if (schedule){
+
+			scheduler.schedule(new Runnable(){
+
+				@Override
+				public void run() {
+
+					sendBurst();
+				}
+
+			}, coalesceMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Send a command to burst the routing of every topic changed since the last one.
+	 */
+	void sendBurst(){
+
+		Collection<String> topics;
+
+		synchronized (changedTopics){
+
+			topics = new ArrayList<String>(changedTopics);
+
+			changedTopics.clear();
+		}
+
+		if (topics.isEmpty()){
+
+			return;
+		}
+
+		logger.info("Telling clients to burst their cached routing for {} topics.", topics.size());
+
+		try {
+
+			commandSender.send(new BurstRoutingCacheCommand(topics));
+
+		} catch (MessageException e) {
+
+			logger.error("Failed to send the routing cache burst command for {}; clients will pick up the change when their routing expires.", topics, e);
+		}
+	}
+
+	/**
+	 * Send anything outstanding and stop.
+	 */
+	public void dispose(){
+
+		scheduler.shutdownNow();
+
+		sendBurst();
+	}
+
+	/* ####### Irrelevant Methods ########################################################## */
+
+	@Override
+	public void routeCreated(ExtendedRouteInfo routeInfo) {}
+
+	@Override
+	public void routeRemoved(ExtendedRouteInfo routeInfo) {}
+
+	@Override
+	public void routeUpdated(ExtendedRouteInfo oldRouteInfo, ExtendedRouteInfo newRouteInfo) {}
+
+	@Override
+	public void exchangeCreated(ExtendedExchange exchange) {}
+
+	@Override
+	public void exchangeRemoved(ExtendedExchange exchange) {}
+
+	@Override
+	public void exchangeUpdated(ExtendedExchange oldExchange, ExtendedExchange newExchange) {}
+
+	@Override
+	public void routingInfoRetrieved(String topic, String client, Collection<ExtendedRouteInfo> routingInfo) {}
+}
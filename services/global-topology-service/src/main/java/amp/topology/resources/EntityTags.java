@@ -0,0 +1,80 @@
+package amp.topology.resources;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+
+import com.google.gson.Gson;
+
+/**
+ * Tags responses with a digest of their content, so clients can ask for
+ * routing again with If-None-Match and get a 304 if it hasn't changed.
+ * <p>
+ * Because the tag is computed from the content, it stays valid across
+ * restarts and is the same from every instance sharing a repository.
+ * </p>
+ */
+public class EntityTags {
+
+	private static final Gson gson = new Gson();
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private EntityTags(){}
+
+	/**
+	 * @param entity Entity to tag.
+	 * @return A strong tag that changes whenever the entity's JSON does.
+	 */
+	public static EntityTag of(Object entity){
+
+		try {
+
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(gson.toJson(entity).getBytes("UTF-8"));
+
+			char[] hex = new char[digest.length * 2];
+
+			for (int i = 0; i < digest.length; i++){
+
+				hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+				hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+			}
+
+			return new EntityTag(new String(hex));
+
+		} catch (NoSuchAlgorithmException e) {
+
+			throw new IllegalStateException("SHA-1 is not available", e);
+
+		} catch (UnsupportedEncodingException e) {
+
+			throw new IllegalStateException("UTF-8 is not available", e);
+		}
+	}
+
+	/**
+	 * Respond with the entity and its tag, or with 304 Not Modified if the
+	 * request's If-None-Match already has the tag.
+	 * @param request Request being answered.
+	 * @param entity Entity to respond with.
+	 * @return The response.
+	 */
+	public static Response respond(Request request, Object entity){
+
+		EntityTag tag = of(entity);
+
+		ResponseBuilder notModified = request.evaluatePreconditions(tag);
+
+		if (notModified != null){
+
+			return notModified.build();
+		}
+
+		return Response.ok(entity).tag(tag).build();
+	}
+}
@@ -3,7 +3,9 @@ package amp.topology.resources;
 import java.util.Collection;
 
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 
 import com.fasterxml.jackson.databind.util.JSONPObject;
@@ -74,7 +76,7 @@ public class RouteInfoResource {
 	@GET
 	@Path("/topic/{topic}")
     @Timed
-	public Object getRoutesByTopic(@PathParam("topic") String topic, @QueryParam("callback") String callback){
+	public Object getRoutesByTopic(@Context Request request, @PathParam("topic") String topic, @QueryParam("callback") String callback){
 		
 		logger.info("Getting routes by topic: {}", topic);
 
@@ -82,7 +84,7 @@ public class RouteInfoResource {
         if(callback != null && callback.length()>0){
             return new JSONPObject(callback, routes);
         }
-        return routes;
+        return EntityTags.respond(request, routes);
 	}
 	
 	@GET
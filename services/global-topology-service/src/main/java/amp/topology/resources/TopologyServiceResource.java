@@ -1,14 +1,23 @@
 package amp.topology.resources;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import javax.ws.rs.Consumes;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 
 import com.fasterxml.jackson.databind.util.JSONPObject;
 import org.slf4j.Logger;
@@ -36,6 +45,11 @@ public class TopologyServiceResource {
 	public static final String HEADER_PREFERRED_QUEUENAME = "amp.topology.request.prefs.queue.name";
 	public static final String HEADER_PREFERRED_QUEUE_PREFIX = "amp.topology.request.prefs.queue.prefix";
 	
+	/**
+	 * Most topics that routing can be asked for in one bulk request.
+	 */
+	public static int MAX_BULK_TOPICS = 1000;
+	
 	private ITopologyService topologyService;
 	
 	public TopologyServiceResource(ITopologyService topologyService){
@@ -43,10 +57,15 @@ public class TopologyServiceResource {
 		this.topologyService = topologyService;
 	}
 
+	/**
+	 * Get routing info for a topic.  The response is tagged so the client
+	 * can ask again with If-None-Match and get a 304 if nothing changed.
+	 */
 	@GET
 	@Timed
 	@Path("/get-routing-info/{topic}")
 	public Object getRoutingInfo(
+			@Context Request request,
 			@Auth UserDetails client, 
 			@PathParam("topic") String topic,
 			@DefaultValue("false") @QueryParam("c") String shouldCreate,
@@ -54,42 +73,127 @@ public class TopologyServiceResource {
 			@QueryParam("qp") String queuePrefix,
             @QueryParam("callback") String callback){
 		
-		HashMap<String, String> routingHints = new HashMap<String, String>();
-		
 		logger.info("Getting Routing Info for client '{}' for topic '{}'.", client.getUsername(), topic);
 		
+		logRoutingPreferences(shouldCreate, queueName, queuePrefix);
+		
+		Map<String, String> routingHints = buildRoutingHints(client, topic, shouldCreate, queueName, queuePrefix);
+		
+        RoutingInfo routingInfo = this.topologyService.getRoutingInfo(routingHints);
+        if(callback != null && callback.length()>0){
+            return new JSONPObject(callback, routingInfo);
+        }
+		return EntityTags.respond(request, routingInfo);
+	}
+	
+	/**
+	 * Get routing info for many topics in one round-trip.  The topics are
+	 * posted as a JSON array; routing is returned as a JSON object keyed by
+	 * topic, with null for any topic the service has no routing for.
+	 * Route precreation applies to every topic, but a preferred queue name
+	 * can't, so asking for one is a bad request; only a queue prefix may be
+	 * given.  The request is logged once, and each topic only at debug.
+	 */
+	@POST
+	@Timed
+	@Path("/get-routing-info")
+	@Consumes(MediaType.APPLICATION_JSON)
+	public Map<String, RoutingInfo> getRoutingInfoByTopic(
+			@Auth UserDetails client,
+			List<String> topics,
+			@DefaultValue("false") @QueryParam("c") String shouldCreate,
+			@QueryParam("qn") String queueName,
+			@QueryParam("qp") String queuePrefix){
+		
+		Map<String, RoutingInfo> routingByTopic = new LinkedHashMap<String, RoutingInfo>();
+		
+		if (topics == null){
+			
+			return routingByTopic;
+		}
+		
+		if (topics.size() > MAX_BULK_TOPICS){
+			
+			logger.warn("Client '{}' asked for routing info for {} topics; the most allowed is {}.", 
+					new Object[]{ client.getUsername(), topics.size(), MAX_BULK_TOPICS });
+			
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		}
+		
+		if (queueName != null){
+			
+			logger.warn("Client '{}' asked for queue name '{}' for {} topics; only a queue prefix may be given.", 
+					new Object[]{ client.getUsername(), queueName, topics.size() });
+			
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		}
+		
+		logger.info("Getting Routing Info for client '{}' for {} topics.", client.getUsername(), topics.size());
+		
+		logRoutingPreferences(shouldCreate, null, queuePrefix);
+		
+		for (String topic : topics){
+			
+			if (topic == null || routingByTopic.containsKey(topic)){
+				
+				continue;
+			}
+			
+			logger.debug("Getting Routing Info for client '{}' for topic '{}'.", client.getUsername(), topic);
+			
+			Map<String, String> routingHints = buildRoutingHints(client, topic, shouldCreate, null, queuePrefix);
+			
+			routingByTopic.put(topic, this.topologyService.getRoutingInfo(routingHints));
+		}
+		
+		return routingByTopic;
+	}
+	
+	private Map<String, String> buildRoutingHints(
+			UserDetails client, String topic, String shouldCreate, String queueName, String queuePrefix){
+		
+		HashMap<String, String> routingHints = new HashMap<String, String>();
+		
 		routingHints.put(EnvelopeHeaderConstants.MESSAGE_SENDER_IDENTITY, client.getUsername());
 		
 		routingHints.put(EnvelopeHeaderConstants.MESSAGE_TOPIC, topic);
 		
 		if (!shouldCreate.equalsIgnoreCase("false")){
 			
-			logger.info("Client requests routes be precreated.");
-			
 			routingHints.put(HEADER_REQUEST_TOPO_CREATION, "true");
 			
 			if (queueName != null){
 				
-				logger.info("Client requests queueName be '{}'", queueName);
-				
 				routingHints.put(HEADER_PREFERRED_QUEUENAME, queueName);
 			}
 			
 			if (queuePrefix != null){
 				
-				logger.info("Client requests queue prefix of '{}'", queuePrefix);
-				
 				routingHints.put(HEADER_PREFERRED_QUEUE_PREFIX, queuePrefix);
 			}
+		}
+		
+		return routingHints;
+	}
+	
+	private void logRoutingPreferences(String shouldCreate, String queueName, String queuePrefix){
+		
+		if (!shouldCreate.equalsIgnoreCase("false")){
+			
+			logger.info("Client requests routes be precreated.");
+			
+			if (queueName != null){
+				
+				logger.info("Client requests queueName be '{}'", queueName);
+			}
+			
+			if (queuePrefix != null){
+				
+				logger.info("Client requests queue prefix of '{}'", queuePrefix);
+			}
 		}else{
             logger.info("Client requests routes NOT be precreated");
         }
-
-        RoutingInfo routingInfo = this.topologyService.getRoutingInfo(routingHints);
-        if(callback != null && callback.length()>0){
-            return new JSONPObject(callback, routingInfo);
-        }
-		return routingInfo;
 	}
 	
 }
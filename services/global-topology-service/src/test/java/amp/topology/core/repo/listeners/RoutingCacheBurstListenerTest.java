@@ -0,0 +1,110 @@
+package amp.topology.core.repo.listeners;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import amp.commanding.ICommandSender;
+import amp.messaging.MessageException;
+import amp.rabbit.commands.BurstRoutingCacheCommand;
+import amp.topology.core.ExtendedExchange;
+import amp.topology.core.ExtendedRouteInfo;
+import amp.topology.core.ITopologyRepositoryEventListener;
+import amp.topology.core.repo.inmem.InMemoryTopologyRepository;
+
+public class RoutingCacheBurstListenerTest {
+
+	static class RecordingCommandSender implements ICommandSender {
+
+		List<BurstRoutingCacheCommand> sent = Collections.synchronizedList(new ArrayList<BurstRoutingCacheCommand>());
+		CountDownLatch firstSent = new CountDownLatch(1);
+
+		@Override
+		public void send(Object command) throws MessageException {
+
+			sent.add((BurstRoutingCacheCommand) command);
+			firstSent.countDown();
+		}
+
+		void awaitFirst() throws InterruptedException {
+
+			assertTrue("no burst command was sent", firstSent.await(5, TimeUnit.SECONDS));
+		}
+
+		@Override
+		public void dispose() {}
+	}
+
+	static ExtendedExchange exchange(String id){
+
+		return new ExtendedExchange(id, id, id, "localhost", "/", 5672, id, "", "topic", false, false, null);
+	}
+
+	static ExtendedRouteInfo route(String id, String exchangeId, String... topics){
+
+		return new ExtendedRouteInfo(id, id, Arrays.asList("client"), Arrays.asList(topics), exchangeId, exchangeId);
+	}
+
+	InMemoryTopologyRepository repository(ITopologyRepositoryEventListener listener){
+
+		InMemoryTopologyRepository repository = new InMemoryTopologyRepository(
+			Collections.<ITopologyRepositoryEventListener>emptyList());
+
+		repository.createExchange(exchange("ex.1"));
+		repository.createExchange(exchange("ex.2"));
+		repository.createRoute(route("route.1", "ex.1", "topic.a", "topic.b"));
+		repository.createRoute(route("route.2", "ex.2", "topic.c"));
+
+		repository.addEventListener(listener);
+
+		return repository;
+	}
+
+	@Test
+	public void changing_an_exchange_bursts_only_the_topics_routed_through_it() throws Exception {
+
+		RecordingCommandSender sender = new RecordingCommandSender();
+		RoutingCacheBurstListener listener = new RoutingCacheBurstListener(sender, 50);
+
+		repository(listener).updateExchange(exchange("ex.1"));
+
+		sender.awaitFirst();
+		listener.dispose();
+
+		assertEquals(1, sender.sent.size());
+		assertEquals(new HashSet<String>(Arrays.asList("topic.a", "topic.b")), new HashSet<String>(sender.sent.get(0).getTopics()));
+		assertNull(sender.sent.get(0).getNewRoutingInfo());
+	}
+
+	@Test
+	public void changes_made_together_are_sent_in_one_command() throws Exception {
+
+		RecordingCommandSender sender = new RecordingCommandSender();
+		RoutingCacheBurstListener listener = new RoutingCacheBurstListener(sender, 100);
+		InMemoryTopologyRepository repository = repository(listener);
+
+		repository.updateRoute(route("route.2", "ex.2", "topic.d"));
+		repository.removeRoute("route.1");
+
+		sender.awaitFirst();
+
+		assertEquals(1, sender.sent.size());
+		assertEquals(new HashSet<String>(Arrays.asList("topic.a", "topic.b", "topic.c", "topic.d")), new HashSet<String>(sender.sent.get(0).getTopics()));
+
+		// and nothing more until something else changes
+		repository.createExchange(exchange("ex.3"));
+
+		// (sends anything still outstanding)
+		listener.dispose();
+
+		assertEquals(1, sender.sent.size());
+	}
+}
@@ -0,0 +1,147 @@
+package amp.topology.resources;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+import org.junit.Test;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import amp.rabbit.topology.ITopologyService;
+import amp.rabbit.topology.RoutingInfo;
+
+import cmf.bus.EnvelopeHeaderConstants;
+
+public class TopologyServiceResourceTest {
+
+	/**
+	 * Has routing for every topic but "unknown", and records the hints asked with.
+	 */
+	static class RecordingTopologyService implements ITopologyService {
+
+		final List<Map<String, String>> hints = Collections.synchronizedList(new ArrayList<Map<String, String>>());
+
+		@Override
+		public RoutingInfo getRoutingInfo(Map<String, String> routingHints) {
+
+			hints.add(routingHints);
+
+			return "unknown".equals(routingHints.get(EnvelopeHeaderConstants.MESSAGE_TOPIC)) ? null : new RoutingInfo();
+		}
+
+		@Override
+		public void dispose() {}
+	}
+
+	static UserDetails client() {
+
+		UserDetails client = mock(UserDetails.class);
+		when(client.getUsername()).thenReturn("app");
+
+		return client;
+	}
+
+	static List<String> topics(int count) {
+
+		List<String> topics = new ArrayList<String>();
+
+		for (int i = 0; i < count; i++) {
+			topics.add("topic." + i);
+		}
+
+		return topics;
+	}
+
+	@Test
+	public void routing_is_returned_for_up_to_the_most_topics_allowed() {
+
+		assertEquals(1000, TopologyServiceResource.MAX_BULK_TOPICS);
+
+		RecordingTopologyService service = new RecordingTopologyService();
+		Map<String, RoutingInfo> routingByTopic = new TopologyServiceResource(service)
+			.getRoutingInfoByTopic(client(), topics(TopologyServiceResource.MAX_BULK_TOPICS), "false", null, null);
+
+		assertEquals(topics(TopologyServiceResource.MAX_BULK_TOPICS), new ArrayList<String>(routingByTopic.keySet()));
+		assertEquals(TopologyServiceResource.MAX_BULK_TOPICS, service.hints.size());
+	}
+
+	@Test
+	public void asking_for_more_than_the_most_topics_allowed_is_a_bad_request() {
+
+		RecordingTopologyService service = new RecordingTopologyService();
+
+		try {
+			new TopologyServiceResource(service)
+				.getRoutingInfoByTopic(client(), topics(TopologyServiceResource.MAX_BULK_TOPICS + 1), "false", null, null);
+			fail("too many topics were accepted");
+		} catch (WebApplicationException ex) {
+			assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), ex.getResponse().getStatus());
+		}
+
+		assertTrue(service.hints.isEmpty());
+	}
+
+	@Test
+	public void asking_for_a_queue_name_is_a_bad_request() {
+
+		RecordingTopologyService service = new RecordingTopologyService();
+
+		try {
+			new TopologyServiceResource(service)
+				.getRoutingInfoByTopic(client(), Arrays.asList("topic.a", "topic.b"), "true", "app.queue", null);
+			fail("one queue name was accepted for many topics");
+		} catch (WebApplicationException ex) {
+			assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), ex.getResponse().getStatus());
+		}
+
+		assertTrue(service.hints.isEmpty());
+	}
+
+	@Test
+	public void unknown_topics_are_returned_without_routing() {
+
+		RecordingTopologyService service = new RecordingTopologyService();
+		Map<String, RoutingInfo> routingByTopic = new TopologyServiceResource(service)
+			.getRoutingInfoByTopic(client(), Arrays.asList("topic.a", "unknown", "topic.b"), "false", null, null);
+
+		assertEquals(Arrays.asList("topic.a", "unknown", "topic.b"), new ArrayList<String>(routingByTopic.keySet()));
+		assertNotNull(routingByTopic.get("topic.a"));
+		assertNull(routingByTopic.get("unknown"));
+		assertNotNull(routingByTopic.get("topic.b"));
+	}
+
+	@Test
+	public void every_topic_is_asked_for_once_with_the_same_preferences() {
+
+		RecordingTopologyService service = new RecordingTopologyService();
+		Map<String, RoutingInfo> routingByTopic = new TopologyServiceResource(service)
+			.getRoutingInfoByTopic(client(), Arrays.asList("topic.a", null, "topic.b", "topic.a"), "true", null, "app");
+
+		assertEquals(Arrays.asList("topic.a", "topic.b"), new ArrayList<String>(routingByTopic.keySet()));
+		assertEquals(2, service.hints.size());
+
+		for (Map<String, String> hints : service.hints) {
+			assertEquals("app", hints.get(EnvelopeHeaderConstants.MESSAGE_SENDER_IDENTITY));
+			assertEquals("true", hints.get(TopologyServiceResource.HEADER_REQUEST_TOPO_CREATION));
+			assertEquals("app", hints.get(TopologyServiceResource.HEADER_PREFERRED_QUEUE_PREFIX));
+			assertFalse(hints.containsKey(TopologyServiceResource.HEADER_PREFERRED_QUEUENAME));
+		}
+	}
+
+	@Test
+	public void no_topics_gets_no_routing() {
+
+		RecordingTopologyService service = new RecordingTopologyService();
+
+		assertTrue(new TopologyServiceResource(service).getRoutingInfoByTopic(client(), null, "false", null, null).isEmpty());
+		assertTrue(service.hints.isEmpty());
+	}
+}